@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Abstract implementation of {@link BatchConsumer} with the batch settings given at construction and empty
+ * implementations of the other {@link com.rabbitmq.client.Consumer} methods.
+ * 
+ * @author Josh Devins
+ */
+public abstract class AbstractBatchConsumer implements BatchConsumer {
+
+    private final int maxBatchSize;
+
+    private final long maxLingerMillis;
+
+    private final boolean requeueOnFailure;
+
+    public AbstractBatchConsumer(final int maxBatchSize, final long maxLingerMillis, final boolean requeueOnFailure) {
+
+        Validate.isTrue(maxBatchSize > 0, "maxBatchSize must be greater than 0");
+        Validate.isTrue(maxLingerMillis > 0, "maxLingerMillis must be greater than 0");
+
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerMillis = maxLingerMillis;
+        this.requeueOnFailure = requeueOnFailure;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMaxLingerMillis() {
+        return maxLingerMillis;
+    }
+
+    public void handleCancel(final String consumerTag) throws IOException {
+    }
+
+    public void handleCancelOk(final String consumerTag) {
+    }
+
+    public void handleConsumeOk(final String consumerTag) {
+    }
+
+    /**
+     * Never called by an HA channel, deliveries are handed to {@link #handleBatch(String, List)} instead. Any other
+     * channel has each delivery handled as a batch of one, which is not acknowledged for the consumer.
+     * 
+     * @throws IOException
+     *         if the delivery could not be handled, which the client hands to its exception handler
+     */
+    public void handleDelivery(final String consumerTag, final Envelope envelope, final BasicProperties properties,
+            final byte[] body) throws IOException {
+
+        List<Delivery> failed;
+        try {
+            failed = handleBatch(consumerTag, Collections.singletonList(new Delivery(envelope, properties, body)));
+
+        } catch (IOException ioe) {
+            throw ioe;
+
+        } catch (Exception e) {
+            throw new IOException("Batch consumer failed to handle delivery: deliveryTag=" + envelope.getDeliveryTag()
+                    + ", message=" + e.getMessage());
+        }
+
+        if (failed != null && !failed.isEmpty()) {
+            throw new IOException("Batch consumer failed to handle delivery: deliveryTag=" + envelope.getDeliveryTag());
+        }
+    }
+
+    public void handleRecoverOk(final String consumerTag) {
+    }
+
+    public void handleShutdownSignal(final String consumerTag, final ShutdownSignalException sig) {
+    }
+
+    public boolean isRequeueOnFailure() {
+        return requeueOnFailure;
+    }
+}
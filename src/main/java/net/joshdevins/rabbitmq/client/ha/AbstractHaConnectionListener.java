@@ -16,6 +16,8 @@
 
 package net.joshdevins.rabbitmq.client.ha;
 
+import net.joshdevins.rabbitmq.client.ha.topology.TopologyRecoveryResult;
+
 import com.rabbitmq.client.ShutdownSignalException;
 
 /**
@@ -40,4 +42,7 @@ public abstract class AbstractHaConnectionListener implements HaConnectionListen
 
     public void onReconnection(final HaConnectionProxy connectionProxy) {
     }
+
+    public void onTopologyRecovery(final HaConnectionProxy connectionProxy, final TopologyRecoveryResult result) {
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Works out a channel prefetch count that keeps its consumers busy without piling up unacknowledged messages. By
+ * Little's law the number of messages that must be outstanding is the delivery rate times the time each message is
+ * outstanding. A consumer on a channel handles one delivery at a time, so the rate is one over the average
+ * processing time. A message is outstanding from delivery until it is acked, plus a network round trip for the ack to
+ * reach the broker and the next message to come back. Some headroom is added to absorb variance.
+ * 
+ * <p>
+ * Processing times and delivery to ack latencies are tracked as moving averages. The recommended value only moves
+ * when it differs enough from the current one, and at most once per adjustment interval, so that the channel is not
+ * flooded with {@code basic.qos} calls.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class AdaptivePrefetchController {
+
+    /**
+     * Weight given to each new sample in the moving averages.
+     */
+    private static final double EWMA_WEIGHT = 0.1;
+
+    private static final double HEADROOM = 1.5;
+
+    /**
+     * Round trip assumed when there is no health probe to measure it.
+     */
+    private static final double DEFAULT_RTT_MILLIS = 1;
+
+    /**
+     * Default value = 1 second
+     */
+    private static final long DEFAULT_ADJUST_INTERVAL_NANOS = 1000L * 1000 * 1000;
+
+    private static final int MIN_SAMPLES = 10;
+
+    /**
+     * Deliveries that are never acked, like those of auto-ack consumers, are forgotten beyond this.
+     */
+    private static final int MAX_TRACKED_DELIVERIES = 10000;
+
+    private final int minPrefetch;
+
+    private final int maxPrefetch;
+
+    private final long adjustIntervalNanos;
+
+    private final SortedMap<Long, Long> deliveryTimes;
+
+    private volatile int prefetch;
+
+    private volatile double processingMillis = -1;
+
+    private volatile double ackLatencyMillis = -1;
+
+    private int samples;
+
+    private long lastAdjustNanos;
+
+    public AdaptivePrefetchController(final int minPrefetch, final int maxPrefetch) {
+        this(minPrefetch, maxPrefetch, DEFAULT_ADJUST_INTERVAL_NANOS);
+    }
+
+    AdaptivePrefetchController(final int minPrefetch, final int maxPrefetch, final long adjustIntervalNanos) {
+
+        Validate.isTrue(minPrefetch > 0, "minPrefetch must be greater than 0");
+        Validate.isTrue(maxPrefetch >= minPrefetch, "maxPrefetch must be at least minPrefetch");
+
+        this.minPrefetch = minPrefetch;
+        this.maxPrefetch = maxPrefetch;
+        this.adjustIntervalNanos = adjustIntervalNanos;
+
+        deliveryTimes = new TreeMap<Long, Long>();
+        lastAdjustNanos = System.nanoTime();
+    }
+
+    /**
+     * Records an ack, nack or reject.
+     */
+    public synchronized void acknowledged(final long deliveryTag, final boolean multiple) {
+
+        long now = System.nanoTime();
+
+        if (!multiple) {
+
+            Long deliveredAt = deliveryTimes.remove(deliveryTag);
+            if (deliveredAt != null) {
+                recordAckLatency(now - deliveredAt);
+            }
+
+            return;
+        }
+
+        Iterator<Map.Entry<Long, Long>> it = deliveryTimes.headMap(deliveryTag + 1).entrySet().iterator();
+        while (it.hasNext()) {
+
+            recordAckLatency(now - it.next().getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * Records the start of a delivery to a consumer.
+     */
+    public synchronized void delivered(final long deliveryTag) {
+
+        if (deliveryTimes.size() >= MAX_TRACKED_DELIVERIES) {
+            deliveryTimes.remove(deliveryTimes.firstKey());
+        }
+
+        deliveryTimes.put(deliveryTag, System.nanoTime());
+    }
+
+    /**
+     * @return the moving average of the time from delivery to ack in milliseconds, or -1 if unknown
+     */
+    public double getAckLatencyMillis() {
+        return ackLatencyMillis;
+    }
+
+    public int getMaxPrefetch() {
+        return maxPrefetch;
+    }
+
+    public int getMinPrefetch() {
+        return minPrefetch;
+    }
+
+    /**
+     * @return the prefetch count currently applied to the channel, or 0 if none has been applied
+     */
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @return the moving average of consumer processing time in milliseconds, or -1 if unknown
+     */
+    public double getProcessingMillis() {
+        return processingMillis;
+    }
+
+    /**
+     * Works out whether the prefetch count should change.
+     * 
+     * @param rttMillis
+     *        the measured round trip time to the broker, or a negative value if unknown
+     * @return the new prefetch count to apply, or 0 if it should stay as it is
+     */
+    public synchronized int nextPrefetch(final double rttMillis) {
+
+        long now = System.nanoTime();
+        if (samples < MIN_SAMPLES || now - lastAdjustNanos < adjustIntervalNanos) {
+            return 0;
+        }
+
+        lastAdjustNanos = now;
+
+        // a consumer that takes no measurable time is limited by the round trip alone
+        double perMessageMillis = Math.max(processingMillis, 0.01);
+        double outstandingMillis = ackLatencyMillis + (rttMillis < 0 ? DEFAULT_RTT_MILLIS : rttMillis);
+
+        int target = (int) Math.ceil(outstandingMillis / perMessageMillis * HEADROOM);
+        target = Math.max(minPrefetch, Math.min(maxPrefetch, target));
+
+        if (prefetch > 0 && Math.abs(target - prefetch) <= Math.max(1, prefetch / 4)) {
+            return 0;
+        }
+
+        return target;
+    }
+
+    /**
+     * Records the time a consumer spent handling a delivery.
+     */
+    public synchronized void processed(final long processingNanos) {
+
+        double millis = processingNanos / 1000000.0;
+        processingMillis = processingMillis < 0 ? millis : EWMA_WEIGHT * millis + (1 - EWMA_WEIGHT)
+                * processingMillis;
+    }
+
+    /**
+     * Forgets deliveries of a channel that has been replaced, since delivery tags start over.
+     */
+    public synchronized void reset() {
+        deliveryTimes.clear();
+    }
+
+    /**
+     * Records that a prefetch count has been applied to the channel.
+     */
+    public void setPrefetch(final int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    private void recordAckLatency(final long latencyNanos) {
+
+        double millis = latencyNanos / 1000000.0;
+        ackLatencyMillis = ackLatencyMillis < 0 ? millis : EWMA_WEIGHT * millis + (1 - EWMA_WEIGHT) * ackLatencyMillis;
+        samples++;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Collects the deliveries of a {@link BatchConsumer} into batches and hands them to the consumer one batch at a time,
+ * acknowledging each batch once it has been handled.
+ * 
+ * <p>
+ * Batches are tagged with the connection epoch they were received in. A batch from a channel that has since been
+ * replaced is dropped rather than handled, since its delivery tags cannot be acked on the new channel and the broker
+ * redelivers the messages anyway.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class BatchAccumulator {
+
+    private class Batch implements Runnable {
+
+        private final String consumerTag;
+
+        private final long epoch;
+
+        private final List<Delivery> deliveries;
+
+        private ScheduledFuture<?> lingerFlush;
+
+        private Batch(final String consumerTag, final long epoch) {
+
+            this.consumerTag = consumerTag;
+            this.epoch = epoch;
+            deliveries = new ArrayList<Delivery>(consumer.getMaxBatchSize());
+        }
+
+        /**
+         * Flushes the batch when the linger time is up.
+         */
+        public void run() {
+            flush(this);
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(BatchAccumulator.class);
+
+    private final BatchConsumer consumer;
+
+    private final HaChannelProxy channelProxy;
+
+    private final Channel channel;
+
+    private final boolean autoAck;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor executor;
+
+    private final AtomicInteger deliveriesInFlight;
+
+    private Batch batch;
+
+    /**
+     * @param channel
+     *        the HA channel to acknowledge batches on
+     * @param executor
+     *        an executor that runs one task at a time, in order
+     */
+    public BatchAccumulator(final BatchConsumer consumer, final HaChannelProxy channelProxy, final Channel channel,
+            final boolean autoAck, final ScheduledExecutorService scheduler, final Executor executor) {
+
+        Validate.notNull(consumer, "consumer is required");
+        Validate.notNull(channelProxy, "channelProxy is required");
+        Validate.notNull(channel, "channel is required");
+        Validate.notNull(scheduler, "scheduler is required");
+        Validate.notNull(executor, "executor is required");
+        Validate.isTrue(consumer.getMaxBatchSize() > 0, "maxBatchSize must be greater than 0");
+        Validate.isTrue(consumer.getMaxLingerMillis() > 0, "maxLingerMillis must be greater than 0");
+
+        this.consumer = consumer;
+        this.channelProxy = channelProxy;
+        this.channel = channel;
+        this.autoAck = autoAck;
+        this.scheduler = scheduler;
+        this.executor = executor;
+
+        deliveriesInFlight = new AtomicInteger();
+    }
+
+    /**
+     * Adds a delivery to the current batch, flushing it if it is full.
+     */
+    public synchronized void add(final String consumerTag, final Envelope envelope, final BasicProperties properties,
+            final byte[] body) {
+
+        long epoch = channelProxy.getConnectionProxy().getEpoch();
+
+        if (batch != null && batch.epoch != epoch) {
+            discard(batch);
+        }
+
+        if (batch == null) {
+            batch = new Batch(consumerTag, epoch);
+            batch.lingerFlush = scheduler.schedule(batch, consumer.getMaxLingerMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        batch.deliveries.add(new Delivery(envelope, properties, body));
+        deliveriesInFlight.incrementAndGet();
+
+        if (batch.deliveries.size() >= consumer.getMaxBatchSize()) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * @return the number of deliveries received but not yet handled and acknowledged
+     */
+    public int getDeliveriesInFlight() {
+        return deliveriesInFlight.get();
+    }
+
+    private void acknowledge(final Batch handled, final List<Delivery> failed) throws IOException {
+
+        List<Delivery> deliveries = handled.deliveries;
+
+        // with no other consumer on the channel, every delivery up to the last belongs to this batch
+        if (failed.isEmpty() && channelProxy.getConsumerCount() == 1) {
+            channel.basicAck(deliveries.get(deliveries.size() - 1).getEnvelope().getDeliveryTag(), true);
+            return;
+        }
+
+        Map<Delivery, Boolean> failedDeliveries = new IdentityHashMap<Delivery, Boolean>();
+        for (Delivery delivery : failed) {
+            failedDeliveries.put(delivery, Boolean.TRUE);
+        }
+
+        for (Delivery delivery : deliveries) {
+
+            long deliveryTag = delivery.getEnvelope().getDeliveryTag();
+
+            if (failedDeliveries.containsKey(delivery)) {
+                channel.basicNack(deliveryTag, false, consumer.isRequeueOnFailure());
+            } else {
+                channel.basicAck(deliveryTag, false);
+            }
+        }
+    }
+
+    private synchronized void discard(final Batch stale) {
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Dropping batch from a replaced channel: deliveries=" + stale.deliveries.size());
+        }
+
+        stale.lingerFlush.cancel(false);
+        deliveriesInFlight.addAndGet(-stale.deliveries.size());
+        batch = null;
+    }
+
+    private synchronized void flush(final Batch full) {
+
+        // already flushed because it filled up before the linger time
+        if (batch != full) {
+            return;
+        }
+
+        batch = null;
+        full.lingerFlush.cancel(false);
+
+        executor.execute(new Runnable() {
+
+            public void run() {
+                handle(full);
+            }
+        });
+    }
+
+    private void handle(final Batch full) {
+
+        try {
+            if (channelProxy.getConnectionProxy().getEpoch() != full.epoch) {
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Dropping batch from a replaced channel: deliveries=" + full.deliveries.size());
+                }
+
+                return;
+            }
+
+            // only now, since time spent lingering would be taken for ack latency and inflate the prefetch
+            AdaptivePrefetchController prefetchController = channelProxy.getPrefetchController();
+            if (prefetchController != null) {
+                for (Delivery delivery : full.deliveries) {
+                    prefetchController.delivered(delivery.getEnvelope().getDeliveryTag());
+                }
+            }
+
+            List<Delivery> failed;
+            long start = System.nanoTime();
+
+            try {
+                failed = consumer.handleBatch(full.consumerTag, Collections.unmodifiableList(full.deliveries));
+
+            } catch (Exception e) {
+                LOG.warn("Batch consumer failed, rejecting whole batch: deliveries=" + full.deliveries.size(), e);
+                failed = full.deliveries;
+            }
+
+            if (prefetchController != null) {
+                prefetchController.processed((System.nanoTime() - start) / full.deliveries.size());
+            }
+
+            if (!autoAck) {
+                acknowledge(full, failed == null ? Collections.<Delivery> emptyList() : failed);
+            }
+
+        } catch (IOException ioe) {
+            LOG.warn("Failed to acknowledge batch, the broker will redeliver it: deliveries=" + full.deliveries.size(),
+                    ioe);
+
+        } finally {
+            deliveriesInFlight.addAndGet(-full.deliveries.size());
+        }
+    }
+}
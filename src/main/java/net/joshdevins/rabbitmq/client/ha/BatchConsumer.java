@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.List;
+
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+/**
+ * A {@link Consumer} that handles deliveries in batches rather than one at a time. Pass one to any
+ * {@link com.rabbitmq.client.Channel#basicConsume(String, Consumer)} method of an HA channel and
+ * {@link Consumer#handleDelivery(String, com.rabbitmq.client.Envelope, com.rabbitmq.client.AMQP.BasicProperties, byte[])}
+ * is never called, instead deliveries are collected and handed to {@link #handleBatch(String, List)} once
+ * {@link #getMaxBatchSize()} of them have arrived or the oldest has waited {@link #getMaxLingerMillis()}.
+ * 
+ * <p>
+ * Unless consuming with auto-ack, the HA channel acknowledges the batch after it has been handled. A fully successful
+ * batch is acked with a single {@code basicAck} when the consumer is the only one on its channel, and message by
+ * message otherwise. Deliveries reported as failed are nacked individually and the rest are acked. Batches are handled
+ * one at a time and in order, off the connection's delivery thread. The channel's prefetch count should be at least
+ * the maximum batch size, or batches will only ever be flushed by the linger time.
+ * </p>
+ * 
+ * <p>
+ * An {@link AbstractBatchConsumer} subscribed on a plain channel handles each delivery as a batch of one, without any
+ * acknowledgements.
+ * </p>
+ * 
+ * @see AbstractBatchConsumer
+ * @author Josh Devins
+ */
+public interface BatchConsumer extends Consumer {
+
+    int getMaxBatchSize();
+
+    long getMaxLingerMillis();
+
+    /**
+     * Handles a batch of deliveries.
+     * 
+     * @return the deliveries that could not be handled and should be nacked, or null or empty if all were handled.
+     *         Throwing an exception nacks the whole batch.
+     */
+    List<Delivery> handleBatch(final String consumerTag, final List<Delivery> deliveries) throws Exception;
+
+    /**
+     * @return true if nacked deliveries should be requeued, false to have the broker discard or dead-letter them
+     */
+    boolean isRequeueOnFailure();
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Actively probes the broker behind an {@link HaConnectionProxy} by timing a synchronous round trip on a dedicated
+ * channel. A half-open TCP connection (for example one dropped silently by a load balancer) is otherwise only noticed
+ * when some operation eventually times out. When too many consecutive probes miss, the dead connection is handed to a
+ * callback which aborts it and starts a reconnection.
+ * 
+ * <p>
+ * An exponentially weighted moving average of the round trip time is kept for information.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class ConnectionHealthProbe implements Runnable {
+
+    /**
+     * Called when a connection is considered dead.
+     */
+    public static interface DeadConnectionHandler {
+
+        void onDeadConnection(HaConnectionProxy connectionProxy, Connection deadConnection, String reason);
+    }
+
+    private class ProbeCallable implements Callable<Long> {
+
+        private final Channel channel;
+
+        private ProbeCallable(final Channel channel) {
+            this.channel = channel;
+        }
+
+        public Long call() throws Exception {
+
+            long start = System.nanoTime();
+
+            // a cheap synchronous method with no side effects on a channel nobody consumes from
+            channel.basicQos(0);
+
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(ConnectionHealthProbe.class);
+
+    /**
+     * Weight given to each new round trip sample in the moving average.
+     */
+    private static final double EWMA_WEIGHT = 0.2;
+
+    /**
+     * Channel number reserved for probing when the broker does not limit channels. This keeps the probe channel clear
+     * of the low channel numbers that application channels are allocated and later recreated with.
+     */
+    private static final int DEFAULT_PROBE_CHANNEL_NUMBER = 65535;
+
+    private final HaConnectionProxy connectionProxy;
+
+    private final ExecutorService executorService;
+
+    private final DeadConnectionHandler deadConnectionHandler;
+
+    private final long timeoutMillis;
+
+    private final int maxMisses;
+
+    private Channel probeChannel;
+
+    private long probeChannelEpoch = -1;
+
+    private Future<Long> outstandingProbe;
+
+    private int consecutiveMisses;
+
+    private volatile double rttEwmaMillis = -1;
+
+    private volatile long lastRttNanos = -1;
+
+    public ConnectionHealthProbe(final HaConnectionProxy connectionProxy, final ExecutorService executorService,
+            final DeadConnectionHandler deadConnectionHandler, final long timeoutMillis, final int maxMisses) {
+
+        Validate.notNull(connectionProxy, "connectionProxy is required");
+        Validate.notNull(executorService, "executorService is required");
+        Validate.notNull(deadConnectionHandler, "deadConnectionHandler is required");
+        Validate.isTrue(timeoutMillis > 0, "timeoutMillis must be greater than 0");
+        Validate.isTrue(maxMisses > 0, "maxMisses must be greater than 0");
+
+        this.connectionProxy = connectionProxy;
+        this.executorService = executorService;
+        this.deadConnectionHandler = deadConnectionHandler;
+        this.timeoutMillis = timeoutMillis;
+        this.maxMisses = maxMisses;
+    }
+
+    public synchronized int getConsecutiveMisses() {
+        return consecutiveMisses;
+    }
+
+    /**
+     * @return the last measured round trip time in milliseconds, or -1 if there has been no successful probe yet
+     */
+    public double getLastRttMillis() {
+        return lastRttNanos < 0 ? -1 : lastRttNanos / 1000000.0;
+    }
+
+    /**
+     * @return the moving average of round trip times in milliseconds, or -1 if there has been no successful probe yet
+     */
+    public double getRttEwmaMillis() {
+        return rttEwmaMillis;
+    }
+
+    public synchronized void run() {
+
+        Connection connection = connectionProxy.getTargetConnection();
+
+        // nothing to probe, or the shutdown listener already knows about it
+        if (connection == null || !connection.isOpen()) {
+            reset();
+            return;
+        }
+
+        // a previous probe is still stuck waiting on the broker
+        if (outstandingProbe != null && !outstandingProbe.isDone()) {
+            miss(connection, "previous probe still outstanding");
+            return;
+        }
+
+        try {
+            outstandingProbe = executorService.submit(new ProbeCallable(getProbeChannel(connection)));
+            long rttNanos = outstandingProbe.get(timeoutMillis, TimeUnit.MILLISECONDS);
+
+            record(rttNanos);
+
+        } catch (TimeoutException te) {
+            miss(connection, "no reply within " + timeoutMillis + "ms");
+
+        } catch (ExecutionException ee) {
+            miss(connection, ee.getCause().getMessage());
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+
+        } catch (Exception e) {
+            miss(connection, e.getMessage());
+        }
+    }
+
+    private Channel getProbeChannel(final Connection connection) throws Exception {
+
+        long epoch = connectionProxy.getEpoch();
+
+        if (probeChannel == null || probeChannelEpoch != epoch || !probeChannel.isOpen()) {
+
+            int channelNumber = connection.getChannelMax() > 0 ? connection.getChannelMax()
+                    : DEFAULT_PROBE_CHANNEL_NUMBER;
+
+            probeChannel = connection.createChannel(channelNumber);
+            probeChannelEpoch = epoch;
+
+            if (probeChannel == null) {
+                throw new IllegalStateException("Probe channel number already in use: " + channelNumber);
+            }
+        }
+
+        return probeChannel;
+    }
+
+    private void miss(final Connection connection, final String reason) {
+
+        consecutiveMisses++;
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Health probe missed: misses=" + consecutiveMisses + ", maxMisses=" + maxMisses + ", reason="
+                    + reason);
+        }
+
+        if (consecutiveMisses < maxMisses) {
+            return;
+        }
+
+        LOG.warn("Health probe missed " + consecutiveMisses + " times in a row, considering connection dead: "
+                + connection);
+
+        reset();
+        deadConnectionHandler.onDeadConnection(connectionProxy, connection, "Health probe missed " + maxMisses
+                + " round trips, last reason: " + reason);
+    }
+
+    private void record(final long rttNanos) {
+
+        consecutiveMisses = 0;
+        lastRttNanos = rttNanos;
+
+        double rttMillis = rttNanos / 1000000.0;
+        rttEwmaMillis = rttEwmaMillis < 0 ? rttMillis : EWMA_WEIGHT * rttMillis + (1 - EWMA_WEIGHT) * rttEwmaMillis;
+    }
+
+    private void reset() {
+
+        consecutiveMisses = 0;
+
+        if (outstandingProbe != null) {
+            outstandingProbe.cancel(true);
+            outstandingProbe = null;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Opens a number of connections, and channels on each, in parallel at application startup so that start time does not
+ * depend on a sequence of broker round trips. Configure with setters, then call {@link #warmUp()}.
+ * 
+ * <p>
+ * Warm-up is bounded by a deadline. In fail-fast mode, any connection failure or reaching the deadline closes whatever
+ * was opened and fails the warm-up. Otherwise the warm-up returns at the deadline with whatever is ready, and the
+ * remaining connections continue to be established in the background by the usual reconnection logic, appearing in
+ * the {@link Result} as they complete.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class ConnectionWarmUp {
+
+    /**
+     * Called for every channel opened during warm-up, for example to declare topology.
+     */
+    public static interface ChannelInitializer {
+
+        void initialize(Channel channel) throws IOException;
+    }
+
+    /**
+     * The connections and channels opened by a warm-up. When not failing fast, this keeps filling up after
+     * {@link ConnectionWarmUp#warmUp()} returns as background connections complete.
+     */
+    public static class Result {
+
+        private final List<Connection> connections = Collections.synchronizedList(new ArrayList<Connection>());
+
+        private final List<Channel> channels = Collections.synchronizedList(new ArrayList<Channel>());
+
+        private final int numConnections;
+
+        private Result(final int numConnections) {
+            this.numConnections = numConnections;
+        }
+
+        public List<Channel> getChannels() {
+
+            synchronized (channels) {
+                return new ArrayList<Channel>(channels);
+            }
+        }
+
+        public List<Connection> getConnections() {
+
+            synchronized (connections) {
+                return new ArrayList<Connection>(connections);
+            }
+        }
+
+        /**
+         * @return true if all requested connections have been opened
+         */
+        public boolean isComplete() {
+            return connections.size() == numConnections;
+        }
+    }
+
+    private class WarmUpTask implements Callable<Connection> {
+
+        private final Result result;
+
+        private final AtomicBoolean abandoned;
+
+        private WarmUpTask(final Result result, final AtomicBoolean abandoned) {
+
+            this.result = result;
+            this.abandoned = abandoned;
+        }
+
+        public Connection call() throws Exception {
+
+            Connection connection = connectionFactory.newConnection(addrs, failFast);
+
+            List<Channel> channels = new ArrayList<Channel>(channelsPerConnection);
+            try {
+                for (int i = 0; i < channelsPerConnection; i++) {
+
+                    Channel channel = connection.createChannel();
+                    channels.add(channel);
+
+                    if (channelInitializer != null) {
+                        channelInitializer.initialize(channel);
+                    }
+                }
+
+            } catch (IOException ioe) {
+                closeQuietly(connection);
+                throw ioe;
+            }
+
+            synchronized (result) {
+
+                // warm-up failed while we were connecting, nobody wants this any more
+                if (abandoned.get()) {
+                    closeQuietly(connection);
+                    return null;
+                }
+
+                result.channels.addAll(channels);
+                result.connections.add(connection);
+            }
+
+            return connection;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(ConnectionWarmUp.class);
+
+    /**
+     * Default value = 30000 = 30 seconds
+     */
+    public static final long DEFAULT_DEADLINE_MILLIS = 30000;
+
+    private final HaConnectionFactory connectionFactory;
+
+    private final Address[] addrs;
+
+    private int numConnections = 1;
+
+    private int channelsPerConnection = 0;
+
+    private ChannelInitializer channelInitializer;
+
+    private long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+
+    private boolean failFast = true;
+
+    public ConnectionWarmUp(final HaConnectionFactory connectionFactory, final Address[] addrs) {
+
+        Validate.notNull(connectionFactory, "connectionFactory is required");
+        Validate.notEmpty(addrs, "addrs are required");
+
+        this.connectionFactory = connectionFactory;
+        this.addrs = addrs;
+    }
+
+    public void setChannelInitializer(final ChannelInitializer channelInitializer) {
+        this.channelInitializer = channelInitializer;
+    }
+
+    public void setChannelsPerConnection(final int channelsPerConnection) {
+
+        Validate.isTrue(channelsPerConnection >= 0, "channelsPerConnection must be 0 or greater");
+        this.channelsPerConnection = channelsPerConnection;
+    }
+
+    /**
+     * Set the maximum time in milliseconds that {@link #warmUp()} will take. Default is
+     * {@value #DEFAULT_DEADLINE_MILLIS}.
+     */
+    public void setDeadlineMillis(final long deadlineMillis) {
+
+        Validate.isTrue(deadlineMillis > 0, "deadlineMillis must be greater than 0");
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * If true, the default, a failed connection or reaching the deadline fails the whole warm-up. If false, warm-up
+     * returns at the deadline and carries on in the background.
+     */
+    public void setFailFast(final boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    public void setNumConnections(final int numConnections) {
+
+        Validate.isTrue(numConnections > 0, "numConnections must be greater than 0");
+        this.numConnections = numConnections;
+    }
+
+    /**
+     * Opens all connections and channels in parallel and waits for them up to the deadline.
+     * 
+     * @throws IOException
+     *         in fail-fast mode, if any connection failed or the deadline was reached
+     */
+    public Result warmUp() throws IOException {
+
+        long deadline = System.currentTimeMillis() + deadlineMillis;
+
+        Result result = new Result(numConnections);
+        AtomicBoolean abandoned = new AtomicBoolean(false);
+
+        List<Future<Connection>> futures = new ArrayList<Future<Connection>>(numConnections);
+        for (int i = 0; i < numConnections; i++) {
+            futures.add(connectionFactory.getExecutorService().submit(new WarmUpTask(result, abandoned)));
+        }
+
+        IOException failure = null;
+        for (Future<Connection> future : futures) {
+
+            try {
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+            } catch (TimeoutException te) {
+
+                if (failFast) {
+                    failure = new IOException("Warm-up deadline reached: deadlineMillis=" + deadlineMillis
+                            + ", connections=" + result.connections.size() + "/" + numConnections);
+                    break;
+                }
+
+            } catch (ExecutionException ee) {
+
+                LOG.warn("Warm-up connection failed: " + ee.getCause().getMessage());
+
+                if (failFast) {
+                    failure = ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee
+                            .getCause().getMessage());
+                    break;
+                }
+
+            } catch (InterruptedException ie) {
+
+                Thread.currentThread().interrupt();
+                failure = new IOException("Interrupted during warm-up");
+                break;
+            }
+        }
+
+        if (failure != null) {
+            abandon(result, abandoned, futures);
+            throw failure;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Warm-up finished: connections=" + result.connections.size() + "/" + numConnections
+                    + ", channels=" + result.channels.size());
+        }
+
+        return result;
+    }
+
+    private void abandon(final Result result, final AtomicBoolean abandoned, final List<Future<Connection>> futures) {
+
+        synchronized (result) {
+
+            abandoned.set(true);
+
+            for (Future<Connection> future : futures) {
+                future.cancel(true);
+            }
+
+            for (Connection connection : result.connections) {
+                closeQuietly(connection);
+            }
+
+            result.connections.clear();
+            result.channels.clear();
+        }
+    }
+
+    private void closeQuietly(final Connection connection) {
+
+        try {
+            connection.close();
+        } catch (Exception e) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to close warm-up connection, not a problem: " + e.getMessage());
+            }
+        }
+    }
+}
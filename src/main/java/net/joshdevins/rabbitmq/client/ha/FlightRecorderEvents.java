@@ -0,0 +1,338 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Java Flight Recorder events for the HA lifecycle, so that reconnections and retries can be lined up with GC and I/O
+ * in a single recording. JFR is used reflectively, through {@code jdk.jfr.EventFactory}, so that neither building nor
+ * running requires a JVM that has it. Where JFR is not available, nothing is recorded.
+ * 
+ * <p>
+ * Whether a recording is running is tracked with a {@code jdk.jfr.FlightRecorderListener}, so that when nothing is
+ * recording, {@link #begin(EventType)} costs a single volatile read and returns null. Callers skip building event
+ * values when it does:
+ * </p>
+ * 
+ * <pre>
+ * Object event = FlightRecorderEvents.begin(EventType.RECONSUME);
+ * // ... do the work being timed
+ * if (event != null) {
+ *     FlightRecorderEvents.commit(event, queue, consumerTag, succeeded);
+ * }
+ * </pre>
+ * 
+ * @author Josh Devins
+ */
+public final class FlightRecorderEvents {
+
+    /**
+     * The events recorded, all in the "RabbitMQ HA" category. Values are committed in the order of the fields.
+     */
+    public static enum EventType {
+
+        DISCONNECT("Disconnect", "Connection Lost", "The underlying connection shut down", new String[] {
+                "addresses", "reason", "applicationInitiated" }, new Class<?>[] { String.class, String.class,
+                boolean.class }),
+
+        RECONNECT_ATTEMPT("ReconnectAttempt", "Reconnection Attempt", "A single attempt to connect or reconnect",
+                new String[] { "addresses", "attempt", "reconnection", "failure" }, new Class<?>[] { String.class,
+                        int.class, boolean.class, String.class }),
+
+        RECONNECT("Reconnect", "Reconnection", "From losing a connection until it was replaced", new String[] {
+                "addresses", "attempts", "reconnection" }, new Class<?>[] { String.class, int.class, boolean.class }),
+
+        RETRY("Retry", "Operation Retry", "A channel operation failed and is being retried", new String[] { "method",
+                "attempt", "exception" }, new Class<?>[] { String.class, int.class, String.class }),
+
+        GIVE_UP("GiveUp", "Operation Given Up", "A channel operation failed for good", new String[] { "method",
+                "attempts", "recoverable", "exception" }, new Class<?>[] { String.class, int.class, boolean.class,
+                String.class }),
+
+        LATCH_WAIT("LatchWait", "Reconnection Wait", "A channel operation waiting on the retry strategy, usually for "
+                + "a reconnection", new String[] { "method", "attempt", "retrying" }, new Class<?>[] { String.class,
+                int.class, boolean.class }),
+
+        RECONSUME("Reconsume", "Consumer Restore", "A consumer re-registered after a reconnection", new String[] {
+                "queue", "consumerTag", "succeeded" }, new Class<?>[] { String.class, String.class, boolean.class });
+
+        private final String name;
+
+        private final String label;
+
+        private final String description;
+
+        private final String[] fieldNames;
+
+        private final Class<?>[] fieldTypes;
+
+        private EventType(final String name, final String label, final String description,
+                final String[] fieldNames, final Class<?>[] fieldTypes) {
+
+            assert fieldNames.length == fieldTypes.length;
+
+            this.name = EVENT_NAME_PREFIX + name;
+            this.label = label;
+            this.description = description;
+            this.fieldNames = fieldNames;
+            this.fieldTypes = fieldTypes;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Keeps track of which recordings are running, as a {@code jdk.jfr.FlightRecorderListener}.
+     */
+    private static class RecordingTracker implements InvocationHandler {
+
+        private final Set<Object> runningRecordingIds = new HashSet<Object>();
+
+        public synchronized Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+
+            String methodName = method.getName();
+
+            if (methodName.equals("recordingStateChanged")) {
+                update(args[0]);
+
+            } else if (methodName.equals("equals")) {
+                return proxy == args[0];
+
+            } else if (methodName.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+
+            } else if (methodName.equals("toString")) {
+                return RecordingTracker.class.getName();
+            }
+
+            // recorderInitialized needs nothing done
+            return null;
+        }
+
+        private synchronized void update(final Object jfrRecording) throws Exception {
+
+            Object id = jfrRecording.getClass().getMethod("getId").invoke(jfrRecording);
+            Object state = jfrRecording.getClass().getMethod("getState").invoke(jfrRecording);
+
+            if ("RUNNING".equals(state.toString())) {
+                runningRecordingIds.add(id);
+            } else {
+                runningRecordingIds.remove(id);
+            }
+
+            recording = !runningRecordingIds.isEmpty();
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(FlightRecorderEvents.class);
+
+    private static final String EVENT_NAME_PREFIX = "net.joshdevins.rabbitmq.ha.";
+
+    private static final String CATEGORY = "RabbitMQ HA";
+
+    private static volatile boolean recording;
+
+    /**
+     * The {@code jdk.jfr.EventFactory} of each event type, by ordinal, or null if JFR is not available.
+     */
+    private static Object[] EVENT_FACTORIES;
+
+    private static Method NEW_EVENT_METHOD;
+
+    private static Method BEGIN_METHOD;
+
+    private static Method SET_METHOD;
+
+    private static Method END_METHOD;
+
+    private static Method SHOULD_COMMIT_METHOD;
+
+    private static Method COMMIT_METHOD;
+
+    private FlightRecorderEvents() {
+        // do not instantiate
+    }
+
+    /**
+     * @return an event with its start time set, or null if nothing is recording
+     */
+    public static Object begin(final EventType type) {
+
+        if (!recording) {
+            return null;
+        }
+
+        try {
+            Object event = NEW_EVENT_METHOD.invoke(EVENT_FACTORIES[type.ordinal()]);
+            BEGIN_METHOD.invoke(event);
+
+            return event;
+
+        } catch (Exception e) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to begin flight recorder event: type=" + type + ", message=" + e.getMessage());
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Sets the values of an event begun with {@link #begin(EventType)}, ends it and commits it, unless the recording
+     * settings filter it out. Does nothing with a null event.
+     */
+    public static void commit(final Object event, final Object... values) {
+
+        if (event == null) {
+            return;
+        }
+
+        try {
+            for (int i = 0; i < values.length; i++) {
+                SET_METHOD.invoke(event, i, values[i]);
+            }
+
+            END_METHOD.invoke(event);
+
+            if ((Boolean) SHOULD_COMMIT_METHOD.invoke(event)) {
+                COMMIT_METHOD.invoke(event);
+            }
+
+        } catch (Exception e) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to commit flight recorder event: message=" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Commits an event without a duration, if anything is recording.
+     */
+    public static void emit(final EventType type, final Object... values) {
+        commit(begin(type), values);
+    }
+
+    public static boolean isAvailable() {
+        return EVENT_FACTORIES != null;
+    }
+
+    /**
+     * @return true if JFR is available and at least one recording is running
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object newAnnotationElement(final Constructor<?> constructor, final String annotationType,
+            final Object value) throws Exception {
+
+        Class<? extends Annotation> type = (Class<? extends Annotation>) Class.forName(annotationType);
+        return constructor.newInstance(type, value);
+    }
+
+    private static Object newEventFactory(final EventType type) throws Exception {
+
+        Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+        Constructor<?> annotationElementConstructor = annotationElementClass.getConstructor(Class.class,
+                Object.class);
+        Constructor<?> valueDescriptorConstructor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(
+                Class.class, String.class, List.class);
+
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(newAnnotationElement(annotationElementConstructor, "jdk.jfr.Name", type.name));
+        annotations.add(newAnnotationElement(annotationElementConstructor, "jdk.jfr.Label", type.label));
+        annotations.add(newAnnotationElement(annotationElementConstructor, "jdk.jfr.Description", type.description));
+        annotations.add(newAnnotationElement(annotationElementConstructor, "jdk.jfr.Category",
+                new String[] { CATEGORY }));
+
+        List<Object> fields = new ArrayList<Object>();
+        for (int i = 0; i < type.fieldNames.length; i++) {
+            fields.add(valueDescriptorConstructor.newInstance(type.fieldTypes[i], type.fieldNames[i], Collections
+                    .emptyList()));
+        }
+
+        Method create = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+        return create.invoke(null, annotations, fields);
+    }
+
+    static {
+
+        // not finding it is normal on older JVMs, and JFR may also be left out of a runtime image
+        try {
+            Object[] eventFactories = new Object[EventType.values().length];
+            for (EventType type : EventType.values()) {
+                eventFactories[type.ordinal()] = newEventFactory(type);
+            }
+
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            NEW_EVENT_METHOD = Class.forName("jdk.jfr.EventFactory").getMethod("newEvent");
+            BEGIN_METHOD = eventClass.getMethod("begin");
+            SET_METHOD = eventClass.getMethod("set", int.class, Object.class);
+            END_METHOD = eventClass.getMethod("end");
+            SHOULD_COMMIT_METHOD = eventClass.getMethod("shouldCommit");
+            COMMIT_METHOD = eventClass.getMethod("commit");
+
+            EVENT_FACTORIES = eventFactories;
+
+            Class<?> flightRecorderClass = Class.forName("jdk.jfr.FlightRecorder");
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            RecordingTracker tracker = new RecordingTracker();
+
+            flightRecorderClass.getMethod("addListener", listenerClass).invoke(
+                    null,
+                    Proxy.newProxyInstance(FlightRecorderEvents.class.getClassLoader(),
+                            new Class<?>[] { listenerClass }, tracker));
+
+            // recordings started on the command line are already running
+            if ((Boolean) flightRecorderClass.getMethod("isInitialized").invoke(null)) {
+
+                Object flightRecorder = flightRecorderClass.getMethod("getFlightRecorder").invoke(null);
+                for (Object running : (List<?>) flightRecorderClass.getMethod("getRecordings").invoke(
+                        flightRecorder)) {
+                    tracker.update(running);
+                }
+            }
+
+        } catch (Throwable t) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Flight recorder events are not available: " + t);
+            }
+
+            EVENT_FACTORIES = null;
+            recording = false;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+/**
+ * What a publish does while the broker has paused publishing on its channel with {@code channel.flow}, typically
+ * because it has hit its memory watermark.
+ * 
+ * @author Josh Devins
+ * @see FlowController
+ */
+public enum FlowControlPolicy {
+
+    /**
+     * Leave it to the client library, which blocks the publishing thread inside the channel. Other operations on the
+     * same HA channel wait behind it.
+     */
+    BLOCK,
+
+    /**
+     * Wait for publishing to resume before taking hold of the channel, so that other operations keep flowing. Fails
+     * if the wait times out.
+     */
+    WAIT,
+
+    /**
+     * Fail straight away.
+     */
+    FAIL_FAST,
+
+    /**
+     * Keep a copy of the publish and return straight away, sending it, in order, when publishing resumes. Fails once
+     * the buffer is full. Channels with transactions or publisher confirms wait instead, since buffered publishes
+     * would be committed or numbered out of turn.
+     * 
+     * <p>
+     * Buffered publishes can be lost: the application has already been told they were sent, so one that fails when
+     * it is finally sent, or is still buffered when its channel is closed or drained, is only logged. Use
+     * {@link #WAIT} where every publish has to reach the broker or fail in the application.
+     * </p>
+     */
+    BUFFER
+}
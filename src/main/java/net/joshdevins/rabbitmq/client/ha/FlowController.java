@@ -0,0 +1,363 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.FlowListener;
+
+/**
+ * Keeps track of broker flow control on an HA channel, and applies its {@link FlowControlPolicy} to publishes before
+ * they take hold of the channel. Without this, a publish made while the broker has paused publishing blocks inside
+ * the client library while holding the channel, and acks and gets on the same channel wait behind it.
+ * 
+ * <p>
+ * The time spent with publishing paused is measured, including any pause still under way. A replacement channel
+ * starts out with publishing permitted, so a pause ends when its channel is replaced.
+ * </p>
+ * 
+ * <p>
+ * A buffered publish has already been reported to the application as sent. If it then fails to send, or the channel
+ * is closed while publishing is paused, it is logged and lost.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class FlowController implements FlowListener {
+
+    private static final Logger LOG = Logger.getLogger(FlowController.class);
+
+    /**
+     * How often {@link #flushBuffer()} checks that publishing has not been paused again.
+     */
+    private static final long FLUSH_POLL_MILLIS = 10;
+
+    private final HaChannelProxy channelProxy;
+
+    private final FlowControlPolicy policy;
+
+    private final long waitMillis;
+
+    private final int maxBufferedPublishes;
+
+    private final BooleanReentrantLatch publishPermitted;
+
+    /**
+     * When the current pause started, or 0 if publishing is permitted. Guarded by this controller.
+     */
+    private long pausedSinceNanos;
+
+    private final AtomicLong pausedNanos;
+
+    private final AtomicInteger pauses;
+
+    /**
+     * Publishes waiting for publishing to resume, oldest first. Guarded by the buffer itself, along with
+     * {@link #flushing}.
+     */
+    private final LinkedList<RetainedPublish> buffer;
+
+    private boolean flushing;
+
+    /**
+     * @param waitMillis
+     *        how long {@link FlowControlPolicy#WAIT} waits for publishing to resume, or 0 to wait indefinitely
+     * @param maxBufferedPublishes
+     *        how many publishes {@link FlowControlPolicy#BUFFER} keeps
+     */
+    public FlowController(final HaChannelProxy channelProxy, final FlowControlPolicy policy, final long waitMillis,
+            final int maxBufferedPublishes) {
+
+        assert channelProxy != null;
+        assert policy != null;
+
+        this.channelProxy = channelProxy;
+        this.policy = policy;
+        this.waitMillis = waitMillis;
+        this.maxBufferedPublishes = maxBufferedPublishes;
+
+        publishPermitted = new BooleanReentrantLatch(true);
+        pausedNanos = new AtomicLong();
+        pauses = new AtomicInteger();
+        buffer = new LinkedList<RetainedPublish>();
+    }
+
+    /**
+     * @return the number of publishes buffered until publishing resumes
+     */
+    public int getBufferedPublishes() {
+
+        synchronized (buffer) {
+            return buffer.size();
+        }
+    }
+
+    /**
+     * @return the total time publishing has been paused by the broker, including the current pause
+     */
+    public synchronized long getFlowControlMillis() {
+
+        long nanos = pausedNanos.get();
+        if (pausedSinceNanos != 0) {
+            nanos += System.nanoTime() - pausedSinceNanos;
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * @return the number of times the broker has paused publishing
+     */
+    public int getFlowControlPauses() {
+        return pauses.get();
+    }
+
+    public FlowControlPolicy getPolicy() {
+        return policy;
+    }
+
+    public void handleFlow(final boolean active) {
+
+        synchronized (this) {
+
+            if (active && pausedSinceNanos != 0) {
+                pausedNanos.addAndGet(System.nanoTime() - pausedSinceNanos);
+                pausedSinceNanos = 0;
+
+            } else if (!active && pausedSinceNanos == 0) {
+                pausedSinceNanos = Math.max(1, System.nanoTime());
+                pauses.incrementAndGet();
+
+            } else {
+                return;
+            }
+
+            // under the lock, so the latch cannot end up the opposite way round to the pause
+            if (active) {
+                publishPermitted.open();
+            } else {
+                publishPermitted.close();
+            }
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Broker flow control: publishing " + (active ? "resumed" : "paused") + ", channel="
+                    + channelProxy.getTargetChannel());
+        }
+
+        if (active && getBufferedPublishes() > 0) {
+            scheduleFlush();
+        }
+    }
+
+    public boolean isPublishPermitted() {
+        return publishPermitted.isOpen();
+    }
+
+    /**
+     * Applies the policy to a publish, before the channel is taken hold of.
+     * 
+     * @param args
+     *        the arguments of either form of {@link com.rabbitmq.client.Channel#basicPublish}
+     * @param bufferable
+     *        false if the channel cannot take buffered publishes
+     * @return true if the publish was buffered, and so must not be sent now
+     * @throws IOException
+     *         if publishing is paused and the policy gives up on it
+     */
+    protected boolean beforePublish(final Object[] args, final boolean bufferable) throws IOException {
+
+        if (policy == FlowControlPolicy.BLOCK) {
+            return false;
+        }
+
+        if (policy == FlowControlPolicy.BUFFER && bufferable) {
+            return buffer(args);
+        }
+
+        if (isPublishPermitted()) {
+            return false;
+        }
+
+        if (policy == FlowControlPolicy.FAIL_FAST) {
+            throw new IOException("Publishing is paused by broker flow control: channel="
+                    + channelProxy.getTargetChannel());
+        }
+
+        awaitPublishPermitted();
+        return false;
+    }
+
+    /**
+     * Sends what is buffered while publishing is permitted, before the channel is closed, and gives up on whatever
+     * cannot be sent.
+     * 
+     * @return the number of publishes given up on
+     */
+    protected int flushBuffer() {
+
+        if (getBufferedPublishes() > 0 && isPublishPermitted()) {
+            scheduleFlush();
+        }
+
+        synchronized (buffer) {
+
+            try {
+                while ((flushing || !buffer.isEmpty()) && isPublishPermitted()) {
+                    buffer.wait(FLUSH_POLL_MILLIS);
+                }
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return releaseBuffer();
+    }
+
+    /**
+     * Publishing is always permitted on a new channel.
+     */
+    protected void reset() {
+        handleFlow(true);
+    }
+
+    /**
+     * Gives up on any publishes still buffered.
+     * 
+     * @return the number of publishes given up on
+     */
+    protected int releaseBuffer() {
+
+        synchronized (buffer) {
+
+            int released = buffer.size();
+            for (RetainedPublish publish : buffer) {
+                publish.release();
+            }
+
+            buffer.clear();
+            return released;
+        }
+    }
+
+    private void awaitPublishPermitted() throws IOException {
+
+        try {
+            if (waitMillis <= 0) {
+                publishPermitted.waitUntilOpen();
+
+            } else if (!publishPermitted.waitUntilOpen(waitMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for broker flow control to permit publishing: waitMillis="
+                        + waitMillis + ", channel=" + channelProxy.getTargetChannel());
+            }
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for broker flow control to permit publishing");
+        }
+    }
+
+    /**
+     * @return true if the publish was buffered, false if it can be sent straight away
+     */
+    private boolean buffer(final Object[] args) throws IOException {
+
+        synchronized (buffer) {
+
+            // anything already buffered has to go first
+            if (isPublishPermitted() && !flushing && buffer.isEmpty()) {
+                return false;
+            }
+
+            if (buffer.size() >= maxBufferedPublishes) {
+                throw new IOException("Publish buffer is full while broker flow control has publishing paused: "
+                        + "maxBufferedPublishes=" + maxBufferedPublishes + ", channel="
+                        + channelProxy.getTargetChannel());
+            }
+
+            buffer.add(RetainedPublish.fromArguments(args));
+            return true;
+        }
+    }
+
+    /**
+     * Sends buffered publishes in order, until the buffer is empty or publishing is paused again.
+     */
+    private void flush() {
+
+        while (true) {
+
+            RetainedPublish publish;
+            synchronized (buffer) {
+
+                if (!isPublishPermitted() || buffer.isEmpty()) {
+                    flushing = false;
+                    buffer.notifyAll();
+                    return;
+                }
+
+                publish = buffer.removeFirst();
+            }
+
+            try {
+                channelProxy.publishBuffered(publish);
+
+            } catch (Throwable t) {
+                LOG.warn("Failed to send publish buffered during flow control, dropping it: exchange="
+                        + publish.getExchange() + ", routingKey=" + publish.getRoutingKey(), t);
+
+            } finally {
+                publish.release();
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+
+        synchronized (buffer) {
+
+            if (flushing) {
+                return;
+            }
+
+            flushing = true;
+        }
+
+        Runnable flush = new Runnable() {
+
+            public void run() {
+                flush();
+            }
+        };
+
+        // not on the connection's thread that told us publishing resumed
+        Executor executor = channelProxy.getConnectionProxy().getConsumerExecutor();
+        if (executor != null) {
+            executor.execute(flush);
+        } else {
+            new Thread(flush, "flow-control-flush").start();
+        }
+    }
+}
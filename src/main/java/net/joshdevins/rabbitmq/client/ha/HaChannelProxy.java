@@ -19,58 +19,266 @@ package net.joshdevins.rabbitmq.client.ha;
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.joshdevins.rabbitmq.client.ha.buffer.SlabArena;
+import net.joshdevins.rabbitmq.client.ha.decorator.DecoratorChain;
+import net.joshdevins.rabbitmq.client.ha.decorator.Payload;
 import net.joshdevins.rabbitmq.client.ha.retry.RetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.topology.DeclarationCache;
 
 import org.apache.log4j.Logger;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.impl.AMQImpl;
 
 /**
  * A proxy around the standard {@link Channel}.
  * 
+ * <p>
+ * Transactional channels keep the publishes made since the last commit. When the channel is replaced after a
+ * reconnection, {@code txSelect} is issued again and those publishes are replayed before operations are allowed
+ * through, so a retried {@code txCommit} commits everything the application published in that transaction. Acks are
+ * not replayed since their delivery tags are meaningless on a new channel; the broker redelivers those messages
+ * instead. Note that if a commit reached the broker but its reply was lost, the replay publishes its messages twice.
+ * Commits held back for batching are split off the open transaction by rolling it back and sending the committed
+ * publishes and acks again, on the same channel, before committing.
+ * </p>
+ * 
+ * <p>
+ * For the same reason, delivery tags handed to the application carry the generation of the channel they were
+ * delivered on. Acks, nacks and rejects for deliveries of a channel that has since been replaced are dropped rather
+ * than sent on the replacement channel, where they would acknowledge a different delivery or have the broker close
+ * the channel with an unknown delivery tag. So are those that fail because the channel went away. Tags are unchanged
+ * until a channel is first replaced.
+ * </p>
+ * 
  * @author Josh Devins
  */
 public class HaChannelProxy implements InvocationHandler {
 
+    /**
+     * An ack, nack or reject made in a transaction, kept so that it can be sent again when part of the transaction
+     * has to be rolled back and redone.
+     */
+    private static class RetainedAcknowledgement {
+
+        private final Method method;
+
+        private final Object[] args;
+
+        public RetainedAcknowledgement(final Method method, final Object[] args) {
+
+            this.method = method;
+            this.args = args;
+        }
+
+        public void sendTo(final Channel channel) throws IOException {
+
+            try {
+                InvocationHandlerUtils.delegateMethodInvocation(method, args, channel);
+
+            } catch (IOException ioe) {
+                throw ioe;
+
+            } catch (RuntimeException re) {
+                throw re;
+
+            } catch (Throwable t) {
+                throw new IOException("Failed to replay " + method.getName() + ": " + t.getMessage());
+            }
+        }
+    }
+
     private static final Logger LOG = Logger.getLogger(HaChannelProxy.class);
 
+    private static final String BASIC_ACK_METHOD_NAME = "basicAck";
+
+    private static final String BASIC_CANCEL_METHOD_NAME = "basicCancel";
+
     private static final String BASIC_CONSUME_METHOD_NAME = "basicConsume";
 
+    private static final String BASIC_GET_METHOD_NAME = "basicGet";
+
+    private static final String BASIC_NACK_METHOD_NAME = "basicNack";
+
+    private static final String BASIC_PUBLISH_METHOD_NAME = "basicPublish";
+
+    private static final String BASIC_QOS_METHOD_NAME = "basicQos";
+
+    private static final String BASIC_REJECT_METHOD_NAME = "basicReject";
+
     private static final String CLOSE_METHOD_NAME = "close";
 
+    private static final String CONFIRM_SELECT_METHOD_NAME = "confirmSelect";
+
+    /**
+     * Delivery tags handed to the application carry the channel generation above this bit. Leaves room for 2^48
+     * deliveries per channel and 2^15 generations before they wrap around.
+     */
+    private static final int DELIVERY_TAG_GENERATION_SHIFT = 48;
+
+    private static final long DELIVERY_TAG_MASK = (1L << DELIVERY_TAG_GENERATION_SHIFT) - 1;
+
+    private static final int DELIVERY_GENERATION_MASK = (1 << (63 - DELIVERY_TAG_GENERATION_SHIFT)) - 1;
+
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    private static final String TX_COMMIT_METHOD_NAME = "txCommit";
+
+    private static final String TX_ROLLBACK_METHOD_NAME = "txRollback";
+
+    private static final String TX_SELECT_METHOD_NAME = "txSelect";
+
+    private static final AMQP.Tx.CommitOk DEFERRED_COMMIT_OK = new AMQImpl.Tx.CommitOk();
+
+    private static final Method BASIC_PUBLISH_METHOD;
+
+    static {
+        try {
+            BASIC_PUBLISH_METHOD = Channel.class.getMethod(BASIC_PUBLISH_METHOD_NAME, String.class, String.class,
+                    boolean.class, boolean.class, AMQP.BasicProperties.class, byte[].class);
+
+        } catch (NoSuchMethodException nsme) {
+            throw new IllegalStateException("Channel has no basicPublish(exchange, routingKey, mandatory, immediate, "
+                    + "props, body)");
+        }
+    }
+
     private final HaConnectionProxy connectionProxy;
 
-    private Channel target;
+    private volatile Channel target;
+
+    /**
+     * Held while operating on the target channel, so that it is not replaced mid-operation.
+     */
+    private final Object targetLock;
 
     private final RetryStrategy retryStrategy;
 
     private final BooleanReentrantLatch connectionLatch;
 
-    private final ConcurrentHashMap<Consumer, HaConsumerProxy> consumerProxies;
+    private final HaConsumerRegistry consumerRegistry;
+
+    private final AtomicInteger inFlightOperations;
+
+    private volatile boolean confirmSelected;
+
+    private volatile boolean txSelected;
+
+    /**
+     * Incremented every time the target channel is replaced, guarded by the target lock for writes.
+     */
+    private volatile int deliveryGeneration;
+
+    /**
+     * Publishes made since the last commit, guarded by the target lock.
+     */
+    private final List<RetainedPublish> txPublishes;
+
+    /**
+     * Number of publishes at the start of {@link #txPublishes} that the application has committed but whose commit is
+     * being held back to batch it up with later ones, guarded by the target lock.
+     */
+    private int txDeferredPublishes;
+
+    /**
+     * Acks, nacks and rejects made since the last commit on the current channel, with the delivery tags the channel
+     * knows them by, guarded by the target lock. They are not replayed on a replacement channel.
+     */
+    private final List<RetainedAcknowledgement> txAcks;
+
+    /**
+     * Number of acknowledgements at the start of {@link #txAcks} that belong to commits being held back, guarded by
+     * the target lock.
+     */
+    private int txDeferredAcks;
+
+    /**
+     * The last {@code basicQos} made by the application, to apply again to a replacement channel. Guarded by the
+     * target lock.
+     */
+    private Method qosMethod;
+
+    private Object[] qosArgs;
+
+    private volatile int prefetchCount;
+
+    private final AdaptivePrefetchController prefetchController;
+
+    private final FlowController flowController;
 
     public HaChannelProxy(final HaConnectionProxy connectionProxy, final Channel target,
             final RetryStrategy retryStrategy) {
 
         assert connectionProxy != null;
-        assert target != null;
         assert retryStrategy != null;
 
         this.connectionProxy = connectionProxy;
         this.target = target;
         this.retryStrategy = retryStrategy;
 
-        connectionLatch = new BooleanReentrantLatch();
-        consumerProxies = new ConcurrentHashMap<Consumer, HaConsumerProxy>();
+        targetLock = new Object();
+
+        // a channel of a connection that is not yet established waits for it
+        connectionLatch = new BooleanReentrantLatch(target != null);
+        consumerRegistry = new HaConsumerRegistry();
+        inFlightOperations = new AtomicInteger();
+        txPublishes = new ArrayList<RetainedPublish>();
+        txAcks = new ArrayList<RetainedAcknowledgement>();
+
+        prefetchController = connectionProxy.getAdaptivePrefetchMax() > 0 ? new AdaptivePrefetchController(
+                connectionProxy.getAdaptivePrefetchMin(), connectionProxy.getAdaptivePrefetchMax()) : null;
+
+        flowController = new FlowController(this, connectionProxy.getFlowControlPolicy(), connectionProxy
+                .getFlowControlWaitMillis(), connectionProxy.getMaxBufferedPublishes());
+
+        if (target != null) {
+            target.addFlowListener(flowController);
+        }
     }
 
     public void closeConnectionLatch() {
         connectionLatch.close();
     }
 
+    /**
+     * @return the number of live consumers on this channel
+     */
+    public int getConsumerCount() {
+        return consumerRegistry.size();
+    }
+
+    /**
+     * @return the broker flow control state and metrics of this channel
+     */
+    public FlowController getFlowController() {
+        return flowController;
+    }
+
+    /**
+     * @return the prefetch count applied to this channel, or 0 if there is none
+     */
+    public int getPrefetchCount() {
+        return prefetchController != null ? prefetchController.getPrefetch() : prefetchCount;
+    }
+
+    /**
+     * @return the controller tuning the prefetch count of this channel, or null if adaptive prefetch is disabled
+     */
+    public AdaptivePrefetchController getPrefetchController() {
+        return prefetchController;
+    }
+
     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
 
         if (LOG.isDebugEnabled()) {
@@ -80,8 +288,32 @@ public class HaChannelProxy implements InvocationHandler {
         // TODO: Rethink this assumption!
         // close is special since we can ignore failures safely
         if (method.getName().equals(CLOSE_METHOD_NAME)) {
+
+            // the application considers these sent already
+            int lost = flowController.flushBuffer();
+            if (lost > 0) {
+                LOG.warn("Closing channel while broker flow control has publishing paused, dropping buffered "
+                        + "publishes: publishes=" + lost + ", channel=" + target);
+            }
+
+            // the application considers these committed already
             try {
-                target.close();
+                commitDeferredPublishes();
+            } catch (Exception e) {
+                LOG.warn("Failed to commit batched publishes on close: " + e.getMessage());
+            }
+
+            // an open transaction is rolled back by the broker on close, nothing left to replay
+            synchronized (targetLock) {
+                releaseTxPublishes(txPublishes.size());
+                txAcks.clear();
+                txDeferredAcks = 0;
+            }
+
+            try {
+                if (target != null) {
+                    target.close();
+                }
             } catch (Exception e) {
 
                 if (LOG.isDebugEnabled()) {
@@ -95,10 +327,387 @@ public class HaChannelProxy implements InvocationHandler {
             return null;
         }
 
+        // a cancelled consumer must not be restored, even if the cancel itself has to wait for a reconnection
+        if (method.getName().equals(BASIC_CANCEL_METHOD_NAME)) {
+            consumerRegistry.remove((String) args[0]);
+        }
+
+        // answer repeated declarations locally if we can
+        DeclarationCache declarationCache = connectionProxy.getDeclarationCache();
+        if (declarationCache != null) {
+
+            Object cachedReply = declarationCache.lookup(method, args, connectionProxy.getEpoch());
+            if (cachedReply != null) {
+                return cachedReply;
+            }
+        }
+
+        // new work is turned away once the connection is shutting down, work under way may finish
+        if (connectionProxy.isDraining()
+                && (method.getName().equals(BASIC_PUBLISH_METHOD_NAME) || method.getName().equals(
+                        BASIC_CONSUME_METHOD_NAME))) {
+            throw new AlreadyClosedException("Connection is shutting down", proxy);
+        }
+
+        // decorate before anything keeps a copy, so that a replay sends exactly what was sent the first time
+        Object[] invokeArgs = args;
+        DecoratorChain decoratorChain = connectionProxy.getDecoratorChain();
+        if (decoratorChain != null && method.getName().equals(BASIC_PUBLISH_METHOD_NAME)) {
+            invokeArgs = decoratePublish(decoratorChain, args);
+        }
+
+        // wait out broker flow control before taking hold of the channel, so that other operations keep flowing
+        if (method.getName().equals(BASIC_PUBLISH_METHOD_NAME)
+                && flowController.beforePublish(invokeArgs, !txSelected && !confirmSelected)) {
+            return null;
+        }
+
+        // copy transactional publishes up front, so that running out of memory to keep them fails before sending
+        RetainedPublish retained = null;
+        if (txSelected && method.getName().equals(BASIC_PUBLISH_METHOD_NAME)) {
+            retained = retain(invokeArgs);
+        }
+
+        inFlightOperations.incrementAndGet();
+        boolean invoked = false;
+        try {
+            Object result = invokeWithRetry(method, invokeArgs, declarationCache, retained);
+            invoked = true;
+
+            return result;
+
+        } finally {
+            inFlightOperations.decrementAndGet();
+
+            if (!invoked && retained != null) {
+                retained.release();
+            }
+        }
+    }
+
+    /**
+     * Gives a proxy created before its connection was established a channel on the given connection, unless it has
+     * one already. Both the thread that created the proxy and the first connection may try, and only one succeeds.
+     * 
+     * @return true if this call created the channel
+     */
+    protected boolean connect(final Connection connection) throws IOException {
+
+        synchronized (targetLock) {
+
+            if (target != null) {
+                return false;
+            }
+
+            setTargetChannel(connection.createChannel());
+            return true;
+        }
+    }
+
+    /**
+     * Finishes up work on this channel before its connection is closed: cancels consumers, waits for operations under
+     * way, including any waiting for a reconnection, and waits for outstanding publisher confirms. Gives up on
+     * anything not done by the deadline and records it in the report.
+     */
+    protected void drain(final long deadline, final ShutdownReport report) {
+
+        List<HaConsumerProxy> consumers = consumerRegistry.removeAll();
+
+        // consumers first, so that nothing new is delivered while finishing up
+        for (HaConsumerProxy consumerProxy : consumers) {
+
+            String consumerTag = consumerProxy.getConsumerTag();
+            Channel target = this.target;
+
+            boolean cancelled = false;
+            if (consumerTag != null && target != null && target.isOpen()) {
+
+                try {
+                    target.basicCancel(consumerTag);
+                    cancelled = true;
+
+                } catch (Exception e) {
+                    LOG.warn("Failed to cancel consumer during shutdown: consumerTag=" + consumerTag + ", message="
+                            + e.getMessage());
+                }
+            }
+
+            report.consumerCancelled(cancelled);
+            consumerProxy.shutdown();
+        }
+
+        // including deliveries still being handled in parallel, which may yet ack, and buffered publishes
+        while ((inFlightOperations.get() > 0 || getDeliveriesInFlight(consumers) > 0 || flowController
+                .getBufferedPublishes() > 0) && System.currentTimeMillis() < deadline) {
+
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        report.addOperationsInFlight(inFlightOperations.get() + getDeliveriesInFlight(consumers)
+                + flowController.releaseBuffer());
+
+        try {
+            commitDeferredPublishes();
+
+        } catch (Exception e) {
+            LOG.warn("Failed to commit batched publishes during shutdown: " + e.getMessage());
+            report.addUncommittedPublishes(txDeferredPublishes);
+        }
+
+        // the connection is about to go, so there will be nothing to replay
+        synchronized (targetLock) {
+            releaseTxPublishes(txPublishes.size());
+            txDeferredPublishes = 0;
+            txAcks.clear();
+            txDeferredAcks = 0;
+        }
+
+        Channel target = this.target;
+        if (!confirmSelected || target == null || !target.isOpen()) {
+            return;
+        }
+
+        try {
+            if (!target.waitForConfirms(Math.max(1, deadline - System.currentTimeMillis()))) {
+                LOG.warn("Publishes were nacked by the broker during shutdown: channel=" + target);
+                report.unconfirmedChannel();
+            }
+
+        } catch (TimeoutException te) {
+            LOG.warn("Publisher confirms still outstanding at shutdown deadline: channel=" + target);
+            report.unconfirmedChannel();
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            report.unconfirmedChannel();
+        }
+    }
+
+    protected HaConnectionProxy getConnectionProxy() {
+        return connectionProxy;
+    }
+
+    protected HaConsumerRegistry getConsumerRegistry() {
+        return consumerRegistry;
+    }
+
+    protected Channel getTargetChannel() {
+        return target;
+    }
+
+    protected void markAsClosed() {
+        connectionLatch.close();
+    }
+
+    protected void markAsOpen() {
+        connectionLatch.open();
+    }
+
+    /**
+     * Sends a publish that was buffered while broker flow control had publishing paused. It was decorated when it was
+     * buffered.
+     */
+    protected void publishBuffered(final RetainedPublish publish) throws Throwable {
+
+        Object[] args = { publish.getExchange(), publish.getRoutingKey(), publish.isMandatory(),
+                publish.isImmediate(), publish.getProperties(), publish.getBody() };
+
+        inFlightOperations.incrementAndGet();
+        try {
+            invokeWithRetry(BASIC_PUBLISH_METHOD, args, null, null);
+        } finally {
+            inFlightOperations.decrementAndGet();
+        }
+    }
+
+    /**
+     * Re-establishes the state of the previous channel on a replacement channel: applies the prefetch count again,
+     * then selects transactions again and replays the publishes made since the last commit.
+     */
+    protected void restoreChannelState() throws IOException {
+
+        synchronized (targetLock) {
+
+            if (target == null) {
+                return;
+            }
+
+            restorePrefetch();
+
+            if (!txSelected) {
+                return;
+            }
+
+            // delivery tags of the previous channel mean nothing here, and the broker redelivers those messages
+            txAcks.clear();
+            txDeferredAcks = 0;
+
+            target.txSelect();
+
+            for (RetainedPublish publish : txPublishes) {
+                publish.publishTo(target);
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Replayed transaction: channel=" + target + ", publishes=" + txPublishes.size());
+            }
+        }
+    }
+
+    protected void setTargetChannel(final Channel target) {
+
+        assert target != null;
+
+        if (LOG.isDebugEnabled() && this.target != null) {
+            LOG.debug("Replacing channel: channel=" + this.target.toString());
+        }
+
+        synchronized (targetLock) {
+
+            // deliveries of the previous channel can no longer be acknowledged
+            if (this.target != null) {
+                deliveryGeneration = (deliveryGeneration + 1) & DELIVERY_GENERATION_MASK;
+            }
+
+            this.target = target;
+
+            if (LOG.isDebugEnabled() && this.target != null) {
+                LOG.debug("Replaced channel: channel=" + this.target.toString());
+            }
+
+            flowController.reset();
+            target.addFlowListener(flowController);
+        }
+    }
+
+    /**
+     * @return the delivery tag to hand to the application for a delivery of the given channel generation
+     */
+    protected static long toApplicationDeliveryTag(final int generation, final long deliveryTag) {
+        return (long) generation << DELIVERY_TAG_GENERATION_SHIFT | deliveryTag;
+    }
+
+    private void applyPrefetch(final int prefetch) throws IOException {
+
+        target.basicQos(prefetch);
+        prefetchController.setPrefetch(prefetch);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Applied adaptive prefetch: channel=" + target + ", prefetch=" + prefetch + ", processingMillis="
+                    + prefetchController.getProcessingMillis() + ", ackLatencyMillis="
+                    + prefetchController.getAckLatencyMillis());
+        }
+    }
+
+    /**
+     * Commits publishes and acknowledgements whose commit was held back for batching, leaving any made after them
+     * uncommitted.
+     */
+    private void commitDeferredPublishes() throws IOException {
+
+        synchronized (targetLock) {
+
+            if (txDeferredPublishes == 0 || target == null) {
+                return;
+            }
+
+            // work after the deferred commit must not be committed with it, so send only the committed work
+            List<RetainedPublish> uncommitted = new ArrayList<RetainedPublish>(txPublishes.subList(
+                    txDeferredPublishes, txPublishes.size()));
+            List<RetainedAcknowledgement> uncommittedAcks = new ArrayList<RetainedAcknowledgement>(txAcks.subList(
+                    txDeferredAcks, txAcks.size()));
+
+            if (!uncommitted.isEmpty() || !uncommittedAcks.isEmpty()) {
+
+                // the rollback undoes the acks of the committed work too, so they are sent again with its publishes
+                target.txRollback();
+                for (RetainedPublish publish : txPublishes.subList(0, txDeferredPublishes)) {
+                    publish.publishTo(target);
+                }
+
+                for (RetainedAcknowledgement ack : txAcks.subList(0, txDeferredAcks)) {
+                    ack.sendTo(target);
+                }
+            }
+
+            target.txCommit();
+
+            releaseTxPublishes(txDeferredPublishes);
+            txPublishes.clear();
+            txDeferredPublishes = 0;
+            txAcks.clear();
+            txDeferredAcks = 0;
+
+            // the application still expects these to be part of its open transaction
+            for (RetainedPublish publish : uncommitted) {
+                publish.publishTo(target);
+                txPublishes.add(publish);
+            }
+
+            for (RetainedAcknowledgement ack : uncommittedAcks) {
+                ack.sendTo(target);
+                txAcks.add(ack);
+            }
+        }
+    }
+
+    /**
+     * @return the arguments of either form of {@link Channel#basicPublish} with the properties and body decorated
+     */
+    private Object[] decoratePublish(final DecoratorChain decoratorChain, final Object[] args) throws IOException {
+
+        int propertiesIndex = args.length - 2;
+        int bodyIndex = args.length - 1;
+
+        Payload payload = decoratorChain.onPublish((String) args[0], (String) args[1], new Payload(
+                (AMQP.BasicProperties) args[propertiesIndex], (byte[]) args[bodyIndex]));
+
+        Object[] decorated = args.clone();
+        decorated[propertiesIndex] = payload.getProperties();
+        decorated[bodyIndex] = payload.getBody();
+
+        return decorated;
+    }
+
+    private int getDeliveriesInFlight(final List<HaConsumerProxy> consumers) {
+
+        int deliveries = 0;
+        for (HaConsumerProxy consumerProxy : consumers) {
+            deliveries += consumerProxy.getDeliveriesInFlight();
+        }
+
+        return deliveries;
+    }
+
+    private boolean isAcknowledgement(final Method method) {
+
+        String methodName = method.getName();
+
+        return methodName.equals(BASIC_ACK_METHOD_NAME) || methodName.equals(BASIC_NACK_METHOD_NAME)
+                || methodName.equals(BASIC_REJECT_METHOD_NAME);
+    }
+
+    private boolean isDeferrableCommit(final Method method) {
+
+        int batchSize = connectionProxy.getTxCommitBatchSize();
+
+        return batchSize > 1 && txSelected && method.getName().equals(TX_COMMIT_METHOD_NAME)
+                && !txPublishes.isEmpty() && txPublishes.size() < batchSize;
+    }
+
+    private Object invokeWithRetry(final Method method, final Object[] args, final DeclarationCache declarationCache,
+            final RetainedPublish retained) throws Throwable {
+
         // invoke a method max times
         Exception lastException = null;
         boolean shutdownRecoverable = true;
         boolean keepOnInvoking = true;
+        int attempts = 0;
 
         // don't check for open state, just let it fail
         // this will ensure that after a connection has been made, setup can
@@ -106,38 +715,96 @@ public class HaChannelProxy implements InvocationHandler {
         for (int numOperationInvocations = 1; keepOnInvoking && shutdownRecoverable; numOperationInvocations++) {
 
             // sych on target Channel to make sure it's not being replaced
-            synchronized (target) {
+            synchronized (targetLock) {
 
                 try {
 
+                    // the connection has not been established yet, wait for it like for a reconnection
+                    if (target == null) {
+                        throw new AlreadyClosedException("Channel not yet connected", this);
+                    }
+
                     // wrap the incoming consumer with a proxy, then invoke
+                    HaConsumerProxy consumerProxy = null;
                     if (method.getName().equals(BASIC_CONSUME_METHOD_NAME)) {
 
                         // Consumer is always the last argument, let it fail if not
                         Consumer targetConsumer = (Consumer) args[args.length - 1];
 
-                        // already wrapped?
-                        if (!(targetConsumer instanceof HaConsumerProxy)) {
+                        // already wrapped when restoring a consumer, otherwise every subscription gets its own proxy
+                        if (targetConsumer instanceof HaConsumerProxy) {
+                            consumerProxy = (HaConsumerProxy) targetConsumer;
 
-                            // check to see if we already have a proxied Consumer
-                            HaConsumerProxy consumerProxy = consumerProxies.get(targetConsumer);
-                            if (consumerProxy == null) {
-                                consumerProxy = new HaConsumerProxy(targetConsumer, this, method, args);
-                            }
+                        } else {
+                            consumerProxy = new HaConsumerProxy(targetConsumer, this, method, args);
+                            args[args.length - 1] = consumerProxy;
+                        }
 
-                            // currently we think there is not a proxy
-                            // try to do this atomically and worse case someone else already created one
-                            HaConsumerProxy existingConsumerProxy = consumerProxies.putIfAbsent(targetConsumer,
-                                    consumerProxy);
+                        // set before subscribing, since deliveries may arrive before the subscription returns
+                        consumerProxy.setDeliveryGeneration(deliveryGeneration);
+                    }
+
+                    // acknowledge on the channel the delivery came from, or not at all
+                    Object[] targetArgs = args;
+                    if (isAcknowledgement(method)) {
+
+                        targetArgs = toTargetDeliveryTag(args);
+                        if (targetArgs == null) {
+
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Dropping " + method.getName() + " for a delivery of a replaced channel: "
+                                        + "deliveryTag=" + args[0]);
+                            }
 
-                            // replace with the proxy for the real invocation
-                            args[args.length - 1] = existingConsumerProxy == null ? consumerProxy
-                                    : existingConsumerProxy;
+                            return null;
                         }
                     }
 
+                    // hold back commits until enough publishes are batched up
+                    if (isDeferrableCommit(method)) {
+                        txDeferredPublishes = txPublishes.size();
+                        txDeferredAcks = txAcks.size();
+                        return DEFERRED_COMMIT_OK;
+                    }
+
+                    // start adaptive consumers off slowly rather than with an unlimited prefetch
+                    if (prefetchController != null && prefetchController.getPrefetch() == 0
+                            && method.getName().equals(BASIC_CONSUME_METHOD_NAME)) {
+                        applyPrefetch(prefetchController.getMinPrefetch());
+                    }
+
+                    // a rollback must not undo commits that were only held back
+                    if (method.getName().equals(TX_ROLLBACK_METHOD_NAME)) {
+                        commitDeferredPublishes();
+                    }
+
                     // delegate all other method invocations
-                    return InvocationHandlerUtils.delegateMethodInvocation(method, args, target);
+                    Object result = InvocationHandlerUtils.delegateMethodInvocation(method, targetArgs, target);
+
+                    if (result != null && method.getName().equals(BASIC_GET_METHOD_NAME)) {
+                        result = toApplicationResponse((GetResponse) result);
+                    }
+
+                    if (method.getName().equals(CONFIRM_SELECT_METHOD_NAME)) {
+                        confirmSelected = true;
+                    }
+
+                    // only subscriptions the broker accepted are kept, under the tag it confirmed
+                    if (consumerProxy != null && result != null) {
+                        registerConsumer((String) result, consumerProxy);
+                    }
+
+                    recordTransaction(method, targetArgs, retained);
+                    recordPrefetch(method, args);
+
+                    // remember any topology changes so they can be replayed after a reconnection
+                    connectionProxy.getTopologyRecorder().recordInvocation(method, args, result);
+
+                    if (declarationCache != null) {
+                        declarationCache.recordInvocation(method, args, result, connectionProxy.getEpoch());
+                    }
+
+                    return result;
 
                     // deal with exceptions outside the synchronized block so
                     // that if a reconnection does occur, it can replace the
@@ -159,6 +826,22 @@ public class HaChannelProxy implements InvocationHandler {
                 }
             }
 
+            // delivery tags belong to the channel that went away, and the broker requeues its unacked deliveries
+            // anyway, so acknowledging on the replacement channel would hit the wrong delivery or fail it
+            if (shutdownRecoverable && isAcknowledgement(method)) {
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Dropping acknowledgement for a channel that went away: " + lastException.getMessage());
+                }
+
+                return null;
+            }
+
+            // nothing will reconnect a connection the application has closed
+            if (connectionProxy.isClosed()) {
+                shutdownRecoverable = false;
+            }
+
             // only keep on invoking if error is recoverable
             if (shutdownRecoverable) {
 
@@ -166,8 +849,27 @@ public class HaChannelProxy implements InvocationHandler {
                     LOG.debug("Invocation failed, calling retry strategy: " + lastException.getMessage());
                 }
 
+                if (FlightRecorderEvents.isRecording()) {
+                    FlightRecorderEvents.emit(FlightRecorderEvents.EventType.RETRY, method.getName(),
+                            numOperationInvocations, lastException.toString());
+                }
+
+                // the retry strategy usually waits on the connection latch for a reconnection
+                Object latchWaitEvent = FlightRecorderEvents.begin(FlightRecorderEvents.EventType.LATCH_WAIT);
                 keepOnInvoking = retryStrategy.shouldRetry(lastException, numOperationInvocations, connectionLatch);
+
+                if (latchWaitEvent != null) {
+                    FlightRecorderEvents.commit(latchWaitEvent, method.getName(), numOperationInvocations,
+                            keepOnInvoking);
+                }
             }
+
+            attempts = numOperationInvocations;
+        }
+
+        if (FlightRecorderEvents.isRecording()) {
+            FlightRecorderEvents.emit(FlightRecorderEvents.EventType.GIVE_UP, method.getName(), attempts,
+                    shutdownRecoverable, lastException.toString());
         }
 
         if (shutdownRecoverable) {
@@ -179,33 +881,213 @@ public class HaChannelProxy implements InvocationHandler {
         throw lastException;
     }
 
-    protected Channel getTargetChannel() {
-        return target;
+    /**
+     * Keeps track of transactional state, called with the target lock held after a successful invocation.
+     * 
+     * @param targetArgs
+     *        the arguments as sent to the target channel
+     * @param retained
+     *        the copy of a transactional publish, which is kept or released here
+     */
+    private void recordTransaction(final Method method, final Object[] targetArgs, final RetainedPublish retained) {
+
+        String methodName = method.getName();
+
+        if (methodName.equals(TX_SELECT_METHOD_NAME)) {
+            txSelected = true;
+
+        } else if (retained != null) {
+            txPublishes.add(retained);
+
+        } else if (txSelected && isAcknowledgement(method)) {
+            txAcks.add(new RetainedAcknowledgement(method, targetArgs));
+
+        } else if (methodName.equals(TX_COMMIT_METHOD_NAME) || methodName.equals(TX_ROLLBACK_METHOD_NAME)) {
+            releaseTxPublishes(txPublishes.size());
+            txDeferredPublishes = 0;
+            txAcks.clear();
+            txDeferredAcks = 0;
+        }
     }
 
-    protected void markAsClosed() {
-        connectionLatch.close();
+    /**
+     * Keeps track of the prefetch count, and adjusts it on acks if adaptive. Called with the target lock held after a
+     * successful invocation.
+     */
+    private void recordPrefetch(final Method method, final Object[] args) {
+
+        String methodName = method.getName();
+
+        if (methodName.equals(BASIC_QOS_METHOD_NAME)) {
+
+            qosMethod = method;
+            qosArgs = args.clone();
+            prefetchCount = (Integer) args[args.length == 1 ? 0 : 1];
+
+            if (prefetchController != null) {
+                prefetchController.setPrefetch(prefetchCount);
+            }
+
+            return;
+        }
+
+        if (prefetchController == null) {
+            return;
+        }
+
+        if (methodName.equals(BASIC_ACK_METHOD_NAME) || methodName.equals(BASIC_NACK_METHOD_NAME)) {
+            prefetchController.acknowledged((Long) args[0], (Boolean) args[1]);
+
+        } else if (methodName.equals(BASIC_REJECT_METHOD_NAME)) {
+            prefetchController.acknowledged((Long) args[0], false);
+
+        } else {
+            return;
+        }
+
+        ConnectionHealthProbe healthProbe = connectionProxy.getHealthProbe();
+        int prefetch = prefetchController.nextPrefetch(healthProbe == null ? -1 : healthProbe.getRttEwmaMillis());
+
+        if (prefetch > 0) {
+
+            // the ack itself went through, so don't let this fail it
+            try {
+                applyPrefetch(prefetch);
+
+            } catch (Exception e) {
+                LOG.warn("Failed to apply adaptive prefetch: prefetch=" + prefetch + ", message=" + e.getMessage());
+            }
+        }
     }
 
-    protected void markAsOpen() {
-        connectionLatch.open();
+    /**
+     * Releases the first publishes of the open transaction and forgets them. Called with the target lock held.
+     */
+    private void releaseTxPublishes(final int count) {
+
+        List<RetainedPublish> released = txPublishes.subList(0, count);
+        for (RetainedPublish publish : released) {
+            publish.release();
+        }
+
+        released.clear();
     }
 
-    protected void setTargetChannel(final Channel target) {
+    /**
+     * Keeps a consumer the broker has just subscribed. One that was shut down meanwhile, for example while being
+     * restored during a drain, is cancelled on the broker again, unless the application's own cancel is on its way.
+     */
+    private void registerConsumer(final String consumerTag, final HaConsumerProxy consumerProxy) {
 
-        assert target != null;
+        if (!consumerProxy.isShutdown()) {
+            consumerRegistry.register(consumerTag, consumerProxy);
+        }
 
-        if (LOG.isDebugEnabled() && this.target != null) {
-            LOG.debug("Replacing channel: channel=" + this.target.toString());
+        // checked again, since it may have been shut down while being registered
+        if (!consumerProxy.isShutdown()) {
+            return;
         }
 
-        synchronized (this.target) {
+        consumerRegistry.remove(consumerTag, consumerProxy);
+        if (consumerProxy.isCancelled()) {
+            return;
+        }
 
-            this.target = target;
+        try {
+            target.basicCancel(consumerTag);
 
-            if (LOG.isDebugEnabled() && this.target != null) {
-                LOG.debug("Replaced channel: channel=" + this.target.toString());
+        } catch (Exception e) {
+            LOG.warn("Failed to cancel consumer that was shut down while subscribing: consumerTag=" + consumerTag
+                    + ", message=" + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies the prefetch count of the previous channel to a replacement. Called with the target lock held.
+     */
+    private void restorePrefetch() throws IOException {
+
+        if (prefetchController != null) {
+
+            // delivery tags start over on a new channel
+            prefetchController.reset();
+
+            if (prefetchController.getPrefetch() > 0) {
+                target.basicQos(prefetchController.getPrefetch());
+            }
+
+        } else if (qosMethod != null) {
+
+            try {
+                InvocationHandlerUtils.delegateMethodInvocation(qosMethod, qosArgs, target);
+
+            } catch (IOException ioe) {
+                throw ioe;
+
+            } catch (Throwable t) {
+                throw new IOException("Failed to restore prefetch: " + t.getMessage());
             }
         }
     }
+
+    /**
+     * Copies a transactional publish so that it can be replayed, into the connection's arena if it has one.
+     * 
+     * @throws IOException
+     *         if the arena is full
+     */
+    private RetainedPublish retain(final Object[] args) throws IOException {
+
+        SlabArena arena = connectionProxy.getRetainedPublishArena();
+        if (arena == null) {
+            return RetainedPublish.fromArguments(args);
+        }
+
+        RetainedPublish retained = RetainedPublish.fromArguments(args, arena);
+        if (retained == null) {
+            throw new IOException("No memory left to retain transactional publish, commit to free some: retainedBytes="
+                    + arena.getRetainedBytes() + ", maxBytes=" + arena.getMaxBytes());
+        }
+
+        return retained;
+    }
+
+    /**
+     * @return the response with its delivery tag carrying the current channel generation. Called with the target lock
+     *         held.
+     */
+    private GetResponse toApplicationResponse(final GetResponse response) {
+
+        if (deliveryGeneration == 0) {
+            return response;
+        }
+
+        Envelope envelope = response.getEnvelope();
+        return new GetResponse(new Envelope(toApplicationDeliveryTag(deliveryGeneration, envelope.getDeliveryTag()),
+                envelope.isRedeliver(), envelope.getExchange(), envelope.getRoutingKey()), response.getProps(),
+                response.getBody(), response.getMessageCount());
+    }
+
+    /**
+     * @return the arguments of an ack, nack or reject with the delivery tag the target channel knows it by, or null if
+     *         the delivery came from a channel that has since been replaced. Called with the target lock held.
+     */
+    private Object[] toTargetDeliveryTag(final Object[] args) {
+
+        long deliveryTag = (Long) args[0];
+
+        // acknowledges everything outstanding, on whichever channel is current
+        if (deliveryTag == 0) {
+            return args;
+        }
+
+        if ((int) (deliveryTag >>> DELIVERY_TAG_GENERATION_SHIFT) != deliveryGeneration) {
+            return null;
+        }
+
+        Object[] targetArgs = args.clone();
+        targetArgs[0] = deliveryTag & DELIVERY_TAG_MASK;
+
+        return targetArgs;
+    }
 }
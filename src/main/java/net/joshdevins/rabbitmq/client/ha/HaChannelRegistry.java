@@ -0,0 +1,303 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * The channel proxies of a connection, indexed by channel number. Adding, removing and iterating take no locks, so
+ * connections with many channels don't contend on a single monitor while channels come and go or the connection is
+ * being recovered. Only growing the slots takes a lock, and anyone who runs into a growth under way waits for it.
+ * 
+ * <p>
+ * Proxies are kept in an array slot per channel number, which grows as higher channel numbers are used. Proxies without
+ * a channel number yet, because they were created before the connection was established or lost their number to
+ * another channel, are kept aside until {@link #reindex(HaChannelProxy, int)} gives them a slot. Iteration is weakly
+ * consistent: it sees every proxy that was registered before it started and not removed since, and may or may not see
+ * changes made while it runs.
+ * </p>
+ * 
+ * <p>
+ * Growing moves each slot to the larger copy and leaves a {@link #MOVED} marker behind, so that a write can never land
+ * in a slot that has already been copied. A writer or reader that finds the marker carries on in the copy.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class HaChannelRegistry implements Iterable<HaChannelProxy> {
+
+    private class ChannelIterator implements Iterator<HaChannelProxy> {
+
+        private AtomicReferenceArray<Object> slots;
+
+        private final Iterator<HaChannelProxy> unnumbered;
+
+        private int index;
+
+        private HaChannelProxy next;
+
+        private ChannelIterator() {
+
+            slots = HaChannelRegistry.this.slots;
+            unnumbered = HaChannelRegistry.this.unnumbered.iterator();
+            advance();
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public HaChannelProxy next() {
+
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+
+            HaChannelProxy current = next;
+            advance();
+
+            return current;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void advance() {
+
+            while (index < slots.length()) {
+
+                // copied slots keep their index, so carry on from here in the copy
+                Object slot = slots.get(index);
+                if (slot == MOVED) {
+                    slots = awaitGrown();
+                    continue;
+                }
+
+                index++;
+                if (slot != null) {
+                    next = (HaChannelProxy) slot;
+                    return;
+                }
+            }
+
+            next = unnumbered.hasNext() ? unnumbered.next() : null;
+        }
+    }
+
+    private static final int INITIAL_SLOTS = 64;
+
+    /**
+     * Left in a slot once it has been copied to larger slots.
+     */
+    private static final Object MOVED = new Object();
+
+    /**
+     * Holds proxies, or {@link #MOVED} once the slot has been copied. Replaced by a larger copy when a higher channel
+     * number is used, only ever while holding the lock on this registry.
+     */
+    private volatile AtomicReferenceArray<Object> slots;
+
+    private final ConcurrentLinkedQueue<HaChannelProxy> unnumbered;
+
+    private final AtomicInteger size;
+
+    public HaChannelRegistry() {
+
+        slots = new AtomicReferenceArray<Object>(INITIAL_SLOTS);
+        unnumbered = new ConcurrentLinkedQueue<HaChannelProxy>();
+        size = new AtomicInteger();
+    }
+
+    /**
+     * Adds a proxy under the number of its target channel, or aside until it has one.
+     */
+    public void add(final HaChannelProxy proxy) {
+
+        size.incrementAndGet();
+        place(proxy, getChannelNumber(proxy));
+    }
+
+    /**
+     * @return the proxy of the given channel, or null if there is none
+     */
+    public HaChannelProxy get(final int channelNumber) {
+
+        if (channelNumber < 0) {
+            return null;
+        }
+
+        AtomicReferenceArray<Object> slots = this.slots;
+        while (channelNumber < slots.length()) {
+
+            Object slot = slots.get(channelNumber);
+            if (slot != MOVED) {
+                return (HaChannelProxy) slot;
+            }
+
+            slots = awaitGrown();
+        }
+
+        return null;
+    }
+
+    public Iterator<HaChannelProxy> iterator() {
+        return new ChannelIterator();
+    }
+
+    /**
+     * Moves a proxy whose target channel has been replaced to the slot of its new channel number.
+     * 
+     * @param previousChannelNumber
+     *        the number of the channel it replaced, or -1 if it had none
+     */
+    public void reindex(final HaChannelProxy proxy, final int previousChannelNumber) {
+
+        int channelNumber = getChannelNumber(proxy);
+        if (channelNumber == previousChannelNumber && get(channelNumber) == proxy) {
+            return;
+        }
+
+        if (!clear(proxy, previousChannelNumber)) {
+            unnumbered.remove(proxy);
+        }
+
+        place(proxy, channelNumber);
+    }
+
+    /**
+     * @return true if the proxy was registered
+     */
+    public boolean remove(final HaChannelProxy proxy) {
+
+        if (!clear(proxy, getChannelNumber(proxy)) && !unnumbered.remove(proxy)) {
+            return false;
+        }
+
+        size.decrementAndGet();
+        return true;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Waits for slots being grown to be published, which happens before the lock is let go of.
+     * 
+     * @return the current slots
+     */
+    private synchronized AtomicReferenceArray<Object> awaitGrown() {
+        return slots;
+    }
+
+    /**
+     * Clears the slot of a proxy, following it to larger slots if it has been copied there.
+     * 
+     * @return true if the proxy was in the slot
+     */
+    private boolean clear(final HaChannelProxy proxy, final int channelNumber) {
+
+        if (channelNumber < 0) {
+            return false;
+        }
+
+        AtomicReferenceArray<Object> slots = this.slots;
+        while (channelNumber < slots.length()) {
+
+            Object slot = slots.get(channelNumber);
+            if (slot == MOVED) {
+                slots = awaitGrown();
+
+            } else if (slot != proxy) {
+                return false;
+
+            } else if (slots.compareAndSet(channelNumber, proxy, null)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private int getChannelNumber(final HaChannelProxy proxy) {
+
+        Channel target = proxy.getTargetChannel();
+        return target == null ? -1 : target.getChannelNumber();
+    }
+
+    private synchronized AtomicReferenceArray<Object> grow(final int channelNumber) {
+
+        AtomicReferenceArray<Object> slots = this.slots;
+        if (channelNumber < slots.length()) {
+            return slots;
+        }
+
+        int length = slots.length();
+        while (length <= channelNumber) {
+            length *= 2;
+        }
+
+        // the marker makes any later write to a copied slot fail and look for the copy instead
+        AtomicReferenceArray<Object> grown = new AtomicReferenceArray<Object>(length);
+        for (int i = 0; i < slots.length(); i++) {
+            grown.set(i, slots.getAndSet(i, MOVED));
+        }
+
+        this.slots = grown;
+        return grown;
+    }
+
+    /**
+     * Puts a proxy in the slot of the given channel number, or aside if it has none. A proxy already in the slot must
+     * belong to a channel that went away with a previous connection, and is set aside to get a new number.
+     */
+    private void place(final HaChannelProxy proxy, final int channelNumber) {
+
+        if (channelNumber < 0) {
+            unnumbered.add(proxy);
+            return;
+        }
+
+        AtomicReferenceArray<Object> slots = this.slots;
+        Object displaced;
+        while (true) {
+
+            if (channelNumber >= slots.length()) {
+                slots = grow(channelNumber);
+            }
+
+            displaced = slots.get(channelNumber);
+            if (displaced == MOVED) {
+                slots = awaitGrown();
+
+            } else if (slots.compareAndSet(channelNumber, displaced, proxy)) {
+                break;
+            }
+        }
+
+        if (displaced != null && displaced != proxy) {
+            unnumbered.add((HaChannelProxy) displaced);
+        }
+    }
+}
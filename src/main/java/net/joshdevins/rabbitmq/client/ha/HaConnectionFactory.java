@@ -19,18 +19,36 @@ package net.joshdevins.rabbitmq.client.ha;
 import java.io.IOException;
 import java.lang.reflect.Proxy;
 import java.net.ConnectException;
-import java.util.HashSet;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.buffer.SlabArena;
+import net.joshdevins.rabbitmq.client.ha.decorator.DecoratorChain;
+import net.joshdevins.rabbitmq.client.ha.decorator.MessageDecorator;
+import net.joshdevins.rabbitmq.client.ha.dispatch.DeliveryKeyExtractor;
+import net.joshdevins.rabbitmq.client.ha.dispatch.LaneDispatcher;
+import net.joshdevins.rabbitmq.client.ha.dispatch.RoutingKeyExtractor;
+import net.joshdevins.rabbitmq.client.ha.dispatch.VirtualThreadDispatcher;
 import net.joshdevins.rabbitmq.client.ha.retry.BlockingRetryStrategy;
 import net.joshdevins.rabbitmq.client.ha.retry.RetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.topology.BulkTopologyRecovery;
+import net.joshdevins.rabbitmq.client.ha.topology.DeclarationCache;
+import net.joshdevins.rabbitmq.client.ha.topology.TopologyRecoveryResult;
 
 import org.apache.commons.lang.Validate;
 import org.apache.log4j.Logger;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Address;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
@@ -46,14 +64,83 @@ import com.rabbitmq.client.ShutdownSignalException;
  * overrides necessary methods.
  * 
  * <p>
- * TODO: Create utility to populate some connections in the CachingConnectionFactory on startup. Should fail fast but
- * will reconnect using this underlying.
+ * To open a number of connections in parallel on startup, see {@link ConnectionWarmUp}.
  * </p>
  * 
  * @author Josh Devins
  */
 public class HaConnectionFactory extends ConnectionFactory {
 
+    /**
+     * Makes connection attempts for {@link HaConnectionFactory#newConnectionAsync(Address[])}, waiting between
+     * attempts on the scheduler rather than holding on to a thread.
+     */
+    private class AsyncConnectionTask implements Runnable {
+
+        private final ConnectionSet connectionSet;
+
+        private final HaConnectionFuture future;
+
+        private final ReconnectionTask connector;
+
+        private AsyncConnectionTask(final ConnectionSet connectionSet, final HaConnectionFuture future) {
+
+            this.connectionSet = connectionSet;
+            this.future = future;
+
+            connector = new ReconnectionTask(false, connectionSet.listener, connectionSet.proxy);
+        }
+
+        public void run() {
+
+            if (future.isDone() || connectionSet.proxy.isClosed()) {
+                abandon("Connection closed before it was established");
+                return;
+            }
+
+            if (!connector.attempt(null)) {
+
+                if (connectionSet.proxy.isClosed()) {
+                    abandon("Connection closed before it was established");
+                    return;
+                }
+
+                try {
+                    scheduledExecutorService.schedule(new Runnable() {
+
+                        public void run() {
+
+                            try {
+                                executorService.execute(AsyncConnectionTask.this);
+                            } catch (RejectedExecutionException ree) {
+                                abandon("Connection factory shut down before the connection was established");
+                            }
+                        }
+                    }, reconnectionWaitMillis, TimeUnit.MILLISECONDS);
+
+                } catch (RejectedExecutionException ree) {
+                    abandon("Connection factory shut down before the connection was established");
+                }
+
+                return;
+            }
+
+            pendingConnections.remove(this);
+
+            // closed or cancelled while connecting, nobody wants this any more
+            if (connectionSet.proxy.isClosed() || !future.connected()) {
+                connectionSet.wrapped.abort();
+                future.failed(new IOException("Connection closed before it was established"));
+            }
+        }
+
+        private void abandon(final String reason) {
+
+            pendingConnections.remove(this);
+            future.failed(new IOException(reason));
+        }
+    }
+
     private class ConnectionSet {
 
         private final Connection wrapped;
@@ -72,8 +159,10 @@ public class HaConnectionFactory extends ConnectionFactory {
 
     /**
      * Listener to {@link Connection} shutdowns. Hooks together the {@link HaConnectionProxy} to the shutdown event.
+     * Also handles connections that a {@link ConnectionHealthProbe} has found to be dead but that have not shut down
+     * on their own.
      */
-    private class HaShutdownListener implements ShutdownListener {
+    private class HaShutdownListener implements ShutdownListener, ConnectionHealthProbe.DeadConnectionHandler {
 
         private final HaConnectionProxy connectionProxy;
 
@@ -85,18 +174,37 @@ public class HaConnectionFactory extends ConnectionFactory {
             this.connectionProxy = connectionProxy;
         }
 
+        public void onDeadConnection(final HaConnectionProxy proxy, final Connection deadConnection,
+                final String reason) {
+
+            // the connection may already have shut down and be reconnecting by itself
+            if (deadConnection != connectionProxy.getTargetConnection() || !deadConnection.isOpen()) {
+                return;
+            }
+
+            // an aborted connection looks application initiated, so take over the shutdown notification ourselves
+            deadConnection.removeShutdownListener(this);
+            deadConnection.abort(AMQP.CONNECTION_FORCED, reason);
+
+            shutdownCompleted(new ShutdownSignalException(true, false, reason, deadConnection));
+        }
+
         public void shutdownCompleted(final ShutdownSignalException shutdownSignalException) {
 
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Shutdown signal caught: " + shutdownSignalException.getMessage());
             }
 
-            for (HaConnectionListener listener : listeners) {
-                listener.onDisconnect(connectionProxy, shutdownSignalException);
+            if (FlightRecorderEvents.isRecording()) {
+                FlightRecorderEvents.emit(FlightRecorderEvents.EventType.DISCONNECT,
+                        getAddressesAsString(connectionProxy.getAddresses()), shutdownSignalException.getMessage(),
+                        shutdownSignalException.isInitiatedByApplication());
             }
 
+            listeners.fireDisconnect(connectionProxy, shutdownSignalException);
+
             // only try to reconnect if it was a problem with the broker
-            if (!shutdownSignalException.isInitiatedByApplication()) {
+            if (!shutdownSignalException.isInitiatedByApplication() && !connectionProxy.isClosed()) {
 
                 // start an async reconnection
                 executorService.submit(new ReconnectionTask(true, this, connectionProxy));
@@ -109,6 +217,89 @@ public class HaConnectionFactory extends ConnectionFactory {
         }
     }
 
+    /**
+     * Opens a hot standby connection for an {@link HaConnectionProxy}, to a different {@link Address} than the one the
+     * proxy is currently connected to. Keeps trying until it succeeds or the proxy is closed.
+     */
+    private class StandbyTask implements Runnable {
+
+        private final HaConnectionProxy connectionProxy;
+
+        private StandbyTask(final HaConnectionProxy connectionProxy) {
+            this.connectionProxy = connectionProxy;
+        }
+
+        public void run() {
+
+            if (connectionProxy.isClosed() || connectionProxy.getStandbyConnection() != null) {
+                return;
+            }
+
+            Address[] standbyAddrs = getStandbyAddresses(connectionProxy);
+            if (standbyAddrs.length == 0) {
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("No address other than the active one to open a standby connection to");
+                }
+
+                return;
+            }
+
+            try {
+                Connection standby = newTargetConnection(standbyAddrs);
+
+                if (!connectionProxy.offerStandbyConnection(standby)) {
+                    standby.close();
+                    return;
+                }
+
+                standby.addShutdownListener(new StandbyShutdownListener(connectionProxy, standby));
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Opened standby connection: " + standby);
+                }
+
+            } catch (IOException ioe) {
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Failed to open standby connection, retrying: " + ioe.getMessage());
+                }
+
+                scheduleStandby(connectionProxy, reconnectionWaitMillis);
+            }
+        }
+    }
+
+    /**
+     * Discards a standby connection that shuts down before being promoted, and opens a new one.
+     */
+    private class StandbyShutdownListener implements ShutdownListener {
+
+        private final HaConnectionProxy connectionProxy;
+
+        private final Connection standby;
+
+        private StandbyShutdownListener(final HaConnectionProxy connectionProxy, final Connection standby) {
+
+            this.connectionProxy = connectionProxy;
+            this.standby = standby;
+        }
+
+        public void shutdownCompleted(final ShutdownSignalException shutdownSignalException) {
+
+            // a promoted standby is looked after by its HaShutdownListener
+            if (!connectionProxy.removeStandbyConnection(standby)) {
+                return;
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Standby connection shut down, replacing: " + shutdownSignalException.getMessage());
+            }
+
+            scheduleStandby(connectionProxy, reconnectionWaitMillis);
+        }
+    }
+
     private class ReconnectionTask implements Runnable {
 
         private final boolean reconnection;
@@ -117,6 +308,8 @@ public class HaConnectionFactory extends ConnectionFactory {
 
         private final HaConnectionProxy connectionProxy;
 
+        private int attempts;
+
         public ReconnectionTask(final boolean reconnection, final ShutdownListener shutdownListener,
                 final HaConnectionProxy connectionProxy) {
 
@@ -133,128 +326,306 @@ public class HaConnectionFactory extends ConnectionFactory {
             // need to close the connection gate on the channels
             connectionProxy.closeConnectionLatch();
 
-            String addressesAsString = getAddressesAsString();
-
             if (LOG.isDebugEnabled()) {
-                LOG.info("Reconnection starting, sleeping: addresses=" + addressesAsString + ", wait="
+                LOG.info("Reconnection starting, sleeping: addresses=" + getAddressesAsString() + ", wait="
                         + reconnectionWaitMillis);
             }
 
+            Connection standby = connectionProxy.takeStandbyConnection();
+            Object reconnectEvent = FlightRecorderEvents.begin(FlightRecorderEvents.EventType.RECONNECT);
+
             // TODO: Add max reconnection attempts
             boolean connected = false;
-            while (!connected) {
+            while (!connected && !connectionProxy.isClosed()) {
 
-                try {
-                    Thread.sleep(reconnectionWaitMillis);
-                } catch (InterruptedException ie) {
+                // a live standby can be promoted straight away, otherwise wait before connecting
+                Connection promoted = standby != null && standby.isOpen() ? standby : null;
+                standby = null;
 
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Reconnection timer thread was interrupted, ignoring and reconnecting now");
+                if (promoted == null) {
+                    try {
+                        Thread.sleep(reconnectionWaitMillis);
+                    } catch (InterruptedException ie) {
+
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Reconnection timer thread was interrupted, ignoring and reconnecting now");
+                        }
                     }
                 }
 
-                Exception exception = null;
-                try {
-                    Connection connection = newTargetConnection(connectionProxy.getAddresses());
+                connected = attempt(promoted);
+            }
 
-                    if (LOG.isDebugEnabled()) {
-                        LOG.info("Reconnection complete: addresses=" + addressesAsString);
-                    }
+            if (connected && reconnectEvent != null) {
+                FlightRecorderEvents.commit(reconnectEvent, getAddressesAsString(), attempts, reconnection);
+            }
+        }
 
-                    connection.addShutdownListener(shutdownListener);
+        /**
+         * Makes a single connection attempt and notifies listeners of the outcome.
+         * 
+         * @param promoted
+         *        a standby connection to promote instead of connecting, or null
+         * @return true if connected
+         */
+        private boolean attempt(final Connection promoted) {
 
-                    // refresh any channels created by previous connection
-                    connectionProxy.setTargetConnection(connection);
-                    connectionProxy.replaceChannelsInProxies();
+            String addressesAsString = getAddressesAsString();
+            Object attemptEvent = FlightRecorderEvents.begin(FlightRecorderEvents.EventType.RECONNECT_ATTEMPT);
+            attempts++;
+
+            Exception exception = null;
+            Connection connection = null;
+            try {
+                connection = promoted != null ? promoted : newTargetConnection(connectionProxy.getAddresses());
+
+                if (promoted != null) {
+                    LOG.info("Promoted standby connection: connection=" + promoted);
+                } else if (LOG.isDebugEnabled()) {
+                    LOG.info("Reconnection complete: addresses=" + addressesAsString);
+                }
 
-                    connected = true;
+                connection.addShutdownListener(shutdownListener);
 
-                    if (reconnection) {
-                        for (HaConnectionListener listener : listeners) {
-                            listener.onReconnection(connectionProxy);
-                        }
+                // refresh any channels created by previous connection
+                connectionProxy.setTargetConnection(connection);
+                connectionProxy.replaceChannelsInProxies();
 
-                    } else {
-                        for (HaConnectionListener listener : listeners) {
-                            listener.onConnection(connectionProxy);
-                        }
-                    }
+                // replay topology before anyone is notified or any operation is allowed through
+                if (topologyRecoveryEnabled) {
+                    recoverTopology(connection);
+                }
+
+                if (reconnection) {
+                    listeners.fireReconnection(connectionProxy);
+                } else {
+                    listeners.fireConnection(connectionProxy);
+                }
 
-                    connectionProxy.markAsOpen();
+                // once topology is back, and before a retried commit is let through
+                connectionProxy.restoreChannelState();
 
-                } catch (ConnectException ce) {
-                    // connection refused
-                    exception = ce;
+                connectionProxy.markAsOpen();
 
-                } catch (IOException ioe) {
-                    // some other connection problem
-                    exception = ioe;
+                if (hotStandbyEnabled) {
+                    scheduleStandby(connectionProxy, 0);
                 }
 
-                if (exception != null) {
-                    LOG.warn("Failed to reconnect, retrying: addresses=" + addressesAsString + ", message="
-                            + exception.getMessage());
+                if (attemptEvent != null) {
+                    FlightRecorderEvents.commit(attemptEvent, addressesAsString, attempts, reconnection, null);
+                }
 
-                    if (reconnection) {
-                        for (HaConnectionListener listener : listeners) {
-                            listener.onReconnectFailure(connectionProxy, exception);
-                        }
+                return true;
 
-                    } else {
-                        for (HaConnectionListener listener : listeners) {
-                            listener.onConnectFailure(connectionProxy, exception);
-                        }
-                    }
-                }
+            } catch (ConnectException ce) {
+                // connection refused
+                exception = ce;
+
+            } catch (IOException ioe) {
+                // some other connection problem
+                exception = ioe;
+            }
+
+            // connected, but could not be set up, so the next attempt starts over with a connection of its own
+            if (connection != null) {
+                discard(connection);
+            }
+
+            LOG.warn("Failed to reconnect, retrying: addresses=" + addressesAsString + ", message="
+                    + exception.getMessage());
+
+            if (attemptEvent != null) {
+                FlightRecorderEvents.commit(attemptEvent, addressesAsString, attempts, reconnection, exception
+                        .getMessage());
+            }
+
+            if (reconnection) {
+                listeners.fireReconnectFailure(connectionProxy, exception);
+            } else {
+                listeners.fireConnectFailure(connectionProxy, exception);
             }
+
+            return false;
         }
 
-        private String getAddressesAsString() {
+        /**
+         * Aborts a connection that failed while being set up, without it being taken for a broker failure.
+         */
+        private void discard(final Connection connection) {
+
+            connection.removeShutdownListener(shutdownListener);
 
-            StringBuilder sb = new StringBuilder();
-            sb.append('[');
+            try {
+                connection.abort();
 
-            for (int i = 0; i < connectionProxy.getAddresses().length; i++) {
+            } catch (Exception e) {
 
-                if (i > 0) {
-                    sb.append(',');
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Failed to abort connection that failed during setup, not a problem: " + e.getMessage());
                 }
+            }
+        }
+
+        private void recoverTopology(final Connection connection) throws IOException {
 
-                sb.append(connectionProxy.getAddresses()[i].toString());
+            BulkTopologyRecovery recovery = new BulkTopologyRecovery(executorService, topologyRecoveryChannels,
+                    topologyRecoveryTimeoutMillis);
+            TopologyRecoveryResult result = recovery.recover(connection, connectionProxy.getTopologyRecorder()
+                    .getDeclarations());
+
+            if (!result.isSuccessful()) {
+                LOG.warn("Topology recovery failed for some declarations: " + result.getFailedDeclarations());
             }
 
-            sb.append(']');
-            return sb.toString();
+            listeners.fireTopologyRecovery(connectionProxy, result);
+        }
+
+        private String getAddressesAsString() {
+            return HaConnectionFactory.getAddressesAsString(connectionProxy.getAddresses());
         }
     }
 
     private static final Logger LOG = Logger.getLogger(HaConnectionFactory.class);
 
+    /**
+     * Default value = 10000
+     */
+    public static final int DEFAULT_MAX_BUFFERED_PUBLISHES = 10000;
+
     /**
      * Default value = 1000 = 1 second
      */
     private static final long DEFAULT_RECONNECTION_WAIT_MILLIS = 1000;
 
+    /**
+     * Default value = 2000 = 2 seconds
+     */
+    private static final long DEFAULT_HEALTH_PROBE_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * Default value = 3
+     */
+    private static final int DEFAULT_HEALTH_PROBE_MAX_MISSES = 3;
+
+    /**
+     * Default value = 1
+     */
+    private static final int DEFAULT_ADAPTIVE_PREFETCH_MIN = 1;
+
+    /**
+     * Default value = 1000
+     */
+    private static final int DEFAULT_ADAPTIVE_PREFETCH_MAX = 1000;
+
+    /**
+     * Default value = 1000
+     */
+    private static final int DEFAULT_MAX_DELIVERIES_IN_FLIGHT = 1000;
+
     private long reconnectionWaitMillis = DEFAULT_RECONNECTION_WAIT_MILLIS;
 
+    private boolean declarationCacheEnabled = false;
+
+    private boolean hotStandbyEnabled = false;
+
+    private boolean topologyRecoveryEnabled = false;
+
+    private int topologyRecoveryChannels = BulkTopologyRecovery.DEFAULT_NUM_CHANNELS;
+
+    private long topologyRecoveryTimeoutMillis = BulkTopologyRecovery.DEFAULT_BARRIER_TIMEOUT_MILLIS;
+
+    private long healthProbeIntervalMillis = 0;
+
+    private long healthProbeTimeoutMillis = DEFAULT_HEALTH_PROBE_TIMEOUT_MILLIS;
+
+    private int healthProbeMaxMisses = DEFAULT_HEALTH_PROBE_MAX_MISSES;
+
+    private int txCommitBatchSize = 1;
+
+    private boolean adaptivePrefetchEnabled = false;
+
+    private int adaptivePrefetchMin = DEFAULT_ADAPTIVE_PREFETCH_MIN;
+
+    private int adaptivePrefetchMax = DEFAULT_ADAPTIVE_PREFETCH_MAX;
+
+    private int deliveryLanes = 0;
+
+    private int maxDeliveriesInFlight = DEFAULT_MAX_DELIVERIES_IN_FLIGHT;
+
+    private DeliveryKeyExtractor deliveryKeyExtractor = new RoutingKeyExtractor();
+
+    private SlabArena retainedPublishArena;
+
+    private DecoratorChain decoratorChain;
+
+    private FlowControlPolicy flowControlPolicy = FlowControlPolicy.WAIT;
+
+    private long flowControlWaitMillis = 0;
+
+    private int maxBufferedPublishes = DEFAULT_MAX_BUFFERED_PUBLISHES;
+
+    /**
+     * Shared by all connections, null unless virtual threads are enabled and available.
+     */
+    private ExecutorService virtualThreadExecutor;
+
     private final ExecutorService executorService;
 
+    private final ScheduledExecutorService scheduledExecutorService;
+
     private RetryStrategy retryStrategy;
 
-    private Set<HaConnectionListener> listeners;
+    private final HaConnectionListenerRegistry listeners;
+
+    private final Set<HaConnectionProxy> connectionProxies;
+
+    /**
+     * Connections of {@link #newConnectionAsync(Address[])} that have not been established yet.
+     */
+    private final Set<AsyncConnectionTask> pendingConnections;
+
+    private volatile boolean shutdown;
 
     public HaConnectionFactory() {
         super();
 
         executorService = Executors.newCachedThreadPool();
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
         setDefaultRetryStrategy();
 
-        // TODO: Should we use a concurrent instance or sync access to this Set?
-        listeners = new HashSet<HaConnectionListener>();
+        listeners = new HaConnectionListenerRegistry();
+        connectionProxies = new CopyOnWriteArraySet<HaConnectionProxy>();
+        pendingConnections = new CopyOnWriteArraySet<AsyncConnectionTask>();
     }
 
+    /**
+     * Adds a listener that is notified asynchronously, in order, on a per-connection executor. Use this for listeners
+     * that do not need to finish before operations are allowed through, like metrics or alerting.
+     */
+    public void addAsyncHaConnectionListener(final HaConnectionListener listener) {
+        listeners.addAsync(listener);
+    }
+
+    /**
+     * Adds a listener that is notified synchronously on the reconnection thread, before any operations are allowed
+     * through. Use this for setup like queue creation.
+     */
     public void addHaConnectionListener(final HaConnectionListener listener) {
-        listeners.add(listener);
+        listeners.addSync(listener);
+    }
+
+    /**
+     * Creates a channel on an HA connection from this factory that routes each calling thread to a channel of its own.
+     * 
+     * @see HaConnectionProxy#createThreadAffineChannel(int)
+     */
+    public Channel createThreadAffineChannel(final Connection connection, final int maxChannels) {
+
+        Validate.isTrue(Proxy.isProxyClass(connection.getClass())
+                && Proxy.getInvocationHandler(connection) instanceof HaConnectionProxy,
+                "connection must be an HA connection");
+
+        return ((HaConnectionProxy) Proxy.getInvocationHandler(connection)).createThreadAffineChannel(maxChannels);
     }
 
     /**
@@ -264,22 +635,44 @@ public class HaConnectionFactory extends ConnectionFactory {
      */
     @Override
     public Connection newConnection(final Address[] addrs) throws IOException {
+        return newConnection(addrs, false);
+    }
+
+    /**
+     * Wraps a raw {@link Connection} with an HA-aware proxy.
+     * 
+     * @param failFast
+     *        if true, a failed initial connection is thrown. If false, the calling thread blocks reconnecting until
+     *        the connection succeeds. Either way, once connected, the connection is reconnected on failure.
+     */
+    public Connection newConnection(final Address[] addrs, final boolean failFast) throws IOException {
+
+        checkNotShutdown();
 
         Connection target = null;
         try {
-            target = super.newConnection(addrs);
+            target = newTargetConnection(addrs);
 
         } catch (IOException ioe) {
+
+            if (failFast) {
+                throw ioe;
+            }
+
             LOG.warn("Initial connection failed, wrapping anyways and letting reconnector go to work: "
                     + ioe.getMessage());
         }
 
-        ConnectionSet connectionPair = createConnectionProxy(addrs, target);
+        ConnectionSet connectionPair = createConnectionProxy(addrs, target, retryStrategy);
 
         // connection success
         if (target != null) {
-            return connectionPair.wrapped;
 
+            if (hotStandbyEnabled) {
+                scheduleStandby(connectionPair.proxy, 0);
+            }
+
+            return connectionPair.wrapped;
         }
 
         // connection failed, reconnect in the same thread
@@ -289,15 +682,210 @@ public class HaConnectionFactory extends ConnectionFactory {
         return connectionPair.wrapped;
     }
 
+    /**
+     * Wraps a connection that is established in the background with an HA-aware proxy, returning straight away. The
+     * connection is available from {@link HaConnectionFuture#getConnection()} before it is established: channels can
+     * be created on it, and operations on them wait for the connection according to the {@link RetryStrategy}.
+     * Connection attempts are repeated every reconnection wait interval until one succeeds, the future is cancelled or
+     * the connection is closed. Once connected, the connection is reconnected on failure as usual.
+     */
+    public HaConnectionFuture newConnectionAsync(final Address[] addrs) {
+        return newConnectionAsync(addrs, retryStrategy);
+    }
+
+    /**
+     * Like {@link #newConnectionAsync(Address[])}, but operations on the connection's channels are retried according
+     * to the given strategy rather than the factory's.
+     */
+    public HaConnectionFuture newConnectionAsync(final Address[] addrs, final RetryStrategy retryStrategy) {
+
+        Validate.notNull(retryStrategy, "retryStrategy is required");
+        checkNotShutdown();
+
+        ConnectionSet connectionSet = createConnectionProxy(addrs, null, retryStrategy);
+        HaConnectionFuture future = new HaConnectionFuture(connectionSet.wrapped);
+
+        AsyncConnectionTask task = new AsyncConnectionTask(connectionSet, future);
+        pendingConnections.add(task);
+        executorService.execute(task);
+
+        return future;
+    }
+
+    /**
+     * Enable a per-connection {@link DeclarationCache} so that repeated exchange, queue and binding declarations with
+     * identical arguments are answered locally rather than with a broker round trip. The cache is cleared whenever a
+     * connection is replaced. Default is false.
+     */
+    public void setDeclarationCacheEnabled(final boolean declarationCacheEnabled) {
+        this.declarationCacheEnabled = declarationCacheEnabled;
+    }
+
+    public boolean removeHaConnectionListener(final HaConnectionListener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Enable adaptive prefetch, where each channel's prefetch count is tuned between the configured bounds from the
+     * measured processing time and ack latency of its consumers, and applied again to replacement channels. An
+     * explicit {@code basicQos} by the application sets the starting point. Default is false.
+     * 
+     * @see AdaptivePrefetchController
+     */
+    public void setAdaptivePrefetchEnabled(final boolean adaptivePrefetchEnabled) {
+        this.adaptivePrefetchEnabled = adaptivePrefetchEnabled;
+    }
+
+    /**
+     * Set the upper bound for adaptive prefetch. Default is {@value #DEFAULT_ADAPTIVE_PREFETCH_MAX}.
+     */
+    public void setAdaptivePrefetchMax(final int adaptivePrefetchMax) {
+
+        Validate.isTrue(adaptivePrefetchMax > 0, "adaptivePrefetchMax must be greater than 0");
+        this.adaptivePrefetchMax = adaptivePrefetchMax;
+    }
+
+    /**
+     * Set the lower bound for adaptive prefetch, which is also the prefetch count consumers start with. Default is
+     * {@value #DEFAULT_ADAPTIVE_PREFETCH_MIN}.
+     */
+    public void setAdaptivePrefetchMin(final int adaptivePrefetchMin) {
+
+        Validate.isTrue(adaptivePrefetchMin > 0, "adaptivePrefetchMin must be greater than 0");
+        this.adaptivePrefetchMin = adaptivePrefetchMin;
+    }
+
+    /**
+     * Set how deliveries are keyed for ordering under parallel dispatch. Default is by routing key.
+     * 
+     * @see #setDeliveryLanes(int)
+     */
+    public void setDeliveryKeyExtractor(final DeliveryKeyExtractor deliveryKeyExtractor) {
+
+        Validate.notNull(deliveryKeyExtractor, "deliveryKeyExtractor is required");
+        this.deliveryKeyExtractor = deliveryKeyExtractor;
+    }
+
+    /**
+     * Set the number of lanes deliveries to each consumer are dispatched on in parallel, instead of being handled on
+     * the connection's single delivery thread. Deliveries with the same key, see
+     * {@link #setDeliveryKeyExtractor(DeliveryKeyExtractor)}, always use the same lane and are handled in order. A
+     * value of 0, the default, disables parallel dispatch.
+     * 
+     * @see LaneDispatcher
+     */
+    public void setDeliveryLanes(final int deliveryLanes) {
+
+        Validate.isTrue(deliveryLanes >= 0, "deliveryLanes must be 0 or greater");
+        this.deliveryLanes = deliveryLanes;
+    }
+
+    /**
+     * Set what publishes do while the broker has paused publishing on their channel with flow control. Default is
+     * {@link FlowControlPolicy#WAIT}, which waits without holding up other operations on the channel.
+     * 
+     * @see FlowController
+     */
+    public void setFlowControlPolicy(final FlowControlPolicy flowControlPolicy) {
+
+        Validate.notNull(flowControlPolicy, "flowControlPolicy is required");
+        this.flowControlPolicy = flowControlPolicy;
+    }
+
+    /**
+     * Set how long in milliseconds a publish waits for broker flow control to permit publishing before failing, with
+     * {@link FlowControlPolicy#WAIT}. A value of 0, the default, waits indefinitely.
+     */
+    public void setFlowControlWaitMillis(final long flowControlWaitMillis) {
+
+        Validate.isTrue(flowControlWaitMillis >= 0, "flowControlWaitMillis must be 0 or greater");
+        this.flowControlWaitMillis = flowControlWaitMillis;
+    }
+
+    /**
+     * Allows setting a {@link Set} of asynchronous {@link HaConnectionListener}s. This is ammenable for Spring style
+     * property setting. Note that this will override any existing asynchronous listeners!
+     * 
+     * @see #addAsyncHaConnectionListener(HaConnectionListener)
+     */
+    public void setAsyncHaConnectionListener(final Set<HaConnectionListener> listeners) {
+
+        Validate.notEmpty(listeners, "listeners are required and none can be null");
+        this.listeners.replaceAll(listeners, true);
+    }
+
     /**
      * Allows setting a {@link Set} of {@link HaConnectionListener}s. This is
      * ammenable for Spring style property setting. Note that this will override
-     * any existing listeners!
+     * any existing synchronous listeners!
      */
     public void setHaConnectionListener(final Set<HaConnectionListener> listeners) {
 
         Validate.notEmpty(listeners, "listeners are required and none can be null");
-        this.listeners = new ConcurrentSkipListSet<HaConnectionListener>(listeners);
+        this.listeners.replaceAll(listeners, false);
+    }
+
+    /**
+     * Set the interval in milliseconds between active health probes of each connection. A probe times a synchronous
+     * round trip to the broker on a dedicated channel, which detects half-open connections in seconds rather than
+     * waiting for an operation to time out. A value of 0, the default, disables probing.
+     */
+    public void setHealthProbeIntervalMillis(final long healthProbeIntervalMillis) {
+
+        Validate.isTrue(healthProbeIntervalMillis >= 0, "healthProbeIntervalMillis must be 0 or greater");
+        this.healthProbeIntervalMillis = healthProbeIntervalMillis;
+    }
+
+    /**
+     * Set the number of consecutive missed health probes after which a connection is aborted and reconnected. Default
+     * is {@value #DEFAULT_HEALTH_PROBE_MAX_MISSES}.
+     */
+    public void setHealthProbeMaxMisses(final int healthProbeMaxMisses) {
+
+        Validate.isTrue(healthProbeMaxMisses > 0, "healthProbeMaxMisses must be greater than 0");
+        this.healthProbeMaxMisses = healthProbeMaxMisses;
+    }
+
+    /**
+     * Set the time in milliseconds to wait for a health probe reply before counting it as missed. Default is
+     * {@value #DEFAULT_HEALTH_PROBE_TIMEOUT_MILLIS}.
+     */
+    public void setHealthProbeTimeoutMillis(final long healthProbeTimeoutMillis) {
+
+        Validate.isTrue(healthProbeTimeoutMillis > 0, "healthProbeTimeoutMillis must be greater than 0");
+        this.healthProbeTimeoutMillis = healthProbeTimeoutMillis;
+    }
+
+    /**
+     * Enable a pre-opened hot standby connection for each connection, to a different {@link Address} than the active
+     * one. On failure, the standby is promoted immediately instead of waiting and reconnecting, and channels are
+     * rebuilt on it while a new standby is opened in the background. Requires more than one address. Default is
+     * false.
+     */
+    public void setHotStandbyEnabled(final boolean hotStandbyEnabled) {
+        this.hotStandbyEnabled = hotStandbyEnabled;
+    }
+
+    /**
+     * Set the maximum number of publishes per channel kept while broker flow control has publishing paused, with
+     * {@link FlowControlPolicy#BUFFER}. Default is {@value #DEFAULT_MAX_BUFFERED_PUBLISHES}.
+     */
+    public void setMaxBufferedPublishes(final int maxBufferedPublishes) {
+
+        Validate.isTrue(maxBufferedPublishes > 0, "maxBufferedPublishes must be greater than 0");
+        this.maxBufferedPublishes = maxBufferedPublishes;
+    }
+
+    /**
+     * Set the maximum number of deliveries per consumer dispatched in parallel but not yet handled. Beyond that the
+     * connection's delivery thread waits. Default is {@value #DEFAULT_MAX_DELIVERIES_IN_FLIGHT}.
+     * 
+     * @see #setDeliveryLanes(int)
+     */
+    public void setMaxDeliveriesInFlight(final int maxDeliveriesInFlight) {
+
+        Validate.isTrue(maxDeliveriesInFlight > 0, "maxDeliveriesInFlight must be greater than 0");
+        this.maxDeliveriesInFlight = maxDeliveriesInFlight;
     }
 
     /**
@@ -311,21 +899,195 @@ public class HaConnectionFactory extends ConnectionFactory {
         reconnectionWaitMillis = reconnectionIntervalMillis;
     }
 
+    /**
+     * Set the decorators applied to every message published on, and in reverse order to every message delivered to,
+     * the channels of connections created from now on. See {@link MessageDecorator}.
+     */
+    public void setMessageDecorators(final List<MessageDecorator> messageDecorators) {
+
+        Validate.notNull(messageDecorators, "messageDecorators are required");
+        decoratorChain = messageDecorators.isEmpty() ? null : new DecoratorChain(messageDecorators);
+    }
+
+    /**
+     * Set an arena to keep the bodies of transactional publishes in until they are committed, shared by all
+     * connections. This bounds the memory taken by open transactions and keeps it out of the garbage collector's way;
+     * a publish that does not fit fails with an {@link IOException} before it is sent. The arena's gauges show how
+     * much is retained. Default is none, copying bodies onto the heap without a bound.
+     */
+    public void setRetainedPublishArena(final SlabArena retainedPublishArena) {
+        this.retainedPublishArena = retainedPublishArena;
+    }
+
     public void setRetryStrategy(final RetryStrategy retryStrategy) {
         this.retryStrategy = retryStrategy;
     }
 
+    /**
+     * Set the number of channels used to replay topology in parallel after a reconnection. Default is
+     * {@link BulkTopologyRecovery#DEFAULT_NUM_CHANNELS}.
+     */
+    public void setTopologyRecoveryChannels(final int topologyRecoveryChannels) {
+
+        Validate.isTrue(topologyRecoveryChannels > 0, "topologyRecoveryChannels must be greater than 0");
+        this.topologyRecoveryChannels = topologyRecoveryChannels;
+    }
+
+    /**
+     * Enable replaying of recorded exchanges, queues and bindings after a reconnection. Declarations are pipelined as
+     * nowait methods over several channels while the connection gate is still closed, and the results are reported
+     * to {@link HaConnectionListener#onTopologyRecovery(HaConnectionProxy, TopologyRecoveryResult)}. Default is
+     * false, leaving topology recreation to {@link HaConnectionListener}s.
+     */
+    public void setTopologyRecoveryEnabled(final boolean topologyRecoveryEnabled) {
+        this.topologyRecoveryEnabled = topologyRecoveryEnabled;
+    }
+
+    /**
+     * Set how long topology recovery waits for the broker to confirm the replayed declarations before giving up on the
+     * new connection and reconnecting. Default is {@link BulkTopologyRecovery#DEFAULT_BARRIER_TIMEOUT_MILLIS}.
+     */
+    public void setTopologyRecoveryTimeoutMillis(final long topologyRecoveryTimeoutMillis) {
+
+        Validate.isTrue(topologyRecoveryTimeoutMillis > 0, "topologyRecoveryTimeoutMillis must be greater than 0");
+        this.topologyRecoveryTimeoutMillis = topologyRecoveryTimeoutMillis;
+    }
+
+    /**
+     * Set the number of publishes on a transactional channel to batch up per commit. Commits made by the application
+     * before that many publishes are pending return straight away and are sent along with a later commit, or when
+     * the channel is closed or shut down gracefully. This trades a window of unconfirmed publishes for throughput. The
+     * default of 1 sends every commit.
+     */
+    public void setTxCommitBatchSize(final int txCommitBatchSize) {
+
+        Validate.isTrue(txCommitBatchSize > 0, "txCommitBatchSize must be greater than 0");
+        this.txCommitBatchSize = txCommitBatchSize;
+    }
+
+    /**
+     * Enable running consumers on virtual threads, for consumers that block on I/O and need many deliveries in flight.
+     * Each delivery is handled on its own virtual thread, with as many in flight as the channel's prefetch count up to
+     * {@link #setMaxDeliveriesInFlight(int)}, and in no particular order. With
+     * {@link #setDeliveryLanes(int)}, lanes run on virtual threads instead and keep their ordering. Re-registering
+     * consumers after a reconnection also uses virtual threads. On JVMs without virtual threads this is ignored with
+     * a warning. Default is false.
+     * 
+     * @see VirtualThreadDispatcher
+     */
+    public void setVirtualThreadsEnabled(final boolean virtualThreadsEnabled) {
+
+        if (!virtualThreadsEnabled) {
+            virtualThreadExecutor = null;
+            return;
+        }
+
+        if (virtualThreadExecutor == null) {
+
+            virtualThreadExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+
+            if (virtualThreadExecutor == null) {
+                LOG.warn("Virtual threads are not available on this JVM, consumers will use platform threads");
+            }
+        }
+    }
+
+    /**
+     * Shuts down all connections created by this factory, and the factory itself, without losing work that is already
+     * under way. New connections, channels, consumers and publishes are refused straight away. Then, within the
+     * timeout, each channel cancels its consumers, lets operations under way finish (including those waiting for a
+     * reconnection) and waits for outstanding publisher confirms, and each connection is closed. Finally the
+     * factory's executors are shut down. Whatever could not be done in time is abandoned and reported.
+     * 
+     * @param timeoutMillis
+     *        the time to allow for the whole shutdown
+     */
+    public ShutdownReport shutdownGracefully(final long timeoutMillis) {
+
+        Validate.isTrue(timeoutMillis > 0, "timeoutMillis must be greater than 0");
+
+        shutdown = true;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        ShutdownReport report = new ShutdownReport();
+
+        // turn new work away on every connection before waiting on any of them
+        for (HaConnectionProxy proxy : connectionProxies) {
+            proxy.stopAcceptingWork();
+        }
+
+        for (HaConnectionProxy proxy : connectionProxies) {
+
+            if (!proxy.isClosed()) {
+                proxy.drain(deadline, report);
+            }
+        }
+
+        connectionProxies.clear();
+
+        // nothing scheduled matters any more, but let running listener notifications finish
+        scheduledExecutorService.shutdownNow();
+        executorService.shutdown();
+
+        // their next attempt was scheduled, or would be rejected
+        for (AsyncConnectionTask pendingConnection : pendingConnections) {
+            pendingConnection.abandon("Connection factory shut down before the connection was established");
+        }
+
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+        }
+
+        try {
+            report.setExecutorsTerminated(executorService.awaitTermination(Math.max(0, deadline
+                    - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!report.isExecutorsTerminated()) {
+            executorService.shutdownNow();
+        }
+
+        if (report.isComplete()) {
+            LOG.info("Graceful shutdown complete: " + report);
+        } else {
+            LOG.warn("Graceful shutdown left work undone: " + report);
+        }
+
+        return report;
+    }
+
     /**
      * Creates an {@link HaConnectionProxy} around a raw {@link Connection}.
      */
-    protected ConnectionSet createConnectionProxy(final Address[] addrs,
-            final Connection targetConnection) {
+    protected ConnectionSet createConnectionProxy(final Address[] addrs, final Connection targetConnection,
+            final RetryStrategy retryStrategy) {
 
         ClassLoader classLoader = Connection.class.getClassLoader();
         Class<?>[] interfaces = { Connection.class };
 
         HaConnectionProxy proxy = new HaConnectionProxy(addrs, targetConnection, retryStrategy);
 
+        proxy.setNotificationExecutor(new SerialExecutor(executorService));
+        proxy.setTxCommitBatchSize(txCommitBatchSize);
+        proxy.setFlowControl(flowControlPolicy, flowControlWaitMillis, maxBufferedPublishes);
+
+        if (adaptivePrefetchEnabled) {
+            proxy.setAdaptivePrefetch(adaptivePrefetchMin, adaptivePrefetchMax);
+        }
+
+        proxy.setDeliveryDispatch(deliveryLanes, maxDeliveriesInFlight, deliveryKeyExtractor, executorService);
+        proxy.setVirtualThreadExecutor(virtualThreadExecutor);
+        proxy.setScheduler(scheduledExecutorService);
+        proxy.setRetainedPublishArena(retainedPublishArena);
+        proxy.setDecoratorChain(decoratorChain);
+
+        if (declarationCacheEnabled) {
+            proxy.setDeclarationCache(new DeclarationCache());
+        }
+
         if (LOG.isDebugEnabled()) {
             LOG
                     .debug("Creating connection proxy: "
@@ -335,19 +1097,137 @@ public class HaConnectionFactory extends ConnectionFactory {
         Connection target = (Connection) Proxy.newProxyInstance(classLoader, interfaces, proxy);
         HaShutdownListener listener = new HaShutdownListener(proxy);
 
+        trackConnectionProxy(proxy);
+
         // failed initial connections will have this set later upon successful connection
         if (targetConnection != null) {
             target.addShutdownListener(listener);
         }
 
+        if (healthProbeIntervalMillis > 0) {
+            startHealthProbe(proxy, listener);
+        }
+
         return new ConnectionSet(target, proxy, listener);
     }
 
-    private Connection newTargetConnection(final Address[] addrs) throws IOException {
+    /**
+     * Opens a plain connection to the first reachable of the given addresses, for the HA proxy to wrap. Every initial
+     * connection, reconnection and standby connection goes through here, so tests can override it to connect to a
+     * stand-in broker.
+     */
+    protected Connection newTargetConnection(final Address[] addrs) throws IOException {
         return super.newConnection(addrs);
     }
 
+    private void checkNotShutdown() {
+
+        if (shutdown) {
+            throw new IllegalStateException("Connection factory has been shut down");
+        }
+    }
+
+    private static String getAddressesAsString(final Address[] addresses) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+
+        for (int i = 0; i < addresses.length; i++) {
+
+            if (i > 0) {
+                sb.append(',');
+            }
+
+            sb.append(addresses[i].toString());
+        }
+
+        sb.append(']');
+        return sb.toString();
+    }
+
+    /**
+     * @return the addresses of the proxy other than the one its current connection is to
+     */
+    private Address[] getStandbyAddresses(final HaConnectionProxy proxy) {
+
+        Connection active = proxy.getTargetConnection();
+        List<Address> standbyAddrs = new ArrayList<Address>();
+
+        for (Address address : proxy.getAddresses()) {
+
+            if (active == null || !isConnectedTo(active, address)) {
+                standbyAddrs.add(address);
+            }
+        }
+
+        return standbyAddrs.toArray(new Address[standbyAddrs.size()]);
+    }
+
+    private boolean isConnectedTo(final Connection connection, final Address address) {
+
+        int port = address.getPort() == USE_DEFAULT_PORT ? (isSSL() ? DEFAULT_AMQP_OVER_SSL_PORT : DEFAULT_AMQP_PORT)
+                : address.getPort();
+
+        if (connection.getPort() != port) {
+            return false;
+        }
+
+        try {
+            return InetAddress.getByName(address.getHost()).equals(connection.getAddress());
+
+        } catch (UnknownHostException uhe) {
+            return false;
+        }
+    }
+
+    ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    private void scheduleStandby(final HaConnectionProxy proxy, final long delayMillis) {
+
+        if (proxy.isClosed() || shutdown) {
+            return;
+        }
+
+        scheduledExecutorService.schedule(new Runnable() {
+
+            public void run() {
+                executorService.execute(new StandbyTask(proxy));
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void startHealthProbe(final HaConnectionProxy proxy, final HaShutdownListener listener) {
+
+        final ConnectionHealthProbe probe = new ConnectionHealthProbe(proxy, executorService, listener,
+                healthProbeTimeoutMillis, healthProbeMaxMisses);
+
+        // probes block while waiting for the broker, keep that off the shared scheduler thread
+        ScheduledFuture<?> schedule = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                executorService.execute(probe);
+            }
+        }, healthProbeIntervalMillis, healthProbeIntervalMillis, TimeUnit.MILLISECONDS);
+
+        proxy.setHealthProbe(probe, schedule);
+    }
+
     private void setDefaultRetryStrategy() {
         retryStrategy = new BlockingRetryStrategy();
     }
+
+    private void trackConnectionProxy(final HaConnectionProxy proxy) {
+
+        // forget connections the application has already closed
+        for (HaConnectionProxy trackedProxy : connectionProxies) {
+
+            if (trackedProxy.isClosed()) {
+                connectionProxies.remove(trackedProxy);
+            }
+        }
+
+        connectionProxies.add(proxy);
+    }
 }
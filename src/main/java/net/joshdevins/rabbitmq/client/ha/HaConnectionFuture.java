@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Connection;
+
+/**
+ * The result of {@link HaConnectionFactory#newConnectionAsync(com.rabbitmq.client.Address[])}. Completes when the
+ * first connection to the broker has been established. The HA connection itself is available straight away from
+ * {@link #getConnection()}, so channels can be created and handed out before the broker is reachable.
+ * 
+ * <p>
+ * Cancelling the future, or closing the connection before it is established, stops any further connection attempts.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class HaConnectionFuture implements Future<Connection> {
+
+    private enum State {
+        PENDING, CONNECTED, FAILED, CANCELLED
+    }
+
+    private final Connection connection;
+
+    private final CountDownLatch doneLatch;
+
+    private State state;
+
+    private IOException failure;
+
+    protected HaConnectionFuture(final Connection connection) {
+
+        Validate.notNull(connection, "connection is required");
+
+        this.connection = connection;
+        doneLatch = new CountDownLatch(1);
+        state = State.PENDING;
+    }
+
+    /**
+     * Cancels any further connection attempts and closes the connection. Channels waiting for the connection will
+     * wait until their {@link net.joshdevins.rabbitmq.client.ha.retry.RetryStrategy} gives up.
+     */
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+
+        if (!complete(State.CANCELLED, null)) {
+            return false;
+        }
+
+        connection.abort();
+        return true;
+    }
+
+    public Connection get() throws InterruptedException, ExecutionException {
+
+        doneLatch.await();
+        return report();
+    }
+
+    public Connection get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+
+        if (!doneLatch.await(timeout, unit)) {
+            throw new TimeoutException("Connection not established within " + unit.toMillis(timeout) + "ms");
+        }
+
+        return report();
+    }
+
+    /**
+     * @return the HA connection, usable before it has been established
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public synchronized boolean isCancelled() {
+        return state == State.CANCELLED;
+    }
+
+    public boolean isDone() {
+        return doneLatch.getCount() == 0;
+    }
+
+    /**
+     * Marks the connection as established.
+     * 
+     * @return false if the future had already completed, for example by being cancelled
+     */
+    protected boolean connected() {
+        return complete(State.CONNECTED, null);
+    }
+
+    /**
+     * Marks the connection as never to be established.
+     */
+    protected boolean failed(final IOException failure) {
+        return complete(State.FAILED, failure);
+    }
+
+    private synchronized boolean complete(final State newState, final IOException newFailure) {
+
+        if (state != State.PENDING) {
+            return false;
+        }
+
+        state = newState;
+        failure = newFailure;
+        doneLatch.countDown();
+
+        return true;
+    }
+
+    private synchronized Connection report() throws ExecutionException {
+
+        switch (state) {
+        case CANCELLED:
+            throw new CancellationException("Connection attempts were cancelled");
+
+        case FAILED:
+            throw new ExecutionException(failure);
+
+        default:
+            return connection;
+        }
+    }
+}
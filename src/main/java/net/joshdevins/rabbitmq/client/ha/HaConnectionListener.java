@@ -16,18 +16,26 @@
 
 package net.joshdevins.rabbitmq.client.ha;
 
+import net.joshdevins.rabbitmq.client.ha.topology.TopologyRecoveryResult;
+
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * A listener interface for events on {@link Channel}s and {@link Connection}s.
- * Notifications and calls to implementations are done so in a synchronous
+ * By default, notifications and calls to implementations are done so in a synchronous
  * manner. This guarntees that listeners will be called before any operations
  * are allowed to take place. This is essential to allow for channel
  * initialization like queue creation before messages are sent. As such, please
  * don't be stupid in your implementations and keep this fact in mind!
  * 
+ * <p>
+ * Listeners that don't need this guarantee can be registered as asynchronous with
+ * {@link HaConnectionFactory#addAsyncHaConnectionListener(HaConnectionListener)}, in which case they are notified
+ * in order on a per-connection executor and cannot hold up recovery.
+ * </p>
+ * 
  * @author Josh Devins
  */
 public interface HaConnectionListener {
@@ -41,4 +49,11 @@ public interface HaConnectionListener {
     void onReconnectFailure(final HaConnectionProxy connectionProxy, final Exception exception);
 
     void onReconnection(final HaConnectionProxy connectionProxy);
+
+    /**
+     * Called after recorded topology has been replayed on a new connection, before
+     * {@link #onReconnection(HaConnectionProxy)}. Only called when topology recovery is enabled on the
+     * {@link HaConnectionFactory}.
+     */
+    void onTopologyRecovery(final HaConnectionProxy connectionProxy, final TopologyRecoveryResult result);
 }
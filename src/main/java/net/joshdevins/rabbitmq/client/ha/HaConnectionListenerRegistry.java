@@ -0,0 +1,213 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.joshdevins.rabbitmq.client.ha.topology.TopologyRecoveryResult;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * A copy-on-write registry of {@link HaConnectionListener}s. Registration is rare and notification is frequent, so
+ * notification never takes a lock.
+ * 
+ * <p>
+ * Each listener is either synchronous or asynchronous. Synchronous listeners are called on the reconnection thread
+ * before any operations are allowed through, which is what setup work like queue creation needs. Asynchronous
+ * listeners are called on the connection's ordered notification executor instead, so a slow listener (metrics,
+ * alerting) cannot delay recovery, while still seeing the events of a connection in the order they happened.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class HaConnectionListenerRegistry {
+
+    /**
+     * A single event to deliver to a listener.
+     */
+    private interface Notification {
+
+        void deliverTo(HaConnectionListener listener);
+    }
+
+    private static class Registration {
+
+        private final HaConnectionListener listener;
+
+        private final boolean async;
+
+        private Registration(final HaConnectionListener listener, final boolean async) {
+
+            this.listener = listener;
+            this.async = async;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(HaConnectionListenerRegistry.class);
+
+    private final CopyOnWriteArrayList<Registration> registrations;
+
+    public HaConnectionListenerRegistry() {
+        registrations = new CopyOnWriteArrayList<Registration>();
+    }
+
+    /**
+     * Adds a listener that will be notified asynchronously on the connection's ordered notification executor.
+     */
+    public void addAsync(final HaConnectionListener listener) {
+        add(listener, true);
+    }
+
+    /**
+     * Adds a listener that will be notified synchronously on the reconnection thread.
+     */
+    public void addSync(final HaConnectionListener listener) {
+        add(listener, false);
+    }
+
+    public void fireConnectFailure(final HaConnectionProxy connectionProxy, final Exception exception) {
+
+        fire(connectionProxy, new Notification() {
+
+            public void deliverTo(final HaConnectionListener listener) {
+                listener.onConnectFailure(connectionProxy, exception);
+            }
+        });
+    }
+
+    public void fireConnection(final HaConnectionProxy connectionProxy) {
+
+        fire(connectionProxy, new Notification() {
+
+            public void deliverTo(final HaConnectionListener listener) {
+                listener.onConnection(connectionProxy);
+            }
+        });
+    }
+
+    public void fireDisconnect(final HaConnectionProxy connectionProxy,
+            final ShutdownSignalException shutdownSignalException) {
+
+        fire(connectionProxy, new Notification() {
+
+            public void deliverTo(final HaConnectionListener listener) {
+                listener.onDisconnect(connectionProxy, shutdownSignalException);
+            }
+        });
+    }
+
+    public void fireReconnectFailure(final HaConnectionProxy connectionProxy, final Exception exception) {
+
+        fire(connectionProxy, new Notification() {
+
+            public void deliverTo(final HaConnectionListener listener) {
+                listener.onReconnectFailure(connectionProxy, exception);
+            }
+        });
+    }
+
+    public void fireReconnection(final HaConnectionProxy connectionProxy) {
+
+        fire(connectionProxy, new Notification() {
+
+            public void deliverTo(final HaConnectionListener listener) {
+                listener.onReconnection(connectionProxy);
+            }
+        });
+    }
+
+    public void fireTopologyRecovery(final HaConnectionProxy connectionProxy, final TopologyRecoveryResult result) {
+
+        fire(connectionProxy, new Notification() {
+
+            public void deliverTo(final HaConnectionListener listener) {
+                listener.onTopologyRecovery(connectionProxy, result);
+            }
+        });
+    }
+
+    public synchronized boolean remove(final HaConnectionListener listener) {
+
+        for (Registration registration : registrations) {
+
+            if (registration.listener.equals(listener)) {
+                return registrations.remove(registration);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces all listeners of the given kind with those provided.
+     */
+    public synchronized void replaceAll(final Collection<HaConnectionListener> listeners, final boolean async) {
+
+        for (Registration registration : registrations) {
+
+            if (registration.async == async) {
+                registrations.remove(registration);
+            }
+        }
+
+        for (HaConnectionListener listener : listeners) {
+            add(listener, async);
+        }
+    }
+
+    public int size() {
+        return registrations.size();
+    }
+
+    private synchronized void add(final HaConnectionListener listener, final boolean async) {
+
+        Validate.notNull(listener, "listener is required");
+
+        // re-registering a listener changes how it is notified
+        remove(listener);
+        registrations.add(new Registration(listener, async));
+    }
+
+    private void fire(final HaConnectionProxy connectionProxy, final Notification notification) {
+
+        for (final Registration registration : registrations) {
+
+            if (!registration.async) {
+                notification.deliverTo(registration.listener);
+                continue;
+            }
+
+            connectionProxy.getNotificationExecutor().execute(new Runnable() {
+
+                public void run() {
+
+                    try {
+                        notification.deliverTo(registration.listener);
+
+                    } catch (RuntimeException re) {
+                        LOG.warn("Asynchronous connection listener failed: listener=" + registration.listener, re);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -21,20 +21,42 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.HashSet;
-import java.util.Set;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.joshdevins.rabbitmq.client.ha.buffer.SlabArena;
+import net.joshdevins.rabbitmq.client.ha.decorator.DecoratorChain;
+import net.joshdevins.rabbitmq.client.ha.dispatch.DeliveryDispatcher;
+import net.joshdevins.rabbitmq.client.ha.dispatch.DeliveryKeyExtractor;
+import net.joshdevins.rabbitmq.client.ha.dispatch.LaneDispatcher;
+import net.joshdevins.rabbitmq.client.ha.dispatch.VirtualThreadDispatcher;
 import net.joshdevins.rabbitmq.client.ha.retry.RetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.topology.DeclarationCache;
+import net.joshdevins.rabbitmq.client.ha.topology.TopologyRecorder;
 
 import org.apache.log4j.Logger;
 
 import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AlreadyClosedException;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 
 /**
  * A proxy around the standard {@link Connection}.
  * 
+ * <p>
+ * The proxy may be created before its first connection is established (see
+ * {@link HaConnectionFactory#newConnectionAsync(Address[])}). Until then it reports itself as not open, channels can
+ * already be created and are given a channel number once connected, and operations on those channels wait for the
+ * connection as they would for a reconnection. Any other method fails with an {@link AlreadyClosedException}.
+ * </p>
+ * 
  * TODO: Catch close method on Connection and Channel to do cleanup.
  * 
  * @author Josh Devins
@@ -47,14 +69,66 @@ public class HaConnectionProxy implements InvocationHandler {
 
     private static Method CREATE_CHANNEL_INT_METHOD;
 
+    private static final String CLOSE_METHOD_NAME = "close";
+
+    private static final String ABORT_METHOD_NAME = "abort";
+
+    private static final String IS_OPEN_METHOD_NAME = "isOpen";
+
     private final Address[] addrs;
 
-    private Connection target;
+    private volatile Connection target;
 
-    private final Set<HaChannelProxy> channelProxies;
+    private final HaChannelRegistry channelProxies;
 
     private final RetryStrategy retryStrategy;
 
+    private final TopologyRecorder topologyRecorder;
+
+    private final AtomicLong epoch;
+
+    private DeclarationCache declarationCache;
+
+    private Executor notificationExecutor;
+
+    private ConnectionHealthProbe healthProbe;
+
+    private volatile ScheduledFuture<?> healthProbeSchedule;
+
+    private final AtomicReference<Connection> standbyConnection;
+
+    private volatile boolean closed;
+
+    private volatile boolean draining;
+
+    private int txCommitBatchSize = 1;
+
+    private int adaptivePrefetchMin;
+
+    private int adaptivePrefetchMax;
+
+    private int deliveryLanes;
+
+    private int maxDeliveriesInFlight;
+
+    private DeliveryKeyExtractor deliveryKeyExtractor;
+
+    private Executor deliveryExecutor;
+
+    private ExecutorService virtualThreadExecutor;
+
+    private ScheduledExecutorService scheduler;
+
+    private SlabArena retainedPublishArena;
+
+    private DecoratorChain decoratorChain;
+
+    private FlowControlPolicy flowControlPolicy = FlowControlPolicy.WAIT;
+
+    private long flowControlWaitMillis;
+
+    private int maxBufferedPublishes = HaConnectionFactory.DEFAULT_MAX_BUFFERED_PUBLISHES;
+
     public HaConnectionProxy(final Address[] addrs, final Connection target,
             final RetryStrategy retryStrategy) {
 
@@ -66,7 +140,10 @@ public class HaConnectionProxy implements InvocationHandler {
         this.addrs = addrs;
         this.retryStrategy = retryStrategy;
 
-        channelProxies = new HashSet<HaChannelProxy>();
+        channelProxies = new HaChannelRegistry();
+        topologyRecorder = new TopologyRecorder();
+        epoch = new AtomicLong();
+        standbyConnection = new AtomicReference<Connection>();
     }
 
     public void closeConnectionLatch() {
@@ -75,44 +152,263 @@ public class HaConnectionProxy implements InvocationHandler {
         }
     }
 
+    /**
+     * Creates a channel that routes each calling thread to an HA channel of its own, so that threads publishing at the
+     * same time do not queue up behind each other.
+     * 
+     * @param maxChannels
+     *        the most channels to open, after which threads share them
+     * @see ThreadAffineChannelProxy
+     */
+    public Channel createThreadAffineChannel(final int maxChannels) {
+
+        Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, this);
+
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                new ThreadAffineChannelProxy(connection, maxChannels));
+    }
+
     public Address[] getAddresses() {
         return addrs;
     }
 
+    /**
+     * @return the upper bound of adaptive prefetch counts, or 0 if adaptive prefetch is disabled
+     */
+    public int getAdaptivePrefetchMax() {
+        return adaptivePrefetchMax;
+    }
+
+    public int getAdaptivePrefetchMin() {
+        return adaptivePrefetchMin;
+    }
+
+    /**
+     * @return the number of live consumers on all channels of this connection
+     */
+    public int getConsumerCount() {
+
+        int consumers = 0;
+        for (HaChannelProxy proxy : channelProxies) {
+            consumers += proxy.getConsumerCount();
+        }
+
+        return consumers;
+    }
+
+    /**
+     * @return the shared executor for background work on channels, such as re-registering consumers after a
+     *         reconnection, or null if there is none
+     */
+    public Executor getConsumerExecutor() {
+        return virtualThreadExecutor != null ? virtualThreadExecutor : deliveryExecutor;
+    }
+
+    /**
+     * @return the decorators applied to messages published and delivered on this connection, or null if there are
+     *         none
+     */
+    public DecoratorChain getDecoratorChain() {
+        return decoratorChain;
+    }
+
+    /**
+     * @return the cache of declarations made on this connection, or null if caching is disabled
+     */
+    public DeclarationCache getDeclarationCache() {
+        return declarationCache;
+    }
+
+    /**
+     * The connection epoch is incremented every time the underlying {@link Connection} is replaced. Anything that is
+     * only valid for the lifetime of a single underlying connection can be tied to an epoch.
+     */
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    public FlowControlPolicy getFlowControlPolicy() {
+        return flowControlPolicy;
+    }
+
+    /**
+     * @return how long publishes wait for broker flow control to permit publishing, or 0 to wait indefinitely
+     */
+    public long getFlowControlWaitMillis() {
+        return flowControlWaitMillis;
+    }
+
+    /**
+     * @return the active health probe of this connection, or null if probing is disabled
+     */
+    public ConnectionHealthProbe getHealthProbe() {
+        return healthProbe;
+    }
+
+    /**
+     * @return how many publishes a channel buffers while broker flow control has publishing paused
+     */
+    public int getMaxBufferedPublishes() {
+        return maxBufferedPublishes;
+    }
+
+    /**
+     * @return the executor on which asynchronous {@link HaConnectionListener}s are notified, in order, of events on
+     *         this connection
+     */
+    public Executor getNotificationExecutor() {
+        return notificationExecutor;
+    }
+
+    /**
+     * @return the arena that channels keep the bodies of transactional publishes in, or null if they are copied onto
+     *         the heap
+     */
+    public SlabArena getRetainedPublishArena() {
+        return retainedPublishArena;
+    }
+
+    /**
+     * @return the pre-opened hot standby connection, or null if there is none
+     */
+    public Connection getStandbyConnection() {
+        return standbyConnection.get();
+    }
+
+    /**
+     * @return the executor running consumer work on virtual threads, or null if virtual threads are not used
+     */
+    public ExecutorService getVirtualThreadExecutor() {
+        return virtualThreadExecutor;
+    }
+
     public Connection getTargetConnection() {
         return target;
     }
 
+    /**
+     * @return the number of transactional publishes to batch up before a commit is sent to the broker
+     */
+    public int getTxCommitBatchSize() {
+        return txCommitBatchSize;
+    }
+
+    /**
+     * @return the exchanges, queues and bindings declared through channels of this connection
+     */
+    public TopologyRecorder getTopologyRecorder() {
+        return topologyRecorder;
+    }
+
     public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
 
         // intercept calls to create a channel
         if (method.equals(CREATE_CHANNEL_METHOD) || method.equals(CREATE_CHANNEL_INT_METHOD)) {
 
+            if (draining) {
+                throw new AlreadyClosedException("Connection is shutting down", proxy);
+            }
+
             return createChannelAndWrapWithProxy(method, args);
         }
 
+        // the application is done with this connection, so is any standby
+        boolean closing = method.getName().equals(CLOSE_METHOD_NAME) || method.getName().equals(ABORT_METHOD_NAME);
+        if (closing) {
+            closed = true;
+            stopHealthProbe();
+            closeStandbyConnection();
+        }
+
+        // not connected yet, so there is nothing to delegate to
+        Connection target = this.target;
+        if (target == null) {
+
+            if (closing) {
+                return null;
+            }
+
+            if (method.getName().equals(IS_OPEN_METHOD_NAME)) {
+                return false;
+            }
+
+            throw new AlreadyClosedException("Connection not yet established", proxy);
+        }
+
         // delegate all other method invocations
-        return InvocationHandlerUtils.delegateMethodInvocation(method, args, target);
+        try {
+            return InvocationHandlerUtils.delegateMethodInvocation(method, args, target);
+
+        } finally {
+
+            // let operations waiting for a reconnection find out that there won't be one
+            if (closing) {
+                markAsOpen();
+            }
+        }
     }
 
-    public void markAsOpen() {
+    /**
+     * @return true if this connection is being shut down gracefully and is no longer accepting new work
+     */
+    public boolean isDraining() {
+        return draining;
+    }
 
-        synchronized (channelProxies) {
+    /**
+     * @return true if the application has closed or aborted this connection
+     */
+    public boolean isClosed() {
+        return closed;
+    }
 
-            for (HaChannelProxy proxy : channelProxies) {
-                proxy.markAsOpen();
-            }
+    public void markAsOpen() {
+        for (HaChannelProxy proxy : channelProxies) {
+            proxy.markAsOpen();
         }
     }
 
     protected Channel createChannelAndWrapWithProxy(final Method method, final Object[] args)
             throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
 
-        Channel targetChannel = (Channel) method.invoke(target, args);
-
         ClassLoader classLoader = Connection.class.getClassLoader();
         Class<?>[] interfaces = { Channel.class };
 
+        // not connected yet, leave the channel to be created by the first connection
+        if (target == null) {
+
+            HaChannelProxy proxy = new HaChannelProxy(this, null, retryStrategy);
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Creating channel proxy before connection is established");
+            }
+
+            channelProxies.add(proxy);
+
+            // the first connection may have replaced channels without seeing this proxy, then it is connected here
+            Connection connection = target;
+            if (connection != null) {
+
+                try {
+                    if (connectChannelProxy(proxy, connection)) {
+                        proxy.markAsOpen();
+                    }
+
+                } catch (IOException ioe) {
+
+                    // left for the next connection to replace
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Failed to create channel on new connection: " + ioe.getMessage());
+                    }
+                }
+            }
+
+            return (Channel) Proxy.newProxyInstance(classLoader, interfaces, proxy);
+        }
+
+        Channel targetChannel = (Channel) method.invoke(target, args);
+
         // create the proxy and add to the set of channels we have created
         HaChannelProxy proxy = new HaChannelProxy(this, targetChannel, retryStrategy);
 
@@ -121,36 +417,314 @@ public class HaConnectionProxy implements InvocationHandler {
         }
 
         // save the channel number-to-proxy relationship to be replaced later
-        synchronized (channelProxies) {
-            channelProxies.add(proxy);
-        }
+        channelProxies.add(proxy);
 
         return (Channel) Proxy.newProxyInstance(classLoader, interfaces, proxy);
     }
 
-    protected void removeClosedChannel(final HaChannelProxy channelProxy) {
-        synchronized (channelProxies) {
-            channelProxies.remove(channelProxy);
+    /**
+     * Stops accepting new channels, publishes and consumers, drains all channels and closes the connection, all
+     * within the deadline. Anything left undone is recorded in the report.
+     * 
+     * @see HaChannelProxy#drain(long, ShutdownReport)
+     */
+    protected void drain(final long deadline, final ShutdownReport report) {
+
+        stopAcceptingWork();
+
+        for (HaChannelProxy proxy : channelProxies) {
+            proxy.drain(deadline, report);
+        }
+
+        closed = true;
+        closeStandbyConnection();
+
+        Connection target = this.target;
+        if (target != null && target.isOpen()) {
+
+            try {
+                target.close((int) Math.max(1, deadline - System.currentTimeMillis()));
+                report.connectionClosed(true);
+
+            } catch (Exception e) {
+                LOG.warn("Failed to close connection during shutdown: connection=" + target + ", message="
+                        + e.getMessage());
+                report.connectionClosed(false);
+            }
         }
+
+        markAsOpen();
     }
 
+    /**
+     * Offers a newly opened standby connection. It is only accepted if there is no standby already and this connection
+     * has not been closed.
+     * 
+     * @return true if the standby was accepted
+     */
+    protected boolean offerStandbyConnection(final Connection standby) {
+        return !closed && standbyConnection.compareAndSet(null, standby);
+    }
+
+    protected void removeClosedChannel(final HaChannelProxy channelProxy) {
+        channelProxies.remove(channelProxy);
+    }
+
+    /**
+     * Removes the standby connection, if it is the given one.
+     */
+    protected boolean removeStandbyConnection(final Connection standby) {
+        return standbyConnection.compareAndSet(standby, null);
+    }
+
+    /**
+     * Replaces the channels of all proxies with ones on the current connection. Proxies are replaced in a snapshot
+     * taken up front, so that channels created while this runs are left alone, and proxies are moved to their new
+     * channel numbers as they go. A proxy created before the first connection that the snapshot misses gives itself
+     * a channel instead, so no lock is needed.
+     */
     protected void replaceChannelsInProxies() throws IOException {
 
-        synchronized (channelProxies) {
+        List<HaChannelProxy> proxies = new ArrayList<HaChannelProxy>();
+        for (HaChannelProxy proxy : channelProxies) {
+            proxies.add(proxy);
+        }
+
+        for (HaChannelProxy proxy : proxies) {
+
+            Channel targetChannel = proxy.getTargetChannel();
+
+            // created before the first connection was established, any number will do
+            if (targetChannel == null) {
+                connectChannelProxy(proxy, target);
+                continue;
+            }
+
+            // already created on the current connection while it was being set up
+            if (targetChannel.getConnection() == target && targetChannel.isOpen()) {
+                continue;
+            }
+
+            // replace dead channel with a new one using the same ID, or any ID if a new channel has taken it
+            int channelNumber = targetChannel.getChannelNumber();
+            Channel replacement = target.createChannel(channelNumber);
+            if (replacement == null) {
+                replacement = target.createChannel();
+            }
+
+            proxy.setTargetChannel(replacement);
+            channelProxies.reindex(proxy, channelNumber);
+        }
+    }
+
+    /**
+     * @param channel
+     *        the HA channel the consumer was registered on, to acknowledge batches with
+     * @return the accumulator for the deliveries of a new {@link BatchConsumer} on the given channel
+     */
+    protected BatchAccumulator newBatchAccumulator(final BatchConsumer consumer, final HaChannelProxy channelProxy,
+            final Channel channel, final boolean autoAck) {
+
+        // batches are handled one at a time, in order
+        Executor executor = new SerialExecutor(virtualThreadExecutor != null ? virtualThreadExecutor
+                : deliveryExecutor);
 
-            for (HaChannelProxy proxy : channelProxies) {
+        return new BatchAccumulator(consumer, channelProxy, channel, autoAck, scheduler, executor);
+    }
+
+    /**
+     * @return a dispatcher for the deliveries of a new consumer on the given channel, or null if deliveries are
+     *         handled on the connection's delivery thread
+     */
+    protected DeliveryDispatcher newDeliveryDispatcher(final HaChannelProxy channelProxy) {
 
-                // replace dead channel with a new one using the same ID
-                int channelNumber = proxy.getTargetChannel().getChannelNumber();
-                proxy.setTargetChannel(target.createChannel(channelNumber));
+        if (virtualThreadExecutor != null) {
+
+            if (deliveryLanes > 0) {
+                return new LaneDispatcher(virtualThreadExecutor, deliveryLanes, maxDeliveriesInFlight,
+                        deliveryKeyExtractor);
             }
+
+            return new VirtualThreadDispatcher(virtualThreadExecutor, channelProxy, maxDeliveriesInFlight);
         }
+
+        if (deliveryLanes == 0) {
+            return null;
+        }
+
+        return new LaneDispatcher(deliveryExecutor, deliveryLanes, maxDeliveriesInFlight, deliveryKeyExtractor);
+    }
+
+    /**
+     * Restores the prefetch counts and open transactions of all channels after they have been replaced.
+     * 
+     * @see HaChannelProxy#restoreChannelState()
+     */
+    protected void restoreChannelState() throws IOException {
+
+        for (HaChannelProxy proxy : channelProxies) {
+            proxy.restoreChannelState();
+        }
+    }
+
+    /**
+     * Enables adaptive prefetch for channels created from now on.
+     * 
+     * @see AdaptivePrefetchController
+     */
+    protected void setAdaptivePrefetch(final int adaptivePrefetchMin, final int adaptivePrefetchMax) {
+
+        this.adaptivePrefetchMin = adaptivePrefetchMin;
+        this.adaptivePrefetchMax = adaptivePrefetchMax;
+    }
+
+    protected void setDeclarationCache(final DeclarationCache declarationCache) {
+        this.declarationCache = declarationCache;
+    }
+
+    protected void setDecoratorChain(final DecoratorChain decoratorChain) {
+        this.decoratorChain = decoratorChain;
+    }
+
+    /**
+     * Enables parallel dispatch of deliveries for consumers created from now on.
+     * 
+     * @see LaneDispatcher
+     */
+    protected void setDeliveryDispatch(final int deliveryLanes, final int maxDeliveriesInFlight,
+            final DeliveryKeyExtractor deliveryKeyExtractor, final Executor deliveryExecutor) {
+
+        this.deliveryLanes = deliveryLanes;
+        this.maxDeliveriesInFlight = maxDeliveriesInFlight;
+        this.deliveryKeyExtractor = deliveryKeyExtractor;
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * Sets how publishes behave under broker flow control, for channels created from now on.
+     * 
+     * @see FlowController
+     */
+    protected void setFlowControl(final FlowControlPolicy flowControlPolicy, final long flowControlWaitMillis,
+            final int maxBufferedPublishes) {
+
+        this.flowControlPolicy = flowControlPolicy;
+        this.flowControlWaitMillis = flowControlWaitMillis;
+        this.maxBufferedPublishes = maxBufferedPublishes;
+    }
+
+    /**
+     * @param healthProbeSchedule
+     *        the scheduled runs of the probe, cancelled once the connection is closed, aborted or drained
+     */
+    protected void setHealthProbe(final ConnectionHealthProbe healthProbe,
+            final ScheduledFuture<?> healthProbeSchedule) {
+
+        this.healthProbe = healthProbe;
+        this.healthProbeSchedule = healthProbeSchedule;
+
+        // closed while the probe was being scheduled
+        if (closed || draining) {
+            stopHealthProbe();
+        }
+    }
+
+    protected void setNotificationExecutor(final Executor notificationExecutor) {
+        this.notificationExecutor = notificationExecutor;
+    }
+
+    protected void setRetainedPublishArena(final SlabArena retainedPublishArena) {
+        this.retainedPublishArena = retainedPublishArena;
+    }
+
+    /**
+     * Sets the scheduler used to flush the batches of {@link BatchConsumer}s after their linger time.
+     */
+    protected void setScheduler(final ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
     }
 
     protected void setTargetConnection(final Connection target) {
 
         assert target != null;
         this.target = target;
+
+        epoch.incrementAndGet();
+    }
+
+    protected void setTxCommitBatchSize(final int txCommitBatchSize) {
+        this.txCommitBatchSize = txCommitBatchSize;
+    }
+
+    /**
+     * Runs deliveries and consumer re-registration on virtual threads, for consumers created from now on.
+     * 
+     * @see VirtualThreadDispatcher
+     */
+    protected void setVirtualThreadExecutor(final ExecutorService virtualThreadExecutor) {
+        this.virtualThreadExecutor = virtualThreadExecutor;
+    }
+
+    /**
+     * Turns away new channels, publishes and consumers, without waiting for anything under way.
+     * 
+     * @see #drain(long, ShutdownReport)
+     */
+    protected void stopAcceptingWork() {
+
+        draining = true;
+        stopHealthProbe();
+    }
+
+    /**
+     * Takes ownership of the standby connection, leaving none behind.
+     * 
+     * @return the standby connection, or null if there was none
+     */
+    protected Connection takeStandbyConnection() {
+        return standbyConnection.getAndSet(null);
+    }
+
+    private void closeStandbyConnection() {
+
+        Connection standby = takeStandbyConnection();
+        if (standby == null) {
+            return;
+        }
+
+        try {
+            standby.close();
+        } catch (Exception e) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to close standby connection, not a problem: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gives a proxy created before the first connection was established a channel on the given connection.
+     * 
+     * @return true if the channel was created by this call, rather than by another thread
+     */
+    private boolean connectChannelProxy(final HaChannelProxy proxy, final Connection connection) throws IOException {
+
+        if (!proxy.connect(connection)) {
+            return false;
+        }
+
+        channelProxies.reindex(proxy, -1);
+        return true;
+    }
+
+    private void stopHealthProbe() {
+
+        ScheduledFuture<?> schedule = healthProbeSchedule;
+        if (schedule != null) {
+
+            schedule.cancel(false);
+            healthProbeSchedule = null;
+        }
     }
 
     static {
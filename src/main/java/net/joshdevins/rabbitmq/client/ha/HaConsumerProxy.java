@@ -18,12 +18,16 @@ package net.joshdevins.rabbitmq.client.ha;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executor;
+
+import net.joshdevins.rabbitmq.client.ha.decorator.DecoratorChain;
+import net.joshdevins.rabbitmq.client.ha.decorator.Payload;
+import net.joshdevins.rabbitmq.client.ha.dispatch.DeliveryDispatcher;
 
 import org.apache.log4j.Logger;
 
+import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
@@ -32,16 +36,42 @@ import com.rabbitmq.client.AMQP.BasicProperties;
 /**
  * A proxy around the standard {@link Consumer}.
  * 
+ * <p>
+ * With parallel dispatch enabled, deliveries are handed to a {@link DeliveryDispatcher} rather than handled on the
+ * connection's delivery thread. Deliveries that were received on a channel that has since been replaced are dropped
+ * before they are handled, since their delivery tags cannot be acked on the new channel and the broker redelivers
+ * them anyway. Acking with {@code multiple} set is not safe with parallel dispatch, since earlier deliveries may still
+ * be being handled on other lanes.
+ * </p>
+ * 
+ * <p>
+ * A {@link BatchConsumer} target has its deliveries collected by a {@link BatchAccumulator} instead, which also takes
+ * care of acknowledging them.
+ * </p>
+ * 
+ * <p>
+ * Deliveries are decoded by the connection's {@link net.joshdevins.rabbitmq.client.ha.decorator.MessageDecorator}s
+ * before anything else is done with them.
+ * </p>
+ * 
  * @author Josh Devins
  */
 public class HaConsumerProxy implements Consumer {
 
-    private class ConsumeRunner implements Callable<Object> {
+    private class ConsumeRunner implements Runnable {
+
+        public void run() {
 
-        public Object call() throws Exception {
+            // cancelled while waiting to be restored
+            if (shutdown) {
+                return;
+            }
 
+            Object event = FlightRecorderEvents.begin(FlightRecorderEvents.EventType.RECONSUME);
+            boolean succeeded = false;
             try {
-                return channelProxy.invoke(channelProxy, basicConsumeMethod, basicConsumeArgs);
+                restoreConsume();
+                succeeded = true;
 
             } catch (Throwable e) {
 
@@ -50,13 +80,29 @@ public class HaConsumerProxy implements Consumer {
                     LOG.debug("Error reinvoking basicConsume", e);
                 }
 
-                return e;
+            } finally {
+
+                if (event != null) {
+                    FlightRecorderEvents.commit(event, basicConsumeArgs[0], consumerTag, succeeded);
+                }
             }
         }
     }
 
     private static final Logger LOG = Logger.getLogger(HaConsumerProxy.class);
 
+    private static final Method BASIC_CONSUME_WITH_TAG_METHOD;
+
+    static {
+        try {
+            BASIC_CONSUME_WITH_TAG_METHOD = Channel.class.getMethod("basicConsume", String.class, boolean.class,
+                    String.class, Consumer.class);
+
+        } catch (NoSuchMethodException nsme) {
+            throw new IllegalStateException("Channel has no basicConsume(queue, autoAck, consumerTag, callback)");
+        }
+    }
+
     private final Consumer target;
 
     private final HaChannelProxy channelProxy;
@@ -65,7 +111,17 @@ public class HaConsumerProxy implements Consumer {
 
     private final Object[] basicConsumeArgs;
 
-    private final ExecutorService executor;
+    private volatile boolean shutdown;
+
+    private volatile boolean cancelled;
+
+    private volatile String consumerTag;
+
+    private volatile int deliveryGeneration;
+
+    private final DeliveryDispatcher dispatcher;
+
+    private final BatchAccumulator batchAccumulator;
 
     public HaConsumerProxy(final Consumer target, final HaChannelProxy channelProxy, final Method basicConsumeMethod,
             final Object[] basicConsumeArgs) {
@@ -80,24 +136,92 @@ public class HaConsumerProxy implements Consumer {
         this.basicConsumeMethod = basicConsumeMethod;
         this.basicConsumeArgs = basicConsumeArgs;
 
-        executor = Executors.newCachedThreadPool();
+        if (target instanceof BatchConsumer) {
+
+            // acknowledge through the HA channel so that acks wait out reconnections like any other operation
+            Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                    new Class<?>[] { Channel.class }, channelProxy);
+
+            // only basicConsume(queue, callback) has no autoAck argument, and it does not auto-ack
+            boolean autoAck = basicConsumeArgs.length > 2 && (Boolean) basicConsumeArgs[1];
+
+            batchAccumulator = channelProxy.getConnectionProxy().newBatchAccumulator((BatchConsumer) target,
+                    channelProxy, channel, autoAck);
+            dispatcher = null;
+
+        } else {
+            batchAccumulator = null;
+            dispatcher = channelProxy.getConnectionProxy().newDeliveryDispatcher(channelProxy);
+        }
     }
 
-	public void handleCancel(final String consumerTag) throws IOException {
-		target.handleCancel(consumerTag);
-	}
+    /**
+     * Cancelled by the broker, for example because its queue was deleted, so there is nothing to restore.
+     */
+    public void handleCancel(final String consumerTag) throws IOException {
+
+        channelProxy.getConsumerRegistry().remove(consumerTag, this);
+        target.handleCancel(consumerTag);
+    }
 
     public void handleCancelOk(final String consumerTag) {
+
+        channelProxy.getConsumerRegistry().remove(consumerTag, this);
         target.handleCancelOk(consumerTag);
     }
 
+    /**
+     * @return the tag the broker last confirmed this consumer with, or null if it has not been confirmed yet
+     */
+    public String getConsumerTag() {
+        return consumerTag;
+    }
+
+    /**
+     * @return the number of deliveries handed to parallel dispatch or batched but not yet handled
+     */
+    public int getDeliveriesInFlight() {
+
+        if (batchAccumulator != null) {
+            return batchAccumulator.getDeliveriesInFlight();
+        }
+
+        return dispatcher == null ? 0 : dispatcher.getDeliveriesInFlight();
+    }
+
     public void handleConsumeOk(final String consumerTag) {
+
+        this.consumerTag = consumerTag;
         target.handleConsumeOk(consumerTag);
     }
 
-    public void handleDelivery(final String consumerTag, final Envelope envelope, final BasicProperties properties,
-            final byte[] body) throws IOException {
-        target.handleDelivery(consumerTag, envelope, properties, body);
+    public void handleDelivery(final String consumerTag, final Envelope targetEnvelope,
+            final BasicProperties properties, final byte[] body) throws IOException {
+
+        // tell deliveries of different channels apart, so that stale acks can be dropped
+        Envelope envelope = targetEnvelope;
+        if (deliveryGeneration != 0) {
+            envelope = new Envelope(HaChannelProxy.toApplicationDeliveryTag(deliveryGeneration, targetEnvelope
+                    .getDeliveryTag()), targetEnvelope.isRedeliver(), targetEnvelope.getExchange(), targetEnvelope
+                    .getRoutingKey());
+        }
+
+        DecoratorChain decoratorChain = channelProxy.getConnectionProxy().getDecoratorChain();
+        if (decoratorChain == null) {
+            dispatch(consumerTag, envelope, properties, body);
+            return;
+        }
+
+        Payload payload = new Payload(properties, body);
+        try {
+            payload = decoratorChain.onDelivery(envelope, payload);
+
+        } catch (IOException ioe) {
+            LOG.warn("Failed to decode delivery, delivering it as received: deliveryTag=" + envelope.getDeliveryTag(),
+                    ioe);
+        }
+
+        dispatch(consumerTag, envelope, payload.getProperties(), payload.getBody());
     }
 
 	public void handleRecoverOk(final String consumerTag) {
@@ -106,6 +230,12 @@ public class HaConsumerProxy implements Consumer {
 
     public void handleShutdownSignal(final String consumerTag, final ShutdownSignalException sig) {
 
+        // shut down for good along with the connection, there is nothing to re-register
+        if (shutdown) {
+            target.handleShutdownSignal(consumerTag, sig);
+            return;
+        }
+
         // this is why we wrapped this
         if (LOG.isDebugEnabled()) {
             LOG.debug("Consumer asked to handle shutdown signal, reregistering consume. " + sig.getMessage());
@@ -115,7 +245,150 @@ public class HaConsumerProxy implements Consumer {
         // make sure to close the connected gate
         channelProxy.closeConnectionLatch();
 
-        // this is it?
-        executor.submit(new ConsumeRunner());
+        // re-registering is rare, so it runs on the connection's shared threads rather than ones of its own
+        Executor executor = channelProxy.getConnectionProxy().getConsumerExecutor();
+        if (executor != null) {
+            executor.execute(new ConsumeRunner());
+        } else {
+            new Thread(new ConsumeRunner(), "consumer-restore-" + consumerTag).start();
+        }
+    }
+
+    /**
+     * Stops re-registering this consumer, whose subscription the application is cancelling on the broker itself.
+     */
+    protected void cancel() {
+
+        cancelled = true;
+        shutdown = true;
+    }
+
+    /**
+     * @return true if the application has cancelled this consumer, rather than it only being shut down
+     */
+    protected boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if this consumer has been cancelled or shut down, and will not be re-registered
+     */
+    protected boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Sets the generation of the channel this consumer is being subscribed on, which its deliveries are tagged with
+     * until it is subscribed again.
+     */
+    protected void setDeliveryGeneration(final int deliveryGeneration) {
+        this.deliveryGeneration = deliveryGeneration;
+    }
+
+    /**
+     * Stops re-registering this consumer after shutdown signals.
+     */
+    protected void shutdown() {
+        shutdown = true;
+    }
+
+    private void deliver(final String consumerTag, final Envelope envelope, final BasicProperties properties,
+            final byte[] body, final AdaptivePrefetchController prefetchController) throws IOException {
+
+        if (prefetchController == null) {
+            target.handleDelivery(consumerTag, envelope, properties, body);
+            return;
+        }
+
+        // only now, since time spent waiting to be handled would be taken for ack latency and inflate the prefetch
+        prefetchController.delivered(envelope.getDeliveryTag());
+
+        long start = System.nanoTime();
+        try {
+            target.handleDelivery(consumerTag, envelope, properties, body);
+
+        } finally {
+
+            // deliveries handled in parallel take up proportionally less of the consumer's time each
+            long processingNanos = System.nanoTime() - start;
+            prefetchController.processed(dispatcher == null ? processingNanos : processingNanos
+                    / dispatcher.getConcurrency());
+        }
+    }
+
+    private void dispatch(final String consumerTag, final Envelope envelope, final BasicProperties properties,
+            final byte[] body) throws IOException {
+
+        final AdaptivePrefetchController prefetchController = channelProxy.getPrefetchController();
+
+        if (batchAccumulator != null) {
+            batchAccumulator.add(consumerTag, envelope, properties, body);
+            return;
+        }
+
+        if (dispatcher == null) {
+            deliver(consumerTag, envelope, properties, body, prefetchController);
+            return;
+        }
+
+        final HaConnectionProxy connectionProxy = channelProxy.getConnectionProxy();
+        final long epoch = connectionProxy.getEpoch();
+
+        try {
+            dispatcher.dispatch(envelope, properties, body, new Runnable() {
+
+                public void run() {
+
+                    if (connectionProxy.getEpoch() != epoch) {
+
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("Dropping delivery from a replaced channel: deliveryTag="
+                                    + envelope.getDeliveryTag());
+                        }
+
+                        return;
+                    }
+
+                    try {
+                        deliver(consumerTag, envelope, properties, body, prefetchController);
+
+                    } catch (IOException ioe) {
+                        LOG.warn("Consumer failed to handle delivery: deliveryTag=" + envelope.getDeliveryTag(), ioe);
+                    }
+                }
+            });
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to dispatch delivery");
+        }
+    }
+
+    /**
+     * Consumes again with the original arguments, but under the tag the broker confirmed last, so that the
+     * application can keep cancelling with the tag it was given.
+     */
+    private void restoreConsume() throws Throwable {
+
+        String consumerTag = this.consumerTag;
+        if (consumerTag == null) {
+            channelProxy.invoke(channelProxy, basicConsumeMethod, basicConsumeArgs);
+            return;
+        }
+
+        // basicConsume(queue, autoAck, consumerTag, ...) and its longer form take the tag as the third argument
+        if (basicConsumeArgs.length > 3) {
+
+            Object[] args = basicConsumeArgs.clone();
+            args[2] = consumerTag;
+            channelProxy.invoke(channelProxy, basicConsumeMethod, args);
+            return;
+        }
+
+        // only basicConsume(queue, callback) has no autoAck argument, and it does not auto-ack
+        boolean autoAck = basicConsumeArgs.length > 2 && (Boolean) basicConsumeArgs[1];
+
+        channelProxy.invoke(channelProxy, BASIC_CONSUME_WITH_TAG_METHOD, new Object[] { basicConsumeArgs[0], autoAck,
+                consumerTag, this });
     }
 }
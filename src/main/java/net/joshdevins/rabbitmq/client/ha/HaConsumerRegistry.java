@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * The live consumers of a channel, keyed by consumer tag. A consumer is added once the broker has confirmed its tag,
+ * and removed again when it is cancelled, either by the application or by the broker, so that only active
+ * subscriptions are kept and restored after a reconnection.
+ * 
+ * @author Josh Devins
+ */
+public class HaConsumerRegistry {
+
+    private final ConcurrentHashMap<String, HaConsumerProxy> consumers;
+
+    public HaConsumerRegistry() {
+        consumers = new ConcurrentHashMap<String, HaConsumerProxy>();
+    }
+
+    public HaConsumerProxy get(final String consumerTag) {
+        return consumers.get(consumerTag);
+    }
+
+    /**
+     * @return a snapshot of the live consumers
+     */
+    public List<HaConsumerProxy> getConsumers() {
+        return new ArrayList<HaConsumerProxy>(consumers.values());
+    }
+
+    /**
+     * Registers a consumer under the tag the broker confirmed it with, replacing any other consumer with that tag.
+     */
+    public void register(final String consumerTag, final HaConsumerProxy consumerProxy) {
+
+        Validate.notNull(consumerTag, "consumerTag is required");
+        Validate.notNull(consumerProxy, "consumerProxy is required");
+
+        HaConsumerProxy replaced = consumers.put(consumerTag, consumerProxy);
+        if (replaced != null && replaced != consumerProxy) {
+            replaced.shutdown();
+        }
+    }
+
+    /**
+     * Removes the consumer with the given tag, which the application is cancelling, and stops it from being restored.
+     * 
+     * @return the removed consumer, or null if there was none
+     */
+    public HaConsumerProxy remove(final String consumerTag) {
+
+        if (consumerTag == null) {
+            return null;
+        }
+
+        HaConsumerProxy removed = consumers.remove(consumerTag);
+        if (removed != null) {
+            removed.cancel();
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes the given consumer, unless its tag has since been taken by another one.
+     * 
+     * @return true if the consumer was removed
+     */
+    public boolean remove(final String consumerTag, final HaConsumerProxy consumerProxy) {
+
+        if (consumerTag == null || !consumers.remove(consumerTag, consumerProxy)) {
+            return false;
+        }
+
+        consumerProxy.shutdown();
+        return true;
+    }
+
+    /**
+     * Removes all consumers without shutting them down.
+     * 
+     * @return the removed consumers
+     */
+    public List<HaConsumerProxy> removeAll() {
+
+        List<HaConsumerProxy> removed = new ArrayList<HaConsumerProxy>();
+        for (String consumerTag : consumers.keySet()) {
+
+            HaConsumerProxy consumerProxy = consumers.remove(consumerTag);
+            if (consumerProxy != null) {
+                removed.add(consumerProxy);
+            }
+        }
+
+        return removed;
+    }
+
+    public int size() {
+        return consumers.size();
+    }
+}
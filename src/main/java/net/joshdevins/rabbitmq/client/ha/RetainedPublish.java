@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.io.IOException;
+
+import net.joshdevins.rabbitmq.client.ha.buffer.PooledBuffer;
+import net.joshdevins.rabbitmq.client.ha.buffer.SlabArena;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A publish kept by the client so that it can be sent again, for example to replay an uncommitted transaction on a
+ * replacement channel. The body is copied since the application is free to reuse its array once a publish returns.
+ * 
+ * <p>
+ * The copy is either a plain array or, when created with a {@link SlabArena}, a pooled buffer that has to be given back
+ * with {@link #release()} once the publish is no longer needed.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class RetainedPublish {
+
+    private final String exchange;
+
+    private final String routingKey;
+
+    private final boolean mandatory;
+
+    private final boolean immediate;
+
+    private final BasicProperties properties;
+
+    private final byte[] body;
+
+    private final PooledBuffer buffer;
+
+    public RetainedPublish(final String exchange, final String routingKey, final boolean mandatory,
+            final boolean immediate, final BasicProperties properties, final byte[] body) {
+
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.mandatory = mandatory;
+        this.immediate = immediate;
+        this.properties = properties;
+        this.body = body == null ? null : body.clone();
+
+        buffer = null;
+    }
+
+    private RetainedPublish(final String exchange, final String routingKey, final boolean mandatory,
+            final boolean immediate, final BasicProperties properties, final PooledBuffer buffer) {
+
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.mandatory = mandatory;
+        this.immediate = immediate;
+        this.properties = properties;
+        this.buffer = buffer;
+
+        body = null;
+    }
+
+    /**
+     * Creates a retained publish from the arguments of either form of {@link Channel#basicPublish}.
+     */
+    public static RetainedPublish fromArguments(final Object[] args) {
+
+        if (args.length == 4) {
+            return new RetainedPublish((String) args[0], (String) args[1], false, false, (BasicProperties) args[2],
+                    (byte[]) args[3]);
+        }
+
+        return new RetainedPublish((String) args[0], (String) args[1], (Boolean) args[2], (Boolean) args[3],
+                (BasicProperties) args[4], (byte[]) args[5]);
+    }
+
+    /**
+     * Creates a retained publish from the arguments of either form of {@link Channel#basicPublish}, copying the body
+     * into the given arena.
+     * 
+     * @return the retained publish, or null if the arena is full
+     */
+    public static RetainedPublish fromArguments(final Object[] args, final SlabArena arena) {
+
+        byte[] body = (byte[]) args[args.length - 1];
+
+        // nothing worth pooling
+        if (body == null || body.length == 0) {
+            return fromArguments(args);
+        }
+
+        PooledBuffer buffer = arena.allocate(body);
+        if (buffer == null) {
+            return null;
+        }
+
+        if (args.length == 4) {
+            return new RetainedPublish((String) args[0], (String) args[1], false, false, (BasicProperties) args[2],
+                    buffer);
+        }
+
+        return new RetainedPublish((String) args[0], (String) args[1], (Boolean) args[2], (Boolean) args[3],
+                (BasicProperties) args[4], buffer);
+    }
+
+    /**
+     * @return the body, copied out of the arena if it is pooled
+     */
+    public byte[] getBody() {
+        return buffer == null ? body : buffer.toByteArray();
+    }
+
+    public String getExchange() {
+        return exchange;
+    }
+
+    public BasicProperties getProperties() {
+        return properties;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public boolean isImmediate() {
+        return immediate;
+    }
+
+    public boolean isMandatory() {
+        return mandatory;
+    }
+
+    public void publishTo(final Channel channel) throws IOException {
+        channel.basicPublish(exchange, routingKey, mandatory, immediate, properties, getBody());
+    }
+
+    /**
+     * Gives a pooled body back to its arena. The publish can not be used afterwards.
+     */
+    public void release() {
+
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+/**
+ * An {@link Executor} that runs tasks one at a time, in submission order, on an underlying shared {@link Executor}. No
+ * thread is held while there is nothing to run. Once the shared executor rejects tasks, for example after it has been
+ * shut down, tasks are dropped with a warning rather than failing whoever submitted them.
+ * 
+ * @author Josh Devins
+ */
+public class SerialExecutor implements Executor {
+
+    private class SerialTask implements Runnable {
+
+        private final Runnable task;
+
+        private SerialTask(final Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+
+            try {
+                task.run();
+
+            } catch (RuntimeException re) {
+                LOG.warn("Serially executed task failed", re);
+
+            } finally {
+                scheduleNext();
+            }
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(SerialExecutor.class);
+
+    private final Executor executor;
+
+    private final Queue<Runnable> tasks;
+
+    private Runnable active;
+
+    public SerialExecutor(final Executor executor) {
+
+        Validate.notNull(executor, "executor is required");
+
+        this.executor = executor;
+        tasks = new LinkedList<Runnable>();
+    }
+
+    public synchronized void execute(final Runnable task) {
+
+        tasks.add(new SerialTask(task));
+
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+
+        active = tasks.poll();
+        if (active == null) {
+            return;
+        }
+
+        try {
+            executor.execute(active);
+
+        } catch (RejectedExecutionException ree) {
+
+            // the shared executor has been shut down, so nothing queued will ever run
+            LOG.warn("Executor rejected serially executed task, dropping it and " + tasks.size()
+                    + " queued after it: " + ree.getMessage());
+
+            tasks.clear();
+            active = null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+/**
+ * What {@link HaConnectionFactory#shutdownGracefully(long)} did, and what it had to leave undone when the deadline
+ * was reached.
+ * 
+ * @author Josh Devins
+ */
+public class ShutdownReport {
+
+    private int connectionsClosed;
+
+    private int connectionsNotClosed;
+
+    private int consumersCancelled;
+
+    private int consumersNotCancelled;
+
+    private int unconfirmedChannels;
+
+    private int operationsInFlight;
+
+    private int uncommittedPublishes;
+
+    private boolean executorsTerminated;
+
+    public int getConnectionsClosed() {
+        return connectionsClosed;
+    }
+
+    /**
+     * Connections that failed to close cleanly and were abandoned.
+     */
+    public int getConnectionsNotClosed() {
+        return connectionsNotClosed;
+    }
+
+    public int getConsumersCancelled() {
+        return consumersCancelled;
+    }
+
+    /**
+     * Consumers that could not be cancelled. Messages delivered to them and not yet acknowledged will be redelivered.
+     */
+    public int getConsumersNotCancelled() {
+        return consumersNotCancelled;
+    }
+
+    /**
+     * Channel operations, like publishes waiting for a reconnection, that had not completed by the deadline.
+     */
+    public int getOperationsInFlight() {
+        return operationsInFlight;
+    }
+
+    /**
+     * Channels in confirm mode with publishes that were nacked or not confirmed by the deadline. These publishes may
+     * or may not have reached the broker.
+     */
+    public int getUnconfirmedChannels() {
+        return unconfirmedChannels;
+    }
+
+    /**
+     * Transactional publishes that the application had committed, but whose commit was held back for batching and
+     * then failed.
+     */
+    public int getUncommittedPublishes() {
+        return uncommittedPublishes;
+    }
+
+    /**
+     * @return true if everything was drained and closed within the deadline
+     */
+    public boolean isComplete() {
+        return connectionsNotClosed == 0 && consumersNotCancelled == 0 && unconfirmedChannels == 0
+                && operationsInFlight == 0 && uncommittedPublishes == 0 && executorsTerminated;
+    }
+
+    public boolean isExecutorsTerminated() {
+        return executorsTerminated;
+    }
+
+    @Override
+    public String toString() {
+        return "ShutdownReport[connectionsClosed=" + connectionsClosed + ", connectionsNotClosed="
+                + connectionsNotClosed + ", consumersCancelled=" + consumersCancelled + ", consumersNotCancelled="
+                + consumersNotCancelled + ", unconfirmedChannels=" + unconfirmedChannels + ", operationsInFlight="
+                + operationsInFlight + ", uncommittedPublishes=" + uncommittedPublishes + ", executorsTerminated="
+                + executorsTerminated + "]";
+    }
+
+    void addOperationsInFlight(final int operations) {
+        operationsInFlight += operations;
+    }
+
+    void addUncommittedPublishes(final int publishes) {
+        uncommittedPublishes += publishes;
+    }
+
+    void connectionClosed(final boolean success) {
+
+        if (success) {
+            connectionsClosed++;
+        } else {
+            connectionsNotClosed++;
+        }
+    }
+
+    void consumerCancelled(final boolean success) {
+
+        if (success) {
+            consumersCancelled++;
+        } else {
+            consumersNotCancelled++;
+        }
+    }
+
+    void setExecutorsTerminated(final boolean executorsTerminated) {
+        this.executorsTerminated = executorsTerminated;
+    }
+
+    void unconfirmedChannel() {
+        unconfirmedChannels++;
+    }
+}
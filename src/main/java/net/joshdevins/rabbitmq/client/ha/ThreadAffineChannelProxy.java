@@ -0,0 +1,400 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * A {@link Channel} facade that routes each calling thread to an HA channel of its own, opened the first time the
+ * thread uses it. Threads sharing one channel otherwise queue up behind each other on it; with the facade they
+ * publish in parallel, and each thread's operations still reach the broker in the order it made them.
+ * 
+ * <p>
+ * At most {@code maxChannels} channels are opened, after which new threads share the channel used by the fewest
+ * threads. The channels of threads that have died are closed when a new thread first uses the facade.
+ * </p>
+ * 
+ * <p>
+ * Listener registration, {@code basicQos}, {@code confirmSelect} and {@code setDefaultConsumer} apply to every
+ * channel, including those opened later. Everything else, including transactions, applies to the calling thread's
+ * channel only. Publisher confirm sequence numbers are per channel, so confirm listeners see those of all channels.
+ * Closing the facade closes all of its channels.
+ * </p>
+ * 
+ * <p>
+ * The facade is for publishing. Deliveries have to be acknowledged on the channel they came from, which is not the
+ * channel of whichever thread acknowledges them, so consuming, getting and acknowledging messages fail with an
+ * {@link UnsupportedOperationException}. Consume from a channel of its own instead.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class ThreadAffineChannelProxy implements InvocationHandler {
+
+    /**
+     * A channel and the number of live threads routed to it.
+     */
+    private static class Lease {
+
+        private final Channel channel;
+
+        private int threads;
+
+        private Lease(final Channel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A channel-wide call to replay on channels opened later.
+     */
+    private static class Setup {
+
+        private final Method method;
+
+        private final Object[] args;
+
+        private Setup(final Method method, final Object[] args) {
+
+            this.method = method;
+            this.args = args;
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(ThreadAffineChannelProxy.class);
+
+    private static final Set<String> CHANNEL_WIDE_METHOD_NAMES = new HashSet<String>(Arrays.asList(
+            "addConfirmListener", "addFlowListener", "addReturnListener", "addShutdownListener", "basicQos",
+            "clearConfirmListeners", "clearFlowListeners", "clearReturnListeners", "confirmSelect",
+            "removeConfirmListener", "removeFlowListener", "removeReturnListener", "removeShutdownListener",
+            "setDefaultConsumer"));
+
+    private static final Set<String> CONSUMING_METHOD_NAMES = new HashSet<String>(Arrays.asList("basicAck",
+            "basicCancel", "basicConsume", "basicGet", "basicNack", "basicRecover", "basicRecoverAsync",
+            "basicReject"));
+
+    private static final String ABORT_METHOD_NAME = "abort";
+
+    private static final String ADD_METHOD_PREFIX = "add";
+
+    private static final String REMOVE_METHOD_PREFIX = "remove";
+
+    private static final String CLOSE_METHOD_NAME = "close";
+
+    private static final String IS_OPEN_METHOD_NAME = "isOpen";
+
+    private final Connection connection;
+
+    private final int maxChannels;
+
+    private final Map<Thread, Lease> leases;
+
+    /**
+     * Guarded by this, as are the settings and listeners.
+     */
+    private final List<Lease> openLeases;
+
+    /**
+     * The latest call of each channel-wide method other than listener registration, by method name.
+     */
+    private final Map<String, Setup> settings;
+
+    /**
+     * The calls adding listeners that have not been removed since, by listener type.
+     */
+    private final Map<String, List<Setup>> listeners;
+
+    private volatile boolean closed;
+
+    /**
+     * @param connection
+     *        the HA connection to open channels on
+     * @param maxChannels
+     *        the most channels to open, after which threads share them
+     */
+    public ThreadAffineChannelProxy(final Connection connection, final int maxChannels) {
+
+        Validate.notNull(connection, "connection is required");
+        Validate.isTrue(maxChannels > 0, "maxChannels must be greater than 0");
+
+        this.connection = connection;
+        this.maxChannels = maxChannels;
+
+        leases = new ConcurrentHashMap<Thread, Lease>();
+        openLeases = new ArrayList<Lease>();
+        settings = new LinkedHashMap<String, Setup>();
+        listeners = new LinkedHashMap<String, List<Setup>>();
+    }
+
+    /**
+     * @return the number of channels currently open
+     */
+    public synchronized int getChannelCount() {
+        return openLeases.size();
+    }
+
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+        }
+
+        String methodName = method.getName();
+
+        if (methodName.equals(IS_OPEN_METHOD_NAME)) {
+            return !closed && connection.isOpen();
+        }
+
+        if (methodName.equals(CLOSE_METHOD_NAME) || methodName.equals(ABORT_METHOD_NAME)) {
+            closeAll(method, args);
+            return null;
+        }
+
+        if (closed) {
+            throw new AlreadyClosedException("Channel is closed", proxy);
+        }
+
+        if (CHANNEL_WIDE_METHOD_NAMES.contains(methodName)) {
+            return invokeOnAll(method, args);
+        }
+
+        if (CONSUMING_METHOD_NAMES.contains(methodName)) {
+            throw new UnsupportedOperationException("Thread-affine channels are for publishing only, use a channel "
+                    + "of its own to consume: method=" + methodName);
+        }
+
+        // lock free once the thread has its channel
+        Lease lease = leases.get(Thread.currentThread());
+        Channel channel = lease == null ? lease(proxy) : lease.channel;
+
+        return InvocationHandlerUtils.delegateMethodInvocation(method, args, channel);
+    }
+
+    /**
+     * Closes the channels of threads that have died, unless other threads still use them.
+     */
+    public synchronized void reclaimDeadThreads() {
+
+        for (Iterator<Map.Entry<Thread, Lease>> it = leases.entrySet().iterator(); it.hasNext();) {
+
+            Map.Entry<Thread, Lease> entry = it.next();
+            if (entry.getKey().isAlive()) {
+                continue;
+            }
+
+            it.remove();
+
+            Lease lease = entry.getValue();
+            if (--lease.threads == 0) {
+
+                openLeases.remove(lease);
+                closeQuietly(lease.channel);
+            }
+        }
+    }
+
+    private synchronized void closeAll(final Method method, final Object[] args) throws Throwable {
+
+        closed = true;
+
+        Throwable failure = null;
+        for (Lease lease : openLeases) {
+
+            try {
+                InvocationHandlerUtils.delegateMethodInvocation(method, args, lease.channel);
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+
+        openLeases.clear();
+        leases.clear();
+
+        // like a plain channel, only close complains
+        if (failure != null && method.getName().equals(CLOSE_METHOD_NAME)) {
+            throw failure;
+        }
+    }
+
+    private void closeQuietly(final Channel channel) {
+
+        try {
+            channel.close();
+
+        } catch (Exception e) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Failed to close thread-affine channel, not a problem: " + e.getMessage());
+            }
+        }
+    }
+
+    private Object invokeObjectMethod(final Object proxy, final Method method, final Object[] args) {
+
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        }
+
+        if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+
+        return "ThreadAffineChannel(maxChannels=" + maxChannels + ")";
+    }
+
+    private synchronized Object invokeOnAll(final Method method, final Object[] args) throws Throwable {
+
+        remember(method, args);
+
+        Object result = null;
+        for (Lease lease : openLeases) {
+
+            Object channelResult = InvocationHandlerUtils.delegateMethodInvocation(method, args, lease.channel);
+
+            // removing a listener succeeded if it did on any channel
+            if (result == null || Boolean.TRUE.equals(channelResult)) {
+                result = channelResult;
+            }
+        }
+
+        // nothing to remove from before any channel is open
+        if (result == null && method.getReturnType() == boolean.class) {
+            return false;
+        }
+
+        return result;
+    }
+
+    private synchronized Channel lease(final Object proxy) throws Throwable {
+
+        if (closed) {
+            throw new AlreadyClosedException("Channel is closed", proxy);
+        }
+
+        reclaimDeadThreads();
+
+        Lease lease = openLeases.size() < maxChannels ? openLease() : leastUsedLease();
+        lease.threads++;
+        leases.put(Thread.currentThread(), lease);
+
+        return lease.channel;
+    }
+
+    private Lease leastUsedLease() {
+
+        Lease leastUsed = openLeases.get(0);
+        for (Lease lease : openLeases) {
+            if (lease.threads < leastUsed.threads) {
+                leastUsed = lease;
+            }
+        }
+
+        return leastUsed;
+    }
+
+    private Lease openLease() throws Throwable {
+
+        Channel channel = connection.createChannel();
+
+        try {
+            for (Setup call : settings.values()) {
+                InvocationHandlerUtils.delegateMethodInvocation(call.method, call.args, channel);
+            }
+
+            for (List<Setup> additions : listeners.values()) {
+                for (Setup call : additions) {
+                    InvocationHandlerUtils.delegateMethodInvocation(call.method, call.args, channel);
+                }
+            }
+
+        } catch (Throwable t) {
+            closeQuietly(channel);
+            throw t;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Opened thread-affine channel: thread=" + Thread.currentThread().getName() + ", channel="
+                    + channel.getChannelNumber());
+        }
+
+        Lease lease = new Lease(channel);
+        openLeases.add(lease);
+
+        return lease;
+    }
+
+    /**
+     * Keeps the setup to replay on channels opened later down to the current state, however often listeners are
+     * added and removed or settings are changed.
+     */
+    private void remember(final Method method, final Object[] args) {
+
+        String methodName = method.getName();
+        if (!methodName.endsWith("Listener") && !methodName.endsWith("Listeners")) {
+
+            // only the latest setting counts
+            settings.put(methodName, new Setup(method, args));
+            return;
+        }
+
+        // addConfirmListener, removeConfirmListener and clearConfirmListeners are all about ConfirmListener
+        String type = methodName.replaceFirst("^(add|remove|clear)", "").replaceFirst("s$", "");
+        List<Setup> additions = listeners.get(type);
+        if (additions == null) {
+            additions = new ArrayList<Setup>();
+            listeners.put(type, additions);
+        }
+
+        if (methodName.startsWith(ADD_METHOD_PREFIX)) {
+            additions.add(new Setup(method, args));
+
+        } else if (methodName.startsWith(REMOVE_METHOD_PREFIX)) {
+
+            // like a channel, removes one addition of an equal listener
+            for (Iterator<Setup> it = additions.iterator(); it.hasNext();) {
+                if (it.next().args[0].equals(args[0])) {
+                    it.remove();
+                    break;
+                }
+            }
+
+        } else {
+            additions.clear();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Access to virtual threads on JVMs that have them, without requiring such a JVM to build or run.
+ * 
+ * @author Josh Devins
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOG = Logger.getLogger(VirtualThreads.class);
+
+    private static Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR_METHOD;
+
+    private VirtualThreads() {
+        // do not instantiate
+    }
+
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR_METHOD != null;
+    }
+
+    /**
+     * @return an {@link ExecutorService} that runs each task on a new virtual thread, or null if virtual threads are
+     *         not available on this JVM
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+
+        if (!isAvailable()) {
+            return null;
+        }
+
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR_METHOD.invoke(null);
+
+        } catch (Exception e) {
+            LOG.warn("Failed to create virtual thread executor: " + e.getMessage());
+            return null;
+        }
+    }
+
+    static {
+
+        // not finding it is normal on older JVMs
+        try {
+            NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR_METHOD = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+        } catch (NoSuchMethodException nsme) {
+            NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR_METHOD = null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A message body copied into a {@link SlabArena}. Must be released exactly once when no longer needed, after which
+ * its contents must not be read.
+ * 
+ * @author Josh Devins
+ */
+public class PooledBuffer {
+
+    private final SlabArena arena;
+
+    private final ByteBuffer chunk;
+
+    private final int sizeClass;
+
+    private final int length;
+
+    private final AtomicBoolean released;
+
+    protected PooledBuffer(final SlabArena arena, final ByteBuffer chunk, final int sizeClass, final int length) {
+
+        this.arena = arena;
+        this.chunk = chunk;
+        this.sizeClass = sizeClass;
+        this.length = length;
+
+        released = new AtomicBoolean();
+    }
+
+    /**
+     * @return the length of the body
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    /**
+     * Gives the memory back to the arena. Releasing again has no effect.
+     */
+    public void release() {
+
+        if (released.compareAndSet(false, true)) {
+            arena.free(this);
+        }
+    }
+
+    /**
+     * @return a copy of the body
+     */
+    public byte[] toByteArray() {
+
+        if (released.get()) {
+            throw new IllegalStateException("Buffer has already been released");
+        }
+
+        ByteBuffer view = chunk.duplicate();
+        view.clear();
+
+        byte[] body = new byte[length];
+        view.get(body);
+
+        return body;
+    }
+
+    protected ByteBuffer getChunk() {
+        return chunk;
+    }
+
+    protected int getSizeClass() {
+        return sizeClass;
+    }
+}
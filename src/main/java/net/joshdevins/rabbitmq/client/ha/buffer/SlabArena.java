@@ -0,0 +1,250 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of memory for message bodies that are kept around for a while, such as publishes retained to replay a
+ * transaction. Copying each body into a fresh array puts a steady stream of medium-lived garbage through the heap,
+ * which tends to be promoted and then collected in the old generation. This arena instead carves fixed size slabs,
+ * optionally direct and so off-heap, into power of two sized chunks and reuses them once released.
+ * 
+ * <p>
+ * Bodies larger than a slab get a buffer of their own, which is not pooled. The total memory taken by slabs and such
+ * buffers is capped; once the cap is reached {@link #allocate(byte[])} returns null rather than growing further. Slabs
+ * are never given back, and chunks of one size can not be used for another, so the cap should leave some headroom
+ * over the bodies expected to be retained at once.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class SlabArena {
+
+    private static final Logger LOG = Logger.getLogger(SlabArena.class);
+
+    /**
+     * Default value = 1048576 = 1MB
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    /**
+     * The smallest chunk handed out, smaller bodies are rounded up to it.
+     */
+    public static final int MIN_CHUNK_SIZE = 64;
+
+    private final int slabSize;
+
+    private final long maxBytes;
+
+    private final boolean direct;
+
+    /**
+     * Free chunks by size class, smallest first.
+     */
+    private final List<Queue<ByteBuffer>> freeChunks;
+
+    private final AtomicLong allocatedBytes;
+
+    private final AtomicLong retainedBytes;
+
+    /**
+     * Creates an arena of heap slabs of the default size.
+     */
+    public SlabArena(final long maxBytes) {
+        this(DEFAULT_SLAB_SIZE, maxBytes, false);
+    }
+
+    /**
+     * @param slabSize
+     *        size of each slab, a power of two no smaller than {@value #MIN_CHUNK_SIZE}
+     * @param maxBytes
+     *        upper bound on the memory taken by the arena
+     * @param direct
+     *        true to allocate slabs off-heap as direct buffers
+     */
+    public SlabArena(final int slabSize, final long maxBytes, final boolean direct) {
+
+        Validate.isTrue(slabSize >= MIN_CHUNK_SIZE && Integer.bitCount(slabSize) == 1,
+                "slabSize must be a power of two of at least " + MIN_CHUNK_SIZE);
+        Validate.isTrue(maxBytes > 0, "maxBytes must be greater than 0");
+
+        this.slabSize = slabSize;
+        this.maxBytes = maxBytes;
+        this.direct = direct;
+
+        int sizeClasses = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+        freeChunks = new ArrayList<Queue<ByteBuffer>>(sizeClasses);
+        for (int i = 0; i < sizeClasses; i++) {
+            freeChunks.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+
+        allocatedBytes = new AtomicLong();
+        retainedBytes = new AtomicLong();
+    }
+
+    /**
+     * Copies a body into the arena.
+     * 
+     * @return the copy, to be released once no longer needed, or null if the arena is full
+     */
+    public PooledBuffer allocate(final byte[] body) {
+
+        Validate.notNull(body, "body is required");
+
+        if (body.length > slabSize) {
+            return allocateUnpooled(body);
+        }
+
+        int sizeClass = getSizeClass(body.length);
+        Queue<ByteBuffer> free = freeChunks.get(sizeClass);
+
+        ByteBuffer chunk = free.poll();
+        while (chunk == null) {
+
+            if (!addSlab(sizeClass)) {
+                return null;
+            }
+
+            chunk = free.poll();
+        }
+
+        chunk.clear();
+        chunk.put(body);
+        retainedBytes.addAndGet(chunk.capacity());
+
+        return new PooledBuffer(this, chunk, sizeClass, body.length);
+    }
+
+    /**
+     * @return the memory taken by slabs and unpooled buffers, in use or not
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the memory of chunks and unpooled buffers currently holding bodies
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns the memory of a buffer to the arena. Called by {@link PooledBuffer#release()}.
+     */
+    protected void free(final PooledBuffer buffer) {
+
+        ByteBuffer chunk = buffer.getChunk();
+        retainedBytes.addAndGet(-chunk.capacity());
+
+        if (buffer.getSizeClass() < 0) {
+            allocatedBytes.addAndGet(-chunk.capacity());
+            return;
+        }
+
+        freeChunks.get(buffer.getSizeClass()).offer(chunk);
+    }
+
+    /**
+     * Carves a new slab into chunks of the given size class.
+     * 
+     * @return false if the arena is full
+     */
+    private boolean addSlab(final int sizeClass) {
+
+        if (!reserve(slabSize)) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Slab arena full: allocatedBytes=" + allocatedBytes.get() + ", maxBytes=" + maxBytes);
+            }
+
+            return false;
+        }
+
+        int chunkSize = MIN_CHUNK_SIZE << sizeClass;
+        ByteBuffer slab = newBuffer(slabSize);
+
+        Queue<ByteBuffer> free = freeChunks.get(sizeClass);
+        for (int offset = 0; offset < slabSize; offset += chunkSize) {
+
+            slab.limit(offset + chunkSize);
+            slab.position(offset);
+            free.offer(slab.slice());
+        }
+
+        return true;
+    }
+
+    private PooledBuffer allocateUnpooled(final byte[] body) {
+
+        if (!reserve(body.length)) {
+            return null;
+        }
+
+        ByteBuffer buffer = newBuffer(body.length);
+        buffer.put(body);
+        retainedBytes.addAndGet(body.length);
+
+        return new PooledBuffer(this, buffer, -1, body.length);
+    }
+
+    private int getSizeClass(final int length) {
+
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+        return Integer.numberOfTrailingZeros(chunkSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+
+    private ByteBuffer newBuffer(final int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private boolean reserve(final int bytes) {
+
+        while (true) {
+
+            long allocated = allocatedBytes.get();
+            if (allocated + bytes > maxBytes) {
+                return false;
+            }
+
+            if (allocatedBytes.compareAndSet(allocated, allocated + bytes)) {
+                return true;
+            }
+        }
+    }
+}
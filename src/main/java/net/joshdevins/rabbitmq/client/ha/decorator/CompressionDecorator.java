@@ -0,0 +1,231 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.decorator;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Compresses the bodies of large publishes with the JDK's DEFLATE implementation, and decompresses deliveries
+ * compressed this way. Compressed messages have their content encoding set to {@value #CONTENT_ENCODING}, so that
+ * other clients can tell them apart. Messages that already have a content encoding are left alone, as are bodies that
+ * do not get any smaller.
+ * 
+ * <p>
+ * Deflaters, inflaters and working buffers are expensive to set up and are kept per thread for reuse rather than
+ * created per message. Buffers larger than {@value #MAX_CACHED_BUFFER_SIZE} bytes are not kept.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class CompressionDecorator implements MessageDecorator {
+
+    public static final String CONTENT_ENCODING = "deflate";
+
+    /**
+     * Default value = 1024 = 1KB
+     */
+    public static final int DEFAULT_THRESHOLD_BYTES = 1024;
+
+    /**
+     * Value = 1048576 = 1MB
+     */
+    public static final int MAX_CACHED_BUFFER_SIZE = 1 << 20;
+
+    private static final int MIN_INFLATE_BUFFER_SIZE = 4096;
+
+    private final int thresholdBytes;
+
+    private final int level;
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    private final ThreadLocal<Inflater> inflaters;
+
+    private final ThreadLocal<byte[]> buffers;
+
+    public CompressionDecorator() {
+        this(DEFAULT_THRESHOLD_BYTES, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param thresholdBytes
+     *        size from which bodies are compressed
+     * @param level
+     *        compression level from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public CompressionDecorator(final int thresholdBytes, final int level) {
+
+        Validate.isTrue(thresholdBytes >= 0, "thresholdBytes must be 0 or greater");
+        Validate.isTrue(level == Deflater.DEFAULT_COMPRESSION || level >= 0 && level <= 9,
+                "level must be between 0 and 9");
+
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+
+        deflaters = new ThreadLocal<Deflater>() {
+
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(CompressionDecorator.this.level);
+            }
+        };
+
+        inflaters = new ThreadLocal<Inflater>() {
+
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater();
+            }
+        };
+
+        buffers = new ThreadLocal<byte[]>();
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    public Payload onDelivery(final Envelope envelope, final Payload payload) throws IOException {
+
+        BasicProperties properties = payload.getProperties();
+        if (properties == null || !CONTENT_ENCODING.equals(properties.getContentEncoding())
+                || payload.getBody() == null) {
+            return payload;
+        }
+
+        byte[] body = inflate(payload.getBody());
+        return new Payload(properties.builder().contentEncoding(null).build(), body);
+    }
+
+    public Payload onPublish(final String exchange, final String routingKey, final Payload payload) {
+
+        BasicProperties properties = payload.getProperties();
+        byte[] body = payload.getBody();
+
+        if (body == null || body.length < thresholdBytes
+                || properties != null && properties.getContentEncoding() != null) {
+            return payload;
+        }
+
+        byte[] compressed = deflate(body);
+        if (compressed == null) {
+            return payload;
+        }
+
+        BasicProperties.Builder builder = properties == null ? new BasicProperties.Builder() : properties.builder();
+        return new Payload(builder.contentEncoding(CONTENT_ENCODING).build(), compressed);
+    }
+
+    private byte[] copy(final byte[] buffer, final int length) {
+
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, 0, copy, 0, length);
+
+        return copy;
+    }
+
+    /**
+     * @return the compressed body, or null if it would be no smaller than the original
+     */
+    private byte[] deflate(final byte[] body) {
+
+        Deflater deflater = deflaters.get();
+        byte[] buffer = getBuffer(body.length);
+
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+
+            int length = 0;
+            while (!deflater.finished() && length < body.length) {
+                length += deflater.deflate(buffer, length, body.length - length);
+            }
+
+            if (!deflater.finished() || length >= body.length) {
+                return null;
+            }
+
+            return copy(buffer, length);
+
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private byte[] getBuffer(final int minSize) {
+
+        byte[] buffer = buffers.get();
+        if (buffer != null && buffer.length >= minSize) {
+            return buffer;
+        }
+
+        buffer = new byte[minSize];
+        if (minSize <= MAX_CACHED_BUFFER_SIZE) {
+            buffers.set(buffer);
+        }
+
+        return buffer;
+    }
+
+    private byte[] inflate(final byte[] body) throws IOException {
+
+        Inflater inflater = inflaters.get();
+        byte[] buffer = getBuffer(Math.max(MIN_INFLATE_BUFFER_SIZE, body.length * 4));
+
+        try {
+            inflater.setInput(body);
+
+            int length = 0;
+            while (!inflater.finished()) {
+
+                if (length == buffer.length) {
+
+                    byte[] grown = getBuffer(buffer.length * 2);
+                    System.arraycopy(buffer, 0, grown, 0, length);
+                    buffer = grown;
+                }
+
+                int inflated = inflater.inflate(buffer, length, buffer.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed body is truncated");
+                }
+
+                length += inflated;
+            }
+
+            return copy(buffer, length);
+
+        } catch (DataFormatException dfe) {
+            throw new IOException("Compressed body is malformed: " + dfe.getMessage());
+
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.decorator;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Envelope;
+
+/**
+ * An ordered list of {@link MessageDecorator}s applied as one.
+ * 
+ * @author Josh Devins
+ */
+public class DecoratorChain {
+
+    private final MessageDecorator[] decorators;
+
+    public DecoratorChain(final List<MessageDecorator> decorators) {
+
+        Validate.noNullElements(decorators, "decorators must not be null");
+        this.decorators = decorators.toArray(new MessageDecorator[decorators.size()]);
+    }
+
+    /**
+     * Applies the decorators to a delivery, last one first.
+     */
+    public Payload onDelivery(final Envelope envelope, final Payload payload) throws IOException {
+
+        Payload decorated = payload;
+        for (int i = decorators.length - 1; i >= 0; i--) {
+            decorated = decorators[i].onDelivery(envelope, decorated);
+        }
+
+        return decorated;
+    }
+
+    /**
+     * Applies the decorators to a publish, first one first.
+     */
+    public Payload onPublish(final String exchange, final String routingKey, final Payload payload)
+            throws IOException {
+
+        Payload decorated = payload;
+        for (MessageDecorator decorator : decorators) {
+            decorated = decorator.onPublish(exchange, routingKey, decorated);
+        }
+
+        return decorated;
+    }
+
+    public int size() {
+        return decorators.length;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.decorator;
+
+import java.io.IOException;
+
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Transforms messages on their way to and from the broker, for example to compress bodies or add headers. Decorators
+ * are applied to every publish on an HA channel in the order they are configured on the
+ * {@link net.joshdevins.rabbitmq.client.ha.HaConnectionFactory}, and to every delivery in the reverse order, so that
+ * a decorator sees deliveries the way it published them.
+ * 
+ * <p>
+ * Implementations are called concurrently from any number of threads. Returning the given payload unchanged is the
+ * cheapest way to leave a message alone.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public interface MessageDecorator {
+
+    /**
+     * Called for a message about to be delivered to a consumer.
+     * 
+     * @throws IOException
+     *         if the message can not be decoded, in which case it is delivered as received
+     */
+    Payload onDelivery(final Envelope envelope, final Payload payload) throws IOException;
+
+    /**
+     * Called for a message about to be published.
+     * 
+     * @throws IOException
+     *         to fail the publish
+     */
+    Payload onPublish(final String exchange, final String routingKey, final Payload payload) throws IOException;
+}
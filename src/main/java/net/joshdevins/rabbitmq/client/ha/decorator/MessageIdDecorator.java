@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.decorator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Stamps every publish that has no message id yet with one from a {@link MessageIdGenerator}, and optionally with the
+ * id and sequence number of its producer as headers, {@value #PRODUCER_ID_HEADER} and {@value #SEQUENCE_HEADER}.
+ * Properties are copied once, with any existing headers.
+ * 
+ * <p>
+ * Publishes are decorated once, before they are first sent, so a publish retried after a reconnection carries the
+ * same id. Deliveries are left alone.
+ * </p>
+ * 
+ * <p>
+ * Sequence numbers run across all exchanges and routing keys a producer publishes to, so they find duplicates but not
+ * lost messages. See {@link MessageIdGenerator}.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class MessageIdDecorator implements MessageDecorator {
+
+    public static final String PRODUCER_ID_HEADER = "x-producer-id";
+
+    public static final String SEQUENCE_HEADER = "x-producer-sequence";
+
+    private final MessageIdGenerator generator;
+
+    private final boolean sequenceHeaders;
+
+    public MessageIdDecorator() {
+        this(new MessageIdGenerator(), false);
+    }
+
+    /**
+     * @param sequenceHeaders
+     *        true to add the producer id and sequence number headers
+     */
+    public MessageIdDecorator(final MessageIdGenerator generator, final boolean sequenceHeaders) {
+
+        Validate.notNull(generator, "generator is required");
+
+        this.generator = generator;
+        this.sequenceHeaders = sequenceHeaders;
+    }
+
+    public MessageIdGenerator getGenerator() {
+        return generator;
+    }
+
+    public boolean isSequenceHeaders() {
+        return sequenceHeaders;
+    }
+
+    public Payload onDelivery(final Envelope envelope, final Payload payload) {
+        return payload;
+    }
+
+    public Payload onPublish(final String exchange, final String routingKey, final Payload payload) {
+
+        BasicProperties properties = payload.getProperties();
+
+        // the application's own ids win
+        if (properties != null && properties.getMessageId() != null) {
+            return payload;
+        }
+
+        MessageIdGenerator.Producer producer = generator.currentProducer();
+        long sequence = producer.nextSequence();
+
+        BasicProperties.Builder builder = properties == null ? new BasicProperties.Builder() : properties.builder();
+        builder.messageId(generator.toId(producer, sequence));
+
+        if (sequenceHeaders) {
+
+            Map<String, Object> existing = properties == null ? null : properties.getHeaders();
+            Map<String, Object> headers = existing == null ? new HashMap<String, Object>()
+                    : new HashMap<String, Object>(existing);
+
+            headers.put(PRODUCER_ID_HEADER, producer.getId());
+            headers.put(SEQUENCE_HEADER, sequence);
+            builder.headers(headers);
+        }
+
+        return new Payload(builder.build(), payload.getBody());
+    }
+}
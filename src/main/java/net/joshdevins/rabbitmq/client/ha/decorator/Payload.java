@@ -0,0 +1,48 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.decorator;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * The properties and body of a message passing through {@link MessageDecorator}s.
+ * 
+ * @author Josh Devins
+ */
+public class Payload {
+
+    private final BasicProperties properties;
+
+    private final byte[] body;
+
+    public Payload(final BasicProperties properties, final byte[] body) {
+
+        this.properties = properties;
+        this.body = body;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return the properties, which may be null for a publish made without any
+     */
+    public BasicProperties getProperties() {
+        return properties;
+    }
+}
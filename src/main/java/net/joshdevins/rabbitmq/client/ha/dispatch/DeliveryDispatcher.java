@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.joshdevins.rabbitmq.client.ha.dispatch;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Hands deliveries to a consumer off the connection's delivery thread.
+ * 
+ * @author Josh Devins
+ */
+public interface DeliveryDispatcher {
+
+    /**
+     * Runs the task that handles a delivery, waiting first if too many deliveries are in flight.
+     */
+    public void dispatch(Envelope envelope, BasicProperties properties, byte[] body, Runnable task)
+            throws InterruptedException;
+
+    /**
+     * @return the number of deliveries that can be handled at the same time
+     */
+    public int getConcurrency();
+
+    /**
+     * @return the number of deliveries dispatched but not yet handled
+     */
+    public int getDeliveriesInFlight();
+}
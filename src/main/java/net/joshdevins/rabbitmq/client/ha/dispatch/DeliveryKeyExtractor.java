@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.joshdevins.rabbitmq.client.ha.dispatch;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Extracts the key of a delivery that determines its ordering under parallel dispatch. Deliveries with equal keys are
+ * handled one at a time, in the order they arrived.
+ * 
+ * @author Josh Devins
+ */
+public interface DeliveryKeyExtractor {
+
+    /**
+     * @return the ordering key of the delivery, may be null
+     */
+    public Object getKey(Envelope envelope, BasicProperties properties, byte[] body);
+}
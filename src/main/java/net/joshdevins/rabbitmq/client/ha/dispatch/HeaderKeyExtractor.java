@@ -0,0 +1,52 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.joshdevins.rabbitmq.client.ha.dispatch;
+
+import java.util.Map;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A {@link DeliveryKeyExtractor} that orders deliveries by the value of a message header, for example an entity ID.
+ * Deliveries without the header share a single key.
+ * 
+ * @author Josh Devins
+ */
+public class HeaderKeyExtractor implements DeliveryKeyExtractor {
+
+    private final String headerName;
+
+    public HeaderKeyExtractor(final String headerName) {
+
+        Validate.notEmpty(headerName, "headerName is required");
+        this.headerName = headerName;
+    }
+
+    public Object getKey(final Envelope envelope, final BasicProperties properties, final byte[] body) {
+
+        Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+        if (headers == null) {
+            return null;
+        }
+
+        // header strings arrive as LongStrings, which do not define equality by content
+        Object value = headers.get(headerName);
+        return value == null ? null : value.toString();
+    }
+}
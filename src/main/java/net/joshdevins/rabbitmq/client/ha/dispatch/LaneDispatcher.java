@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.joshdevins.rabbitmq.client.ha.dispatch;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import net.joshdevins.rabbitmq.client.ha.SerialExecutor;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Hands deliveries off to a shared pool of threads while keeping deliveries with the same key in order. Each key is
+ * hashed onto one of a fixed number of lanes, and each lane runs its deliveries one at a time. Different lanes run in
+ * parallel.
+ * 
+ * <p>
+ * The number of deliveries dispatched but not yet handled is bounded. When the bound is reached, dispatching blocks,
+ * which holds up the connection's delivery thread and so pushes back on the broker through the prefetch window.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class LaneDispatcher implements DeliveryDispatcher {
+
+    private final SerialExecutor[] lanes;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlightPermits;
+
+    private final DeliveryKeyExtractor keyExtractor;
+
+    public LaneDispatcher(final Executor executor, final int numLanes, final int maxInFlight,
+            final DeliveryKeyExtractor keyExtractor) {
+
+        Validate.notNull(executor, "executor is required");
+        Validate.isTrue(numLanes > 0, "numLanes must be greater than 0");
+        Validate.isTrue(maxInFlight > 0, "maxInFlight must be greater than 0");
+        Validate.notNull(keyExtractor, "keyExtractor is required");
+
+        this.maxInFlight = maxInFlight;
+        this.keyExtractor = keyExtractor;
+
+        lanes = new SerialExecutor[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = new SerialExecutor(executor);
+        }
+
+        inFlightPermits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Runs the task that handles a delivery on the lane of its key, waiting first if too many deliveries are in flight.
+     */
+    public void dispatch(final Envelope envelope, final BasicProperties properties, final byte[] body,
+            final Runnable task) throws InterruptedException {
+
+        SerialExecutor lane = lanes[laneFor(keyExtractor.getKey(envelope, properties, body))];
+
+        inFlightPermits.acquire();
+        try {
+            lane.execute(new Runnable() {
+
+                public void run() {
+
+                    try {
+                        task.run();
+                    } finally {
+                        inFlightPermits.release();
+                    }
+                }
+            });
+
+        } catch (RuntimeException re) {
+
+            // rejected, so it will never run
+            inFlightPermits.release();
+            throw re;
+        }
+    }
+
+    public int getConcurrency() {
+        return Math.min(lanes.length, maxInFlight);
+    }
+
+    public int getDeliveriesInFlight() {
+        return maxInFlight - inFlightPermits.availablePermits();
+    }
+
+    public int getNumLanes() {
+        return lanes.length;
+    }
+
+    private int laneFor(final Object key) {
+
+        if (key == null) {
+            return 0;
+        }
+
+        // spread the hash so that keys differing only in their high bits still use different lanes
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.joshdevins.rabbitmq.client.ha.dispatch;
+
+import java.util.concurrent.Executor;
+
+import net.joshdevins.rabbitmq.client.ha.HaChannelProxy;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Handles every delivery on its own thread, meant to be a virtual thread, so that consumers doing blocking I/O can
+ * have many deliveries in flight cheaply. There is no ordering between deliveries.
+ * 
+ * <p>
+ * The number of deliveries in flight is limited to the prefetch count of the channel, which is all the broker will
+ * send unacknowledged anyway, so that consumers acking early cannot run away with threads. It never goes beyond a
+ * fixed limit, which also applies without a prefetch count. With adaptive prefetch the concurrency would otherwise
+ * grow with every prefetch increase, and the prefetch with it, until it reached its maximum.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class VirtualThreadDispatcher implements DeliveryDispatcher {
+
+    private final Executor executor;
+
+    private final HaChannelProxy channelProxy;
+
+    private final int limit;
+
+    private int inFlight;
+
+    public VirtualThreadDispatcher(final Executor executor, final HaChannelProxy channelProxy, final int limit) {
+
+        Validate.notNull(executor, "executor is required");
+        Validate.notNull(channelProxy, "channelProxy is required");
+        Validate.isTrue(limit > 0, "limit must be greater than 0");
+
+        this.executor = executor;
+        this.channelProxy = channelProxy;
+        this.limit = limit;
+    }
+
+    public void dispatch(final Envelope envelope, final BasicProperties properties, final byte[] body,
+            final Runnable task) throws InterruptedException {
+
+        synchronized (this) {
+
+            while (inFlight >= getConcurrency()) {
+                wait();
+            }
+
+            inFlight++;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+
+                public void run() {
+
+                    try {
+                        task.run();
+                    } finally {
+                        release();
+                    }
+                }
+            });
+
+        } catch (RuntimeException re) {
+
+            // rejected, so it will never run
+            release();
+            throw re;
+        }
+    }
+
+    /**
+     * @return the prefetch count of the channel up to the limit, or the limit if the channel has no prefetch count
+     */
+    public int getConcurrency() {
+
+        int prefetchCount = channelProxy.getPrefetchCount();
+        return prefetchCount > 0 ? Math.min(prefetchCount, limit) : limit;
+    }
+
+    public synchronized int getDeliveriesInFlight() {
+        return inFlight;
+    }
+
+    private synchronized void release() {
+
+        inFlight--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.shard;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Sends publishes with the same routing key to the same shard. Each shard is placed on a hash ring many times over by
+ * its name, and a routing key goes to the first shard at or after its own hash on the ring. Adding or removing a shard
+ * moves only the keys of the ring segments it owns.
+ * 
+ * <p>
+ * While a shard is unavailable, its keys carry on round the ring to the next available shard, spread over the other
+ * shards by the virtual nodes, and go back to it once it is available again. Keys of available shards never move.
+ * Excluded shards are passed over the same way, on the same ring.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class ConsistentHashShardSelector implements ShardSelector {
+
+    private static class Ring {
+
+        private final List<Shard> shards;
+
+        private final int[] hashes;
+
+        private final Shard[] owners;
+
+        public Ring(final List<Shard> shards, final int virtualNodes) {
+
+            this.shards = shards;
+
+            long[] nodes = new long[shards.size() * virtualNodes];
+            for (int i = 0; i < shards.size(); i++) {
+                for (int j = 0; j < virtualNodes; j++) {
+
+                    // hash in the high bits to sort by, shard index in the low bits to find the shard again
+                    long hash = hash(shards.get(i).getName() + '#' + j);
+                    nodes[i * virtualNodes + j] = hash << 32 | i;
+                }
+            }
+
+            Arrays.sort(nodes);
+
+            hashes = new int[nodes.length];
+            owners = new Shard[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                hashes[i] = (int) (nodes[i] >> 32);
+                owners[i] = shards.get((int) nodes[i]);
+            }
+        }
+
+        public Shard select(final int hash, final Set<Shard> excluded) {
+
+            if (hashes.length == 0) {
+                return null;
+            }
+
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+
+            // binarySearch finds any of several equal hashes, so go back to the first of them
+            while (index > 0 && index < hashes.length && hashes[index - 1] == hash) {
+                index--;
+            }
+
+            for (int i = 0; i < hashes.length; i++) {
+
+                Shard shard = owners[(index + i) % hashes.length];
+                if (shard.isAvailable() && !excluded.contains(shard)) {
+                    return shard;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Default value = 160
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int virtualNodes;
+
+    private volatile Ring ring;
+
+    public ConsistentHashShardSelector() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param virtualNodes
+     *        the number of times each shard is placed on the ring. More even out the share of keys each shard gets.
+     */
+    public ConsistentHashShardSelector(final int virtualNodes) {
+
+        Validate.isTrue(virtualNodes > 0, "virtualNodes must be greater than 0");
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * FNV-1a over the characters of the key, finished with MurmurHash3's mixing step so that keys differing only in
+     * their last characters still land far apart on the ring.
+     */
+    public static int hash(final String key) {
+
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return hash;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public Shard select(final String exchange, final String routingKey, final BasicProperties properties,
+            final List<Shard> shards, final Set<Shard> excluded) {
+
+        // a publisher passes the same shards every time, so this is only built once
+        Ring ring = this.ring;
+        if (ring == null || ring.shards != shards) {
+            ring = new Ring(shards, virtualNodes);
+            this.ring = ring;
+        }
+
+        return ring.select(hash(routingKey == null ? "" : routingKey), excluded);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.shard;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * One broker of a {@link ShardedPublisher}, with its own HA connection and the channel publishes to it go through.
+ * The connection recovers on its own, independently of the other shards.
+ * 
+ * @author Josh Devins
+ */
+public class Shard {
+
+    private final String name;
+
+    private final Address[] addresses;
+
+    private final Connection connection;
+
+    private final Channel channel;
+
+    private final AtomicLong publishes;
+
+    public Shard(final String name, final Address[] addresses, final Connection connection, final Channel channel) {
+
+        Validate.notEmpty(name, "name is required");
+        Validate.notEmpty(addresses, "addresses are required");
+        Validate.notNull(connection, "connection is required");
+        Validate.notNull(channel, "channel is required");
+
+        this.name = name;
+        this.addresses = addresses;
+        this.connection = connection;
+        this.channel = channel;
+
+        publishes = new AtomicLong();
+    }
+
+    public Address[] getAddresses() {
+        return addresses;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return the name the shard is placed on the hash ring by, which should stay the same across restarts
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of messages published to this shard
+     */
+    public long getPublishes() {
+        return publishes.get();
+    }
+
+    /**
+     * @return true if the connection to this shard's broker is currently established, false while it is connecting or
+     *         reconnecting
+     */
+    public boolean isAvailable() {
+        return connection.isOpen();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    void published() {
+        publishes.incrementAndGet();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.shard;
+
+import java.util.List;
+import java.util.Set;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Picks the shard a publish goes to.
+ * 
+ * @author Josh Devins
+ */
+public interface ShardSelector {
+
+    /**
+     * @param shards
+     *        all shards of the publisher, available or not. The same list instance is passed on every call.
+     * @param excluded
+     *        shards to pass over even if available, because publishing to them has just failed. Usually empty.
+     * @return an available shard that is not excluded, or null if there is none
+     */
+    public Shard select(String exchange, String routingKey, BasicProperties properties, List<Shard> shards,
+            Set<Shard> excluded);
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.shard;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.joshdevins.rabbitmq.client.ha.HaConnectionFactory;
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.retry.RetryStrategy;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Spreads publishing over several independent brokers to scale it beyond a single node. Each broker is a
+ * {@link Shard} with an HA connection of its own, so each recovers from failures on its own as usual. Every publish
+ * goes to the shard picked by a {@link ShardSelector}, by default a {@link ConsistentHashShardSelector} over the
+ * routing key.
+ * 
+ * <p>
+ * Shards that are connecting or reconnecting are skipped by the selector, so their publishes go to the surviving
+ * shards until they are back. Operations on shard channels are retried according to a {@link RetryStrategy} of their
+ * own, by default a {@link NeverRetryStrategy}. A publish that fails because its shard went down after being picked, or
+ * because the channel of a shard that has just reconnected is not yet replaced, is then sent to another shard straight
+ * away. A publish only fails when no shard is available. With a strategy that waits for the reconnection, like the
+ * {@link net.joshdevins.rabbitmq.client.ha.retry.BlockingRetryStrategy}, such a publish waits for its shard to come
+ * back instead.
+ * </p>
+ * 
+ * <p>
+ * Messages are not ordered across shards, and messages with the same routing key are ordered only as long as their
+ * shard stays up.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class ShardedPublisher {
+
+    private static final Logger LOG = Logger.getLogger(ShardedPublisher.class);
+
+    private final List<Shard> shards;
+
+    private final ShardSelector selector;
+
+    public ShardedPublisher(final HaConnectionFactory connectionFactory, final Map<String, Address[]> brokers)
+            throws IOException {
+        this(connectionFactory, brokers, new ConsistentHashShardSelector());
+    }
+
+    /**
+     * Connects to all brokers in the background, without waiting for any of them.
+     * 
+     * @param brokers
+     *        the addresses of each broker by shard name. Shard names should stay the same across restarts, since
+     *        routing depends on them.
+     */
+    public ShardedPublisher(final HaConnectionFactory connectionFactory, final Map<String, Address[]> brokers,
+            final ShardSelector selector) throws IOException {
+        this(connectionFactory, brokers, selector, new NeverRetryStrategy());
+    }
+
+    /**
+     * Connects to all brokers in the background, without waiting for any of them.
+     * 
+     * @param brokers
+     *        the addresses of each broker by shard name. Shard names should stay the same across restarts, since
+     *        routing depends on them.
+     * @param retryStrategy
+     *        how operations on shard channels are retried. Publishes only move to another shard once it gives up.
+     */
+    public ShardedPublisher(final HaConnectionFactory connectionFactory, final Map<String, Address[]> brokers,
+            final ShardSelector selector, final RetryStrategy retryStrategy) throws IOException {
+
+        Validate.notNull(connectionFactory, "connectionFactory is required");
+        Validate.notEmpty(brokers, "brokers are required");
+        Validate.notNull(selector, "selector is required");
+        Validate.notNull(retryStrategy, "retryStrategy is required");
+
+        this.selector = selector;
+
+        List<Shard> shards = new ArrayList<Shard>(brokers.size());
+        try {
+            for (Map.Entry<String, Address[]> broker : brokers.entrySet()) {
+
+                Connection connection = connectionFactory.newConnectionAsync(broker.getValue(), retryStrategy)
+                        .getConnection();
+
+                // channels of a connection that is not yet established are created once it is
+                shards.add(new Shard(broker.getKey(), broker.getValue(), connection, connection.createChannel()));
+            }
+
+        } catch (IOException ioe) {
+            close(shards);
+            throw ioe;
+        }
+
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    public void basicPublish(final String exchange, final String routingKey, final BasicProperties properties,
+            final byte[] body) throws IOException {
+        basicPublish(exchange, routingKey, false, false, properties, body);
+    }
+
+    /**
+     * @throws IOException
+     *         if no shard is available, or publishing to the shard failed while it stayed available
+     */
+    public void basicPublish(final String exchange, final String routingKey, final boolean mandatory,
+            final boolean immediate, final BasicProperties properties, final byte[] body) throws IOException {
+
+        // each failed shard is left out from then on, so there is at most one attempt per shard
+        Set<Shard> failed = Collections.emptySet();
+        while (failed.size() < shards.size()) {
+
+            Shard shard = selector.select(exchange, routingKey, properties, shards, failed);
+            if (shard == null) {
+                break;
+            }
+
+            try {
+                shard.getChannel().basicPublish(exchange, routingKey, mandatory, immediate, properties, body);
+                shard.published();
+                return;
+
+            } catch (IOException ioe) {
+
+                if (shard.isAvailable()) {
+                    throw ioe;
+                }
+
+                logRerouting(shard, ioe);
+
+            } catch (AlreadyClosedException ace) {
+
+                // also while a reconnected shard's channel is still being replaced
+                logRerouting(shard, ace);
+            }
+
+            if (failed.isEmpty()) {
+                failed = new HashSet<Shard>();
+            }
+
+            failed.add(shard);
+        }
+
+        throw new IOException("No shard available to publish to: exchange=" + exchange + ", routingKey="
+                + routingKey);
+    }
+
+    /**
+     * Closes the connections to all shards.
+     */
+    public void close() {
+        close(shards);
+    }
+
+    public ShardSelector getSelector() {
+        return selector;
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the shard a publish would go to right now, or null if no shard is available
+     */
+    public Shard select(final String exchange, final String routingKey, final BasicProperties properties) {
+        return selector.select(exchange, routingKey, properties, shards, Collections.<Shard> emptySet());
+    }
+
+    private void close(final List<Shard> shards) {
+
+        for (Shard shard : shards) {
+
+            try {
+                shard.getConnection().close();
+
+            } catch (IOException ioe) {
+                LOG.warn("Failed to close connection to shard: " + shard, ioe);
+
+            } catch (AlreadyClosedException ace) {
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Connection to shard already closed: " + shard);
+                }
+            }
+        }
+    }
+
+    private void logRerouting(final Shard shard, final Exception e) {
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Shard went down while publishing, publishing to another shard: " + shard, e);
+        }
+    }
+}
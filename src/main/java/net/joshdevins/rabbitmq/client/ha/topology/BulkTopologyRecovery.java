@@ -0,0 +1,336 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.topology;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Replays recorded {@link Declaration}s on a new {@link Connection} in bulk. Rather than one synchronous round trip
+ * per declaration, declarations are written as pipelined nowait methods spread over several recovery channels, and
+ * completion is verified with a single synchronous barrier method per channel. Since a channel processes methods in
+ * order, a successful barrier means every declaration before it succeeded.
+ * 
+ * <p>
+ * Exchanges are replayed first, followed by queues and bindings. Queues and their bindings are partitioned by queue
+ * name so that a binding is always sent on the same channel as, and after, the declaration of its queue.
+ * </p>
+ * 
+ * <p>
+ * If the broker rejects a declaration it closes that recovery channel. The declarations of any failed channel are then
+ * replayed one at a time synchronously to find and report the offending declarations.
+ * </p>
+ * 
+ * <p>
+ * Barriers that are not answered within a timeout fail the recovery, since a broker that stops answering on a new
+ * connection would otherwise hold up the reconnection for good.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class BulkTopologyRecovery {
+
+    private class BarrierCallable implements Callable<Boolean> {
+
+        private final Channel channel;
+
+        private BarrierCallable(final Channel channel) {
+            this.channel = channel;
+        }
+
+        public Boolean call() throws Exception {
+
+            try {
+                // any synchronous method will do, this one has no effect on a channel that is thrown away
+                channel.basicQos(0);
+                return true;
+
+            } catch (IOException ioe) {
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Topology recovery barrier failed: channel=" + channel + ", message=" + ioe.getMessage());
+                }
+
+                return false;
+            }
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(BulkTopologyRecovery.class);
+
+    /**
+     * Default value = 4
+     */
+    public static final int DEFAULT_NUM_CHANNELS = 4;
+
+    /**
+     * Default value = 30000 = 30 seconds
+     */
+    public static final long DEFAULT_BARRIER_TIMEOUT_MILLIS = 30000;
+
+    private final ExecutorService executorService;
+
+    private final int numChannels;
+
+    private final long barrierTimeoutMillis;
+
+    public BulkTopologyRecovery(final ExecutorService executorService, final int numChannels) {
+        this(executorService, numChannels, DEFAULT_BARRIER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param barrierTimeoutMillis
+     *        how long to wait for the barriers of each phase of the recovery
+     */
+    public BulkTopologyRecovery(final ExecutorService executorService, final int numChannels,
+            final long barrierTimeoutMillis) {
+
+        Validate.notNull(executorService, "executorService is required");
+        Validate.isTrue(numChannels > 0, "numChannels must be greater than 0");
+        Validate.isTrue(barrierTimeoutMillis > 0, "barrierTimeoutMillis must be greater than 0");
+
+        this.executorService = executorService;
+        this.numChannels = numChannels;
+        this.barrierTimeoutMillis = barrierTimeoutMillis;
+    }
+
+    /**
+     * Replays all declarations on the given connection.
+     * 
+     * @throws IOException
+     *         if the connection itself fails during recovery, or the broker does not answer a barrier in time. The
+     *         connection should then be aborted, its recovery channels are left open since closing them could block.
+     */
+    public TopologyRecoveryResult recover(final Connection connection, final List<Declaration> declarations)
+            throws IOException {
+
+        long start = System.currentTimeMillis();
+
+        List<Declaration> failed = new ArrayList<Declaration>();
+        if (declarations.isEmpty()) {
+            return new TopologyRecoveryResult(0, 0, 0, 0, 0, failed);
+        }
+
+        int channelsToUse = Math.min(numChannels, declarations.size());
+
+        List<List<Declaration>> exchanges = newPartitions(channelsToUse);
+        List<List<Declaration>> queuesAndBindings = newPartitions(channelsToUse);
+
+        int nextExchangePartition = 0;
+        for (Declaration declaration : declarations) {
+
+            if (declaration.getType() == Declaration.Type.EXCHANGE) {
+                exchanges.get(nextExchangePartition++ % channelsToUse).add(declaration);
+            } else {
+                int partition = (declaration.getDestination().hashCode() & Integer.MAX_VALUE) % channelsToUse;
+                queuesAndBindings.get(partition).add(declaration);
+            }
+        }
+
+        Channel[] channels = new Channel[channelsToUse];
+        long[] timings = new long[2];
+
+        failed.addAll(recoverPhase(connection, channels, exchanges, timings));
+        failed.addAll(recoverPhase(connection, channels, queuesAndBindings, timings));
+
+        closeQuietly(channels);
+
+        TopologyRecoveryResult result = new TopologyRecoveryResult(declarations.size(), channelsToUse, timings[0],
+                timings[1], System.currentTimeMillis() - start, failed);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Topology recovery complete: " + result);
+        }
+
+        return result;
+    }
+
+    private void closeQuietly(final Channel[] channels) {
+
+        for (int i = 0; i < channels.length; i++) {
+
+            if (channels[i] == null) {
+                continue;
+            }
+
+            try {
+                channels[i].close();
+            } catch (Exception e) {
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Failed to close topology recovery channel, not a problem: " + e.getMessage());
+                }
+            }
+
+            channels[i] = null;
+        }
+    }
+
+    private List<List<Declaration>> newPartitions(final int numPartitions) {
+
+        List<List<Declaration>> partitions = new ArrayList<List<Declaration>>(numPartitions);
+        for (int i = 0; i < numPartitions; i++) {
+            partitions.add(new LinkedList<Declaration>());
+        }
+
+        return partitions;
+    }
+
+    /**
+     * Pipelines each partition on its own channel, then waits on all barriers in parallel.
+     * 
+     * @return declarations that failed even after synchronous replay
+     */
+    private List<Declaration> recoverPhase(final Connection connection, final Channel[] channels,
+            final List<List<Declaration>> partitions, final long[] timings) throws IOException {
+
+        long pipelineStart = System.currentTimeMillis();
+
+        boolean[] pipelined = new boolean[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+
+            if (partitions.get(i).isEmpty()) {
+                continue;
+            }
+
+            if (channels[i] == null || !channels[i].isOpen()) {
+                channels[i] = connection.createChannel();
+            }
+
+            pipelined[i] = true;
+            try {
+                for (Declaration declaration : partitions.get(i)) {
+                    channels[i].asyncRpc(declaration.toMethod(true));
+                }
+
+            } catch (Exception e) {
+                // channel was closed by an earlier rejected declaration, the barrier will tell us
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Failed to pipeline topology recovery: " + e.getMessage());
+                }
+            }
+        }
+
+        long barrierStart = System.currentTimeMillis();
+        timings[0] += barrierStart - pipelineStart;
+
+        List<Future<Boolean>> barriers = new ArrayList<Future<Boolean>>(channels.length);
+        for (int i = 0; i < channels.length; i++) {
+            barriers.add(pipelined[i] ? executorService.submit(new BarrierCallable(channels[i])) : null);
+        }
+
+        long deadline = barrierStart + barrierTimeoutMillis;
+        List<Declaration> toReplay = new ArrayList<Declaration>();
+        for (int i = 0; i < channels.length; i++) {
+
+            if (barriers.get(i) != null && !waitForBarrier(barriers, i, deadline)) {
+                toReplay.addAll(partitions.get(i));
+            }
+        }
+
+        timings[1] += System.currentTimeMillis() - barrierStart;
+
+        if (!connection.isOpen()) {
+            throw new IOException("Connection closed during topology recovery: " + connection.getCloseReason());
+        }
+
+        return replaySynchronously(connection, toReplay);
+    }
+
+    private List<Declaration> replaySynchronously(final Connection connection, final List<Declaration> declarations)
+            throws IOException {
+
+        List<Declaration> failed = new ArrayList<Declaration>();
+        if (declarations.isEmpty()) {
+            return failed;
+        }
+
+        LOG.warn("Pipelined topology recovery failed, replaying synchronously: declarations=" + declarations.size());
+
+        Channel channel = null;
+        try {
+            for (Declaration declaration : declarations) {
+
+                if (channel == null || !channel.isOpen()) {
+                    channel = connection.createChannel();
+                }
+
+                try {
+                    channel.rpc(declaration.toMethod(false));
+
+                } catch (IOException ioe) {
+
+                    if (!connection.isOpen()) {
+                        throw ioe;
+                    }
+
+                    LOG.warn("Failed to recover declaration: declaration=" + declaration + ", message="
+                            + ioe.getMessage());
+                    failed.add(declaration);
+                }
+            }
+
+        } finally {
+            closeQuietly(new Channel[] { channel });
+        }
+
+        return failed;
+    }
+
+    /**
+     * @throws IOException
+     *         if the barrier is not answered by the deadline, after cancelling all barriers
+     */
+    private boolean waitForBarrier(final List<Future<Boolean>> barriers, final int index, final long deadline)
+            throws IOException {
+
+        try {
+            return barriers.get(index).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+
+        } catch (ExecutionException ee) {
+            return false;
+
+        } catch (TimeoutException te) {
+
+            for (Future<Boolean> barrier : barriers) {
+                if (barrier != null) {
+                    barrier.cancel(true);
+                }
+            }
+
+            throw new IOException("Topology recovery barrier not answered within " + barrierTimeoutMillis + "ms");
+        }
+    }
+}
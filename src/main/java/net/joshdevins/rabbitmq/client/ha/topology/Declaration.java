@@ -0,0 +1,247 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.topology;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Method;
+
+/**
+ * An immutable record of a single exchange, queue or binding declaration made on a channel. Two declarations are equal
+ * only if all of their arguments are identical.
+ * 
+ * @author Josh Devins
+ */
+public final class Declaration {
+
+    public static enum Type {
+        EXCHANGE, QUEUE, QUEUE_BINDING, EXCHANGE_BINDING
+    }
+
+    private final Type type;
+
+    private final String name;
+
+    private final String source;
+
+    private final String routingKey;
+
+    private final String exchangeType;
+
+    private final boolean durable;
+
+    private final boolean autoDelete;
+
+    private final boolean exclusive;
+
+    private final boolean internal;
+
+    private final Map<String, Object> arguments;
+
+    private Declaration(final Type type, final String name, final String source, final String routingKey,
+            final String exchangeType, final boolean durable, final boolean autoDelete, final boolean exclusive,
+            final boolean internal, final Map<String, Object> arguments) {
+
+        Validate.notNull(type, "type is required");
+        Validate.notNull(name, "name is required");
+
+        this.type = type;
+        this.name = name;
+        this.source = source;
+        this.routingKey = routingKey;
+        this.exchangeType = exchangeType;
+        this.durable = durable;
+        this.autoDelete = autoDelete;
+        this.exclusive = exclusive;
+        this.internal = internal;
+
+        // null and empty arguments are the same thing to the broker
+        this.arguments = arguments == null || arguments.isEmpty() ? Collections.<String, Object> emptyMap()
+                : Collections.unmodifiableMap(new HashMap<String, Object>(arguments));
+    }
+
+    public static Declaration exchange(final String exchange, final String exchangeType, final boolean durable,
+            final boolean autoDelete, final boolean internal, final Map<String, Object> arguments) {
+
+        Validate.notNull(exchangeType, "exchangeType is required");
+        return new Declaration(Type.EXCHANGE, exchange, null, null, exchangeType, durable, autoDelete, false,
+                internal, arguments);
+    }
+
+    public static Declaration exchangeBinding(final String destination, final String source,
+            final String routingKey, final Map<String, Object> arguments) {
+
+        return new Declaration(Type.EXCHANGE_BINDING, destination, source, routingKey, null, false, false, false,
+                false, arguments);
+    }
+
+    public static Declaration queue(final String queue, final boolean durable, final boolean exclusive,
+            final boolean autoDelete, final Map<String, Object> arguments) {
+
+        return new Declaration(Type.QUEUE, queue, null, null, null, durable, autoDelete, exclusive, false, arguments);
+    }
+
+    public static Declaration queueBinding(final String queue, final String exchange, final String routingKey,
+            final Map<String, Object> arguments) {
+
+        return new Declaration(Type.QUEUE_BINDING, queue, exchange, routingKey, null, false, false, false, false,
+                arguments);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+
+        if (this == obj) {
+            return true;
+        }
+
+        if (!(obj instanceof Declaration)) {
+            return false;
+        }
+
+        Declaration rhs = (Declaration) obj;
+        return new EqualsBuilder().append(type, rhs.type).append(name, rhs.name).append(source, rhs.source)
+                .append(routingKey, rhs.routingKey).append(exchangeType, rhs.exchangeType)
+                .append(durable, rhs.durable).append(autoDelete, rhs.autoDelete).append(exclusive, rhs.exclusive)
+                .append(internal, rhs.internal).append(arguments, rhs.arguments).isEquals();
+    }
+
+    public Map<String, Object> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * For a binding, the queue or exchange bound to. For a queue or exchange, its name.
+     */
+    public String getDestination() {
+        return name;
+    }
+
+    /**
+     * A key which identifies the entity being declared, regardless of its arguments. A redeclaration of the same key
+     * replaces the previous declaration.
+     */
+    public String getKey() {
+
+        if (isBinding()) {
+            return type + ":" + name + ":" + source + ":" + routingKey + ":" + arguments;
+        }
+
+        return type + ":" + name;
+    }
+
+    /**
+     * For a binding, the routing key. For a queue or exchange, null.
+     */
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    /**
+     * For a binding, the exchange bound from. For a queue or exchange, null.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder().append(type).append(name).append(source).append(routingKey).append(exchangeType)
+                .append(durable).append(autoDelete).append(exclusive).append(internal).append(arguments)
+                .toHashCode();
+    }
+
+    public boolean isAutoDelete() {
+        return autoDelete;
+    }
+
+    public boolean isBinding() {
+        return type == Type.QUEUE_BINDING || type == Type.EXCHANGE_BINDING;
+    }
+
+    /**
+     * Determines if this declaration would disappear along with the given queue or exchange. That is the entity itself
+     * or a binding to or from it.
+     * 
+     * @param entityType
+     *        either {@link Type#QUEUE} or {@link Type#EXCHANGE}
+     */
+    public boolean refersTo(final Type entityType, final String entityName) {
+
+        if (type == entityType) {
+            return name.equals(entityName);
+        }
+
+        Type bindingType = entityType == Type.QUEUE ? Type.QUEUE_BINDING : Type.EXCHANGE_BINDING;
+        boolean boundTo = type == bindingType && name.equals(entityName);
+        boolean boundFrom = entityType == Type.EXCHANGE && isBinding() && entityName.equals(source);
+
+        return boundTo || boundFrom;
+    }
+
+    /**
+     * Creates the AMQP method that will replay this declaration.
+     * 
+     * @param nowait
+     *        if true, the broker will not send a reply to the method
+     */
+    public Method toMethod(final boolean nowait) {
+
+        switch (type) {
+
+            case EXCHANGE:
+                return new AMQP.Exchange.Declare.Builder().exchange(name).type(exchangeType).durable(durable)
+                        .autoDelete(autoDelete).internal(internal).arguments(arguments).nowait(nowait).build();
+
+            case QUEUE:
+                return new AMQP.Queue.Declare.Builder().queue(name).durable(durable).exclusive(exclusive)
+                        .autoDelete(autoDelete).arguments(arguments).nowait(nowait).build();
+
+            case QUEUE_BINDING:
+                return new AMQP.Queue.Bind.Builder().queue(name).exchange(source).routingKey(routingKey)
+                        .arguments(arguments).nowait(nowait).build();
+
+            case EXCHANGE_BINDING:
+                return new AMQP.Exchange.Bind.Builder().destination(name).source(source).routingKey(routingKey)
+                        .arguments(arguments).nowait(nowait).build();
+
+            default:
+                throw new IllegalStateException("Unknown declaration type: " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        if (isBinding()) {
+            return type + "[" + source + " -> " + name + " (" + routingKey + ")]";
+        }
+
+        return type + "[" + name + "]";
+    }
+}
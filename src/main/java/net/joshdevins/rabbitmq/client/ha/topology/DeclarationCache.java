@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.topology;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * A per-connection cache of declarations that the broker has already accepted, along with the broker's reply. A
+ * repeated declaration with identical arguments can be answered from the cache instead of costing a synchronous round
+ * trip.
+ * 
+ * <p>
+ * Entries are only valid for a single connection epoch, that is until the underlying connection is replaced. Deleting
+ * a queue or exchange, or unbinding, invalidates the affected entries. Auto-delete entities are never cached since the
+ * broker can remove them without us knowing. Note that a cached queue declare reply carries the message and consumer
+ * counts from the time of the original declaration.
+ * </p>
+ * 
+ * <p>
+ * A binding goes away with either of its ends, so it is only cached while both ends are cached, or are exchanges the
+ * broker predefines. A declaration of an end that reaches the broker may be recreating it, so it forgets the end's
+ * bindings, which then reach the broker again too.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class DeclarationCache {
+
+    private static final Logger LOG = Logger.getLogger(DeclarationCache.class);
+
+    private final ConcurrentHashMap<Declaration, Object> replies;
+
+    private final AtomicLong hits;
+
+    private final AtomicLong misses;
+
+    private volatile long epoch;
+
+    public DeclarationCache() {
+
+        replies = new ConcurrentHashMap<Declaration, Object>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**
+     * @return the cached broker reply, or null if this declaration has not been made in the given epoch
+     */
+    public Object get(final Declaration declaration, final long currentEpoch) {
+
+        checkEpoch(currentEpoch);
+
+        Object reply = replies.get(declaration);
+        if (reply == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        return reply;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Looks up the reply to a {@link Channel} method invocation.
+     * 
+     * @return the cached broker reply, or null if the invocation is not a cacheable declaration or has not been made in
+     *         the given epoch
+     */
+    public Object lookup(final Method method, final Object[] args, final long currentEpoch) {
+
+        if (method.getName().endsWith("Unbind")) {
+            return null;
+        }
+
+        Declaration declaration = TopologyRecorder.toDeclaration(method, args);
+        if (declaration == null) {
+            return null;
+        }
+
+        Object reply = get(declaration, currentEpoch);
+        if (reply == null && !declaration.isBinding()) {
+            invalidateBindings(declaration.getType(), declaration.getDestination());
+        }
+
+        return reply;
+    }
+
+    /**
+     * Inspects a successful {@link Channel} method invocation and caches its reply or invalidates any entries it
+     * affected.
+     */
+    public void recordInvocation(final Method method, final Object[] args, final Object reply, final long currentEpoch) {
+
+        String name = method.getName();
+
+        if ("queueDelete".equals(name)) {
+            invalidate(Declaration.Type.QUEUE, (String) args[0]);
+            return;
+        }
+
+        if ("exchangeDelete".equals(name)) {
+            invalidate(Declaration.Type.EXCHANGE, (String) args[0]);
+            return;
+        }
+
+        Declaration declaration = TopologyRecorder.toDeclaration(method, args);
+        if (declaration == null) {
+            return;
+        }
+
+        if (name.endsWith("Unbind")) {
+            invalidateBinding(declaration);
+            return;
+        }
+
+        if (!declaration.isBinding()) {
+            invalidateBindings(declaration.getType(), declaration.getDestination());
+        }
+
+        put(declaration, reply, currentEpoch);
+    }
+
+    public int size() {
+        return replies.size();
+    }
+
+    /**
+     * Forgets all entries for the given queue or exchange and any bindings to or from it.
+     */
+    public void invalidate(final Declaration.Type entityType, final String entityName) {
+
+        Iterator<Declaration> iterator = replies.keySet().iterator();
+        while (iterator.hasNext()) {
+
+            if (iterator.next().refersTo(entityType, entityName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets a binding regardless of the arguments it was made with.
+     */
+    public void invalidateBinding(final Declaration binding) {
+
+        Iterator<Declaration> iterator = replies.keySet().iterator();
+        while (iterator.hasNext()) {
+
+            Declaration declaration = iterator.next();
+            if (declaration.getType() == binding.getType()
+                    && declaration.getDestination().equals(binding.getDestination())
+                    && declaration.getSource().equals(binding.getSource())
+                    && declaration.getRoutingKey().equals(binding.getRoutingKey())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets all bindings to or from the given queue or exchange, but not the entity itself.
+     */
+    public void invalidateBindings(final Declaration.Type entityType, final String entityName) {
+
+        Iterator<Declaration> iterator = replies.keySet().iterator();
+        while (iterator.hasNext()) {
+
+            Declaration declaration = iterator.next();
+            if (declaration.isBinding() && declaration.refersTo(entityType, entityName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public void put(final Declaration declaration, final Object reply, final long currentEpoch) {
+
+        if (reply == null || declaration.isAutoDelete()) {
+            return;
+        }
+
+        checkEpoch(currentEpoch);
+
+        if (declaration.isBinding() && !hasCachedEnds(declaration)) {
+            return;
+        }
+
+        replies.put(declaration, reply);
+
+        // an end invalidated meanwhile takes the binding with it
+        if (declaration.isBinding() && !hasCachedEnds(declaration)) {
+            replies.remove(declaration);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeclarationCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+
+    private void checkEpoch(final long currentEpoch) {
+
+        if (epoch == currentEpoch) {
+            return;
+        }
+
+        synchronized (replies) {
+
+            if (epoch == currentEpoch) {
+                return;
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Connection epoch changed, clearing declaration cache: previous=" + epoch + ", current="
+                        + currentEpoch);
+            }
+
+            replies.clear();
+            epoch = currentEpoch;
+        }
+    }
+
+    /**
+     * @return true if both ends of the binding are cached, or are exchanges predefined by the broker
+     */
+    private boolean hasCachedEnds(final Declaration binding) {
+
+        Declaration.Type destinationType = binding.getType() == Declaration.Type.QUEUE_BINDING ? Declaration.Type.QUEUE
+                : Declaration.Type.EXCHANGE;
+
+        return isCached(Declaration.Type.EXCHANGE, binding.getSource())
+                && isCached(destinationType, binding.getDestination());
+    }
+
+    private boolean isCached(final Declaration.Type entityType, final String entityName) {
+
+        // the default and amq.* exchanges always exist and cannot be deleted
+        if (entityType == Declaration.Type.EXCHANGE && (entityName.length() == 0 || entityName.startsWith("amq."))) {
+            return true;
+        }
+
+        for (Declaration declaration : replies.keySet()) {
+
+            if (declaration.getType() == entityType && declaration.getDestination().equals(entityName)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
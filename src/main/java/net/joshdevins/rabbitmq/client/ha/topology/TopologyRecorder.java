@@ -0,0 +1,209 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.topology;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Records the exchanges, queues and bindings declared through the {@link Channel}s of a single connection so that
+ * they can be replayed after a reconnection. Passive declarations and server-named queues are not recorded since there
+ * is nothing meaningful to replay, and neither are bindings of server-named queues, which would be replayed against a
+ * queue that no longer exists. Deletes and unbinds remove the affected entries.
+ * 
+ * @author Josh Devins
+ */
+public class TopologyRecorder {
+
+    private static final Logger LOG = Logger.getLogger(TopologyRecorder.class);
+
+    private final Map<String, Declaration> declarations;
+
+    /**
+     * Names the broker gave to queues declared without one. Guarded by {@link #declarations}.
+     */
+    private final Set<String> serverNamedQueues;
+
+    public TopologyRecorder() {
+
+        declarations = new LinkedHashMap<String, Declaration>();
+        serverNamedQueues = new HashSet<String>();
+    }
+
+    public void clear() {
+
+        synchronized (declarations) {
+            declarations.clear();
+            serverNamedQueues.clear();
+        }
+    }
+
+    /**
+     * Creates a {@link Declaration} from a {@link Channel} method invocation.
+     * 
+     * @return the declaration, or null if the invocation is not a recordable declaration
+     */
+    @SuppressWarnings("unchecked")
+    public static Declaration toDeclaration(final Method method, final Object[] args) {
+
+        String name = method.getName();
+        int numArgs = args == null ? 0 : args.length;
+
+        if ("exchangeDeclare".equals(name)) {
+
+            switch (numArgs) {
+                case 2:
+                    return Declaration.exchange((String) args[0], (String) args[1], false, false, false, null);
+                case 3:
+                    return Declaration.exchange((String) args[0], (String) args[1], (Boolean) args[2], false, false,
+                            null);
+                case 5:
+                    return Declaration.exchange((String) args[0], (String) args[1], (Boolean) args[2],
+                            (Boolean) args[3], false, (Map<String, Object>) args[4]);
+                case 6:
+                    return Declaration.exchange((String) args[0], (String) args[1], (Boolean) args[2],
+                            (Boolean) args[3], (Boolean) args[4], (Map<String, Object>) args[5]);
+                default:
+                    return null;
+            }
+        }
+
+        // server-named queues get a new name on every declare, nothing to replay
+        if ("queueDeclare".equals(name) && numArgs == 5 && ((String) args[0]).length() > 0) {
+            return Declaration.queue((String) args[0], (Boolean) args[1], (Boolean) args[2], (Boolean) args[3],
+                    (Map<String, Object>) args[4]);
+        }
+
+        if ("queueBind".equals(name) || "queueUnbind".equals(name)) {
+            return Declaration.queueBinding((String) args[0], (String) args[1], (String) args[2],
+                    numArgs > 3 ? (Map<String, Object>) args[3] : null);
+        }
+
+        if ("exchangeBind".equals(name) || "exchangeUnbind".equals(name)) {
+            return Declaration.exchangeBinding((String) args[0], (String) args[1], (String) args[2],
+                    numArgs > 3 ? (Map<String, Object>) args[3] : null);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a snapshot of all recorded declarations in the order they were first made
+     */
+    public List<Declaration> getDeclarations() {
+
+        synchronized (declarations) {
+            return new ArrayList<Declaration>(declarations.values());
+        }
+    }
+
+    /**
+     * Inspects a successful {@link Channel} method invocation and records or forgets any topology it changed.
+     * 
+     * @param reply
+     *        the broker's reply, which names the queue of a server-named queue declaration
+     */
+    public void recordInvocation(final Method method, final Object[] args, final Object reply) {
+
+        String name = method.getName();
+
+        if ("queueDelete".equals(name)) {
+            removeEntity(Declaration.Type.QUEUE, (String) args[0]);
+            return;
+        }
+
+        if ("queueDeclare".equals(name) && reply instanceof AMQP.Queue.DeclareOk
+                && (args == null || args.length == 0 || ((String) args[0]).length() == 0)) {
+
+            synchronized (declarations) {
+                serverNamedQueues.add(((AMQP.Queue.DeclareOk) reply).getQueue());
+            }
+
+            return;
+        }
+
+        if ("exchangeDelete".equals(name)) {
+            removeEntity(Declaration.Type.EXCHANGE, (String) args[0]);
+            return;
+        }
+
+        Declaration declaration = toDeclaration(method, args);
+        if (declaration == null) {
+            return;
+        }
+
+        synchronized (declarations) {
+
+            if (declaration.getType() == Declaration.Type.QUEUE_BINDING
+                    && serverNamedQueues.contains(declaration.getDestination())) {
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Not recording binding of server-named queue: declaration=" + declaration);
+                }
+
+                return;
+            }
+
+            if (name.endsWith("Unbind")) {
+                declarations.remove(declaration.getKey());
+            } else {
+                // a redeclaration keeps its original position so that replay order is preserved
+                declarations.put(declaration.getKey(), declaration);
+            }
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Recorded topology change: method=" + name + ", declaration=" + declaration);
+        }
+    }
+
+    public int size() {
+
+        synchronized (declarations) {
+            return declarations.size();
+        }
+    }
+
+    private void removeEntity(final Declaration.Type type, final String entityName) {
+
+        synchronized (declarations) {
+
+            if (type == Declaration.Type.QUEUE) {
+                serverNamedQueues.remove(entityName);
+            }
+
+            Iterator<Declaration> iterator = declarations.values().iterator();
+            while (iterator.hasNext()) {
+
+                if (iterator.next().refersTo(type, entityName)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.topology;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Counts and timings of a single bulk topology recovery.
+ * 
+ * @author Josh Devins
+ */
+public class TopologyRecoveryResult {
+
+    private final int numDeclarations;
+
+    private final int numChannels;
+
+    private final long pipelineMillis;
+
+    private final long barrierMillis;
+
+    private final long totalMillis;
+
+    private final List<Declaration> failedDeclarations;
+
+    public TopologyRecoveryResult(final int numDeclarations, final int numChannels, final long pipelineMillis,
+            final long barrierMillis, final long totalMillis, final List<Declaration> failedDeclarations) {
+
+        this.numDeclarations = numDeclarations;
+        this.numChannels = numChannels;
+        this.pipelineMillis = pipelineMillis;
+        this.barrierMillis = barrierMillis;
+        this.totalMillis = totalMillis;
+        this.failedDeclarations = Collections.unmodifiableList(failedDeclarations);
+    }
+
+    /**
+     * Time spent waiting for the barrier round trips that confirm all pipelined declarations were processed.
+     */
+    public long getBarrierMillis() {
+        return barrierMillis;
+    }
+
+    /**
+     * Declarations that the broker rejected. These were retried synchronously and still failed.
+     */
+    public List<Declaration> getFailedDeclarations() {
+        return failedDeclarations;
+    }
+
+    public int getNumChannels() {
+        return numChannels;
+    }
+
+    public int getNumDeclarations() {
+        return numDeclarations;
+    }
+
+    /**
+     * Time spent writing the nowait declarations to the recovery channels.
+     */
+    public long getPipelineMillis() {
+        return pipelineMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public boolean isSuccessful() {
+        return failedDeclarations.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "TopologyRecoveryResult[declarations=" + numDeclarations + ", channels=" + numChannels + ", failed="
+                + failedDeclarations.size() + ", pipelineMillis=" + pipelineMillis + ", barrierMillis="
+                + barrierMillis + ", totalMillis=" + totalMillis + "]";
+    }
+}
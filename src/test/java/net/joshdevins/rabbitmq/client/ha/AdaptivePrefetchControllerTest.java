@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptivePrefetchControllerTest {
+
+    @Test
+    public void testFastConsumerIsGivenMorePrefetch() {
+
+        AdaptivePrefetchController controller = new AdaptivePrefetchController(1, 1000, 0);
+
+        // 1ms processing, acked straight away, 10ms round trip: about 11 messages need to be outstanding
+        simulate(controller, 20, 1000000, true);
+
+        int prefetch = controller.nextPrefetch(10);
+        Assert.assertTrue("prefetch=" + prefetch, prefetch >= 11 && prefetch <= 1000);
+    }
+
+    @Test
+    public void testNoChangeWithoutEnoughSamples() {
+
+        AdaptivePrefetchController controller = new AdaptivePrefetchController(1, 1000, 0);
+        simulate(controller, 2, 1000000, true);
+
+        Assert.assertEquals(0, controller.nextPrefetch(10));
+    }
+
+    @Test
+    public void testPrefetchIsBounded() {
+
+        AdaptivePrefetchController controller = new AdaptivePrefetchController(5, 20, 0);
+
+        // practically free processing would otherwise ask for a huge prefetch
+        simulate(controller, 20, 0, true);
+        Assert.assertEquals(20, controller.nextPrefetch(50));
+    }
+
+    @Test
+    public void testSmallChangesAreIgnored() {
+
+        AdaptivePrefetchController controller = new AdaptivePrefetchController(1, 1000, 0);
+        simulate(controller, 20, 1000000, true);
+
+        int prefetch = controller.nextPrefetch(10);
+        controller.setPrefetch(prefetch);
+
+        Assert.assertEquals(0, controller.nextPrefetch(10));
+    }
+
+    @Test
+    public void testMultipleAckCoversEarlierDeliveries() {
+
+        AdaptivePrefetchController controller = new AdaptivePrefetchController(1, 1000, 0);
+        simulate(controller, 20, 1000000, false);
+
+        Assert.assertTrue(controller.getAckLatencyMillis() < 0);
+
+        controller.acknowledged(20, true);
+        Assert.assertTrue(controller.getAckLatencyMillis() >= 0);
+        Assert.assertTrue(controller.nextPrefetch(10) > 0);
+    }
+
+    private void simulate(final AdaptivePrefetchController controller, final int deliveries,
+            final long processingNanos, final boolean ack) {
+
+        for (long tag = 1; tag <= deliveries; tag++) {
+
+            controller.delivered(tag);
+            controller.processed(processingNanos);
+
+            if (ack) {
+                controller.acknowledged(tag, false);
+            }
+        }
+    }
+}
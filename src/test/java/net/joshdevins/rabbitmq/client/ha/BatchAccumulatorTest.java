@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+public class BatchAccumulatorTest {
+
+    private static class RecordingBatchConsumer extends AbstractBatchConsumer {
+
+        private final List<List<Delivery>> batches = new CopyOnWriteArrayList<List<Delivery>>();
+
+        private final boolean failFirst;
+
+        private RecordingBatchConsumer(final int maxBatchSize, final long maxLingerMillis, final boolean failFirst) {
+
+            super(maxBatchSize, maxLingerMillis, false);
+            this.failFirst = failFirst;
+        }
+
+        public List<Delivery> handleBatch(final String consumerTag, final List<Delivery> deliveries) {
+
+            batches.add(deliveries);
+            return failFirst ? Collections.singletonList(deliveries.get(0)) : null;
+        }
+    }
+
+    private ExecutorService executorService;
+
+    private ScheduledExecutorService scheduler;
+
+    private HaConnectionProxy connectionProxy;
+
+    private HaChannelProxy channelProxy;
+
+    private Channel target;
+
+    private Channel channel;
+
+    @After
+    public void after() {
+
+        executorService.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Before
+    public void before() throws Exception {
+
+        executorService = Executors.newCachedThreadPool();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        connectionProxy = new HaConnectionProxy(new Address[] { new Address("localhost") }, null,
+                new NeverRetryStrategy());
+        connectionProxy.setDeliveryDispatch(0, 0, null, executorService);
+        connectionProxy.setScheduler(scheduler);
+
+        createChannel();
+    }
+
+    @Test
+    public void testDeliveryOutsideHaChannelIsBatchOfOne() throws Exception {
+
+        RecordingBatchConsumer consumer = new RecordingBatchConsumer(10, 60000, false);
+        consumer.handleDelivery("tag", new Envelope(1, false, "exchange", "key"), null, new byte[0]);
+
+        assertEquals(1, consumer.batches.size());
+        assertEquals(1, consumer.batches.get(0).size());
+
+        try {
+            new RecordingBatchConsumer(10, 60000, true).handleDelivery("tag", new Envelope(2, false, "exchange",
+                    "key"), null, new byte[0]);
+            fail("Expected IOException");
+
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFullBatchIsAckedOnce() throws Exception {
+
+        RecordingBatchConsumer consumer = new RecordingBatchConsumer(3, 60000, false);
+        Consumer registered = consume(consumer);
+
+        for (long tag = 1; tag <= 3; tag++) {
+            registered.handleDelivery("tag", new Envelope(tag, false, "exchange", "key"), null, new byte[0]);
+        }
+
+        verify(target, timeout(5000)).basicAck(3, true);
+        verify(target, never()).basicAck(1, false);
+        assertEquals(1, consumer.batches.size());
+        assertEquals(3, consumer.batches.get(0).size());
+    }
+
+    @Test
+    public void testLingerIsNotCountedAsAckLatency() throws Exception {
+
+        connectionProxy.setAdaptivePrefetch(1, 1000);
+        createChannel();
+
+        Consumer registered = consume(new RecordingBatchConsumer(10, 200, false));
+        registered.handleDelivery("tag", new Envelope(1, false, "exchange", "key"), null, new byte[0]);
+
+        verify(target, timeout(5000)).basicAck(1, true);
+
+        // the ack is recorded after it has been sent
+        AdaptivePrefetchController prefetchController = channelProxy.getPrefetchController();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (prefetchController.getAckLatencyMillis() < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        double ackLatencyMillis = prefetchController.getAckLatencyMillis();
+        assertTrue("ackLatencyMillis=" + ackLatencyMillis, ackLatencyMillis >= 0 && ackLatencyMillis < 100);
+    }
+
+    @Test
+    public void testLingerFlushesPartialBatchAndNacksFailures() throws Exception {
+
+        RecordingBatchConsumer consumer = new RecordingBatchConsumer(10, 50, true);
+        Consumer registered = consume(consumer);
+
+        registered.handleDelivery("tag", new Envelope(1, false, "exchange", "key"), null, new byte[0]);
+        registered.handleDelivery("tag", new Envelope(2, false, "exchange", "key"), null, new byte[0]);
+
+        verify(target, timeout(5000)).basicAck(2, false);
+        verify(target).basicNack(1, false, false);
+        verify(target, never()).basicAck(anyLong(), eq(true));
+        assertEquals(1, consumer.batches.size());
+    }
+
+    private Consumer consume(final Consumer consumer) throws Exception {
+
+        channel.basicConsume("queue", false, consumer);
+
+        ArgumentCaptor<Consumer> captor = ArgumentCaptor.forClass(Consumer.class);
+        verify(target).basicConsume(anyString(), anyBoolean(), captor.capture());
+
+        return captor.getValue();
+    }
+
+    private void createChannel() throws Exception {
+
+        target = mock(Channel.class);
+        when(target.basicConsume(anyString(), anyBoolean(), any(Consumer.class))).thenReturn("tag");
+
+        channelProxy = new HaChannelProxy(connectionProxy, target, new NeverRetryStrategy());
+        channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                channelProxy);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedHaConnectionFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+
+public class ConnectionHealthProbeTest {
+
+    private static final Address[] ADDRESSES = new Address[] { new Address("localhost") };
+
+    private SimulatedBroker broker;
+
+    private SimulatedHaConnectionFactory connectionFactory;
+
+    private ExecutorService executorService;
+
+    @After
+    public void after() {
+
+        connectionFactory.shutdownGracefully(1000);
+        executorService.shutdownNow();
+    }
+
+    @Before
+    public void before() {
+
+        broker = new SimulatedBroker();
+        connectionFactory = new SimulatedHaConnectionFactory(broker);
+        connectionFactory.setReconnectionWaitMillis(10);
+
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @Test
+    public void testDeadConnectionIsAbortedAndReconnected() throws Exception {
+
+        final BlockingQueue<HaConnectionProxy> reconnections = new LinkedBlockingQueue<HaConnectionProxy>();
+        connectionFactory.addHaConnectionListener(new AbstractHaConnectionListener() {
+
+            @Override
+            public void onReconnection(final HaConnectionProxy connectionProxy) {
+                reconnections.add(connectionProxy);
+            }
+        });
+
+        connectionFactory.setHealthProbeIntervalMillis(20);
+        connectionFactory.setHealthProbeTimeoutMillis(50);
+        connectionFactory.setHealthProbeMaxMisses(2);
+
+        HaConnectionProxy proxy = getProxy(connectionFactory.newConnection(ADDRESSES));
+        ConnectionHealthProbe probe = proxy.getHealthProbe();
+        assertNotNull(probe);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (probe.getLastRttMillis() < 0) {
+
+            assertTrue("No successful probe", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        // the connection stays open, but the broker no longer answers in time
+        Connection halfOpen = proxy.getTargetConnection();
+        broker.setFrameDelayMillis(200);
+
+        while (halfOpen.isOpen()) {
+
+            assertTrue("Half-open connection was not aborted", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        broker.setFrameDelayMillis(0);
+
+        assertNotNull(reconnections.poll(5, TimeUnit.SECONDS));
+        assertNotSame(halfOpen, proxy.getTargetConnection());
+        assertTrue(proxy.getTargetConnection().isOpen());
+    }
+
+    @Test
+    public void testMissesUpToThresholdReportDeadConnection() throws Exception {
+
+        HaConnectionProxy proxy = getProxy(connectionFactory.newConnection(ADDRESSES));
+        ConnectionHealthProbe.DeadConnectionHandler handler = mock(ConnectionHealthProbe.DeadConnectionHandler.class);
+        ConnectionHealthProbe probe = new ConnectionHealthProbe(proxy, executorService, handler, 50, 3);
+
+        probe.run();
+        assertEquals(0, probe.getConsecutiveMisses());
+
+        broker.setFrameDelayMillis(500);
+
+        probe.run();
+        assertEquals(1, probe.getConsecutiveMisses());
+
+        // the previous probe is still waiting on the broker
+        probe.run();
+        assertEquals(2, probe.getConsecutiveMisses());
+        verify(handler, never()).onDeadConnection(any(HaConnectionProxy.class), any(Connection.class),
+                any(String.class));
+
+        probe.run();
+        verify(handler).onDeadConnection(eq(proxy), eq(proxy.getTargetConnection()), any(String.class));
+        assertEquals(0, probe.getConsecutiveMisses());
+    }
+
+    @Test
+    public void testProbeIsStoppedWhenConnectionIsClosedOrAborted() throws Exception {
+
+        Connection closed = connectionFactory.newConnection(ADDRESSES);
+        ScheduledFuture<?> closedSchedule = mock(ScheduledFuture.class);
+        getProxy(closed).setHealthProbe(newProbe(getProxy(closed)), closedSchedule);
+
+        Connection aborted = connectionFactory.newConnection(ADDRESSES);
+        ScheduledFuture<?> abortedSchedule = mock(ScheduledFuture.class);
+        getProxy(aborted).setHealthProbe(newProbe(getProxy(aborted)), abortedSchedule);
+
+        verify(closedSchedule, never()).cancel(false);
+        verify(abortedSchedule, never()).cancel(false);
+
+        closed.close();
+        verify(closedSchedule).cancel(false);
+
+        aborted.abort();
+        verify(abortedSchedule).cancel(false);
+    }
+
+    @Test
+    public void testProbeIsStoppedWhenConnectionIsDrained() throws Exception {
+
+        HaConnectionProxy proxy = getProxy(connectionFactory.newConnection(ADDRESSES));
+        ScheduledFuture<?> schedule = mock(ScheduledFuture.class);
+        proxy.setHealthProbe(newProbe(proxy), schedule);
+
+        connectionFactory.shutdownGracefully(1000);
+        verify(schedule).cancel(false);
+    }
+
+    @Test
+    public void testRoundTripTimeIsAveraged() throws Exception {
+
+        HaConnectionProxy proxy = getProxy(connectionFactory.newConnection(ADDRESSES));
+        ConnectionHealthProbe probe = newProbe(proxy);
+        assertEquals(-1, probe.getRttEwmaMillis(), 0);
+
+        broker.setFrameDelayMillis(50);
+        probe.run();
+
+        double first = probe.getLastRttMillis();
+        assertTrue("Round trip should include the broker delay: " + first, first >= 50);
+        assertEquals(first, probe.getRttEwmaMillis(), 0.001);
+
+        broker.setFrameDelayMillis(0);
+        probe.run();
+
+        // each new sample only moves the average part of the way
+        double second = probe.getLastRttMillis();
+        assertTrue(second < first);
+        assertEquals(0.2 * second + 0.8 * first, probe.getRttEwmaMillis(), 0.001);
+        assertEquals(0, probe.getConsecutiveMisses());
+        assertFalse(probe.getRttEwmaMillis() < second);
+    }
+
+    private HaConnectionProxy getProxy(final Connection connection) {
+        return (HaConnectionProxy) Proxy.getInvocationHandler(connection);
+    }
+
+    private ConnectionHealthProbe newProbe(final HaConnectionProxy proxy) {
+        return new ConnectionHealthProbe(proxy, executorService,
+                mock(ConnectionHealthProbe.DeadConnectionHandler.class), 1000, 3);
+    }
+}
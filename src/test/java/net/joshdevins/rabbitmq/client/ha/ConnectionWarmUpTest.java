@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedHaConnectionFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+
+public class ConnectionWarmUpTest {
+
+    private static final Address[] ADDRESSES = new Address[] { new Address("localhost") };
+
+    private SimulatedBroker broker;
+
+    private SimulatedHaConnectionFactory connectionFactory;
+
+    private ConnectionWarmUp warmUp;
+
+    @After
+    public void after() {
+        connectionFactory.shutdownGracefully(1000);
+    }
+
+    @Before
+    public void before() {
+
+        broker = new SimulatedBroker();
+        connectionFactory = new SimulatedHaConnectionFactory(broker);
+        connectionFactory.setReconnectionWaitMillis(10);
+
+        warmUp = new ConnectionWarmUp(connectionFactory, ADDRESSES);
+        warmUp.setNumConnections(3);
+        warmUp.setChannelsPerConnection(2);
+    }
+
+    @Test
+    public void testDeadlineFailsFastAndClosesConnections() throws Exception {
+
+        // every connection takes longer than the deadline
+        broker.setFrameDelayMillis(500);
+        warmUp.setDeadlineMillis(100);
+
+        long start = System.currentTimeMillis();
+        try {
+            warmUp.warmUp();
+            fail("Expected IOException");
+
+        } catch (IOException ioe) {
+            assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("Warm-up deadline reached"));
+        }
+
+        assertTrue("Warm-up should give up at the deadline", System.currentTimeMillis() - start < 500);
+
+        // connections that complete after giving up are closed by themselves
+        broker.setFrameDelayMillis(0);
+        awaitConnectionCount(0);
+    }
+
+    @Test
+    public void testDeadlineWithoutFailFastCarriesOnInBackground() throws Exception {
+
+        broker.setRejectingConnects(true);
+        warmUp.setDeadlineMillis(100);
+        warmUp.setFailFast(false);
+
+        ConnectionWarmUp.Result result = warmUp.warmUp();
+        assertFalse(result.isComplete());
+        assertEquals(0, result.getConnections().size());
+
+        broker.setRejectingConnects(false);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!result.isComplete()) {
+
+            assertTrue("Connections were not established in the background", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        assertEquals(3, result.getConnections().size());
+        assertEquals(6, result.getChannels().size());
+    }
+
+    @Test
+    public void testPartialFailureFailsFastAndClosesConnections() throws Exception {
+
+        // one of the three connections is refused
+        broker.rejectConnects(1);
+
+        try {
+            warmUp.warmUp();
+            fail("Expected IOException");
+
+        } catch (IOException ioe) {
+            // expected
+        }
+
+        awaitConnectionCount(0);
+    }
+
+    @Test
+    public void testWarmUpOpensAndInitializesChannels() throws Exception {
+
+        warmUp.setChannelInitializer(new ConnectionWarmUp.ChannelInitializer() {
+
+            public void initialize(final Channel channel) throws IOException {
+                channel.queueDeclare("queue-" + channel.getChannelNumber(), false, false, false, null);
+            }
+        });
+
+        ConnectionWarmUp.Result result = warmUp.warmUp();
+
+        assertTrue(result.isComplete());
+        assertEquals(3, result.getConnections().size());
+        assertEquals(6, result.getChannels().size());
+        assertEquals(3, broker.getConnectionCount());
+
+        for (Channel channel : result.getChannels()) {
+            assertTrue(broker.hasQueue("queue-" + channel.getChannelNumber()));
+        }
+    }
+
+    private void awaitConnectionCount(final int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (broker.getConnectionCount() != count) {
+
+            assertTrue("Connections left open: " + broker.getConnectionCount(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
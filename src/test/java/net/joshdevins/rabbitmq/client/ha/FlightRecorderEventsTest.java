@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.joshdevins.rabbitmq.client.ha.FlightRecorderEvents.EventType;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Records with JFR reflectively, so that this builds and is skipped on JVMs without it.
+ */
+public class FlightRecorderEventsTest {
+
+    @Test
+    public void testEventsAreRecordedOnlyWhileRecording() throws Exception {
+
+        Assume.assumeTrue(FlightRecorderEvents.isAvailable());
+
+        assertFalse(FlightRecorderEvents.isRecording());
+        assertNull(FlightRecorderEvents.begin(EventType.RETRY));
+
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.getConstructor().newInstance();
+        recordingClass.getMethod("start").invoke(recording);
+
+        File file = File.createTempFile("ha-events", ".jfr");
+        try {
+            assertTrue(FlightRecorderEvents.isRecording());
+
+            FlightRecorderEvents.emit(EventType.RETRY, "basicPublish", 2, "AlreadyClosedException");
+
+            Object event = FlightRecorderEvents.begin(EventType.RECONNECT);
+            FlightRecorderEvents.commit(event, "[localhost:5672]", 3, true);
+
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Class.forName("java.nio.file.Path")).invoke(recording,
+                    File.class.getMethod("toPath").invoke(file));
+
+            assertFalse(FlightRecorderEvents.isRecording());
+
+            List<String> names = new ArrayList<String>();
+            for (Object recorded : readAllEvents(file)) {
+
+                Object type = recorded.getClass().getMethod("getEventType").invoke(recorded);
+                String name = (String) type.getClass().getMethod("getName").invoke(type);
+
+                if (name.startsWith("net.joshdevins.")) {
+                    names.add(name);
+
+                    if (name.equals(EventType.RECONNECT.getName())) {
+                        Method getValue = recorded.getClass().getMethod("getValue", String.class);
+                        assertEquals(3, getValue.invoke(recorded, "attempts"));
+                        assertEquals("[localhost:5672]", getValue.invoke(recorded, "addresses"));
+                    }
+                }
+            }
+
+            assertEquals(2, names.size());
+            assertTrue(names.contains(EventType.RETRY.getName()));
+            assertTrue(names.contains(EventType.RECONNECT.getName()));
+
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            file.delete();
+        }
+    }
+
+    private List<?> readAllEvents(final File file) throws Exception {
+
+        Method readAllEvents = Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents",
+                Class.forName("java.nio.file.Path"));
+
+        return (List<?>) readAllEvents.invoke(null, File.class.getMethod("toPath").invoke(file));
+    }
+}
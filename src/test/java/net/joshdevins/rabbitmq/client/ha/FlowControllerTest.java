@@ -0,0 +1,231 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class FlowControllerTest {
+
+    private HaConnectionProxy connectionProxy;
+
+    private Channel target;
+
+    @Before
+    public void before() {
+
+        connectionProxy = new HaConnectionProxy(new Address[] { new Address("localhost") }, null,
+                new NeverRetryStrategy());
+        target = mock(Channel.class);
+    }
+
+    @Test
+    public void testBufferSendsPublishesInOrderWhenResumed() throws Exception {
+
+        final CountDownLatch sent = new CountDownLatch(2);
+        doAnswer(new Answer<Object>() {
+
+            public Object answer(final InvocationOnMock invocation) {
+
+                sent.countDown();
+                return null;
+            }
+        }).when(target).basicPublish(anyString(), anyString(), anyBoolean(), anyBoolean(),
+                any(BasicProperties.class), any(byte[].class));
+
+        HaChannelProxy channelProxy = newChannelProxy(FlowControlPolicy.BUFFER, 0);
+        Channel channel = newChannel(channelProxy);
+        FlowController flowController = channelProxy.getFlowController();
+
+        flowController.handleFlow(false);
+        channel.basicPublish("exchange", "first", null, new byte[] { 1 });
+        channel.basicPublish("exchange", "second", null, new byte[] { 2 });
+
+        assertEquals(2, flowController.getBufferedPublishes());
+        verify(target, never()).basicPublish(anyString(), anyString(), anyBoolean(), anyBoolean(),
+                any(BasicProperties.class), any(byte[].class));
+
+        flowController.handleFlow(true);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+        InOrder inOrder = inOrder(target);
+        inOrder.verify(target).basicPublish("exchange", "first", false, false, null, new byte[] { 1 });
+        inOrder.verify(target).basicPublish("exchange", "second", false, false, null, new byte[] { 2 });
+        assertEquals(1, flowController.getFlowControlPauses());
+    }
+
+    @Test
+    public void testCloseSendsBufferedPublishesBeforeClosingChannel() throws Exception {
+
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch send = new CountDownLatch(1);
+        doAnswer(new Answer<Object>() {
+
+            public Object answer(final InvocationOnMock invocation) throws InterruptedException {
+
+                sending.countDown();
+                send.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(target).basicPublish(anyString(), anyString(), anyBoolean(), anyBoolean(),
+                any(BasicProperties.class), any(byte[].class));
+
+        HaChannelProxy channelProxy = newChannelProxy(FlowControlPolicy.BUFFER, 0);
+        final Channel channel = newChannel(channelProxy);
+        FlowController flowController = channelProxy.getFlowController();
+
+        flowController.handleFlow(false);
+        channel.basicPublish("exchange", "first", null, new byte[] { 1 });
+        channel.basicPublish("exchange", "second", null, new byte[] { 2 });
+
+        // the first buffered publish is held up on its way out
+        flowController.handleFlow(true);
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        new Thread(new Runnable() {
+
+            public void run() {
+
+                try {
+                    channel.close();
+                } catch (IOException ioe) {
+                    // checked below
+                }
+
+                closed.countDown();
+            }
+        }).start();
+
+        assertFalse(closed.await(100, TimeUnit.MILLISECONDS));
+        verify(target, never()).close();
+
+        send.countDown();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+
+        InOrder inOrder = inOrder(target);
+        inOrder.verify(target).basicPublish("exchange", "first", false, false, null, new byte[] { 1 });
+        inOrder.verify(target).basicPublish("exchange", "second", false, false, null, new byte[] { 2 });
+        inOrder.verify(target).close();
+        assertEquals(0, flowController.getBufferedPublishes());
+    }
+
+    @Test
+    public void testCloseWhilePausedGivesUpOnBufferedPublishes() throws Exception {
+
+        HaChannelProxy channelProxy = newChannelProxy(FlowControlPolicy.BUFFER, 0);
+        Channel channel = newChannel(channelProxy);
+        FlowController flowController = channelProxy.getFlowController();
+
+        flowController.handleFlow(false);
+        channel.basicPublish("exchange", "routingKey", null, new byte[0]);
+        assertEquals(1, flowController.getBufferedPublishes());
+
+        channel.close();
+
+        verify(target).close();
+        verify(target, never()).basicPublish(anyString(), anyString(), anyBoolean(), anyBoolean(),
+                any(BasicProperties.class), any(byte[].class));
+        assertEquals(0, flowController.getBufferedPublishes());
+    }
+
+    @Test
+    public void testFailFastLetsOtherOperationsThrough() throws Exception {
+
+        HaChannelProxy channelProxy = newChannelProxy(FlowControlPolicy.FAIL_FAST, 0);
+        Channel channel = newChannel(channelProxy);
+        FlowController flowController = channelProxy.getFlowController();
+
+        flowController.handleFlow(false);
+        assertFalse(flowController.isPublishPermitted());
+
+        try {
+            channel.basicPublish("exchange", "routingKey", null, new byte[0]);
+            fail("Expected publishing to be paused");
+        } catch (IOException ioe) {
+            // expected
+        }
+
+        channel.basicAck(1, false);
+        verify(target).basicAck(1, false);
+
+        flowController.handleFlow(true);
+        channel.basicPublish("exchange", "routingKey", null, new byte[0]);
+        verify(target).basicPublish("exchange", "routingKey", null, new byte[0]);
+    }
+
+    @Test
+    public void testWaitTimesOutAndMeasuresPause() throws Exception {
+
+        HaChannelProxy channelProxy = newChannelProxy(FlowControlPolicy.WAIT, 50);
+        Channel channel = newChannel(channelProxy);
+        FlowController flowController = channelProxy.getFlowController();
+
+        flowController.handleFlow(false);
+
+        long start = System.currentTimeMillis();
+        try {
+            channel.basicPublish("exchange", "routingKey", null, new byte[0]);
+            fail("Expected the wait to time out");
+        } catch (IOException ioe) {
+            assertTrue(System.currentTimeMillis() - start >= 50);
+        }
+
+        // a replacement channel starts out with publishing permitted
+        channelProxy.setTargetChannel(mock(Channel.class));
+        assertTrue(flowController.isPublishPermitted());
+        assertTrue(flowController.getFlowControlMillis() >= 50);
+    }
+
+    private Channel newChannel(final HaChannelProxy channelProxy) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                channelProxy);
+    }
+
+    private HaChannelProxy newChannelProxy(final FlowControlPolicy policy, final long waitMillis) {
+
+        connectionProxy.setFlowControl(policy, waitMillis, 10);
+        return new HaChannelProxy(connectionProxy, target, new NeverRetryStrategy());
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedHaConnectionFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class HaChannelProxyAcknowledgementTest {
+
+    private static final Address[] ADDRESSES = new Address[] { new Address("localhost") };
+
+    private SimulatedBroker broker;
+
+    private SimulatedHaConnectionFactory connectionFactory;
+
+    private BlockingQueue<HaConnectionProxy> reconnections;
+
+    private Channel channel;
+
+    @After
+    public void after() {
+        connectionFactory.shutdownGracefully(1000);
+    }
+
+    @Before
+    public void before() throws IOException {
+
+        broker = new SimulatedBroker();
+        connectionFactory = new SimulatedHaConnectionFactory(broker);
+        connectionFactory.setReconnectionWaitMillis(10);
+
+        reconnections = new LinkedBlockingQueue<HaConnectionProxy>();
+        connectionFactory.addHaConnectionListener(new AbstractHaConnectionListener() {
+
+            @Override
+            public void onReconnection(final HaConnectionProxy connectionProxy) {
+                reconnections.add(connectionProxy);
+            }
+        });
+
+        Connection connection = connectionFactory.newConnection(ADDRESSES);
+        channel = connection.createChannel();
+        channel.queueDeclare("queue", true, false, false, null);
+    }
+
+    @Test
+    public void testAcksForDeliveriesOfReplacedChannelAreDropped() throws Exception {
+
+        final BlockingQueue<Envelope> deliveries = new LinkedBlockingQueue<Envelope>();
+        channel.basicConsume("queue", false, new DefaultConsumer(channel) {
+
+            @Override
+            public void handleDelivery(final String consumerTag, final Envelope envelope,
+                    final BasicProperties properties, final byte[] body) {
+                deliveries.add(envelope);
+            }
+        });
+
+        channel.basicPublish("", "queue", null, "first".getBytes());
+        channel.basicPublish("", "queue", null, "second".getBytes());
+
+        Envelope first = next(deliveries);
+        Envelope second = next(deliveries);
+
+        broker.killConnections();
+        assertNotNull(reconnections.poll(5, TimeUnit.SECONDS));
+
+        Envelope redeliveredFirst = next(deliveries);
+        Envelope redeliveredSecond = next(deliveries);
+        assertTrue(redeliveredFirst.isRedeliver());
+        assertFalse(first.getDeliveryTag() == redeliveredFirst.getDeliveryTag());
+
+        // queued up before the failure, these would ack the wrong delivery or close the channel with 406
+        channel.basicAck(second.getDeliveryTag(), false);
+        channel.basicAck(first.getDeliveryTag(), true);
+        assertTrue(channel.isOpen());
+        assertEquals(0, broker.getMessagesAcked());
+
+        channel.basicAck(redeliveredFirst.getDeliveryTag(), false);
+        channel.basicAck(redeliveredSecond.getDeliveryTag(), false);
+        assertTrue(channel.isOpen());
+        assertEquals(2, broker.getMessagesAcked());
+    }
+
+    @Test
+    public void testBasicGetTagsCarryChannelGeneration() throws Exception {
+
+        channel.basicPublish("", "queue", null, "first".getBytes());
+        GetResponse before = channel.basicGet("queue", false);
+
+        broker.killConnections();
+        assertNotNull(reconnections.poll(5, TimeUnit.SECONDS));
+
+        GetResponse after = channel.basicGet("queue", false);
+        assertTrue(after.getEnvelope().isRedeliver());
+
+        channel.basicAck(before.getEnvelope().getDeliveryTag(), false);
+        assertEquals(0, broker.getMessagesAcked());
+
+        channel.basicAck(after.getEnvelope().getDeliveryTag(), false);
+        assertTrue(channel.isOpen());
+        assertEquals(1, broker.getMessagesAcked());
+        assertEquals(0, broker.getMessageCount("queue"));
+    }
+
+    private Envelope next(final BlockingQueue<Envelope> deliveries) throws InterruptedException {
+
+        Envelope envelope = deliveries.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Timed out waiting for a delivery", envelope);
+
+        return envelope;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+
+import net.joshdevins.rabbitmq.client.ha.buffer.SlabArena;
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class HaChannelProxyTransactionTest {
+
+    private HaConnectionProxy connectionProxy;
+
+    private HaChannelProxy channelProxy;
+
+    private Channel target;
+
+    private Channel channel;
+
+    @Before
+    public void before() {
+
+        connectionProxy = new HaConnectionProxy(new Address[] { new Address("localhost") }, null,
+                new NeverRetryStrategy());
+
+        target = mock(Channel.class);
+        channelProxy = new HaChannelProxy(connectionProxy, target, new NeverRetryStrategy());
+        channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                channelProxy);
+    }
+
+    @Test
+    public void testArenaBoundsRetainedPublishes() throws Exception {
+
+        SlabArena arena = new SlabArena(256, 256, false);
+        connectionProxy.setRetainedPublishArena(arena);
+
+        byte[] body = new byte[200];
+        body[0] = 1;
+
+        channel.txSelect();
+        channel.basicPublish("exchange", "routingKey", null, body);
+        assertEquals(256, arena.getRetainedBytes());
+
+        try {
+            channel.basicPublish("exchange", "routingKey", null, new byte[200]);
+            fail("Publish should not fit in the arena");
+        } catch (IOException ioe) {
+            // expected
+        }
+
+        verify(target, times(1)).basicPublish(anyString(), anyString(), any(BasicProperties.class), any(byte[].class));
+
+        Channel replacement = replaceTarget();
+        verify(replacement).basicPublish("exchange", "routingKey", false, false, null, body);
+
+        channel.txCommit();
+        assertEquals(0, arena.getRetainedBytes());
+    }
+
+    @Test
+    public void testBatchedCommits() throws Exception {
+
+        connectionProxy.setTxCommitBatchSize(3);
+
+        channel.txSelect();
+        for (int i = 0; i < 3; i++) {
+            channel.basicPublish("exchange", "routingKey", null, new byte[] { (byte) i });
+            channel.txCommit();
+        }
+
+        verify(target, times(1)).txCommit();
+    }
+
+    @Test
+    public void testCommittedPublishesAreNotReplayed() throws Exception {
+
+        channel.txSelect();
+        channel.basicPublish("exchange", "routingKey", null, new byte[] { 1 });
+        channel.txCommit();
+
+        Channel replacement = replaceTarget();
+
+        verify(replacement).txSelect();
+        verify(replacement, never()).basicPublish(anyString(), anyString(), anyBoolean(), anyBoolean(),
+                any(BasicProperties.class), any(byte[].class));
+    }
+
+    @Test
+    public void testRollbackKeepsBatchedCommits() throws Exception {
+
+        connectionProxy.setTxCommitBatchSize(10);
+
+        byte[] committed = new byte[] { 1 };
+        byte[] rolledBack = new byte[] { 2 };
+
+        channel.txSelect();
+        channel.basicPublish("exchange", "routingKey", null, committed);
+        channel.txCommit();
+        channel.basicPublish("exchange", "routingKey", null, rolledBack);
+        channel.txRollback();
+
+        InOrder inOrder = inOrder(target);
+        inOrder.verify(target).txRollback();
+        inOrder.verify(target).basicPublish("exchange", "routingKey", false, false, null, committed);
+        inOrder.verify(target).txCommit();
+        inOrder.verify(target).basicPublish("exchange", "routingKey", false, false, null, rolledBack);
+        inOrder.verify(target).txRollback();
+    }
+
+    @Test
+    public void testRollbackKeepsAcksOfBatchedCommits() throws Exception {
+
+        connectionProxy.setTxCommitBatchSize(10);
+
+        byte[] committed = new byte[] { 1 };
+
+        channel.txSelect();
+        channel.basicPublish("exchange", "routingKey", null, committed);
+        channel.basicAck(1, false);
+        channel.txCommit();
+        channel.basicAck(2, false);
+        channel.txRollback();
+
+        InOrder inOrder = inOrder(target);
+        inOrder.verify(target).basicAck(1, false);
+        inOrder.verify(target).basicAck(2, false);
+        inOrder.verify(target).txRollback();
+        inOrder.verify(target).basicPublish("exchange", "routingKey", false, false, null, committed);
+        inOrder.verify(target).basicAck(1, false);
+        inOrder.verify(target).txCommit();
+        inOrder.verify(target).basicAck(2, false);
+        inOrder.verify(target).txRollback();
+    }
+
+    @Test
+    public void testUncommittedPublishesAreReplayed() throws Exception {
+
+        channel.txSelect();
+        channel.basicPublish("exchange", "routingKey", null, new byte[] { 1 });
+        channel.basicPublish("exchange", "routingKey", true, false, null, new byte[] { 2 });
+
+        Channel replacement = replaceTarget();
+
+        InOrder inOrder = inOrder(replacement);
+        inOrder.verify(replacement).txSelect();
+        inOrder.verify(replacement).basicPublish("exchange", "routingKey", false, false, null, new byte[] { 1 });
+        inOrder.verify(replacement).basicPublish("exchange", "routingKey", true, false, null, new byte[] { 2 });
+    }
+
+    private Channel replaceTarget() throws Exception {
+
+        Channel replacement = mock(Channel.class);
+        channelProxy.setTargetChannel(replacement);
+        channelProxy.restoreChannelState();
+
+        return replacement;
+    }
+}
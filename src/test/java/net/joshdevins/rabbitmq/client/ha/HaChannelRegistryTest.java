@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+public class HaChannelRegistryTest {
+
+    private HaConnectionProxy connectionProxy;
+
+    private HaChannelRegistry registry;
+
+    @Before
+    public void before() {
+
+        connectionProxy = new HaConnectionProxy(new Address[] { new Address("localhost") }, null,
+                new NeverRetryStrategy());
+        registry = new HaChannelRegistry();
+    }
+
+    @Test
+    public void testAddGetRemoveAcrossGrowth() {
+
+        Set<HaChannelProxy> added = new HashSet<HaChannelProxy>();
+        for (int channelNumber = 1; channelNumber <= 200; channelNumber++) {
+
+            HaChannelProxy proxy = newProxy(channelNumber);
+            registry.add(proxy);
+            added.add(proxy);
+        }
+
+        assertEquals(200, registry.size());
+        assertEquals(200, registry.get(200).getTargetChannel().getChannelNumber());
+        assertEquals(added, toSet(registry));
+
+        HaChannelProxy removed = registry.get(150);
+        assertTrue(registry.remove(removed));
+        assertFalse(registry.remove(removed));
+        assertNull(registry.get(150));
+        assertEquals(199, registry.size());
+        assertFalse(toSet(registry).contains(removed));
+    }
+
+    @Test
+    public void testChannelsCreatedWhileFirstConnectionIsSetUpAreConnectedOnce() throws Exception {
+
+        final Connection target = mock(Connection.class);
+        final AtomicInteger channelsCreated = new AtomicInteger();
+        when(target.createChannel()).thenAnswer(new Answer<Channel>() {
+
+            public Channel answer(final InvocationOnMock invocation) {
+
+                Channel channel = newChannel(channelsCreated.incrementAndGet());
+                when(channel.getConnection()).thenReturn(target);
+                when(channel.isOpen()).thenReturn(true);
+
+                return channel;
+            }
+        });
+
+        final Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, connectionProxy);
+
+        final ConcurrentLinkedQueue<Channel> channels = new ConcurrentLinkedQueue<Channel>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+
+                    try {
+                        start.await();
+                        for (int j = 0; j < 50; j++) {
+                            channels.add(connection.createChannel());
+                        }
+
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        connectionProxy.setTargetConnection(target);
+        connectionProxy.replaceChannelsInProxies();
+        connectionProxy.markAsOpen();
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(200, channelsCreated.get());
+
+        assertEquals(200, channels.size());
+        for (Channel channel : channels) {
+
+            HaChannelProxy proxy = (HaChannelProxy) Proxy.getInvocationHandler(channel);
+            assertNotNull(proxy.getTargetChannel());
+            assertSame(target, proxy.getTargetChannel().getConnection());
+        }
+    }
+
+    @Test
+    public void testConcurrentAddsAndRemovesAreNotLostWhileGrowing() throws Exception {
+
+        // removed and added in the initial slots, while other channels grow the slots many times over
+        final List<HaChannelProxy> removed = newProxies(1, 30, 1);
+        final List<HaChannelProxy> added = newProxies(31, 30, 1);
+        final List<HaChannelProxy> growing = newProxies(64, 30, 64);
+
+        for (int round = 0; round < 300; round++) {
+
+            final HaChannelRegistry registry = new HaChannelRegistry();
+            for (HaChannelProxy proxy : removed) {
+                registry.add(proxy);
+            }
+
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<Thread>();
+            threads.add(new Thread(new Runnable() {
+
+                public void run() {
+
+                    await(start);
+                    for (HaChannelProxy proxy : removed) {
+                        registry.remove(proxy);
+                    }
+                }
+            }));
+
+            threads.add(newAddingThread(registry, added, start));
+            threads.add(newAddingThread(registry, growing, start));
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            }
+
+            Set<HaChannelProxy> expected = new HashSet<HaChannelProxy>(added);
+            expected.addAll(growing);
+
+            for (HaChannelProxy proxy : removed) {
+                assertNull("Removal lost in round " + round, registry.get(getChannelNumber(proxy)));
+            }
+
+            for (HaChannelProxy proxy : expected) {
+                assertSame("Add lost in round " + round, proxy, registry.get(getChannelNumber(proxy)));
+            }
+
+            assertEquals(expected.size(), toSet(registry).size());
+            assertEquals(expected.size(), registry.size());
+        }
+    }
+
+    @Test
+    public void testUnnumberedAndDisplacedProxiesAreReindexed() {
+
+        HaChannelProxy unconnected = new HaChannelProxy(connectionProxy, null, new NeverRetryStrategy());
+        registry.add(unconnected);
+        assertEquals(1, registry.size());
+        assertTrue(toSet(registry).contains(unconnected));
+
+        // a channel of the old connection loses its number to a new channel
+        HaChannelProxy old = newProxy(1);
+        registry.add(old);
+        HaChannelProxy taken = newProxy(1);
+        registry.add(taken);
+
+        assertSame(taken, registry.get(1));
+        assertEquals(3, registry.size());
+        assertTrue(toSet(registry).contains(old));
+
+        unconnected.setTargetChannel(newChannel(2));
+        registry.reindex(unconnected, -1);
+        old.setTargetChannel(newChannel(3));
+        registry.reindex(old, 1);
+
+        assertSame(unconnected, registry.get(2));
+        assertSame(old, registry.get(3));
+        assertSame(taken, registry.get(1));
+        assertEquals(3, toSet(registry).size());
+        assertEquals(3, registry.size());
+    }
+
+    private void await(final CountDownLatch latch) {
+
+        try {
+            latch.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int getChannelNumber(final HaChannelProxy proxy) {
+        return proxy.getTargetChannel().getChannelNumber();
+    }
+
+    private Thread newAddingThread(final HaChannelRegistry registry, final List<HaChannelProxy> proxies,
+            final CountDownLatch start) {
+
+        return new Thread(new Runnable() {
+
+            public void run() {
+
+                await(start);
+                for (HaChannelProxy proxy : proxies) {
+                    registry.add(proxy);
+                }
+            }
+        });
+    }
+
+    private Channel newChannel(final int channelNumber) {
+
+        Channel channel = mock(Channel.class);
+        when(channel.getChannelNumber()).thenReturn(channelNumber);
+
+        return channel;
+    }
+
+    private HaChannelProxy newProxy(final int channelNumber) {
+        return new HaChannelProxy(connectionProxy, newChannel(channelNumber), new NeverRetryStrategy());
+    }
+
+    private List<HaChannelProxy> newProxies(final int firstChannelNumber, final int count, final int step) {
+
+        List<HaChannelProxy> proxies = new ArrayList<HaChannelProxy>();
+        for (int i = 0; i < count; i++) {
+            proxies.add(newProxy(firstChannelNumber + i * step));
+        }
+
+        return proxies;
+    }
+
+    private Set<HaChannelProxy> toSet(final Iterable<HaChannelProxy> proxies) {
+
+        Set<HaChannelProxy> set = new HashSet<HaChannelProxy>();
+        for (HaChannelProxy proxy : proxies) {
+            assertTrue("Iterated twice: " + proxy, set.add(proxy));
+        }
+
+        return set;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedHaConnectionFactory;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+public class HaConnectionFactoryTest {
+
+    private HaConnectionFactory connectionFactory;
+
+    @Before
+    public void before() {
+
+        connectionFactory = new HaConnectionFactory();
+        connectionFactory.setReconnectionWaitMillis(10);
+    }
+
+    @Test
+    public void testConnectionThatFailsDuringSetupIsClosed() throws Exception {
+
+        SimulatedBroker broker = new SimulatedBroker();
+        HaConnectionFactory simulatedFactory = new SimulatedHaConnectionFactory(broker);
+        simulatedFactory.setReconnectionWaitMillis(10);
+        simulatedFactory.setTopologyRecoveryEnabled(true);
+        simulatedFactory.setTopologyRecoveryTimeoutMillis(50);
+
+        final BlockingQueue<HaConnectionProxy> reconnections = new LinkedBlockingQueue<HaConnectionProxy>();
+        simulatedFactory.addHaConnectionListener(new AbstractHaConnectionListener() {
+
+            @Override
+            public void onReconnection(final HaConnectionProxy connectionProxy) {
+                reconnections.add(connectionProxy);
+            }
+        });
+
+        try {
+            Channel channel = simulatedFactory.newConnection(unreachable()).createChannel();
+            channel.queueDeclare("queue", false, false, false, null);
+
+            // reconnections succeed, but topology recovery on them times out
+            broker.setFrameDelayMillis(200);
+            broker.killConnections();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (broker.getConnectionsOpened() < 3) {
+
+                Assert.assertTrue("Expected repeated reconnections", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            broker.setFrameDelayMillis(0);
+            Assert.assertNotNull(reconnections.poll(5, TimeUnit.SECONDS));
+
+            // only the connection in use is left open
+            Assert.assertEquals(1, broker.getConnectionCount());
+            Assert.assertTrue(broker.hasQueue("queue"));
+
+        } finally {
+            simulatedFactory.shutdownGracefully(1000);
+        }
+    }
+
+    @Test
+    public void testShutdownGracefullyAbandonsPendingConnections() throws Exception {
+
+        HaConnectionFuture future = connectionFactory.newConnectionAsync(unreachable());
+        Channel channel = future.getConnection().createChannel();
+
+        ShutdownReport report = connectionFactory.shutdownGracefully(1000);
+
+        Assert.assertTrue(report.toString(), report.isComplete());
+        Assert.assertFalse(future.getConnection().isOpen());
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected failure");
+        } catch (ExecutionException ee) {
+            // expected
+        }
+
+        try {
+            channel.basicPublish("exchange", "routingKey", null, new byte[0]);
+            Assert.fail("Expected publish to be refused");
+        } catch (AlreadyClosedException ace) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testShutdownGracefullyRefusesNewWorkOnAllConnectionsBeforeDraining() throws Exception {
+
+        SimulatedBroker broker = new SimulatedBroker();
+        final HaConnectionFactory simulatedFactory = new SimulatedHaConnectionFactory(broker);
+
+        final Channel draining = simulatedFactory.newConnection(unreachable()).createChannel();
+        Connection waiting = simulatedFactory.newConnection(unreachable());
+
+        // keeps the first connection draining for a while
+        broker.setFrameDelayMillis(500);
+        Thread publisher = new Thread(new Runnable() {
+
+            public void run() {
+
+                try {
+                    draining.basicPublish("", "queue", null, new byte[0]);
+                } catch (IOException ioe) {
+                    // not what is being tested
+                }
+            }
+        });
+        publisher.start();
+        Thread.sleep(50);
+
+        Thread shutdown = new Thread(new Runnable() {
+
+            public void run() {
+                simulatedFactory.shutdownGracefully(2000);
+            }
+        });
+        shutdown.start();
+        Thread.sleep(50);
+
+        try {
+            waiting.createChannel();
+            Assert.fail("Expected channel to be refused while the other connection drains");
+        } catch (AlreadyClosedException ace) {
+            // expected
+        }
+
+        publisher.join();
+        shutdown.join();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShutdownGracefullyRefusesNewConnections() throws Exception {
+
+        Assert.assertTrue(connectionFactory.shutdownGracefully(1000).isComplete());
+        connectionFactory.newConnectionAsync(unreachable());
+    }
+
+    private Address[] unreachable() {
+
+        // nothing listens on the tcpmux port
+        return new Address[] { new Address("localhost", 1) };
+    }
+}
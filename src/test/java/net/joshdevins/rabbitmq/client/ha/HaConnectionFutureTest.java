@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+public class HaConnectionFutureTest {
+
+    private HaConnectionFactory connectionFactory;
+
+    private CountDownLatch connectFailures;
+
+    @Before
+    public void before() {
+
+        connectionFactory = new HaConnectionFactory();
+        connectionFactory.setReconnectionWaitMillis(10);
+
+        connectFailures = new CountDownLatch(2);
+        connectionFactory.addHaConnectionListener(new AbstractHaConnectionListener() {
+
+            @Override
+            public void onConnectFailure(final HaConnectionProxy connectionProxy, final Exception exception) {
+                connectFailures.countDown();
+            }
+        });
+    }
+
+    @Test
+    public void testCancelStopsConnecting() throws Exception {
+
+        HaConnectionFuture future = connectionFactory.newConnectionAsync(unreachable());
+
+        Assert.assertTrue(connectFailures.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(future.cancel(true));
+        Assert.assertTrue(future.isDone());
+        Assert.assertFalse(future.cancel(true));
+
+        try {
+            future.get();
+            Assert.fail("Expected cancellation");
+        } catch (CancellationException ce) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLazyConnectionIsUsableBeforeConnecting() throws Exception {
+
+        HaConnectionFuture future = connectionFactory.newConnectionAsync(unreachable());
+        Connection connection = future.getConnection();
+
+        Assert.assertFalse(connection.isOpen());
+
+        Channel channel = connection.createChannel();
+        Assert.assertNotNull(channel);
+        channel.close();
+
+        try {
+            future.get(50, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected timeout");
+        } catch (TimeoutException te) {
+            // expected
+        }
+
+        // closing gives up on connecting, which the next attempt notices
+        connection.close();
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected failure");
+        } catch (ExecutionException ee) {
+            Assert.assertFalse(future.isCancelled());
+        }
+    }
+
+    private Address[] unreachable() {
+
+        // nothing listens on the tcpmux port
+        return new Address[] { new Address("localhost", 1) };
+    }
+}
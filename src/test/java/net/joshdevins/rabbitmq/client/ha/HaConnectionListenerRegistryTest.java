@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+
+public class HaConnectionListenerRegistryTest {
+
+    private class RecordingListener extends AbstractHaConnectionListener {
+
+        private final List<String> events = Collections.synchronizedList(new LinkedList<String>());
+
+        private final CountDownLatch blocker;
+
+        private RecordingListener(final CountDownLatch blocker) {
+            this.blocker = blocker;
+        }
+
+        @Override
+        public void onConnection(final HaConnectionProxy connectionProxy) {
+            await();
+            events.add("connection");
+        }
+
+        @Override
+        public void onReconnection(final HaConnectionProxy connectionProxy) {
+            await();
+            events.add("reconnection");
+        }
+
+        private void await() {
+
+            try {
+                blocker.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private ExecutorService executorService;
+
+    private HaConnectionProxy connectionProxy;
+
+    private HaConnectionListenerRegistry registry;
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void asyncListenersDoNotBlockAndStayOrdered() throws InterruptedException {
+
+        CountDownLatch blocker = new CountDownLatch(1);
+        RecordingListener async = new RecordingListener(blocker);
+        RecordingListener sync = new RecordingListener(new CountDownLatch(0));
+
+        registry.addAsync(async);
+        registry.addSync(sync);
+
+        registry.fireConnection(connectionProxy);
+        registry.fireReconnection(connectionProxy);
+
+        // sync listener has already seen both while the async one is still blocked
+        Assert.assertEquals(2, sync.events.size());
+        Assert.assertTrue(async.events.isEmpty());
+
+        blocker.countDown();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(1);
+        while (async.events.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertEquals(sync.events, async.events);
+    }
+
+    @Before
+    public void before() {
+
+        executorService = Executors.newCachedThreadPool();
+        registry = new HaConnectionListenerRegistry();
+
+        connectionProxy = new HaConnectionProxy(new Address[] { new Address("localhost") }, null,
+                new NeverRetryStrategy());
+        connectionProxy.setNotificationExecutor(new SerialExecutor(executorService));
+    }
+
+    @Test
+    public void reregisteringChangesMode() {
+
+        RecordingListener listener = new RecordingListener(new CountDownLatch(0));
+
+        registry.addAsync(listener);
+        registry.addSync(listener);
+        Assert.assertEquals(1, registry.size());
+
+        registry.fireConnection(connectionProxy);
+        Assert.assertEquals(1, listener.events.size());
+
+        Assert.assertTrue(registry.remove(listener));
+        Assert.assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.dispatch.RoutingKeyExtractor;
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class HaConsumerProxyTest {
+
+    private static final long PROCESSING_MILLIS = 20;
+
+    private ExecutorService executorService;
+
+    private HaConnectionProxy connectionProxy;
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Before
+    public void before() {
+
+        executorService = Executors.newCachedThreadPool();
+
+        connectionProxy = new HaConnectionProxy(new Address[] { new Address("localhost") }, null,
+                new NeverRetryStrategy());
+        connectionProxy.setAdaptivePrefetch(1, 1000);
+    }
+
+    @Test
+    public void testAckLatencyExcludesTimeQueuedInLane() throws Exception {
+
+        // a single lane, so that deliveries queue up behind each other
+        connectionProxy.setDeliveryDispatch(1, 100, new RoutingKeyExtractor(), executorService);
+
+        double ackLatencyMillis = handleQueuedDeliveries();
+        assertTrue("ackLatencyMillis=" + ackLatencyMillis, ackLatencyMillis < PROCESSING_MILLIS * 3);
+    }
+
+    @Test
+    public void testAckLatencyExcludesTimeQueuedForVirtualThread() throws Exception {
+
+        // a single carrier thread stands in for a busy scheduler, and prefetch lets every delivery in at once
+        connectionProxy.setAdaptivePrefetch(10, 1000);
+        connectionProxy.setDeliveryDispatch(0, 100, null, executorService);
+        connectionProxy.setVirtualThreadExecutor(Executors.newSingleThreadExecutor());
+
+        try {
+            double ackLatencyMillis = handleQueuedDeliveries();
+            assertTrue("ackLatencyMillis=" + ackLatencyMillis, ackLatencyMillis < PROCESSING_MILLIS * 3);
+
+        } finally {
+            connectionProxy.getVirtualThreadExecutor().shutdownNow();
+        }
+    }
+
+    /**
+     * Hands 10 deliveries to a consumer taking {@value #PROCESSING_MILLIS}ms each, faster than it can handle them.
+     * 
+     * @return the resulting ack latency
+     */
+    private double handleQueuedDeliveries() throws Exception {
+
+        Channel target = mock(Channel.class);
+        when(target.basicConsume(anyString(), anyBoolean(), any(Consumer.class))).thenReturn("tag");
+
+        HaChannelProxy channelProxy = new HaChannelProxy(connectionProxy, target, new NeverRetryStrategy());
+        final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[] { Channel.class }, channelProxy);
+
+        final CountDownLatch acked = new CountDownLatch(10);
+        channel.basicConsume("queue", false, new DefaultConsumer(channel) {
+
+            @Override
+            public void handleDelivery(final String consumerTag, final Envelope envelope,
+                    final BasicProperties properties, final byte[] body) throws IOException {
+
+                try {
+                    Thread.sleep(PROCESSING_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+
+                channel.basicAck(envelope.getDeliveryTag(), false);
+                acked.countDown();
+            }
+        });
+
+        ArgumentCaptor<Consumer> consumerProxy = ArgumentCaptor.forClass(Consumer.class);
+        verify(target).basicConsume(anyString(), anyBoolean(), consumerProxy.capture());
+
+        for (int i = 1; i <= 10; i++) {
+            consumerProxy.getValue().handleDelivery("tag", new Envelope(i, false, "exchange", "key"), null,
+                    new byte[0]);
+        }
+
+        assertTrue(acked.await(5, TimeUnit.SECONDS));
+
+        // the last delivery waited 9 times as long as it took to handle, which must not count as ack latency
+        return channelProxy.getPrefetchController().getAckLatencyMillis();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ShutdownSignalException;
+
+public class HaConsumerRegistryTest {
+
+    private HaChannelProxy channelProxy;
+
+    private Channel target;
+
+    private Channel channel;
+
+    @Before
+    public void before() throws Exception {
+
+        HaConnectionProxy connectionProxy = new HaConnectionProxy(new Address[] { new Address("localhost") }, null,
+                new NeverRetryStrategy());
+
+        target = mock(Channel.class);
+        when(target.basicConsume(anyString(), anyBoolean(), any(Consumer.class))).thenReturn("tag-1", "tag-2");
+
+        channelProxy = new HaChannelProxy(connectionProxy, target, new NeverRetryStrategy());
+        channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                channelProxy);
+    }
+
+    @Test
+    public void testCancelRemovesConsumers() throws Exception {
+
+        Consumer consumer = mock(Consumer.class);
+
+        // the same consumer subscribed twice is two subscriptions
+        assertEquals("tag-1", channel.basicConsume("queue-1", false, consumer));
+        assertEquals("tag-2", channel.basicConsume("queue-2", false, consumer));
+        assertEquals(2, channelProxy.getConsumerCount());
+
+        channel.basicCancel("tag-1");
+        assertEquals(1, channelProxy.getConsumerCount());
+
+        // cancelled by the broker
+        HaConsumerProxy consumerProxy = channelProxy.getConsumerRegistry().get("tag-2");
+        consumerProxy.handleCancel("tag-2");
+
+        assertEquals(0, channelProxy.getConsumerCount());
+        verify(consumer).handleCancel("tag-2");
+    }
+
+    @Test
+    public void testConsumerCancelledWhileRestoringIsNotCancelledAgain() throws Exception {
+
+        final CountDownLatch restored = new CountDownLatch(1);
+        when(target.basicConsume(anyString(), anyBoolean(), anyString(), any(Consumer.class))).thenAnswer(
+                new Answer<String>() {
+
+                    public String answer(final InvocationOnMock invocation) {
+
+                        // the application's cancel goes to the broker itself once the channel is free
+                        channelProxy.getConsumerRegistry().remove("tag-1");
+                        restored.countDown();
+                        return (String) invocation.getArguments()[2];
+                    }
+                });
+
+        HaConsumerProxy consumerProxy = restoreConsumer();
+
+        assertTrue(restored.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+
+        assertTrue(consumerProxy.isCancelled());
+        assertEquals(0, channelProxy.getConsumerCount());
+        verify(target, never()).basicCancel(anyString());
+    }
+
+    @Test
+    public void testConsumerIsRestoredWithOriginalTag() throws Exception {
+
+        final CountDownLatch restored = new CountDownLatch(1);
+        when(target.basicConsume(anyString(), anyBoolean(), anyString(), any(Consumer.class))).thenAnswer(
+                new Answer<String>() {
+
+                    public String answer(final InvocationOnMock invocation) {
+
+                        restored.countDown();
+                        return (String) invocation.getArguments()[2];
+                    }
+                });
+
+        Consumer consumer = mock(Consumer.class);
+        channel.basicConsume("queue", false, consumer);
+
+        HaConsumerProxy consumerProxy = channelProxy.getConsumerRegistry().get("tag-1");
+        consumerProxy.handleConsumeOk("tag-1");
+        consumerProxy.handleShutdownSignal("tag-1", new ShutdownSignalException(true, false, null, null));
+
+        assertTrue(restored.await(5, TimeUnit.SECONDS));
+        verify(target).basicConsume(eq("queue"), eq(false), eq("tag-1"), eq(consumerProxy));
+
+        assertEquals(1, channelProxy.getConsumerCount());
+        assertSame(consumerProxy, channelProxy.getConsumerRegistry().get("tag-1"));
+    }
+
+    @Test
+    public void testConsumerShutDownWhileRestoringIsCancelledOnBroker() throws Exception {
+
+        when(target.basicConsume(anyString(), anyBoolean(), anyString(), any(Consumer.class))).thenAnswer(
+                new Answer<String>() {
+
+                    public String answer(final InvocationOnMock invocation) {
+
+                        // as a drain does, after its own cancel failed on the channel that went away
+                        channelProxy.getConsumerRegistry().removeAll();
+                        ((HaConsumerProxy) invocation.getArguments()[3]).shutdown();
+                        return (String) invocation.getArguments()[2];
+                    }
+                });
+
+        restoreConsumer();
+
+        verify(target, timeout(5000)).basicCancel("tag-1");
+        assertEquals(0, channelProxy.getConsumerCount());
+    }
+
+    private HaConsumerProxy restoreConsumer() throws Exception {
+
+        channel.basicConsume("queue", false, mock(Consumer.class));
+
+        HaConsumerProxy consumerProxy = channelProxy.getConsumerRegistry().get("tag-1");
+        consumerProxy.handleConsumeOk("tag-1");
+        consumerProxy.handleShutdownSignal("tag-1", new ShutdownSignalException(true, false, null, null));
+
+        return consumerProxy;
+    }
+}
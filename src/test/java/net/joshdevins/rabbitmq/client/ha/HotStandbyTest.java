@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedHaConnectionFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+public class HotStandbyTest {
+
+    private static final Address[] ADDRESSES = new Address[] { new Address("localhost", 5672),
+            new Address("localhost", 5673) };
+
+    private SimulatedBroker broker;
+
+    private SimulatedHaConnectionFactory connectionFactory;
+
+    private BlockingQueue<HaConnectionProxy> reconnections;
+
+    @After
+    public void after() {
+        connectionFactory.shutdownGracefully(1000);
+    }
+
+    @Before
+    public void before() {
+
+        broker = new SimulatedBroker();
+        connectionFactory = new SimulatedHaConnectionFactory(broker);
+        connectionFactory.setHotStandbyEnabled(true);
+        connectionFactory.setReconnectionWaitMillis(10);
+
+        reconnections = new LinkedBlockingQueue<HaConnectionProxy>();
+        connectionFactory.addHaConnectionListener(new AbstractHaConnectionListener() {
+
+            @Override
+            public void onReconnection(final HaConnectionProxy connectionProxy) {
+                reconnections.add(connectionProxy);
+            }
+        });
+    }
+
+    @Test
+    public void testDeadStandbyIsReplaced() throws Exception {
+
+        HaConnectionProxy proxy = getProxy(connectionFactory.newConnection(ADDRESSES));
+        Connection active = proxy.getTargetConnection();
+        Connection standby = awaitStandby(proxy, null);
+
+        broker.killConnection(standby);
+
+        Connection replacement = awaitStandby(proxy, standby);
+        assertTrue(replacement.isOpen());
+        assertNotSame(active, replacement);
+
+        // losing the standby is not a reconnection of the active connection
+        assertSame(active, proxy.getTargetConnection());
+        assertNull(reconnections.poll());
+    }
+
+    @Test
+    public void testStandbyIsClosedOnClose() throws Exception {
+
+        Connection connection = connectionFactory.newConnection(ADDRESSES);
+        Connection standby = awaitStandby(getProxy(connection), null);
+
+        connection.close();
+
+        assertFalse(standby.isOpen());
+        assertNull(getProxy(connection).getStandbyConnection());
+        assertEquals(0, broker.getConnectionCount());
+    }
+
+    @Test
+    public void testStandbyIsClosedOnShutdown() throws Exception {
+
+        HaConnectionProxy proxy = getProxy(connectionFactory.newConnection(ADDRESSES));
+        Connection standby = awaitStandby(proxy, null);
+
+        assertTrue(connectionFactory.shutdownGracefully(1000).isComplete());
+
+        assertFalse(standby.isOpen());
+        assertEquals(0, broker.getConnectionCount());
+    }
+
+    @Test
+    public void testStandbyIsPromotedOnFailure() throws Exception {
+
+        // a reconnection would take this long, promotion does not wait at all
+        connectionFactory.setReconnectionWaitMillis(60000);
+
+        Connection connection = connectionFactory.newConnection(ADDRESSES);
+        HaConnectionProxy proxy = getProxy(connection);
+        Channel channel = connection.createChannel();
+        channel.queueDeclare("queue", false, false, false, null);
+
+        Connection standby = awaitStandby(proxy, null);
+        broker.killConnection(proxy.getTargetConnection());
+
+        assertNotNull(reconnections.poll(5, TimeUnit.SECONDS));
+        assertSame(standby, proxy.getTargetConnection());
+
+        channel.basicPublish("", "queue", null, new byte[0]);
+        assertEquals(1, broker.getMessageCount("queue"));
+
+        // and a new standby is opened straight away
+        Connection replacement = awaitStandby(proxy, standby);
+        assertTrue(replacement.isOpen());
+        assertEquals(3, broker.getConnectionsOpened());
+    }
+
+    /**
+     * Waits for a standby connection other than the given one.
+     */
+    private Connection awaitStandby(final HaConnectionProxy proxy, final Connection previous) throws IOException,
+            InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+
+            Connection standby = proxy.getStandbyConnection();
+            if (standby != null && standby != previous && standby.isOpen()) {
+                return standby;
+            }
+
+            Thread.sleep(10);
+        }
+
+        throw new IOException("No standby connection opened within 5000ms");
+    }
+
+    private HaConnectionProxy getProxy(final Connection connection) {
+        return (HaConnectionProxy) Proxy.getInvocationHandler(connection);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SerialExecutorTest {
+
+    private static class RecordingTask implements Runnable {
+
+        private final List<String> ran;
+
+        private final String name;
+
+        private RecordingTask(final List<String> ran, final String name) {
+
+            this.ran = ran;
+            this.name = name;
+        }
+
+        public void run() {
+            ran.add(name);
+        }
+    }
+
+    @Test
+    public void testRejectedTasksAreDroppedWithoutStalling() {
+
+        final boolean[] rejecting = new boolean[] { true };
+        SerialExecutor executor = new SerialExecutor(new Executor() {
+
+            public void execute(final Runnable command) {
+
+                if (rejecting[0]) {
+                    throw new RejectedExecutionException("shut down");
+                }
+
+                command.run();
+            }
+        });
+
+        List<String> ran = new ArrayList<String>();
+
+        // does not fail the submitter
+        executor.execute(new RecordingTask(ran, "rejected"));
+
+        rejecting[0] = false;
+        executor.execute(new RecordingTask(ran, "first"));
+        executor.execute(new RecordingTask(ran, "second"));
+
+        Assert.assertEquals(2, ran.size());
+        Assert.assertEquals("first", ran.get(0));
+        Assert.assertEquals("second", ran.get(1));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ReturnListener;
+
+public class ThreadAffineChannelProxyTest {
+
+    private Connection connection;
+
+    private Channel first;
+
+    private Channel second;
+
+    @Before
+    public void before() throws Exception {
+
+        connection = mock(Connection.class);
+        first = mock(Channel.class);
+        second = mock(Channel.class);
+
+        when(connection.createChannel()).thenReturn(first, second);
+        when(connection.isOpen()).thenReturn(true);
+    }
+
+    @Test
+    public void testAcknowledgingAndConsumingAreRejected() throws Exception {
+
+        ThreadAffineChannelProxy handler = new ThreadAffineChannelProxy(connection, 2);
+        Channel channel = newChannel(handler);
+
+        channel.basicPublish("exchange", "main", null, new byte[0]);
+
+        try {
+            channel.basicAck(1, false);
+            Assert.fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+
+        try {
+            channel.basicConsume("queue", mock(Consumer.class));
+            Assert.fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+
+        // the acknowledgement would have gone to the publishing thread's channel, not the delivery's
+        verify(first, never()).basicAck(1, false);
+        verify(first, never()).basicConsume(any(String.class), any(Consumer.class));
+    }
+
+    @Test
+    public void testChannelsOpenedLaterGetTheLatestSetupOnly() throws Exception {
+
+        ThreadAffineChannelProxy handler = new ThreadAffineChannelProxy(connection, 2);
+        final Channel channel = newChannel(handler);
+
+        ReturnListener kept = mock(ReturnListener.class);
+        channel.addReturnListener(kept);
+        for (int i = 0; i < 100; i++) {
+
+            ReturnListener removed = mock(ReturnListener.class);
+            channel.addReturnListener(removed);
+            channel.removeReturnListener(removed);
+            channel.basicQos(i);
+        }
+
+        ConfirmListener cleared = mock(ConfirmListener.class);
+        channel.addConfirmListener(cleared);
+        channel.clearConfirmListeners();
+
+        runInThread(new Runnable() {
+
+            public void run() {
+                channel.getNextPublishSeqNo();
+            }
+        });
+
+        verify(first).basicQos(99);
+        verify(first).addReturnListener(any(ReturnListener.class));
+        verify(first, never()).addConfirmListener(any(ConfirmListener.class));
+        verify(first, never()).clearConfirmListeners();
+        verify(first).addReturnListener(kept);
+    }
+
+    @Test
+    public void testDeadThreadsChannelIsReclaimed() throws Exception {
+
+        ThreadAffineChannelProxy handler = new ThreadAffineChannelProxy(connection, 1);
+        final Channel channel = newChannel(handler);
+
+        runInThread(new Runnable() {
+
+            public void run() {
+                channel.getNextPublishSeqNo();
+            }
+        });
+
+        Assert.assertEquals(1, handler.getChannelCount());
+
+        // the channel is at capacity, but its only user has died
+        channel.getNextPublishSeqNo();
+
+        verify(first).close();
+        verify(second).getNextPublishSeqNo();
+        Assert.assertEquals(1, handler.getChannelCount());
+
+        channel.close();
+        verify(second).close();
+        Assert.assertFalse(channel.isOpen());
+
+        try {
+            channel.basicPublish("exchange", "routingKey", null, new byte[0]);
+            Assert.fail("Expected a closed channel");
+        } catch (AlreadyClosedException ace) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testThreadsGetTheirOwnChannelsWithSharedSetup() throws Exception {
+
+        ThreadAffineChannelProxy handler = new ThreadAffineChannelProxy(connection, 2);
+        final Channel channel = newChannel(handler);
+
+        channel.basicQos(10);
+        channel.basicPublish("exchange", "main", null, new byte[0]);
+        channel.basicPublish("exchange", "main", null, new byte[0]);
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        runInThread(new Runnable() {
+
+            public void run() {
+
+                try {
+                    channel.basicPublish("exchange", "other", null, new byte[0]);
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(2, handler.getChannelCount());
+
+        verify(first).basicQos(10);
+        verify(second).basicQos(10);
+        verify(first, times(2)).basicPublish("exchange", "main", null, new byte[0]);
+        verify(first, never()).basicPublish("exchange", "other", null, new byte[0]);
+        verify(second).basicPublish("exchange", "other", null, new byte[0]);
+    }
+
+    private Channel newChannel(final ThreadAffineChannelProxy handler) {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] { Channel.class },
+                handler);
+    }
+
+    private void runInThread(final Runnable runnable) throws InterruptedException {
+
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.AbstractHaConnectionListener;
+import net.joshdevins.rabbitmq.client.ha.HaConnectionFactory;
+import net.joshdevins.rabbitmq.client.ha.HaConnectionProxy;
+import net.joshdevins.rabbitmq.client.ha.benchmark.FailoverBenchmarkResult.FaultTiming;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedHaConnectionFactory;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A repeatable failover benchmark. Publishes persistent, numbered messages at a steady rate through an HA connection
+ * to a {@link SimulatedBroker}, consumes and acks them on the same connection, and injects {@link Fault}s on a
+ * schedule. Each run reports how long each fault took to detect and recover from, how many messages were lost,
+ * duplicated and reordered, and how far throughput dipped, so that releases and configurations can be compared.
+ * 
+ * <p>
+ * The HA connection factory can be configured before running through {@link #getConnectionFactory()}, for example to
+ * compare retry strategies or reconnection waits. Runs are not meant to overlap.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class FailoverBenchmark {
+
+    private class RecordingConsumer extends DefaultConsumer {
+
+        private RecordingConsumer(final Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(final String consumerTag, final Envelope envelope,
+                final BasicProperties properties, final byte[] body) {
+
+            delivered(ByteBuffer.wrap(body).getLong());
+
+            try {
+                getChannel().basicAck(envelope.getDeliveryTag(), false);
+
+            } catch (IOException ioe) {
+                LOG.warn("Failed to ack delivery: deliveryTag=" + envelope.getDeliveryTag(), ioe);
+            }
+        }
+    }
+
+    private static class ScheduledFault {
+
+        private final long atMillis;
+
+        private final Fault fault;
+
+        private ScheduledFault(final long atMillis, final Fault fault) {
+
+            this.atMillis = atMillis;
+            this.fault = fault;
+        }
+    }
+
+    private static class Timing {
+
+        private final ScheduledFault scheduledFault;
+
+        private long injectedNanos;
+
+        private long detectedNanos;
+
+        private long reconnectedNanos;
+
+        private long resumedNanos;
+
+        private Timing(final ScheduledFault scheduledFault) {
+            this.scheduledFault = scheduledFault;
+        }
+
+        private long millisSinceInjected(final long nanos) {
+            return nanos == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos - injectedNanos);
+        }
+    }
+
+    public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 5000;
+
+    public static final long DEFAULT_DURATION_MILLIS = 5000;
+
+    public static final int DEFAULT_PUBLISH_RATE = 1000;
+
+    private static final long BUCKET_MILLIS = 100;
+
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    private static final Logger LOG = Logger.getLogger(FailoverBenchmark.class);
+
+    private static final String QUEUE_NAME = "failover-benchmark";
+
+    private final SimulatedBroker broker;
+
+    private final SimulatedHaConnectionFactory connectionFactory;
+
+    private final List<ScheduledFault> scheduledFaults;
+
+    private int publishRate;
+
+    private long durationMillis;
+
+    private long drainTimeoutMillis;
+
+    private int consumerCount;
+
+    private int prefetch;
+
+    private int messageSize;
+
+    // the state of the current run, guarded by this
+
+    private final List<Timing> timings;
+
+    private BitSet seen;
+
+    private long maxSeen;
+
+    private long received;
+
+    private long duplicated;
+
+    private long reordered;
+
+    private long[] buckets;
+
+    private long startNanos;
+
+    public FailoverBenchmark() {
+
+        broker = new SimulatedBroker();
+        connectionFactory = new SimulatedHaConnectionFactory(broker);
+        connectionFactory.setReconnectionWaitMillis(10);
+        connectionFactory.addHaConnectionListener(new AbstractHaConnectionListener() {
+
+            @Override
+            public void onDisconnect(final HaConnectionProxy connectionProxy,
+                    final ShutdownSignalException shutdownSignalException) {
+                disconnected();
+            }
+
+            @Override
+            public void onReconnection(final HaConnectionProxy connectionProxy) {
+                reconnected();
+            }
+        });
+
+        scheduledFaults = new ArrayList<ScheduledFault>();
+        timings = new ArrayList<Timing>();
+
+        publishRate = DEFAULT_PUBLISH_RATE;
+        durationMillis = DEFAULT_DURATION_MILLIS;
+        drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+        consumerCount = 1;
+        prefetch = 100;
+        messageSize = 64;
+    }
+
+    /**
+     * Runs the standard scenarios with the default settings, one fault half way through each, and prints the
+     * results. Optional arguments are the publish rate and the duration in milliseconds.
+     */
+    public static void main(final String[] args) throws Exception {
+
+        for (Fault fault : Fault.values()) {
+
+            FailoverBenchmark benchmark = new FailoverBenchmark();
+
+            if (args.length > 0) {
+                benchmark.setPublishRate(Integer.parseInt(args[0]));
+            }
+
+            if (args.length > 1) {
+                benchmark.setDurationMillis(Long.parseLong(args[1]));
+            }
+
+            benchmark.addFault(benchmark.durationMillis / 2, fault);
+
+            System.out.println(fault + ": " + benchmark.run());
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Schedules a fault, in milliseconds from the start of publishing.
+     */
+    public void addFault(final long atMillis, final Fault fault) {
+
+        Validate.isTrue(atMillis >= 0, "atMillis must be 0 or greater");
+        Validate.notNull(fault, "fault is required");
+
+        scheduledFaults.add(new ScheduledFault(atMillis, fault));
+    }
+
+    public SimulatedBroker getBroker() {
+        return broker;
+    }
+
+    public HaConnectionFactory getConnectionFactory() {
+        return connectionFactory;
+    }
+
+    public FailoverBenchmarkResult run() throws IOException, InterruptedException {
+
+        Connection connection = connectionFactory.newConnection(new Address[] { new Address("localhost") });
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+            Channel publishChannel = connection.createChannel();
+            publishChannel.queueDeclare(QUEUE_NAME, true, false, false, null);
+            publishChannel.queuePurge(QUEUE_NAME);
+
+            for (int i = 0; i < consumerCount; i++) {
+
+                Channel consumeChannel = connection.createChannel();
+                consumeChannel.basicQos(prefetch);
+                consumeChannel.basicConsume(QUEUE_NAME, false, new RecordingConsumer(consumeChannel));
+            }
+
+            start();
+
+            for (final ScheduledFault scheduledFault : scheduledFaults) {
+
+                scheduler.schedule(new Runnable() {
+
+                    public void run() {
+                        inject(scheduledFault);
+                    }
+                }, scheduledFault.atMillis, TimeUnit.MILLISECONDS);
+            }
+
+            BitSet failed = new BitSet();
+            long messageCount = publish(publishChannel, failed);
+
+            return drain(messageCount, failed);
+
+        } finally {
+            scheduler.shutdownNow();
+            connection.abort();
+        }
+    }
+
+    public void setConsumerCount(final int consumerCount) {
+
+        Validate.isTrue(consumerCount > 0, "consumerCount must be greater than 0");
+        this.consumerCount = consumerCount;
+    }
+
+    public void setDrainTimeoutMillis(final long drainTimeoutMillis) {
+
+        Validate.isTrue(drainTimeoutMillis >= 0, "drainTimeoutMillis must be 0 or greater");
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    public void setDurationMillis(final long durationMillis) {
+
+        Validate.isTrue(durationMillis > 0, "durationMillis must be greater than 0");
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * @param messageSize
+     *        the body size in bytes, at least the 8 bytes of the sequence number
+     */
+    public void setMessageSize(final int messageSize) {
+
+        Validate.isTrue(messageSize >= 8, "messageSize must be 8 or greater");
+        this.messageSize = messageSize;
+    }
+
+    public void setPrefetch(final int prefetch) {
+
+        Validate.isTrue(prefetch >= 0, "prefetch must be 0 or greater");
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @param publishRate
+     *        messages per second
+     */
+    public void setPublishRate(final int publishRate) {
+
+        Validate.isTrue(publishRate > 0, "publishRate must be greater than 0");
+        this.publishRate = publishRate;
+    }
+
+    private synchronized void delivered(final long sequence) {
+
+        long now = System.nanoTime();
+        received++;
+
+        int bucket = (int) Math.min(buckets.length - 1, TimeUnit.NANOSECONDS.toMillis(now - startNanos)
+                / BUCKET_MILLIS);
+        buckets[bucket]++;
+
+        for (Timing timing : timings) {
+            if (timing.reconnectedNanos != 0 && timing.resumedNanos == 0) {
+                timing.resumedNanos = now;
+            }
+        }
+
+        if (seen.get((int) sequence)) {
+            duplicated++;
+            return;
+        }
+
+        seen.set((int) sequence);
+
+        if (sequence < maxSeen) {
+            reordered++;
+        } else {
+            maxSeen = sequence;
+        }
+    }
+
+    private synchronized void disconnected() {
+
+        for (Timing timing : timings) {
+            if (timing.detectedNanos == 0) {
+                timing.detectedNanos = System.nanoTime();
+            }
+        }
+    }
+
+    private FailoverBenchmarkResult drain(final long messageCount, final BitSet failed) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        long lost = lost(messageCount, failed);
+
+        while (lost > 0 && System.nanoTime() < deadline) {
+
+            Thread.sleep(DRAIN_POLL_MILLIS);
+            lost = lost(messageCount, failed);
+        }
+
+        synchronized (this) {
+
+            List<FaultTiming> faultTimings = new ArrayList<FaultTiming>();
+            for (Timing timing : timings) {
+
+                faultTimings.add(new FaultTiming(timing.scheduledFault.fault, timing.scheduledFault.atMillis, timing
+                        .millisSinceInjected(timing.detectedNanos), timing
+                        .millisSinceInjected(timing.reconnectedNanos), timing
+                        .millisSinceInjected(timing.resumedNanos)));
+            }
+
+            // the first bucket is a warm-up, and the last one of the publishing window is partial
+            int firstFaultBucket = getPublishingBuckets();
+            for (ScheduledFault scheduledFault : scheduledFaults) {
+                firstFaultBucket = (int) Math.min(firstFaultBucket, scheduledFault.atMillis / BUCKET_MILLIS);
+            }
+
+            double baselineRate = rate(1, Math.max(2, firstFaultBucket), false);
+            double troughRate = rate(Math.max(1, firstFaultBucket), getPublishingBuckets(), true);
+
+            return new FailoverBenchmarkResult(messageCount - failed.cardinality(), failed.cardinality(), received,
+                    lost, duplicated, reordered, faultTimings, baselineRate, troughRate);
+        }
+    }
+
+    private int getPublishingBuckets() {
+        return (int) Math.max(2, durationMillis / BUCKET_MILLIS - 1);
+    }
+
+    private void inject(final ScheduledFault scheduledFault) {
+
+        Timing timing = new Timing(scheduledFault);
+
+        synchronized (this) {
+            timing.injectedNanos = System.nanoTime();
+            timings.add(timing);
+        }
+
+        LOG.info("Injecting fault: " + scheduledFault.fault);
+        scheduledFault.fault.inject(broker);
+    }
+
+    private synchronized long lost(final long messageCount, final BitSet failed) {
+
+        long lost = 0;
+        for (int sequence = 0; sequence < messageCount; sequence++) {
+            if (!seen.get(sequence) && !failed.get(sequence)) {
+                lost++;
+            }
+        }
+
+        return lost;
+    }
+
+    /**
+     * Publishes at the configured rate until the duration is up. Publishing that falls behind while the connection
+     * recovers catches up afterwards, like a real backlog would.
+     * 
+     * @return the number of messages attempted
+     */
+    private long publish(final Channel channel, final BitSet failed) throws InterruptedException {
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / publishRate;
+        long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        int sequence = 0;
+        for (long due = startNanos; due < endNanos; due = startNanos + ++sequence * intervalNanos) {
+
+            long waitNanos = due - System.nanoTime();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+
+            byte[] body = new byte[messageSize];
+            ByteBuffer.wrap(body).putLong(sequence);
+
+            try {
+                channel.basicPublish("", QUEUE_NAME, MessageProperties.PERSISTENT_BASIC, body);
+
+            } catch (IOException ioe) {
+                failed.set(sequence);
+            } catch (AlreadyClosedException ace) {
+                failed.set(sequence);
+            }
+        }
+
+        return sequence;
+    }
+
+    /**
+     * @return the average rate over the given buckets, or the lowest if trough
+     */
+    private double rate(final int fromBucket, final int toBucket, final boolean trough) {
+
+        long total = 0;
+        long lowest = Long.MAX_VALUE;
+
+        for (int bucket = fromBucket; bucket < toBucket; bucket++) {
+
+            total += buckets[bucket];
+            lowest = Math.min(lowest, buckets[bucket]);
+        }
+
+        if (toBucket <= fromBucket) {
+            return 0;
+        }
+
+        double count = trough ? lowest : (double) total / (toBucket - fromBucket);
+        return count * 1000 / BUCKET_MILLIS;
+    }
+
+    private synchronized void reconnected() {
+
+        for (Timing timing : timings) {
+            if (timing.reconnectedNanos == 0) {
+                timing.reconnectedNanos = System.nanoTime();
+            }
+        }
+    }
+
+    private synchronized void start() {
+
+        timings.clear();
+        seen = new BitSet();
+        maxSeen = -1;
+        received = 0;
+        duplicated = 0;
+        reordered = 0;
+        buckets = new long[(int) ((durationMillis + drainTimeoutMillis) / BUCKET_MILLIS) + 1];
+        startNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.benchmark;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a {@link FailoverBenchmark} run measured. Times are in milliseconds, rates in messages per second.
+ * 
+ * @author Josh Devins
+ */
+public class FailoverBenchmarkResult {
+
+    /**
+     * How long it took to notice and get over one injected fault, each measured from the moment it was injected.
+     * Times that were never reached are -1.
+     */
+    public static class FaultTiming {
+
+        private final Fault fault;
+
+        private final long injectedAtMillis;
+
+        private final long detectMillis;
+
+        private final long reconnectMillis;
+
+        private final long resumeMillis;
+
+        public FaultTiming(final Fault fault, final long injectedAtMillis, final long detectMillis,
+                final long reconnectMillis, final long resumeMillis) {
+
+            this.fault = fault;
+            this.injectedAtMillis = injectedAtMillis;
+            this.detectMillis = detectMillis;
+            this.reconnectMillis = reconnectMillis;
+            this.resumeMillis = resumeMillis;
+        }
+
+        /**
+         * @return the time until the HA connection reported the disconnect
+         */
+        public long getDetectMillis() {
+            return detectMillis;
+        }
+
+        public Fault getFault() {
+            return fault;
+        }
+
+        /**
+         * @return when the fault was injected, from the start of the run
+         */
+        public long getInjectedAtMillis() {
+            return injectedAtMillis;
+        }
+
+        /**
+         * @return the time until the HA connection reported the reconnection
+         */
+        public long getReconnectMillis() {
+            return reconnectMillis;
+        }
+
+        /**
+         * @return the time until the first delivery after the reconnection
+         */
+        public long getResumeMillis() {
+            return resumeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return fault + "@" + injectedAtMillis + "ms: detect=" + detectMillis + "ms, reconnect=" + reconnectMillis
+                    + "ms, resume=" + resumeMillis + "ms";
+        }
+    }
+
+    private final long published;
+
+    private final long publishFailures;
+
+    private final long received;
+
+    private final long lost;
+
+    private final long duplicated;
+
+    private final long reordered;
+
+    private final List<FaultTiming> faultTimings;
+
+    private final double baselineRate;
+
+    private final double troughRate;
+
+    public FailoverBenchmarkResult(final long published, final long publishFailures, final long received,
+            final long lost, final long duplicated, final long reordered, final List<FaultTiming> faultTimings,
+            final double baselineRate, final double troughRate) {
+
+        this.published = published;
+        this.publishFailures = publishFailures;
+        this.received = received;
+        this.lost = lost;
+        this.duplicated = duplicated;
+        this.reordered = reordered;
+        this.faultTimings = Collections.unmodifiableList(faultTimings);
+        this.baselineRate = baselineRate;
+        this.troughRate = troughRate;
+    }
+
+    /**
+     * @return the consume rate before the first fault
+     */
+    public double getBaselineRate() {
+        return baselineRate;
+    }
+
+    /**
+     * @return the number of deliveries of a message that had already been delivered
+     */
+    public long getDuplicated() {
+        return duplicated;
+    }
+
+    public List<FaultTiming> getFaultTimings() {
+        return faultTimings;
+    }
+
+    /**
+     * @return the number of successful publishes never delivered
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return the number of publishes that failed after the retry strategy gave up
+     */
+    public long getPublishFailures() {
+        return publishFailures;
+    }
+
+    /**
+     * @return the number of deliveries, duplicates included
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return the number of first deliveries of a message published before one already delivered. Only meaningful
+     *         with a single consumer.
+     */
+    public long getReordered() {
+        return reordered;
+    }
+
+    /**
+     * @return how far the consume rate fell below the baseline at its lowest, from 0 to 1
+     */
+    public double getThroughputDip() {
+        return baselineRate <= 0 ? 0 : Math.max(0, 1 - troughRate / baselineRate);
+    }
+
+    /**
+     * @return the lowest consume rate between the first fault and the end of publishing
+     */
+    public double getTroughRate() {
+        return troughRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("published=%d, publishFailures=%d, received=%d, lost=%d, duplicated=%d, "
+                + "reordered=%d, baselineRate=%.0f/s, troughRate=%.0f/s, dip=%.0f%%, faults=%s", published,
+                publishFailures, received, lost, duplicated, reordered, baselineRate, troughRate,
+                getThroughputDip() * 100, faultTimings);
+    }
+}
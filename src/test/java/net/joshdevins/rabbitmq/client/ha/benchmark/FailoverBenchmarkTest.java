@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.benchmark;
+
+import net.joshdevins.rabbitmq.client.ha.benchmark.FailoverBenchmarkResult.FaultTiming;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FailoverBenchmarkTest {
+
+    private FailoverBenchmark benchmark;
+
+    @Before
+    public void before() {
+
+        benchmark = new FailoverBenchmark();
+        benchmark.setPublishRate(500);
+        benchmark.setDurationMillis(1000);
+    }
+
+    @Test
+    public void testKilledConnectionLosesNothing() throws Exception {
+
+        benchmark.addFault(500, Fault.KILL_CONNECTIONS);
+        FailoverBenchmarkResult result = benchmark.run();
+
+        assertRecovered(result);
+        Assert.assertEquals(2, benchmark.getBroker().getConnectionsOpened());
+    }
+
+    @Test
+    public void testRefusedReconnectsDelayRecovery() throws Exception {
+
+        benchmark.addFault(500, Fault.KILL_AND_REFUSE_RECONNECTS);
+        FailoverBenchmarkResult result = benchmark.run();
+
+        assertRecovered(result);
+
+        FaultTiming timing = result.getFaultTimings().get(0);
+        Assert.assertTrue(timing.toString(), timing.getReconnectMillis() > timing.getDetectMillis());
+    }
+
+    @Test
+    public void testRestartKeepsPersistentMessages() throws Exception {
+
+        benchmark.addFault(500, Fault.RESTART);
+        assertRecovered(benchmark.run());
+    }
+
+    private void assertRecovered(final FailoverBenchmarkResult result) {
+
+        Assert.assertEquals(result.toString(), 0, result.getLost());
+        Assert.assertEquals(result.toString(), 0, result.getPublishFailures());
+        Assert.assertEquals(result.toString(), 1, result.getFaultTimings().size());
+
+        FaultTiming timing = result.getFaultTimings().get(0);
+        Assert.assertTrue(timing.toString(), timing.getDetectMillis() >= 0);
+        Assert.assertTrue(timing.toString(), timing.getReconnectMillis() >= timing.getDetectMillis());
+        Assert.assertTrue(timing.toString(), timing.getResumeMillis() >= timing.getReconnectMillis());
+
+        Assert.assertTrue(result.toString(), result.getReceived() >= result.getPublished());
+        Assert.assertTrue(result.toString(), result.getBaselineRate() > 0);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.benchmark;
+
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+
+/**
+ * A broker failure that a {@link FailoverBenchmark} injects on schedule.
+ * 
+ * @author Josh Devins
+ */
+public enum Fault {
+
+    /**
+     * Drops every connection, like a network partition that heals straight away.
+     */
+    KILL_CONNECTIONS {
+
+        @Override
+        public void inject(final SimulatedBroker broker) {
+            broker.killConnections();
+        }
+    },
+
+    /**
+     * Drops every connection and refuses the next reconnection attempts, like a node that takes a while to come back.
+     */
+    KILL_AND_REFUSE_RECONNECTS {
+
+        @Override
+        public void inject(final SimulatedBroker broker) {
+
+            broker.rejectConnects(REFUSED_RECONNECTS);
+            broker.killConnections();
+        }
+    },
+
+    /**
+     * Restarts the broker, losing whatever is not durable.
+     */
+    RESTART {
+
+        @Override
+        public void inject(final SimulatedBroker broker) {
+            broker.restart();
+        }
+    };
+
+    private static final int REFUSED_RECONNECTS = 5;
+
+    public abstract void inject(SimulatedBroker broker);
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SlabArenaTest {
+
+    @Test
+    public void testChunksAreReused() {
+
+        SlabArena arena = new SlabArena(1024, 4096, false);
+
+        PooledBuffer first = arena.allocate(new byte[] { 1, 2, 3 });
+        assertEquals(1024, arena.getAllocatedBytes());
+        assertEquals(SlabArena.MIN_CHUNK_SIZE, arena.getRetainedBytes());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, first.toByteArray());
+
+        first.release();
+        first.release();
+        assertEquals(0, arena.getRetainedBytes());
+
+        // a new slab for the next size class, then no more for the same one
+        PooledBuffer second = arena.allocate(new byte[100]);
+        assertEquals(128, arena.getRetainedBytes());
+        assertEquals(100, second.toByteArray().length);
+
+        arena.allocate(new byte[128]);
+        assertEquals(2048, arena.getAllocatedBytes());
+    }
+
+    @Test
+    public void testMemoryIsBounded() {
+
+        SlabArena arena = new SlabArena(256, 512, true);
+
+        for (int i = 0; i < 4; i++) {
+            arena.allocate(new byte[128]);
+        }
+
+        assertNull(arena.allocate(new byte[128]));
+        assertNull(arena.allocate(new byte[1024]));
+        assertEquals(512, arena.getAllocatedBytes());
+    }
+
+    @Test
+    public void testLargeBodiesAreNotPooled() {
+
+        SlabArena arena = new SlabArena(256, 4096, false);
+
+        byte[] body = new byte[1000];
+        body[999] = 7;
+
+        PooledBuffer buffer = arena.allocate(body);
+        assertEquals(1000, arena.getAllocatedBytes());
+        assertArrayEquals(body, buffer.toByteArray());
+
+        buffer.release();
+        assertEquals(0, arena.getAllocatedBytes());
+        assertEquals(0, arena.getRetainedBytes());
+    }
+}
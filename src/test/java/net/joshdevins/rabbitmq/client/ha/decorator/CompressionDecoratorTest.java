@@ -0,0 +1,84 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.decorator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class CompressionDecoratorTest {
+
+    private static final Envelope ENVELOPE = new Envelope(1, false, "exchange", "routingKey");
+
+    private final CompressionDecorator decorator = new CompressionDecorator(100, 6);
+
+    @Test
+    public void testLargeBodiesRoundTrip() throws Exception {
+
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i % 10);
+        }
+
+        BasicProperties properties = new BasicProperties.Builder().contentType("text/plain").build();
+        Payload published = decorator.onPublish("exchange", "routingKey", new Payload(properties, body));
+
+        assertTrue(published.getBody().length < body.length);
+        assertEquals(CompressionDecorator.CONTENT_ENCODING, published.getProperties().getContentEncoding());
+        assertEquals("text/plain", published.getProperties().getContentType());
+
+        Payload delivered = decorator.onDelivery(ENVELOPE, published);
+
+        assertArrayEquals(body, delivered.getBody());
+        assertNull(delivered.getProperties().getContentEncoding());
+        assertEquals("text/plain", delivered.getProperties().getContentType());
+    }
+
+    @Test
+    public void testMessagesNotWorthCompressingAreLeftAlone() throws Exception {
+
+        Payload small = new Payload(null, new byte[50]);
+        assertSame(small, decorator.onPublish("exchange", "routingKey", small));
+
+        byte[] random = new byte[1000];
+        new Random(42).nextBytes(random);
+        Payload incompressible = new Payload(null, random);
+        assertSame(incompressible, decorator.onPublish("exchange", "routingKey", incompressible));
+
+        Payload encoded = new Payload(new BasicProperties.Builder().contentEncoding("gzip").build(), new byte[1000]);
+        assertSame(encoded, decorator.onPublish("exchange", "routingKey", encoded));
+        assertSame(encoded, decorator.onDelivery(ENVELOPE, encoded));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedBodyFails() throws Exception {
+
+        BasicProperties properties = new BasicProperties.Builder().contentEncoding(
+                CompressionDecorator.CONTENT_ENCODING).build();
+        decorator.onDelivery(ENVELOPE, new Payload(properties, new byte[] { 1, 2, 3, 4 }));
+    }
+}
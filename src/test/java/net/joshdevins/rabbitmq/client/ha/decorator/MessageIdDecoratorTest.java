@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.decorator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class MessageIdDecoratorTest {
+
+    @Test
+    public void testIdsAreUniqueAcrossThreads() throws Exception {
+
+        final MessageIdGenerator generator = new MessageIdGenerator();
+        final ConcurrentHashMap<String, Boolean> ids = new ConcurrentHashMap<String, Boolean>();
+        final int threads = 4;
+        final int idsPerThread = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+
+            new Thread(new Runnable() {
+
+                public void run() {
+
+                    for (int j = 0; j < idsPerThread; j++) {
+                        ids.put(generator.nextId(), Boolean.TRUE);
+                    }
+
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        done.await();
+        assertEquals(threads * idsPerThread, ids.size());
+
+        for (String id : ids.keySet()) {
+            assertTrue(id, id.startsWith(generator.getPrefix() + "-"));
+        }
+    }
+
+    @Test
+    public void testStampsIdAndSequenceHeaders() throws Exception {
+
+        MessageIdGenerator generator = new MessageIdGenerator("process");
+        MessageIdDecorator decorator = new MessageIdDecorator(generator, true);
+
+        Map<String, Object> headers = Collections.<String, Object> singletonMap("existing", "value");
+        BasicProperties properties = new BasicProperties.Builder().contentType("text/plain").headers(headers)
+                .build();
+        byte[] body = new byte[] { 1, 2, 3 };
+
+        Payload first = decorator.onPublish("exchange", "routingKey", new Payload(properties, body));
+        Payload second = decorator.onPublish("exchange", "routingKey", new Payload(null, body));
+
+        String producerId = generator.getProducerId();
+        assertEquals(producerId + "-1", first.getProperties().getMessageId());
+        assertEquals(producerId + "-2", second.getProperties().getMessageId());
+        assertSame(body, first.getBody());
+
+        assertEquals("text/plain", first.getProperties().getContentType());
+        assertEquals("value", first.getProperties().getHeaders().get("existing"));
+        assertEquals(producerId, first.getProperties().getHeaders().get(MessageIdDecorator.PRODUCER_ID_HEADER));
+        assertEquals(1L, first.getProperties().getHeaders().get(MessageIdDecorator.SEQUENCE_HEADER));
+        assertEquals(2L, second.getProperties().getHeaders().get(MessageIdDecorator.SEQUENCE_HEADER));
+
+        // the application's own id is kept
+        BasicProperties identified = new BasicProperties.Builder().messageId("mine").build();
+        Payload kept = new Payload(identified, body);
+        assertSame(kept, decorator.onPublish("exchange", "routingKey", kept));
+        assertNull(new MessageIdDecorator().onDelivery(null, kept).getProperties().getHeaders());
+    }
+}
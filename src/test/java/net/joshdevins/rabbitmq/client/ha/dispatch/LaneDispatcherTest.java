@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.dispatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Envelope;
+
+public class LaneDispatcherTest {
+
+    private ExecutorService executorService;
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Before
+    public void before() {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @Test
+    public void testDeliveriesAreOrderedPerKey() throws Exception {
+
+        LaneDispatcher dispatcher = new LaneDispatcher(executorService, 4, 100, new RoutingKeyExtractor());
+        final Map<String, List<Integer>> handled = new ConcurrentHashMap<String, List<Integer>>();
+
+        for (int i = 0; i < 1000; i++) {
+
+            final String routingKey = "key" + i % 10;
+            final int sequence = i;
+
+            if (!handled.containsKey(routingKey)) {
+                handled.put(routingKey, Collections.synchronizedList(new ArrayList<Integer>()));
+            }
+
+            dispatcher.dispatch(new Envelope(i, false, "exchange", routingKey), null, null, new Runnable() {
+
+                public void run() {
+                    handled.get(routingKey).add(sequence);
+                }
+            });
+        }
+
+        awaitIdle(dispatcher);
+
+        for (List<Integer> sequences : handled.values()) {
+
+            Assert.assertEquals(100, sequences.size());
+
+            for (int i = 1; i < sequences.size(); i++) {
+                Assert.assertTrue(sequences.get(i - 1) < sequences.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testDispatchWaitsWhenTooManyInFlight() throws Exception {
+
+        final LaneDispatcher dispatcher = new LaneDispatcher(executorService, 2, 2, new RoutingKeyExtractor());
+        final CountDownLatch blocker = new CountDownLatch(1);
+
+        final Runnable blocked = new Runnable() {
+
+            public void run() {
+
+                try {
+                    blocker.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        dispatcher.dispatch(new Envelope(1, false, "exchange", "a"), null, null, blocked);
+        dispatcher.dispatch(new Envelope(2, false, "exchange", "b"), null, null, blocked);
+        Assert.assertEquals(2, dispatcher.getDeliveriesInFlight());
+
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        executorService.execute(new Runnable() {
+
+            public void run() {
+
+                try {
+                    dispatcher.dispatch(new Envelope(3, false, "exchange", "c"), null, null, blocked);
+                    dispatched.countDown();
+
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        Assert.assertFalse(dispatched.await(100, TimeUnit.MILLISECONDS));
+
+        blocker.countDown();
+        Assert.assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+
+        awaitIdle(dispatcher);
+    }
+
+    private void awaitIdle(final LaneDispatcher dispatcher) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getDeliveriesInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertEquals(0, dispatcher.getDeliveriesInFlight());
+    }
+}
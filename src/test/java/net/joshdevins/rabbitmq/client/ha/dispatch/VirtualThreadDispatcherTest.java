@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.dispatch;
+
+import static org.mockito.Mockito.mock;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.HaChannelProxy;
+import net.joshdevins.rabbitmq.client.ha.HaConnectionProxy;
+import net.joshdevins.rabbitmq.client.ha.VirtualThreads;
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+public class VirtualThreadDispatcherTest {
+
+    private ExecutorService executorService;
+
+    private HaChannelProxy channelProxy;
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Before
+    public void before() {
+
+        // platform threads stand in on JVMs without virtual threads
+        executorService = VirtualThreads.isAvailable() ? VirtualThreads.newVirtualThreadPerTaskExecutor() : Executors
+                .newCachedThreadPool();
+
+        HaConnectionProxy connectionProxy = new HaConnectionProxy(new Address[] { new Address("localhost") }, null,
+                new NeverRetryStrategy());
+        channelProxy = new HaChannelProxy(connectionProxy, mock(Channel.class), new NeverRetryStrategy());
+    }
+
+    @Test
+    public void testConcurrencyFollowsPrefetch() throws Exception {
+
+        VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(executorService, channelProxy, 100);
+        Assert.assertEquals(100, dispatcher.getConcurrency());
+
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[] { Channel.class }, channelProxy);
+        channel.basicQos(2);
+
+        Assert.assertEquals(2, dispatcher.getConcurrency());
+    }
+
+    @Test
+    public void testConcurrencyIsLimited() throws Exception {
+
+        VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(executorService, channelProxy, 100);
+
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[] { Channel.class }, channelProxy);
+        channel.basicQos(500);
+
+        Assert.assertEquals(100, dispatcher.getConcurrency());
+    }
+
+    @Test
+    public void testDispatchWaitsForPrefetchSlots() throws Exception {
+
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[] { Channel.class }, channelProxy);
+        channel.basicQos(2);
+
+        final VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(executorService, channelProxy, 100);
+        final CountDownLatch blocker = new CountDownLatch(1);
+
+        final Runnable blocked = new Runnable() {
+
+            public void run() {
+
+                try {
+                    blocker.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        dispatcher.dispatch(new Envelope(1, false, "exchange", "a"), null, null, blocked);
+        dispatcher.dispatch(new Envelope(2, false, "exchange", "a"), null, null, blocked);
+
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        new Thread(new Runnable() {
+
+            public void run() {
+
+                try {
+                    dispatcher.dispatch(new Envelope(3, false, "exchange", "a"), null, null, blocked);
+                    dispatched.countDown();
+
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }).start();
+
+        Assert.assertFalse(dispatched.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, dispatcher.getDeliveriesInFlight());
+
+        blocker.countDown();
+        Assert.assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.perf;
+
+/**
+ * How producer and consumer threads of a {@link LoadGenerator} are given channels.
+ * 
+ * @author Josh Devins
+ */
+public enum ChannelSharing {
+
+    /**
+     * Every producer and consumer thread has a channel of its own.
+     */
+    PER_THREAD,
+
+    /**
+     * All producers share one channel, and all consumers another, which shows contention on the HA channel proxy.
+     */
+    SHARED
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.perf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsBoundValuesWithinAnEighth() {
+
+        for (long value = 0; value < 1 << 20; value += 7) {
+
+            int bucket = LatencyHistogram.bucketOf(value);
+            long upperBound = LatencyHistogram.upperBoundOf(bucket);
+
+            Assert.assertTrue("value=" + value, upperBound >= value);
+            Assert.assertTrue("value=" + value, upperBound - value <= value / 8);
+            Assert.assertEquals("value=" + value, bucket, LatencyHistogram.bucketOf(upperBound));
+        }
+
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentilesAndSnapshot() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000, histogram.getMax());
+        Assert.assertEquals(1, histogram.getPercentile(0));
+        Assert.assertTrue(Math.abs(histogram.getPercentile(50) - 500) <= 500 / 8);
+        Assert.assertTrue(Math.abs(histogram.getPercentile(99) - 990) <= 990 / 8);
+        Assert.assertEquals(1000, histogram.getPercentile(100));
+
+        LatencyHistogram snapshot = histogram.snapshotAndReset();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.perf;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.joshdevins.rabbitmq.client.ha.HaConnectionFactory;
+import net.joshdevins.rabbitmq.client.ha.retry.AlwaysRetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.retry.BlockingRetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.retry.NeverRetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.retry.RetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.retry.SimpleRetryStrategy;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedHaConnectionFactory;
+
+import org.apache.commons.lang.Validate;
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A load generator for the HA layer itself, in the spirit of the RabbitMQ PerfTest tool. Producer and consumer threads
+ * publish to and consume from one queue through an {@link HaConnectionFactory} connection, and throughput and
+ * end-to-end latency percentiles are printed every second, with a summary at the end. Latency is measured from a
+ * timestamp in the body, so producers and consumers must run in the same process, which they do.
+ * 
+ * <p>
+ * Run with {@code --help} for the options. The broker is either a real one, given by address, or
+ * {@value #SIMULATED_URI} for an in-process {@link SimulatedBroker}, which measures the overhead of the HA layer alone.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class LoadGenerator {
+
+    private class Producer implements Runnable {
+
+        private final Channel channel;
+
+        private Producer(final Channel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+
+            long intervalNanos = producerRate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / producerRate;
+            long startNanos = System.nanoTime();
+            long unconfirmed = 0;
+
+            try {
+                for (long sent = 0; System.nanoTime() < deadlineNanos; sent++) {
+
+                    long waitNanos = startNanos + sent * intervalNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+
+                    byte[] body = new byte[messageSize];
+                    ByteBuffer.wrap(body).putLong(System.nanoTime());
+
+                    channel.basicPublish("", queue, null, body);
+                    LoadGenerator.this.sent.incrementAndGet();
+
+                    if (confirm && ++unconfirmed == confirmBatchSize) {
+
+                        channel.waitForConfirmsOrDie();
+                        confirmed.addAndGet(unconfirmed);
+                        unconfirmed = 0;
+                    }
+                }
+
+                if (confirm && unconfirmed > 0) {
+
+                    channel.waitForConfirmsOrDie();
+                    confirmed.addAndGet(unconfirmed);
+                }
+
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+
+            } catch (Exception e) {
+                LOG.error("Producer failed", e);
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    private class RecordingConsumer extends DefaultConsumer {
+
+        private RecordingConsumer(final Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(final String consumerTag, final Envelope envelope,
+                final BasicProperties properties, final byte[] body) throws IOException {
+
+            long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - ByteBuffer.wrap(body).getLong());
+            intervalLatency.record(latencyMicros);
+            totalLatency.record(latencyMicros);
+            received.incrementAndGet();
+
+            if (!autoAck) {
+                getChannel().basicAck(envelope.getDeliveryTag(), false);
+            }
+        }
+    }
+
+    public static final String SIMULATED_URI = "simulated";
+
+    private static final Logger LOG = Logger.getLogger(LoadGenerator.class);
+
+    private static final String USAGE = "Usage: LoadGenerator [options]\n"
+            + "  --uri <host[:port],...|simulated>  broker addresses, or an in-process simulated broker (simulated)\n"
+            + "  --producers <n>                    producer threads (1)\n"
+            + "  --consumers <n>                    consumer threads (1)\n"
+            + "  --size <bytes>                     message size, at least 8 (64)\n"
+            + "  --rate <msgs/sec>                  per producer, 0 for as fast as possible (0)\n"
+            + "  --confirm <n>                      use publisher confirms, waiting every n publishes (off)\n"
+            + "  --prefetch <n>                     consumer prefetch, 0 for unlimited (100)\n"
+            + "  --autoack                          consume without acks (off)\n"
+            + "  --retry <blocking|simple|always|never>  retry strategy (blocking)\n"
+            + "  --sharing <per_thread|shared>      how threads get channels (per_thread)\n"
+            + "  --duration <seconds>               how long to publish for (10)\n"
+            + "  --queue <name>                     queue to use, declared and purged first (perf-test)";
+
+    private String uri = SIMULATED_URI;
+
+    private int producers = 1;
+
+    private int consumers = 1;
+
+    private int messageSize = 64;
+
+    private int producerRate;
+
+    private boolean confirm;
+
+    private int confirmBatchSize;
+
+    private int prefetch = 100;
+
+    private boolean autoAck;
+
+    private RetryStrategy retryStrategy = new BlockingRetryStrategy();
+
+    private ChannelSharing channelSharing = ChannelSharing.PER_THREAD;
+
+    private long durationSeconds = 10;
+
+    private String queue = "perf-test";
+
+    private PrintStream out = System.out;
+
+    // counters of the current run
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong confirmed = new AtomicLong();
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    private volatile long deadlineNanos;
+
+    public static void main(final String[] args) throws Exception {
+
+        LoadGenerator loadGenerator = new LoadGenerator();
+
+        try {
+            loadGenerator.parse(args);
+
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        loadGenerator.run();
+        System.exit(0);
+    }
+
+    public long getConfirmed() {
+        return confirmed.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return the end-to-end latencies of the whole run, in microseconds
+     */
+    public LatencyHistogram getTotalLatency() {
+        return totalLatency;
+    }
+
+    /**
+     * Applies command line options.
+     * 
+     * @throws IllegalArgumentException
+     *         on an unknown or malformed option, or {@code --help}
+     */
+    public void parse(final String[] args) {
+
+        for (int i = 0; i < args.length; i++) {
+
+            String option = args[i];
+
+            if (option.equals("--autoack")) {
+                setAutoAck(true);
+                continue;
+            }
+
+            if (option.equals("--help") || i + 1 == args.length) {
+                throw new IllegalArgumentException(option.equals("--help") ? "" : "Missing value for " + option);
+            }
+
+            String value = args[++i];
+
+            try {
+                if (option.equals("--uri")) {
+                    setUri(value);
+                } else if (option.equals("--producers")) {
+                    setProducers(Integer.parseInt(value));
+                } else if (option.equals("--consumers")) {
+                    setConsumers(Integer.parseInt(value));
+                } else if (option.equals("--size")) {
+                    setMessageSize(Integer.parseInt(value));
+                } else if (option.equals("--rate")) {
+                    setProducerRate(Integer.parseInt(value));
+                } else if (option.equals("--confirm")) {
+                    setConfirmBatchSize(Integer.parseInt(value));
+                } else if (option.equals("--prefetch")) {
+                    setPrefetch(Integer.parseInt(value));
+                } else if (option.equals("--retry")) {
+                    setRetryStrategy(newRetryStrategy(value));
+                } else if (option.equals("--sharing")) {
+                    setChannelSharing(ChannelSharing.valueOf(value.toUpperCase()));
+                } else if (option.equals("--duration")) {
+                    setDurationSeconds(Long.parseLong(value));
+                } else if (option.equals("--queue")) {
+                    setQueue(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + option);
+                }
+
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Not a number for " + option + ": " + value);
+            }
+        }
+    }
+
+    /**
+     * Runs the producers and consumers for the configured duration, then waits briefly for consumers to catch up.
+     */
+    public void run() throws IOException, InterruptedException {
+
+        HaConnectionFactory connectionFactory = newConnectionFactory();
+        connectionFactory.setRetryStrategy(retryStrategy);
+
+        Address[] addresses = SIMULATED_URI.equals(uri) ? new Address[] { new Address("localhost") } : Address
+                .parseAddresses(uri);
+
+        Connection connection = connectionFactory.newConnection(addresses);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+            Channel setupChannel = connection.createChannel();
+            setupChannel.queueDeclare(queue, false, false, false, null);
+            setupChannel.queuePurge(queue);
+            setupChannel.close();
+
+            startConsumers(connection);
+
+            out.println("Running: " + this);
+            final long startNanos = System.nanoTime();
+            deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+            reporter.scheduleAtFixedRate(new Runnable() {
+
+                private long lastSent;
+
+                private long lastReceived;
+
+                public void run() {
+
+                    long currentSent = sent.get();
+                    long currentReceived = received.get();
+
+                    report("time=" + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos) + "s", currentSent
+                            - lastSent, currentReceived - lastReceived, intervalLatency.snapshotAndReset());
+
+                    lastSent = currentSent;
+                    lastReceived = currentReceived;
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+
+            runProducers(connection);
+            double publishSeconds = secondsSince(startNanos);
+
+            // give consumers a moment to catch up with what is still queued
+            long catchUpDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (received.get() < sent.get() && System.nanoTime() < catchUpDeadline) {
+                Thread.sleep(10);
+            }
+
+            reporter.shutdownNow();
+
+            report("summary", sent.get() / publishSeconds, received.get() / secondsSince(startNanos), totalLatency);
+
+        } finally {
+            reporter.shutdownNow();
+            connection.abort();
+        }
+    }
+
+    public void setAutoAck(final boolean autoAck) {
+        this.autoAck = autoAck;
+    }
+
+    public void setChannelSharing(final ChannelSharing channelSharing) {
+
+        Validate.notNull(channelSharing, "channelSharing is required");
+        this.channelSharing = channelSharing;
+    }
+
+    /**
+     * Turns on publisher confirms, with producers waiting for confirms every given number of publishes.
+     */
+    public void setConfirmBatchSize(final int confirmBatchSize) {
+
+        Validate.isTrue(confirmBatchSize > 0, "confirm batch size must be greater than 0");
+
+        this.confirmBatchSize = confirmBatchSize;
+        confirm = true;
+    }
+
+    public void setConsumers(final int consumers) {
+
+        Validate.isTrue(consumers >= 0, "consumers must be 0 or greater");
+        this.consumers = consumers;
+    }
+
+    public void setDurationSeconds(final long durationSeconds) {
+
+        Validate.isTrue(durationSeconds > 0, "duration must be greater than 0");
+        this.durationSeconds = durationSeconds;
+    }
+
+    public void setMessageSize(final int messageSize) {
+
+        Validate.isTrue(messageSize >= 8, "message size must be 8 or greater");
+        this.messageSize = messageSize;
+    }
+
+    public void setOut(final PrintStream out) {
+
+        Validate.notNull(out, "out is required");
+        this.out = out;
+    }
+
+    public void setPrefetch(final int prefetch) {
+
+        Validate.isTrue(prefetch >= 0, "prefetch must be 0 or greater");
+        this.prefetch = prefetch;
+    }
+
+    public void setProducerRate(final int producerRate) {
+
+        Validate.isTrue(producerRate >= 0, "rate must be 0 or greater");
+        this.producerRate = producerRate;
+    }
+
+    public void setProducers(final int producers) {
+
+        Validate.isTrue(producers >= 0, "producers must be 0 or greater");
+        this.producers = producers;
+    }
+
+    public void setQueue(final String queue) {
+
+        Validate.notEmpty(queue, "queue is required");
+        this.queue = queue;
+    }
+
+    public void setRetryStrategy(final RetryStrategy retryStrategy) {
+
+        Validate.notNull(retryStrategy, "retryStrategy is required");
+        this.retryStrategy = retryStrategy;
+    }
+
+    public void setUri(final String uri) {
+
+        Validate.notEmpty(uri, "uri is required");
+        this.uri = uri;
+    }
+
+    @Override
+    public String toString() {
+        return "uri=" + uri + ", producers=" + producers + ", consumers=" + consumers + ", size=" + messageSize
+                + ", rate=" + producerRate + ", confirm=" + (confirm ? confirmBatchSize : "off") + ", prefetch="
+                + prefetch + ", autoAck=" + autoAck + ", retry=" + retryStrategy.getClass().getSimpleName()
+                + ", sharing=" + channelSharing + ", duration=" + durationSeconds + "s";
+    }
+
+    /**
+     * Creates the connection factory for the run, against a simulated broker if asked for.
+     */
+    protected HaConnectionFactory newConnectionFactory() {
+        return SIMULATED_URI.equals(uri) ? new SimulatedHaConnectionFactory(new SimulatedBroker())
+                : new HaConnectionFactory();
+    }
+
+    private RetryStrategy newRetryStrategy(final String name) {
+
+        if (name.equals("blocking")) {
+            return new BlockingRetryStrategy();
+        } else if (name.equals("simple")) {
+            return new SimpleRetryStrategy();
+        } else if (name.equals("always")) {
+            return new AlwaysRetryStrategy();
+        } else if (name.equals("never")) {
+            return new NeverRetryStrategy();
+        }
+
+        throw new IllegalArgumentException("Unknown retry strategy: " + name);
+    }
+
+    private void report(final String label, final double sentRate, final double receivedRate,
+            final LatencyHistogram latency) {
+
+        out.println(String.format("%s, sent=%.0f/s, received=%.0f/s, latency min/p50/p95/p99/max="
+                + "%d/%d/%d/%d/%dus", label, sentRate, receivedRate,
+                latency.getPercentile(0), latency.getPercentile(50), latency.getPercentile(95),
+                latency.getPercentile(99), latency.getMax()));
+    }
+
+    private void runProducers(final Connection connection) throws IOException, InterruptedException {
+
+        Channel sharedChannel = null;
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < producers; i++) {
+
+            Channel channel;
+            if (channelSharing == ChannelSharing.PER_THREAD || sharedChannel == null) {
+
+                channel = connection.createChannel();
+                if (confirm) {
+                    channel.confirmSelect();
+                }
+
+                sharedChannel = channel;
+
+            } else {
+                channel = sharedChannel;
+            }
+
+            Thread thread = new Thread(new Producer(channel), "load-generator-producer-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private double secondsSince(final long startNanos) {
+        return (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private void startConsumers(final Connection connection) throws IOException {
+
+        Channel sharedChannel = null;
+
+        for (int i = 0; i < consumers; i++) {
+
+            Channel channel;
+            if (channelSharing == ChannelSharing.PER_THREAD || sharedChannel == null) {
+
+                channel = connection.createChannel();
+                if (prefetch > 0) {
+                    channel.basicQos(prefetch);
+                }
+
+                sharedChannel = channel;
+
+            } else {
+                channel = sharedChannel;
+            }
+
+            channel.basicConsume(queue, autoAck, new RecordingConsumer(channel));
+        }
+    }
+}
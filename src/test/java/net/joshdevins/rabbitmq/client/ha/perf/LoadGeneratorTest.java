@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.perf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void testRunsAgainstSimulatedBroker() throws Exception {
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        LoadGenerator loadGenerator = new LoadGenerator();
+        loadGenerator.parse(new String[] { "--uri", "simulated", "--producers", "2", "--consumers", "2", "--rate",
+                "500", "--confirm", "50", "--sharing", "shared", "--duration", "1" });
+        loadGenerator.setOut(new PrintStream(output, true));
+        loadGenerator.run();
+
+        Assert.assertEquals(0, loadGenerator.getFailures());
+        Assert.assertTrue(loadGenerator.getSent() > 0);
+        Assert.assertEquals(loadGenerator.getSent(), loadGenerator.getConfirmed());
+        Assert.assertEquals(loadGenerator.getSent(), loadGenerator.getReceived());
+        Assert.assertEquals(loadGenerator.getReceived(), loadGenerator.getTotalLatency().getCount());
+        Assert.assertTrue(output.toString(), output.toString().contains("summary, sent="));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownOption() {
+        new LoadGenerator().parse(new String[] { "--producer", "1" });
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+public class ConsistentHashShardSelectorTest {
+
+    private static final int KEYS = 10000;
+
+    private List<Shard> shards;
+
+    private List<Connection> connections;
+
+    private ConsistentHashShardSelector selector;
+
+    @Before
+    public void before() {
+
+        shards = new ArrayList<Shard>();
+        connections = new ArrayList<Connection>();
+
+        for (int i = 0; i < 4; i++) {
+
+            Connection connection = mock(Connection.class);
+            when(connection.isOpen()).thenReturn(true);
+
+            connections.add(connection);
+            shards.add(new Shard("shard-" + i, new Address[] { new Address("broker" + i) }, connection,
+                    mock(Channel.class)));
+        }
+
+        selector = new ConsistentHashShardSelector();
+    }
+
+    @Test
+    public void testKeysAreSpreadEvenlyAndStayPut() {
+
+        Map<Shard, Integer> counts = new HashMap<Shard, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+
+            Shard shard = select("key-" + i);
+            assertSame(shard, select("key-" + i));
+
+            Integer count = counts.get(shard);
+            counts.put(shard, count == null ? 1 : count + 1);
+        }
+
+        // every shard gets within a third of its fair share
+        assertEquals(shards.size(), counts.size());
+        for (Integer count : counts.values()) {
+            assertTrue("Uneven spread: " + counts, Math.abs(count - KEYS / shards.size()) < KEYS / shards.size() / 3);
+        }
+
+        // a new ring over the same shards routes the same way
+        ConsistentHashShardSelector other = new ConsistentHashShardSelector();
+        for (int i = 0; i < KEYS; i += 97) {
+            assertSame(select("key-" + i), other.select("", "key-" + i, null, shards, Collections.<Shard> emptySet()));
+        }
+    }
+
+    @Test
+    public void testKeysOfExcludedShardMoveAsIfUnavailable() {
+
+        Shard excluded = shards.get(2);
+        Map<String, Shard> moved = new HashMap<String, Shard>();
+        for (int i = 0; i < KEYS; i += 7) {
+            moved.put("key-" + i, selector.select("", "key-" + i, null, shards, Collections.singleton(excluded)));
+        }
+
+        when(connections.get(2).isOpen()).thenReturn(false);
+        for (int i = 0; i < KEYS; i += 7) {
+
+            assertNotSame(excluded, moved.get("key-" + i));
+            assertSame(select("key-" + i), moved.get("key-" + i));
+        }
+    }
+
+    @Test
+    public void testKeysOfUnavailableShardMoveAndReturn() {
+
+        Map<String, Shard> before = new HashMap<String, Shard>();
+        for (int i = 0; i < KEYS; i++) {
+            before.put("key-" + i, select("key-" + i));
+        }
+
+        Shard down = shards.get(1);
+        when(connections.get(1).isOpen()).thenReturn(false);
+
+        // only the keys of the unavailable shard move, and not all to the same shard
+        Map<Shard, Integer> moved = new HashMap<Shard, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+
+            Shard shard = select("key-" + i);
+            if (before.get("key-" + i) == down) {
+
+                assertNotSame(down, shard);
+                moved.put(shard, 1);
+
+            } else {
+                assertSame(before.get("key-" + i), shard);
+            }
+        }
+
+        assertTrue(moved.size() > 1);
+
+        when(connections.get(1).isOpen()).thenReturn(true);
+        for (int i = 0; i < KEYS; i++) {
+            assertSame(before.get("key-" + i), select("key-" + i));
+        }
+
+        for (Connection connection : connections) {
+            when(connection.isOpen()).thenReturn(false);
+        }
+
+        assertNull(select("key-0"));
+    }
+
+    private Shard select(final String routingKey) {
+        return selector.select("", routingKey, null, shards, Collections.<Shard> emptySet());
+    }
+}
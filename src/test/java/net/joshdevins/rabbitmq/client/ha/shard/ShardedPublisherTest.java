@@ -0,0 +1,248 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.AbstractHaConnectionListener;
+import net.joshdevins.rabbitmq.client.ha.HaConnectionFactory;
+import net.joshdevins.rabbitmq.client.ha.HaConnectionProxy;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class ShardedPublisherTest {
+
+    private static final String EXCHANGE = "amq.topic";
+
+    private static final String QUEUE = "orders";
+
+    private final byte[] body = new byte[] { 1 };
+
+    private Map<String, SimulatedBroker> brokers;
+
+    private HaConnectionFactory factory;
+
+    private BlockingQueue<HaConnectionProxy> reconnections;
+
+    private ShardedPublisher publisher;
+
+    @After
+    public void after() {
+
+        if (publisher != null) {
+            publisher.close();
+        }
+
+        factory.shutdownGracefully(1000);
+    }
+
+    @Before
+    public void before() throws Exception {
+
+        brokers = new LinkedHashMap<String, SimulatedBroker>();
+        brokers.put("broker-a", new SimulatedBroker());
+        brokers.put("broker-b", new SimulatedBroker());
+
+        factory = new HaConnectionFactory() {
+
+            @Override
+            protected Connection newTargetConnection(final Address[] addrs) throws IOException {
+                return brokers.get(addrs[0].getHost()).newConnection(addrs[0]);
+            }
+        };
+        factory.setReconnectionWaitMillis(10);
+
+        reconnections = new LinkedBlockingQueue<HaConnectionProxy>();
+        factory.addHaConnectionListener(new AbstractHaConnectionListener() {
+
+            @Override
+            public void onReconnection(final HaConnectionProxy connectionProxy) {
+                reconnections.add(connectionProxy);
+            }
+        });
+    }
+
+    @Test
+    public void testPublishesMoveToAnotherShardWhileTheirShardIsDown() throws Exception {
+
+        publisher = new ShardedPublisher(factory, shardAddresses());
+        awaitAvailable(publisher.getShards());
+        declareQueues();
+
+        String routingKey = routingKeyFor(publisher.getShards().get(0));
+        Shard shard = publisher.getShards().get(0);
+        Shard other = publisher.getShards().get(1);
+
+        publisher.basicPublish(EXCHANGE, routingKey, null, body);
+        assertEquals(1, brokers.get("broker-a").getMessageCount(QUEUE));
+
+        brokers.get("broker-a").setRejectingConnects(true);
+        brokers.get("broker-a").killConnection(getTargetConnection(shard));
+
+        publisher.basicPublish(EXCHANGE, routingKey, null, body);
+        assertEquals(1, brokers.get("broker-b").getMessageCount(QUEUE));
+        assertEquals(1, shard.getPublishes());
+        assertEquals(1, other.getPublishes());
+
+        brokers.get("broker-a").setRejectingConnects(false);
+        assertNotNull(reconnections.poll(5, TimeUnit.SECONDS));
+
+        publisher.basicPublish(EXCHANGE, routingKey, null, body);
+        assertEquals(2, shard.getPublishes());
+        assertEquals(2, brokers.get("broker-a").getMessageCount(QUEUE));
+    }
+
+    @Test
+    public void testPublishMovesWhenShardGoesDownAfterBeingPicked() throws Exception {
+
+        final Shard[] picked = new Shard[1];
+        ShardSelector selector = new ShardSelector() {
+
+            private final ShardSelector delegate = new ConsistentHashShardSelector();
+
+            public Shard select(final String exchange, final String routingKey, final BasicProperties properties,
+                    final List<Shard> shards, final Set<Shard> excluded) {
+
+                // the first pick is made before the shard goes down
+                if (picked[0] != null) {
+                    Shard shard = picked[0];
+                    picked[0] = null;
+                    return shard;
+                }
+
+                return delegate.select(exchange, routingKey, properties, shards, excluded);
+            }
+        };
+
+        publisher = new ShardedPublisher(factory, shardAddresses(), selector);
+        awaitAvailable(publisher.getShards());
+        declareQueues();
+
+        Shard shard = publisher.getShards().get(0);
+        brokers.get("broker-a").setRejectingConnects(true);
+        brokers.get("broker-a").killConnection(getTargetConnection(shard));
+        picked[0] = shard;
+
+        // the default retry strategy gives up straight away rather than waiting for the reconnection
+        publisher.basicPublish(EXCHANGE, routingKeyFor(shard), null, body);
+
+        assertEquals(0, shard.getPublishes());
+        assertEquals(1, publisher.getShards().get(1).getPublishes());
+        assertEquals(1, brokers.get("broker-b").getMessageCount(QUEUE));
+    }
+
+    @Test
+    public void testPublishFailsWithoutAvailableShards() throws Exception {
+
+        publisher = new ShardedPublisher(factory, shardAddresses());
+        awaitAvailable(publisher.getShards());
+
+        for (Map.Entry<String, SimulatedBroker> broker : brokers.entrySet()) {
+
+            Shard shard = publisher.getShards().get(broker.getKey().equals("broker-a") ? 0 : 1);
+            broker.getValue().setRejectingConnects(true);
+            broker.getValue().killConnection(getTargetConnection(shard));
+        }
+
+        try {
+            publisher.basicPublish(EXCHANGE, "key", null, body);
+            fail("Expected IOException");
+
+        } catch (IOException ioe) {
+            // expected
+        }
+
+        for (Shard shard : publisher.getShards()) {
+            assertEquals(0, shard.getPublishes());
+        }
+
+        publisher.close();
+        publisher = null;
+        for (SimulatedBroker broker : brokers.values()) {
+            assertEquals(0, broker.getConnectionCount());
+        }
+    }
+
+    private void awaitAvailable(final List<Shard> shards) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Shard shard : shards) {
+
+            while (!shard.isAvailable()) {
+
+                assertTrue("Shard did not become available: " + shard, System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private void declareQueues() throws IOException {
+
+        for (SimulatedBroker broker : brokers.values()) {
+
+            Channel channel = broker.newConnection(new Address("setup")).createChannel();
+            channel.queueDeclare(QUEUE, false, false, false, null);
+            channel.queueBind(QUEUE, EXCHANGE, "#");
+        }
+    }
+
+    private Connection getTargetConnection(final Shard shard) {
+        return ((HaConnectionProxy) Proxy.getInvocationHandler(shard.getConnection())).getTargetConnection();
+    }
+
+    private String routingKeyFor(final Shard shard) {
+
+        for (int i = 0;; i++) {
+
+            String routingKey = "key-" + i;
+            if (publisher.select(EXCHANGE, routingKey, null) == shard) {
+                return routingKey;
+            }
+        }
+    }
+
+    private Map<String, Address[]> shardAddresses() {
+
+        Map<String, Address[]> shards = new LinkedHashMap<String, Address[]>();
+        for (String host : brokers.keySet()) {
+            shards.put("shard-" + host, new Address[] { new Address(host) });
+        }
+
+        return shards;
+    }
+}
@@ -0,0 +1,929 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.simulation;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * An in-memory stand-in for a RabbitMQ broker, so that failover can be tested and measured without a real broker or
+ * manual node restarts. Connections are opened with {@link #newConnection(Address)}, or through a
+ * {@link SimulatedHaConnectionFactory}, and implement the client's {@link Connection} and {@link Channel} interfaces.
+ * 
+ * <p>
+ * Exchanges (direct, fanout, topic, with headers exchanges routing like fanout), queues, bindings, consumers,
+ * prefetch, acks, transactions and publisher confirms are simulated closely enough for the HA layer: unacked
+ * deliveries are requeued and redelivered when their channel goes away, exclusive queues go with their connection,
+ * and a restart forgets everything that is not durable. Consumers are called on one dispatch thread per connection,
+ * like in the real client. Publishes are confirmed as soon as they are enqueued.
+ * </p>
+ * 
+ * <p>
+ * Faults are injected with {@link #killConnection(Connection)}, {@link #killConnections()}, {@link #restart()},
+ * {@link #closeChannel(Channel, int, String)}, {@link #rejectConnects(int)}, {@link #setRejectingConnects(boolean)}
+ * and {@link #setFrameDelayMillis(long)}. All state is guarded by the broker itself, which makes every operation
+ * atomic and the simulation deterministic up to thread scheduling.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class SimulatedBroker {
+
+    static class Binding {
+
+        private final String destination;
+
+        private final boolean toExchange;
+
+        private final String routingKey;
+
+        private Binding(final String destination, final boolean toExchange, final String routingKey) {
+
+            this.destination = destination;
+            this.toExchange = toExchange;
+            this.routingKey = routingKey;
+        }
+    }
+
+    static class Exchange {
+
+        private final String name;
+
+        private final String type;
+
+        private final boolean durable;
+
+        private final List<Binding> bindings = new ArrayList<Binding>();
+
+        private Exchange(final String name, final String type, final boolean durable) {
+
+            this.name = name;
+            this.type = type;
+            this.durable = durable;
+        }
+    }
+
+    static class Message {
+
+        private final String queueName;
+
+        private final String exchange;
+
+        private final String routingKey;
+
+        private final BasicProperties properties;
+
+        private final byte[] body;
+
+        private boolean redelivered;
+
+        private Message(final String queueName, final String exchange, final String routingKey,
+                final BasicProperties properties, final byte[] body) {
+
+            this.queueName = queueName;
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.body = body;
+        }
+
+        String getExchange() {
+            return exchange;
+        }
+
+        String getRoutingKey() {
+            return routingKey;
+        }
+
+        BasicProperties getProperties() {
+            return properties;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        boolean isRedelivered() {
+            return redelivered;
+        }
+
+        private boolean isPersistent() {
+            return properties != null && Integer.valueOf(2).equals(properties.getDeliveryMode());
+        }
+    }
+
+    static class Queue {
+
+        private final String name;
+
+        private final boolean durable;
+
+        private final boolean autoDelete;
+
+        private final SimulatedConnection owner;
+
+        private final LinkedList<Message> messages = new LinkedList<Message>();
+
+        private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+
+        private int nextSubscription;
+
+        private Queue(final String name, final boolean durable, final boolean autoDelete,
+                final SimulatedConnection owner) {
+
+            this.name = name;
+            this.durable = durable;
+            this.autoDelete = autoDelete;
+            this.owner = owner;
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+
+    static class Subscription {
+
+        private final SimulatedChannel channel;
+
+        private final Queue queue;
+
+        private final String consumerTag;
+
+        private final Consumer consumer;
+
+        private final boolean autoAck;
+
+        private Subscription(final SimulatedChannel channel, final Queue queue, final String consumerTag,
+                final Consumer consumer, final boolean autoAck) {
+
+            this.channel = channel;
+            this.queue = queue;
+            this.consumerTag = consumerTag;
+            this.consumer = consumer;
+            this.autoAck = autoAck;
+        }
+
+        String getConsumerTag() {
+            return consumerTag;
+        }
+
+        Consumer getConsumer() {
+            return consumer;
+        }
+
+        boolean isAutoAck() {
+            return autoAck;
+        }
+
+        Queue getQueue() {
+            return queue;
+        }
+    }
+
+    public static final String DEFAULT_EXCHANGE = "";
+
+    private static final int DEFAULT_PORT = 5672;
+
+    private final Map<String, Exchange> exchanges;
+
+    private final Map<String, Queue> queues;
+
+    private final List<SimulatedConnection> connections;
+
+    private final AtomicLong connectionsOpened;
+
+    private final AtomicLong messagesPublished;
+
+    private final AtomicLong messagesDelivered;
+
+    private final AtomicLong messagesAcked;
+
+    private final AtomicLong messagesRedelivered;
+
+    private int connectsToReject;
+
+    private boolean rejectingConnects;
+
+    private volatile long frameDelayMillis;
+
+    private int nextConnectionNumber = 1;
+
+    private int nextGeneratedName = 1;
+
+    public SimulatedBroker() {
+
+        exchanges = new HashMap<String, Exchange>();
+        queues = new HashMap<String, Queue>();
+        connections = new ArrayList<SimulatedConnection>();
+
+        connectionsOpened = new AtomicLong();
+        messagesPublished = new AtomicLong();
+        messagesDelivered = new AtomicLong();
+        messagesAcked = new AtomicLong();
+        messagesRedelivered = new AtomicLong();
+
+        declareDefaultExchanges();
+    }
+
+    /**
+     * Closes a channel from the broker side, as a real broker does on a channel error.
+     */
+    public void closeChannel(final Channel channel, final int replyCode, final String replyText) {
+
+        Validate.isTrue(channel instanceof SimulatedChannel, "channel must be a simulated channel");
+        ((SimulatedChannel) channel).shutdown(channelSignal(channel, replyCode, replyText));
+    }
+
+    public synchronized int getConnectionCount() {
+        return connections.size();
+    }
+
+    public synchronized List<Connection> getConnections() {
+        return new ArrayList<Connection>(connections);
+    }
+
+    /**
+     * @return the number of connections ever accepted
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public synchronized int getConsumerCount(final String queueName) {
+
+        Queue queue = queues.get(queueName);
+        return queue == null ? 0 : queue.subscriptions.size();
+    }
+
+    public long getFrameDelayMillis() {
+        return frameDelayMillis;
+    }
+
+    /**
+     * @return the number of messages ready for delivery on a queue, not counting unacked ones
+     */
+    public synchronized int getMessageCount(final String queueName) {
+
+        Queue queue = queues.get(queueName);
+        return queue == null ? 0 : queue.messages.size();
+    }
+
+    public long getMessagesAcked() {
+        return messagesAcked.get();
+    }
+
+    public long getMessagesDelivered() {
+        return messagesDelivered.get();
+    }
+
+    public long getMessagesPublished() {
+        return messagesPublished.get();
+    }
+
+    /**
+     * @return the number of messages put back on their queue after being delivered
+     */
+    public long getMessagesRedelivered() {
+        return messagesRedelivered.get();
+    }
+
+    public synchronized boolean hasQueue(final String queueName) {
+        return queues.containsKey(queueName);
+    }
+
+    /**
+     * Drops a connection the way a network failure or a broker going away does. Its channels and consumers are shut
+     * down and its shutdown listeners are notified, with a signal that is not initiated by the application.
+     */
+    public void killConnection(final Connection connection) {
+
+        Validate.isTrue(connection instanceof SimulatedConnection, "connection must be a simulated connection");
+        ((SimulatedConnection) connection).shutdown(connectionSignal(connection, AMQP.CONNECTION_FORCED,
+                "CONNECTION_FORCED - simulated connection failure"));
+    }
+
+    public void killConnections() {
+
+        for (Connection connection : getConnections()) {
+            killConnection(connection);
+        }
+    }
+
+    /**
+     * Opens a new connection, unless connections are being rejected.
+     */
+    public SimulatedConnection newConnection(final Address address) throws IOException {
+
+        delay();
+
+        synchronized (this) {
+
+            if (rejectingConnects || connectsToReject > 0) {
+
+                if (connectsToReject > 0) {
+                    connectsToReject--;
+                }
+
+                throw new ConnectException("Connection refused (simulated): " + address);
+            }
+
+            int port = address.getPort() < 0 ? DEFAULT_PORT : address.getPort();
+            SimulatedConnection connection = new SimulatedConnection(this, address.getHost(), port,
+                    nextConnectionNumber++);
+
+            connections.add(connection);
+            connectionsOpened.incrementAndGet();
+
+            return connection;
+        }
+    }
+
+    /**
+     * Refuses the next connection attempts.
+     */
+    public synchronized void rejectConnects(final int count) {
+
+        Validate.isTrue(count >= 0, "count must be 0 or greater");
+        connectsToReject = count;
+    }
+
+    /**
+     * Simulates a broker restart: drops every connection, then forgets non-durable exchanges and queues and messages
+     * that were not published as persistent.
+     */
+    public void restart() {
+
+        for (Connection connection : getConnections()) {
+            ((SimulatedConnection) connection).shutdown(connectionSignal(connection, AMQP.CONNECTION_FORCED,
+                    "CONNECTION_FORCED - broker forced connection closure with reason 'shutdown'"));
+        }
+
+        synchronized (this) {
+
+            for (Iterator<Queue> it = queues.values().iterator(); it.hasNext();) {
+
+                Queue queue = it.next();
+                if (!queue.durable) {
+                    it.remove();
+                    continue;
+                }
+
+                for (Iterator<Message> messages = queue.messages.iterator(); messages.hasNext();) {
+                    if (!messages.next().isPersistent()) {
+                        messages.remove();
+                    }
+                }
+            }
+
+            for (Iterator<Exchange> it = exchanges.values().iterator(); it.hasNext();) {
+                if (!it.next().durable) {
+                    it.remove();
+                }
+            }
+
+            removeDanglingBindings();
+        }
+    }
+
+    /**
+     * Makes every simulated round trip to the broker, including deliveries, take at least this long. A large delay
+     * looks like a half-open connection to the client.
+     */
+    public void setFrameDelayMillis(final long frameDelayMillis) {
+
+        Validate.isTrue(frameDelayMillis >= 0, "frameDelayMillis must be 0 or greater");
+        this.frameDelayMillis = frameDelayMillis;
+    }
+
+    /**
+     * Refuses all connection attempts until turned off again.
+     */
+    public synchronized void setRejectingConnects(final boolean rejectingConnects) {
+        this.rejectingConnects = rejectingConnects;
+    }
+
+    synchronized void ack(final SimulatedChannel channel, final long deliveryTag, final boolean multiple)
+            throws IOException {
+
+        List<Message> acked = channel.removeUnacked(deliveryTag, multiple);
+        messagesAcked.addAndGet(acked.size());
+
+        deliverAll();
+    }
+
+    synchronized void bindExchange(final SimulatedChannel channel, final String destination, final String source,
+            final String routingKey) throws IOException {
+
+        Exchange sourceExchange = getExchange(channel, source);
+        getExchange(channel, destination);
+
+        if (findBinding(sourceExchange, destination, true, routingKey) == null) {
+            sourceExchange.bindings.add(new Binding(destination, true, routingKey));
+        }
+    }
+
+    synchronized void bindQueue(final SimulatedChannel channel, final String queueName, final String exchange,
+            final String routingKey) throws IOException {
+
+        Exchange sourceExchange = getExchange(channel, exchange);
+        getQueue(channel, queueName);
+
+        if (findBinding(sourceExchange, queueName, false, routingKey) == null) {
+            sourceExchange.bindings.add(new Binding(queueName, false, routingKey));
+        }
+    }
+
+    synchronized void cancel(final SimulatedChannel channel, final Subscription subscription) {
+
+        Queue queue = subscription.queue;
+        queue.subscriptions.remove(subscription);
+
+        if (queue.autoDelete && queue.subscriptions.isEmpty()) {
+            deleteQueue(queue);
+        }
+    }
+
+    /**
+     * Returns what a channel had outstanding to its queues, called when the channel goes away.
+     */
+    synchronized void channelClosed(final SimulatedChannel channel) {
+
+        for (Subscription subscription : channel.removeSubscriptions()) {
+            cancel(channel, subscription);
+        }
+
+        requeue(channel.removeAllUnacked());
+        deliverAll();
+    }
+
+    synchronized String consume(final SimulatedChannel channel, final String queueName, final String consumerTag,
+            final boolean autoAck, final Consumer consumer) throws IOException {
+
+        Queue queue = getQueue(channel, queueName);
+        checkExclusive(channel, queue);
+
+        String tag = consumerTag == null || consumerTag.length() == 0 ? "amq.ctag-" + nextGeneratedName++
+                : consumerTag;
+
+        Subscription subscription = new Subscription(channel, queue, tag, consumer, autoAck);
+        queue.subscriptions.add(subscription);
+        channel.addSubscription(subscription);
+
+        deliver(queue);
+        return tag;
+    }
+
+    synchronized void connectionClosed(final SimulatedConnection connection) {
+
+        connections.remove(connection);
+
+        for (Iterator<Queue> it = queues.values().iterator(); it.hasNext();) {
+            if (it.next().owner == connection) {
+                it.remove();
+            }
+        }
+
+        removeDanglingBindings();
+    }
+
+    synchronized void declareExchange(final SimulatedChannel channel, final String name, final String type,
+            final boolean durable, final boolean passive) throws IOException {
+
+        Exchange exchange = exchanges.get(name);
+
+        if (passive) {
+            getExchange(channel, name);
+            return;
+        }
+
+        if (!"direct".equals(type) && !"fanout".equals(type) && !"topic".equals(type) && !"headers".equals(type)) {
+            throw channel.channelError(AMQP.COMMAND_INVALID, "COMMAND_INVALID - unknown exchange type '" + type
+                    + "'");
+        }
+
+        if (exchange == null) {
+            exchanges.put(name, new Exchange(name, type, durable));
+            return;
+        }
+
+        if (!exchange.type.equals(type) || exchange.durable != durable) {
+            throw channel.channelError(AMQP.PRECONDITION_FAILED,
+                    "PRECONDITION_FAILED - cannot redeclare exchange '" + name + "' with different arguments");
+        }
+    }
+
+    synchronized AMQP.Queue.DeclareOk declareQueue(final SimulatedChannel channel, final String name,
+            final boolean durable, final boolean exclusive, final boolean autoDelete, final boolean passive)
+            throws IOException {
+
+        Queue queue;
+
+        if (passive) {
+            queue = getQueue(channel, name);
+            checkExclusive(channel, queue);
+
+        } else {
+            String queueName = name == null || name.length() == 0 ? "amq.gen-" + nextGeneratedName++ : name;
+            queue = queues.get(queueName);
+
+            if (queue == null) {
+                queue = new Queue(queueName, durable, autoDelete, exclusive ? channel.getSimulatedConnection()
+                        : null);
+                queues.put(queueName, queue);
+
+            } else {
+                checkExclusive(channel, queue);
+
+                if (queue.durable != durable || (queue.owner != null) != exclusive || queue.autoDelete != autoDelete) {
+                    throw channel.channelError(AMQP.PRECONDITION_FAILED,
+                            "PRECONDITION_FAILED - parameters for queue '" + queueName + "' not equivalent");
+                }
+            }
+        }
+
+        return new AMQImpl.Queue.DeclareOk(queue.name, queue.messages.size(), queue.subscriptions.size());
+    }
+
+    void delay() {
+
+        long delayMillis = frameDelayMillis;
+        if (delayMillis == 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized void deleteExchange(final SimulatedChannel channel, final String name) throws IOException {
+
+        getExchange(channel, name);
+        exchanges.remove(name);
+
+        removeDanglingBindings();
+    }
+
+    synchronized int deleteQueue(final SimulatedChannel channel, final String name) throws IOException {
+
+        Queue queue = getQueue(channel, name);
+        checkExclusive(channel, queue);
+
+        int messageCount = queue.messages.size();
+        deleteQueue(queue);
+
+        return messageCount;
+    }
+
+    synchronized GetResponse get(final SimulatedChannel channel, final String queueName, final boolean autoAck)
+            throws IOException {
+
+        Queue queue = getQueue(channel, queueName);
+        checkExclusive(channel, queue);
+
+        if (queue.messages.isEmpty()) {
+            return null;
+        }
+
+        Message message = queue.messages.removeFirst();
+        messagesDelivered.incrementAndGet();
+
+        return new GetResponse(channel.record(queue, message, autoAck), message.properties, message.body,
+                queue.messages.size());
+    }
+
+    /**
+     * Routes and enqueues a message.
+     * 
+     * @return the number of queues the message was routed to, or -1 if the exchange does not exist
+     */
+    synchronized int publish(final SimulatedChannel channel, final String exchangeName, final String routingKey,
+            final BasicProperties properties, final byte[] body) {
+
+        Exchange exchange = exchanges.get(exchangeName);
+        if (exchange == null) {
+            return -1;
+        }
+
+        messagesPublished.incrementAndGet();
+
+        Set<Queue> destinations = new LinkedHashSet<Queue>();
+        route(exchange, routingKey, destinations, new HashSet<String>());
+
+        for (Queue queue : destinations) {
+            queue.messages.add(new Message(queue.name, exchangeName, routingKey, properties, body));
+            deliver(queue);
+        }
+
+        return destinations.size();
+    }
+
+    synchronized int purgeQueue(final SimulatedChannel channel, final String name) throws IOException {
+
+        Queue queue = getQueue(channel, name);
+        checkExclusive(channel, queue);
+
+        int messageCount = queue.messages.size();
+        queue.messages.clear();
+
+        return messageCount;
+    }
+
+    synchronized void qos(final SimulatedChannel channel, final int prefetchCount) {
+
+        channel.setPrefetchCount(prefetchCount);
+
+        // a larger prefetch may let waiting messages through
+        deliverAll();
+    }
+
+    synchronized void reject(final SimulatedChannel channel, final long deliveryTag, final boolean multiple,
+            final boolean requeue) throws IOException {
+
+        List<Message> rejected = channel.removeUnacked(deliveryTag, multiple);
+
+        if (requeue) {
+            requeue(rejected);
+            deliverAll();
+        }
+    }
+
+    synchronized void unbindExchange(final SimulatedChannel channel, final String destination, final String source,
+            final String routingKey) throws IOException {
+
+        Exchange sourceExchange = getExchange(channel, source);
+        sourceExchange.bindings.remove(findBinding(sourceExchange, destination, true, routingKey));
+    }
+
+    synchronized void unbindQueue(final SimulatedChannel channel, final String queueName, final String exchange,
+            final String routingKey) throws IOException {
+
+        Exchange sourceExchange = getExchange(channel, exchange);
+        sourceExchange.bindings.remove(findBinding(sourceExchange, queueName, false, routingKey));
+    }
+
+    static boolean topicMatches(final String pattern, final String routingKey) {
+        return topicMatches(pattern.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+    }
+
+    private static ShutdownSignalException channelSignal(final Object channel, final int replyCode,
+            final String replyText) {
+        return new ShutdownSignalException(false, false, new AMQImpl.Channel.Close(replyCode, replyText, 0, 0),
+                channel);
+    }
+
+    private static ShutdownSignalException connectionSignal(final Object connection, final int replyCode,
+            final String replyText) {
+        return new ShutdownSignalException(true, false, new AMQImpl.Connection.Close(replyCode, replyText, 0, 0),
+                connection);
+    }
+
+    private static boolean topicMatches(final String[] pattern, final int patternIndex, final String[] words,
+            final int wordIndex) {
+
+        if (patternIndex == pattern.length) {
+            return wordIndex == words.length;
+        }
+
+        if (pattern[patternIndex].equals("#")) {
+
+            for (int i = wordIndex; i <= words.length; i++) {
+                if (topicMatches(pattern, patternIndex + 1, words, i)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        if (wordIndex == words.length) {
+            return false;
+        }
+
+        return (pattern[patternIndex].equals("*") || pattern[patternIndex].equals(words[wordIndex]))
+                && topicMatches(pattern, patternIndex + 1, words, wordIndex + 1);
+    }
+
+    private void checkExclusive(final SimulatedChannel channel, final Queue queue) throws IOException {
+
+        if (queue.owner != null && queue.owner != channel.getSimulatedConnection()) {
+            throw channel.channelError(AMQP.RESOURCE_LOCKED,
+                    "RESOURCE_LOCKED - cannot obtain exclusive access to locked queue '" + queue.name + "'");
+        }
+    }
+
+    private void declareDefaultExchanges() {
+
+        exchanges.put(DEFAULT_EXCHANGE, new Exchange(DEFAULT_EXCHANGE, "direct", true));
+        exchanges.put("amq.direct", new Exchange("amq.direct", "direct", true));
+        exchanges.put("amq.fanout", new Exchange("amq.fanout", "fanout", true));
+        exchanges.put("amq.topic", new Exchange("amq.topic", "topic", true));
+        exchanges.put("amq.headers", new Exchange("amq.headers", "headers", true));
+    }
+
+    private void deleteQueue(final Queue queue) {
+
+        queues.remove(queue.name);
+
+        for (Subscription subscription : new ArrayList<Subscription>(queue.subscriptions)) {
+            subscription.channel.cancelledByBroker(subscription);
+        }
+
+        removeDanglingBindings();
+    }
+
+    /**
+     * Hands out as many messages as the queue's consumers can take.
+     */
+    private void deliver(final Queue queue) {
+
+        while (!queue.messages.isEmpty()) {
+
+            Subscription subscription = nextReadySubscription(queue);
+            if (subscription == null) {
+                return;
+            }
+
+            Message message = queue.messages.removeFirst();
+            messagesDelivered.incrementAndGet();
+
+            subscription.channel.deliver(subscription, message);
+        }
+    }
+
+    private void deliverAll() {
+
+        for (Queue queue : new ArrayList<Queue>(queues.values())) {
+            deliver(queue);
+        }
+    }
+
+    private Binding findBinding(final Exchange exchange, final String destination, final boolean toExchange,
+            final String routingKey) {
+
+        for (Binding binding : exchange.bindings) {
+
+            if (binding.destination.equals(destination) && binding.toExchange == toExchange
+                    && binding.routingKey.equals(routingKey)) {
+                return binding;
+            }
+        }
+
+        return null;
+    }
+
+    private Exchange getExchange(final SimulatedChannel channel, final String name) throws IOException {
+
+        Exchange exchange = exchanges.get(name);
+        if (exchange == null) {
+            throw channel.channelError(AMQP.NOT_FOUND, "NOT_FOUND - no exchange '" + name + "'");
+        }
+
+        return exchange;
+    }
+
+    private Queue getQueue(final SimulatedChannel channel, final String name) throws IOException {
+
+        Queue queue = queues.get(name);
+        if (queue == null) {
+            throw channel.channelError(AMQP.NOT_FOUND, "NOT_FOUND - no queue '" + name + "'");
+        }
+
+        return queue;
+    }
+
+    private Subscription nextReadySubscription(final Queue queue) {
+
+        int count = queue.subscriptions.size();
+        for (int i = 0; i < count; i++) {
+
+            Subscription subscription = queue.subscriptions.get((queue.nextSubscription + i) % count);
+            if (subscription.autoAck || subscription.channel.hasCapacity()) {
+
+                queue.nextSubscription = (queue.nextSubscription + i + 1) % count;
+                return subscription;
+            }
+        }
+
+        return null;
+    }
+
+    private void removeDanglingBindings() {
+
+        for (Exchange exchange : exchanges.values()) {
+
+            for (Iterator<Binding> it = exchange.bindings.iterator(); it.hasNext();) {
+
+                Binding binding = it.next();
+                if (binding.toExchange ? !exchanges.containsKey(binding.destination) : !queues
+                        .containsKey(binding.destination)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void requeue(final List<Message> messages) {
+
+        // back at the head of their queues in their original order
+        for (int i = messages.size() - 1; i >= 0; i--) {
+
+            Message message = messages.get(i);
+            Queue queue = queues.get(message.queueName);
+
+            if (queue != null) {
+                message.redelivered = true;
+                queue.messages.addFirst(message);
+                messagesRedelivered.incrementAndGet();
+            }
+        }
+    }
+
+    private void route(final Exchange exchange, final String routingKey, final Set<Queue> destinations,
+            final Set<String> visited) {
+
+        if (!visited.add(exchange.name)) {
+            return;
+        }
+
+        if (exchange.name.equals(DEFAULT_EXCHANGE)) {
+
+            Queue queue = queues.get(routingKey);
+            if (queue != null) {
+                destinations.add(queue);
+            }
+
+            return;
+        }
+
+        for (Binding binding : exchange.bindings) {
+
+            boolean matches;
+            if (exchange.type.equals("direct")) {
+                matches = binding.routingKey.equals(routingKey);
+            } else if (exchange.type.equals("topic")) {
+                matches = topicMatches(binding.routingKey, routingKey);
+            } else {
+                matches = true;
+            }
+
+            if (!matches) {
+                continue;
+            }
+
+            if (binding.toExchange) {
+
+                Exchange destination = exchanges.get(binding.destination);
+                if (destination != null) {
+                    route(destination, routingKey, destinations, visited);
+                }
+
+            } else {
+
+                Queue queue = queues.get(binding.destination);
+                if (queue != null) {
+                    destinations.add(queue);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.simulation;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.joshdevins.rabbitmq.client.ha.AbstractHaConnectionListener;
+import net.joshdevins.rabbitmq.client.ha.HaConnectionProxy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class SimulatedBrokerTest {
+
+    private static class RecordingConsumer extends DefaultConsumer {
+
+        private final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<Delivery>();
+
+        private final boolean autoAck;
+
+        private RecordingConsumer(final Channel channel, final boolean autoAck) {
+
+            super(channel);
+            this.autoAck = autoAck;
+        }
+
+        @Override
+        public void handleDelivery(final String consumerTag, final Envelope envelope,
+                final BasicProperties properties, final byte[] body) throws IOException {
+
+            if (autoAck) {
+                getChannel().basicAck(envelope.getDeliveryTag(), false);
+            }
+
+            deliveries.add(new Delivery(envelope, properties, body));
+        }
+
+        private Delivery next() throws InterruptedException {
+
+            Delivery delivery = deliveries.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull("Timed out waiting for a delivery", delivery);
+
+            return delivery;
+        }
+    }
+
+    private static final Address[] ADDRESSES = new Address[] { new Address("localhost") };
+
+    private SimulatedBroker broker;
+
+    private SimulatedHaConnectionFactory connectionFactory;
+
+    @After
+    public void after() {
+        connectionFactory.shutdownGracefully(1000);
+    }
+
+    @Before
+    public void before() {
+
+        broker = new SimulatedBroker();
+        connectionFactory = new SimulatedHaConnectionFactory(broker);
+        connectionFactory.setReconnectionWaitMillis(10);
+    }
+
+    @Test
+    public void testChannelErrorClosesOnlyThatChannel() throws Exception {
+
+        Connection connection = broker.newConnection(ADDRESSES[0]);
+        Channel failing = connection.createChannel();
+        Channel other = connection.createChannel();
+
+        try {
+            failing.queueDeclarePassive("missing");
+            Assert.fail("Expected a channel error");
+
+        } catch (IOException ioe) {
+
+            ShutdownSignalException signal = (ShutdownSignalException) ioe.getCause();
+            Assert.assertFalse(signal.isHardError());
+            Assert.assertEquals(AMQP.NOT_FOUND, ((AMQP.Channel.Close) signal.getReason()).getReplyCode());
+        }
+
+        Assert.assertFalse(failing.isOpen());
+        Assert.assertTrue(other.isOpen());
+        Assert.assertEquals("queue", other.queueDeclare("queue", false, false, false, null).getQueue());
+    }
+
+    @Test
+    public void testHaConsumerResumesAfterConnectionIsKilled() throws Exception {
+
+        final BlockingQueue<HaConnectionProxy> reconnections = new LinkedBlockingQueue<HaConnectionProxy>();
+        connectionFactory.addHaConnectionListener(new AbstractHaConnectionListener() {
+
+            @Override
+            public void onReconnection(final HaConnectionProxy connectionProxy) {
+                reconnections.add(connectionProxy);
+            }
+        });
+
+        Connection connection = connectionFactory.newConnection(ADDRESSES);
+        Channel channel = connection.createChannel();
+        channel.queueDeclare("queue", true, false, false, null);
+
+        RecordingConsumer consumer = new RecordingConsumer(channel, true);
+        channel.basicConsume("queue", false, consumer);
+
+        channel.basicPublish("", "queue", null, "before".getBytes());
+        Assert.assertEquals("before", new String(consumer.next().getBody()));
+
+        broker.killConnections();
+        Assert.assertNotNull(reconnections.poll(5, TimeUnit.SECONDS));
+
+        // published on the dead connection, and so held back until the new one is up
+        channel.basicPublish("", "queue", null, "after".getBytes());
+        Assert.assertEquals("after", new String(consumer.next().getBody()));
+
+        Assert.assertEquals(2, broker.getConnectionsOpened());
+        Assert.assertEquals(1, broker.getConsumerCount("queue"));
+        Assert.assertEquals(2, broker.getMessagesAcked());
+    }
+
+    @Test
+    public void testInitialConnectionRetriesRejectedConnects() throws Exception {
+
+        broker.rejectConnects(3);
+
+        Connection connection = connectionFactory.newConnection(ADDRESSES);
+        Assert.assertTrue(connection.isOpen());
+        Assert.assertEquals(1, broker.getConnectionCount());
+
+        try {
+            broker.rejectConnects(1);
+            connectionFactory.newConnection(ADDRESSES, true);
+            Assert.fail("Expected the connection to be refused");
+
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnackedDeliveriesAreRequeuedWhenChannelCloses() throws Exception {
+
+        Connection connection = broker.newConnection(ADDRESSES[0]);
+        Channel channel = connection.createChannel();
+        channel.queueDeclare("queue", false, false, false, null);
+        channel.queueBind("queue", "amq.topic", "orders.#");
+        channel.basicQos(1);
+
+        RecordingConsumer consumer = new RecordingConsumer(channel, false);
+        channel.basicConsume("queue", false, consumer);
+
+        channel.basicPublish("amq.topic", "orders.created.eu", null, "first".getBytes());
+        channel.basicPublish("amq.topic", "orders.created.eu", null, "second".getBytes());
+        channel.basicPublish("amq.topic", "invoices.created", null, "unrouted".getBytes());
+
+        Delivery first = consumer.next();
+        Assert.assertFalse(first.getEnvelope().isRedeliver());
+        Assert.assertEquals(1, broker.getMessageCount("queue"));
+
+        broker.closeChannel(channel, AMQP.CONNECTION_FORCED, "CONNECTION_FORCED - test");
+        Assert.assertEquals(2, broker.getMessageCount("queue"));
+
+        Channel replacement = connection.createChannel();
+        RecordingConsumer replacementConsumer = new RecordingConsumer(replacement, true);
+        replacement.basicConsume("queue", false, replacementConsumer);
+
+        Delivery redelivered = replacementConsumer.next();
+        Assert.assertTrue(redelivered.getEnvelope().isRedeliver());
+        Assert.assertEquals("first", new String(redelivered.getBody()));
+        Assert.assertEquals("second", new String(replacementConsumer.next().getBody()));
+        Assert.assertEquals(1, broker.getMessagesRedelivered());
+    }
+}
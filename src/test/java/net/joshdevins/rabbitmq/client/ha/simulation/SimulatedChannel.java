@@ -0,0 +1,999 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.simulation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker.Message;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker.Queue;
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker.Subscription;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Command;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.FlowListener;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.Method;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQCommand;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A {@link Channel} on a {@link SimulatedConnection}. Every operation is a simulated round trip to the
+ * {@link SimulatedBroker}, and fails with an {@link AlreadyClosedException} once the channel has gone, like the real
+ * client. Errors the broker raises close the channel and are thrown as an {@link IOException} caused by the
+ * {@link ShutdownSignalException}.
+ * 
+ * <p>
+ * Only the protocol methods the HA layer sends through {@link #rpc(Method)} and {@link #asyncRpc(Method)} are
+ * understood: exchange and queue declarations and bindings.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class SimulatedChannel implements Channel {
+
+    /**
+     * A publish or acknowledgement held back until its transaction is committed.
+     */
+    private interface TxOperation {
+
+        void apply() throws IOException;
+    }
+
+    private static final Logger LOG = Logger.getLogger(SimulatedChannel.class);
+
+    private final SimulatedConnection connection;
+
+    private final SimulatedBroker broker;
+
+    private final int channelNumber;
+
+    /**
+     * Consumers by tag, guarded by the broker.
+     */
+    private final Map<String, Subscription> subscriptions;
+
+    /**
+     * Unacked deliveries by delivery tag, guarded by the broker.
+     */
+    private final TreeMap<Long, Message> unacked;
+
+    private final List<TxOperation> txOperations;
+
+    private final List<ShutdownListener> shutdownListeners;
+
+    private final List<ReturnListener> returnListeners;
+
+    private final List<ConfirmListener> confirmListeners;
+
+    private final List<FlowListener> flowListeners;
+
+    private volatile Consumer defaultConsumer;
+
+    private volatile ShutdownSignalException closeReason;
+
+    private long nextDeliveryTag = 1;
+
+    private long nextPublishSeqNo;
+
+    private int prefetchCount;
+
+    private boolean transactional;
+
+    SimulatedChannel(final SimulatedConnection connection, final int channelNumber) {
+
+        this.connection = connection;
+        this.channelNumber = channelNumber;
+        broker = connection.getSimulatedBroker();
+
+        subscriptions = new LinkedHashMap<String, Subscription>();
+        unacked = new TreeMap<Long, Message>();
+        txOperations = new ArrayList<TxOperation>();
+
+        shutdownListeners = new ArrayList<ShutdownListener>();
+        returnListeners = new CopyOnWriteArrayList<ReturnListener>();
+        confirmListeners = new CopyOnWriteArrayList<ConfirmListener>();
+        flowListeners = new CopyOnWriteArrayList<FlowListener>();
+    }
+
+    public void abort() {
+        abort(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    public void abort(final int closeCode, final String closeMessage) {
+        shutdown(applicationSignal(closeCode, closeMessage));
+    }
+
+    public void addConfirmListener(final ConfirmListener listener) {
+        confirmListeners.add(listener);
+    }
+
+    public void addFlowListener(final FlowListener listener) {
+        flowListeners.add(listener);
+    }
+
+    public void addReturnListener(final ReturnListener listener) {
+        returnListeners.add(listener);
+    }
+
+    public void addShutdownListener(final ShutdownListener listener) {
+
+        ShutdownSignalException signal;
+        synchronized (shutdownListeners) {
+
+            signal = closeReason;
+            if (signal == null) {
+                shutdownListeners.add(listener);
+                return;
+            }
+        }
+
+        listener.shutdownCompleted(signal);
+    }
+
+    public void asyncRpc(final Method method) throws IOException {
+
+        try {
+            rpc(method);
+
+        } catch (IOException ioe) {
+
+            // nobody waits for a reply, the broker closing the channel is all that happens
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Asynchronous method failed: channel=" + this + ", " + ioe.getMessage());
+            }
+        }
+    }
+
+    public void basicAck(final long deliveryTag, final boolean multiple) throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            if (transactional) {
+
+                txOperations.add(new TxOperation() {
+
+                    public void apply() throws IOException {
+                        broker.ack(SimulatedChannel.this, deliveryTag, multiple);
+                    }
+                });
+
+                return;
+            }
+
+            broker.ack(this, deliveryTag, multiple);
+        }
+    }
+
+    public void basicCancel(final String consumerTag) throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            final Subscription subscription = subscriptions.remove(consumerTag);
+            if (subscription == null) {
+                throw new IOException("Unknown consumerTag");
+            }
+
+            broker.cancel(this, subscription);
+
+            connection.dispatch(new Runnable() {
+
+                public void run() {
+                    subscription.getConsumer().handleCancelOk(consumerTag);
+                }
+            });
+        }
+    }
+
+    public String basicConsume(final String queue, final boolean autoAck, final Consumer callback)
+            throws IOException {
+        return basicConsume(queue, autoAck, "", callback);
+    }
+
+    public String basicConsume(final String queue, final boolean autoAck, final String consumerTag,
+            final boolean noLocal, final boolean exclusive, final Map<String, Object> arguments,
+            final Consumer callback) throws IOException {
+
+        roundTrip();
+        return broker.consume(this, queue, consumerTag, autoAck, callback);
+    }
+
+    public String basicConsume(final String queue, final boolean autoAck, final String consumerTag,
+            final Consumer callback) throws IOException {
+        return basicConsume(queue, autoAck, consumerTag, false, false, null, callback);
+    }
+
+    public String basicConsume(final String queue, final Consumer callback) throws IOException {
+        return basicConsume(queue, false, callback);
+    }
+
+    public GetResponse basicGet(final String queue, final boolean autoAck) throws IOException {
+
+        roundTrip();
+        return broker.get(this, queue, autoAck);
+    }
+
+    public void basicNack(final long deliveryTag, final boolean multiple, final boolean requeue) throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            if (transactional) {
+
+                txOperations.add(new TxOperation() {
+
+                    public void apply() throws IOException {
+                        broker.reject(SimulatedChannel.this, deliveryTag, multiple, requeue);
+                    }
+                });
+
+                return;
+            }
+
+            broker.reject(this, deliveryTag, multiple, requeue);
+        }
+    }
+
+    public void basicPublish(final String exchange, final String routingKey, final BasicProperties props,
+            final byte[] body) throws IOException {
+        basicPublish(exchange, routingKey, false, false, props, body);
+    }
+
+    public void basicPublish(final String exchange, final String routingKey, final boolean mandatory,
+            final boolean immediate, final BasicProperties props, final byte[] body) throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            if (transactional) {
+
+                txOperations.add(new TxOperation() {
+
+                    public void apply() {
+                        publish(exchange, routingKey, mandatory, props, body, 0);
+                    }
+                });
+
+                return;
+            }
+
+            long seqNo = 0;
+            if (nextPublishSeqNo > 0) {
+                seqNo = nextPublishSeqNo++;
+            }
+
+            publish(exchange, routingKey, mandatory, props, body, seqNo);
+        }
+    }
+
+    public void basicQos(final int prefetchCount) throws IOException {
+        basicQos(0, prefetchCount, false);
+    }
+
+    public void basicQos(final int prefetchSize, final int prefetchCount, final boolean global) throws IOException {
+
+        roundTrip();
+        broker.qos(this, prefetchCount);
+    }
+
+    public AMQP.Basic.RecoverOk basicRecover() throws IOException {
+        return basicRecover(true);
+    }
+
+    public AMQP.Basic.RecoverOk basicRecover(final boolean requeue) throws IOException {
+
+        basicRecoverAsync(requeue);
+        return new AMQImpl.Basic.RecoverOk();
+    }
+
+    public void basicRecoverAsync(final boolean requeue) throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            // redelivering to the original consumer is not simulated, everything goes back on its queue
+            broker.reject(this, Long.MAX_VALUE, true, true);
+
+            for (final Subscription subscription : subscriptions.values()) {
+
+                connection.dispatch(new Runnable() {
+
+                    public void run() {
+                        subscription.getConsumer().handleRecoverOk(subscription.getConsumerTag());
+                    }
+                });
+            }
+        }
+    }
+
+    public void basicReject(final long deliveryTag, final boolean requeue) throws IOException {
+        basicNack(deliveryTag, false, requeue);
+    }
+
+    public void clearConfirmListeners() {
+        confirmListeners.clear();
+    }
+
+    public void clearFlowListeners() {
+        flowListeners.clear();
+    }
+
+    public void clearReturnListeners() {
+        returnListeners.clear();
+    }
+
+    public void close() throws IOException {
+        close(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    public void close(final int closeCode, final String closeMessage) throws IOException {
+
+        roundTrip();
+        shutdown(applicationSignal(closeCode, closeMessage));
+    }
+
+    public AMQP.Confirm.SelectOk confirmSelect() throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            if (transactional) {
+                throw channelError(AMQP.PRECONDITION_FAILED,
+                        "PRECONDITION_FAILED - cannot switch from tx to confirm mode");
+            }
+
+            if (nextPublishSeqNo == 0) {
+                nextPublishSeqNo = 1;
+            }
+        }
+
+        return new AMQImpl.Confirm.SelectOk();
+    }
+
+    public AMQP.Exchange.BindOk exchangeBind(final String destination, final String source, final String routingKey)
+            throws IOException {
+        return exchangeBind(destination, source, routingKey, null);
+    }
+
+    public AMQP.Exchange.BindOk exchangeBind(final String destination, final String source,
+            final String routingKey, final Map<String, Object> arguments) throws IOException {
+
+        roundTrip();
+        broker.bindExchange(this, destination, source, routingKey);
+
+        return new AMQImpl.Exchange.BindOk();
+    }
+
+    public AMQP.Exchange.DeclareOk exchangeDeclare(final String exchange, final String type) throws IOException {
+        return exchangeDeclare(exchange, type, false);
+    }
+
+    public AMQP.Exchange.DeclareOk exchangeDeclare(final String exchange, final String type, final boolean durable)
+            throws IOException {
+        return exchangeDeclare(exchange, type, durable, false, null);
+    }
+
+    public AMQP.Exchange.DeclareOk exchangeDeclare(final String exchange, final String type, final boolean durable,
+            final boolean autoDelete, final boolean internal, final Map<String, Object> arguments)
+            throws IOException {
+
+        roundTrip();
+        broker.declareExchange(this, exchange, type, durable, false);
+
+        return new AMQImpl.Exchange.DeclareOk();
+    }
+
+    public AMQP.Exchange.DeclareOk exchangeDeclare(final String exchange, final String type, final boolean durable,
+            final boolean autoDelete, final Map<String, Object> arguments) throws IOException {
+        return exchangeDeclare(exchange, type, durable, autoDelete, false, arguments);
+    }
+
+    public AMQP.Exchange.DeclareOk exchangeDeclarePassive(final String name) throws IOException {
+
+        roundTrip();
+        broker.declareExchange(this, name, null, false, true);
+
+        return new AMQImpl.Exchange.DeclareOk();
+    }
+
+    public AMQP.Exchange.DeleteOk exchangeDelete(final String exchange) throws IOException {
+        return exchangeDelete(exchange, false);
+    }
+
+    public AMQP.Exchange.DeleteOk exchangeDelete(final String exchange, final boolean ifUnused) throws IOException {
+
+        roundTrip();
+        broker.deleteExchange(this, exchange);
+
+        return new AMQImpl.Exchange.DeleteOk();
+    }
+
+    public AMQP.Exchange.UnbindOk exchangeUnbind(final String destination, final String source,
+            final String routingKey) throws IOException {
+        return exchangeUnbind(destination, source, routingKey, null);
+    }
+
+    public AMQP.Exchange.UnbindOk exchangeUnbind(final String destination, final String source,
+            final String routingKey, final Map<String, Object> arguments) throws IOException {
+
+        roundTrip();
+        broker.unbindExchange(this, destination, source, routingKey);
+
+        return new AMQImpl.Exchange.UnbindOk();
+    }
+
+    public AMQP.Channel.FlowOk flow(final boolean active) throws IOException {
+
+        roundTrip();
+        return new AMQImpl.Channel.FlowOk(active);
+    }
+
+    public int getChannelNumber() {
+        return channelNumber;
+    }
+
+    public ShutdownSignalException getCloseReason() {
+        return closeReason;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public Consumer getDefaultConsumer() {
+        return defaultConsumer;
+    }
+
+    public AMQP.Channel.FlowOk getFlow() {
+        return new AMQImpl.Channel.FlowOk(true);
+    }
+
+    public long getNextPublishSeqNo() {
+
+        synchronized (broker) {
+            return nextPublishSeqNo;
+        }
+    }
+
+    public boolean isOpen() {
+        return closeReason == null;
+    }
+
+    public void notifyListeners() {
+
+        ShutdownSignalException signal = closeReason;
+        if (signal == null) {
+            return;
+        }
+
+        for (ShutdownListener listener : getShutdownListeners()) {
+
+            try {
+                listener.shutdownCompleted(signal);
+            } catch (RuntimeException re) {
+                LOG.warn("Shutdown listener failed: channel=" + this, re);
+            }
+        }
+    }
+
+    public AMQP.Queue.BindOk queueBind(final String queue, final String exchange, final String routingKey)
+            throws IOException {
+        return queueBind(queue, exchange, routingKey, null);
+    }
+
+    public AMQP.Queue.BindOk queueBind(final String queue, final String exchange, final String routingKey,
+            final Map<String, Object> arguments) throws IOException {
+
+        roundTrip();
+        broker.bindQueue(this, queue, exchange, routingKey);
+
+        return new AMQImpl.Queue.BindOk();
+    }
+
+    public AMQP.Queue.DeclareOk queueDeclare() throws IOException {
+        return queueDeclare("", false, true, true, null);
+    }
+
+    public AMQP.Queue.DeclareOk queueDeclare(final String queue, final boolean durable, final boolean exclusive,
+            final boolean autoDelete, final Map<String, Object> arguments) throws IOException {
+
+        roundTrip();
+        return broker.declareQueue(this, queue, durable, exclusive, autoDelete, false);
+    }
+
+    public AMQP.Queue.DeclareOk queueDeclarePassive(final String queue) throws IOException {
+
+        roundTrip();
+        return broker.declareQueue(this, queue, false, false, false, true);
+    }
+
+    public AMQP.Queue.DeleteOk queueDelete(final String queue) throws IOException {
+        return queueDelete(queue, false, false);
+    }
+
+    public AMQP.Queue.DeleteOk queueDelete(final String queue, final boolean ifUnused, final boolean ifEmpty)
+            throws IOException {
+
+        roundTrip();
+        return new AMQImpl.Queue.DeleteOk(broker.deleteQueue(this, queue));
+    }
+
+    public AMQP.Queue.PurgeOk queuePurge(final String queue) throws IOException {
+
+        roundTrip();
+        return new AMQImpl.Queue.PurgeOk(broker.purgeQueue(this, queue));
+    }
+
+    public AMQP.Queue.UnbindOk queueUnbind(final String queue, final String exchange, final String routingKey)
+            throws IOException {
+        return queueUnbind(queue, exchange, routingKey, null);
+    }
+
+    public AMQP.Queue.UnbindOk queueUnbind(final String queue, final String exchange, final String routingKey,
+            final Map<String, Object> arguments) throws IOException {
+
+        roundTrip();
+        broker.unbindQueue(this, queue, exchange, routingKey);
+
+        return new AMQImpl.Queue.UnbindOk();
+    }
+
+    public boolean removeConfirmListener(final ConfirmListener listener) {
+        return confirmListeners.remove(listener);
+    }
+
+    public boolean removeFlowListener(final FlowListener listener) {
+        return flowListeners.remove(listener);
+    }
+
+    public boolean removeReturnListener(final ReturnListener listener) {
+        return returnListeners.remove(listener);
+    }
+
+    public void removeShutdownListener(final ShutdownListener listener) {
+
+        synchronized (shutdownListeners) {
+            shutdownListeners.remove(listener);
+        }
+    }
+
+    public Command rpc(final Method method) throws IOException {
+
+        if (method instanceof AMQP.Exchange.Declare) {
+
+            AMQP.Exchange.Declare declare = (AMQP.Exchange.Declare) method;
+            if (declare.getPassive()) {
+                exchangeDeclarePassive(declare.getExchange());
+            } else {
+                exchangeDeclare(declare.getExchange(), declare.getType(), declare.getDurable(),
+                        declare.getAutoDelete(), declare.getInternal(), declare.getArguments());
+            }
+
+            return new AMQCommand(new AMQImpl.Exchange.DeclareOk());
+        }
+
+        if (method instanceof AMQP.Queue.Declare) {
+
+            AMQP.Queue.Declare declare = (AMQP.Queue.Declare) method;
+            AMQP.Queue.DeclareOk declareOk = declare.getPassive() ? queueDeclarePassive(declare.getQueue())
+                    : queueDeclare(declare.getQueue(), declare.getDurable(), declare.getExclusive(),
+                            declare.getAutoDelete(), declare.getArguments());
+
+            return new AMQCommand(declareOk);
+        }
+
+        if (method instanceof AMQP.Queue.Bind) {
+
+            AMQP.Queue.Bind bind = (AMQP.Queue.Bind) method;
+            return new AMQCommand(queueBind(bind.getQueue(), bind.getExchange(), bind.getRoutingKey(),
+                    bind.getArguments()));
+        }
+
+        if (method instanceof AMQP.Exchange.Bind) {
+
+            AMQP.Exchange.Bind bind = (AMQP.Exchange.Bind) method;
+            return new AMQCommand(exchangeBind(bind.getDestination(), bind.getSource(), bind.getRoutingKey(),
+                    bind.getArguments()));
+        }
+
+        throw new UnsupportedOperationException("Simulated channel cannot send " + method.protocolMethodName());
+    }
+
+    public void setDefaultConsumer(final Consumer consumer) {
+        defaultConsumer = consumer;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedChannel(" + connection + "#" + channelNumber + ")";
+    }
+
+    public AMQP.Tx.CommitOk txCommit() throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            ensureTransactional();
+
+            List<TxOperation> operations = new ArrayList<TxOperation>(txOperations);
+            txOperations.clear();
+
+            for (TxOperation operation : operations) {
+                operation.apply();
+            }
+        }
+
+        return new AMQImpl.Tx.CommitOk();
+    }
+
+    public AMQP.Tx.RollbackOk txRollback() throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            ensureTransactional();
+            txOperations.clear();
+        }
+
+        return new AMQImpl.Tx.RollbackOk();
+    }
+
+    public AMQP.Tx.SelectOk txSelect() throws IOException {
+
+        roundTrip();
+
+        synchronized (broker) {
+
+            if (nextPublishSeqNo > 0) {
+                throw channelError(AMQP.PRECONDITION_FAILED,
+                        "PRECONDITION_FAILED - cannot switch from confirm to tx mode");
+            }
+
+            transactional = true;
+        }
+
+        return new AMQImpl.Tx.SelectOk();
+    }
+
+    /**
+     * Publishes are confirmed as soon as they are enqueued, so there is never anything to wait for.
+     */
+    public boolean waitForConfirms() throws InterruptedException {
+
+        ensureOpen();
+
+        if (getNextPublishSeqNo() == 0) {
+            throw new IllegalStateException("Confirms not selected");
+        }
+
+        return true;
+    }
+
+    public boolean waitForConfirms(final long timeout) throws InterruptedException, TimeoutException {
+        return waitForConfirms();
+    }
+
+    public void waitForConfirmsOrDie() throws IOException, InterruptedException {
+        waitForConfirms();
+    }
+
+    public void waitForConfirmsOrDie(final long timeout) throws IOException, InterruptedException,
+            TimeoutException {
+        waitForConfirms();
+    }
+
+    void addSubscription(final Subscription subscription) {
+
+        subscriptions.put(subscription.getConsumerTag(), subscription);
+
+        // dispatched before any delivery to the new consumer
+        connection.dispatch(new Runnable() {
+
+            public void run() {
+                subscription.getConsumer().handleConsumeOk(subscription.getConsumerTag());
+            }
+        });
+    }
+
+    void cancelledByBroker(final Subscription subscription) {
+
+        subscriptions.remove(subscription.getConsumerTag());
+
+        connection.dispatch(new Runnable() {
+
+            public void run() {
+
+                try {
+                    subscription.getConsumer().handleCancel(subscription.getConsumerTag());
+                } catch (IOException ioe) {
+                    LOG.warn("Consumer failed to handle cancellation: channel=" + SimulatedChannel.this, ioe);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the channel with an error from the broker.
+     * 
+     * @return the exception for the operation that caused the error to throw
+     */
+    IOException channelError(final int replyCode, final String replyText) {
+
+        ShutdownSignalException signal = new ShutdownSignalException(false, false, new AMQImpl.Channel.Close(
+                replyCode, replyText, 0, 0), this);
+        shutdown(signal);
+
+        IOException ioe = new IOException(replyText);
+        ioe.initCause(signal);
+
+        return ioe;
+    }
+
+    /**
+     * Hands a message to one of this channel's consumers.
+     */
+    void deliver(final Subscription subscription, final Message message) {
+
+        final Envelope envelope = record(subscription.getQueue(), message, subscription.isAutoAck());
+
+        connection.dispatch(new Runnable() {
+
+            public void run() {
+
+                broker.delay();
+
+                try {
+                    subscription.getConsumer().handleDelivery(subscription.getConsumerTag(), envelope,
+                            message.getProperties(), message.getBody());
+
+                } catch (IOException ioe) {
+                    LOG.warn("Consumer failed to handle delivery: deliveryTag=" + envelope.getDeliveryTag(), ioe);
+                }
+            }
+        });
+    }
+
+    SimulatedConnection getSimulatedConnection() {
+        return connection;
+    }
+
+    boolean hasCapacity() {
+        return prefetchCount == 0 || unacked.size() < prefetchCount;
+    }
+
+    /**
+     * Assigns a delivery tag to a message, and remembers it until it is acknowledged unless it is auto-acked.
+     */
+    Envelope record(final Queue queue, final Message message, final boolean autoAck) {
+
+        long deliveryTag = nextDeliveryTag++;
+        if (!autoAck) {
+            unacked.put(deliveryTag, message);
+        }
+
+        return new Envelope(deliveryTag, message.isRedelivered(), message.getExchange(), message.getRoutingKey());
+    }
+
+    List<Message> removeAllUnacked() {
+
+        List<Message> removed = new ArrayList<Message>(unacked.values());
+        unacked.clear();
+
+        return removed;
+    }
+
+    List<Subscription> removeSubscriptions() {
+
+        List<Subscription> removed = new ArrayList<Subscription>(subscriptions.values());
+        subscriptions.clear();
+
+        return removed;
+    }
+
+    /**
+     * @return the unacked messages up to and including the given delivery tag if multiple, or with exactly that tag
+     */
+    List<Message> removeUnacked(final long deliveryTag, final boolean multiple) throws IOException {
+
+        List<Message> removed = new ArrayList<Message>();
+
+        if (!multiple) {
+
+            Message message = unacked.remove(deliveryTag);
+            if (message == null) {
+                throw channelError(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - unknown delivery tag "
+                        + deliveryTag);
+            }
+
+            removed.add(message);
+            return removed;
+        }
+
+        // a tag of 0 with multiple set means everything outstanding
+        long upTo = deliveryTag == 0 ? Long.MAX_VALUE : deliveryTag;
+        for (Iterator<Map.Entry<Long, Message>> it = unacked.entrySet().iterator(); it.hasNext();) {
+
+            Map.Entry<Long, Message> entry = it.next();
+            if (entry.getKey() > upTo) {
+                break;
+            }
+
+            removed.add(entry.getValue());
+            it.remove();
+        }
+
+        return removed;
+    }
+
+    void setPrefetchCount(final int prefetchCount) {
+        this.prefetchCount = prefetchCount;
+    }
+
+    /**
+     * Closes the channel, returning its unacked messages to their queues and telling its consumers and shutdown
+     * listeners on the dispatch thread.
+     */
+    void shutdown(final ShutdownSignalException signal) {
+
+        final List<Subscription> cancelled;
+
+        synchronized (broker) {
+
+            if (closeReason != null) {
+                return;
+            }
+
+            synchronized (shutdownListeners) {
+                closeReason = signal;
+            }
+
+            cancelled = new ArrayList<Subscription>(subscriptions.values());
+            txOperations.clear();
+
+            broker.channelClosed(this);
+            connection.removeChannel(this);
+        }
+
+        connection.dispatch(new Runnable() {
+
+            public void run() {
+
+                for (Subscription subscription : cancelled) {
+                    subscription.getConsumer().handleShutdownSignal(subscription.getConsumerTag(), signal);
+                }
+
+                notifyListeners();
+            }
+        });
+    }
+
+    private ShutdownSignalException applicationSignal(final int closeCode, final String closeMessage) {
+        return new ShutdownSignalException(false, true, new AMQImpl.Channel.Close(closeCode, closeMessage, 0, 0),
+                this);
+    }
+
+    private void ensureOpen() {
+
+        ShutdownSignalException signal = closeReason;
+        if (signal != null) {
+            throw new AlreadyClosedException("channel is already closed due to " + signal.getMessage(), this);
+        }
+    }
+
+    private void ensureTransactional() throws IOException {
+
+        if (!transactional) {
+            throw channelError(AMQP.PRECONDITION_FAILED, "PRECONDITION_FAILED - channel is not transactional");
+        }
+    }
+
+    private List<ShutdownListener> getShutdownListeners() {
+
+        synchronized (shutdownListeners) {
+            return new ArrayList<ShutdownListener>(shutdownListeners);
+        }
+    }
+
+    /**
+     * Routes a publish, and tells the return and confirm listeners what became of it. A publish to an exchange that
+     * does not exist closes the channel, but like with the real client the publish itself does not fail.
+     */
+    private void publish(final String exchange, final String routingKey, final boolean mandatory,
+            final BasicProperties props, final byte[] body, final long seqNo) {
+
+        int routed = broker.publish(this, exchange, routingKey, props, body);
+        if (routed < 0) {
+            channelError(AMQP.NOT_FOUND, "NOT_FOUND - no exchange '" + exchange + "'");
+            return;
+        }
+
+        if (routed == 0 && mandatory) {
+
+            connection.dispatch(new Runnable() {
+
+                public void run() {
+
+                    for (ReturnListener listener : returnListeners) {
+
+                        try {
+                            listener.handleReturn(AMQP.NO_ROUTE, "NO_ROUTE", exchange, routingKey, props, body);
+                        } catch (IOException ioe) {
+                            LOG.warn("Return listener failed: channel=" + SimulatedChannel.this, ioe);
+                        }
+                    }
+                }
+            });
+        }
+
+        if (seqNo > 0) {
+
+            connection.dispatch(new Runnable() {
+
+                public void run() {
+
+                    for (ConfirmListener listener : confirmListeners) {
+
+                        try {
+                            listener.handleAck(seqNo, false);
+                        } catch (IOException ioe) {
+                            LOG.warn("Confirm listener failed: channel=" + SimulatedChannel.this, ioe);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Every operation is a round trip to the broker, which may be slow, and fails on a closed channel.
+     */
+    private void roundTrip() {
+
+        broker.delay();
+        ensureOpen();
+        connection.ensureOpen();
+    }
+}
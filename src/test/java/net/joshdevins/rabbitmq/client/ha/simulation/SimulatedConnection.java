@@ -0,0 +1,350 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.simulation;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+
+/**
+ * A {@link Connection} to a {@link SimulatedBroker}. Consumers, confirm, return and shutdown listeners of its channels
+ * are called on a single dispatch thread, in order.
+ * 
+ * @author Josh Devins
+ */
+public class SimulatedConnection implements Connection {
+
+    private static final Logger LOG = Logger.getLogger(SimulatedConnection.class);
+
+    private final SimulatedBroker broker;
+
+    private final String host;
+
+    private final int port;
+
+    private final int number;
+
+    private final ExecutorService dispatcher;
+
+    /**
+     * Open channels by number, guarded by the broker.
+     */
+    private final TreeMap<Integer, SimulatedChannel> channels;
+
+    private final List<ShutdownListener> shutdownListeners;
+
+    private volatile ShutdownSignalException closeReason;
+
+    SimulatedConnection(final SimulatedBroker broker, final String host, final int port, final int number) {
+
+        this.broker = broker;
+        this.host = host;
+        this.port = port;
+        this.number = number;
+
+        dispatcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(final Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "simulated-connection-" + number + "-dispatcher");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        channels = new TreeMap<Integer, SimulatedChannel>();
+        shutdownListeners = new ArrayList<ShutdownListener>();
+    }
+
+    public void abort() {
+        abort(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    public void abort(final int timeout) {
+        abort();
+    }
+
+    public void abort(final int closeCode, final String closeMessage) {
+        shutdown(applicationSignal(closeCode, closeMessage));
+    }
+
+    public void abort(final int closeCode, final String closeMessage, final int timeout) {
+        abort(closeCode, closeMessage);
+    }
+
+    public void addShutdownListener(final ShutdownListener listener) {
+
+        ShutdownSignalException signal;
+        synchronized (shutdownListeners) {
+
+            signal = closeReason;
+            if (signal == null) {
+                shutdownListeners.add(listener);
+                return;
+            }
+        }
+
+        // like the real client, a listener added too late is told straight away
+        listener.shutdownCompleted(signal);
+    }
+
+    public void close() throws IOException {
+        close(AMQP.REPLY_SUCCESS, "OK");
+    }
+
+    public void close(final int timeout) throws IOException {
+        close();
+    }
+
+    public void close(final int closeCode, final String closeMessage) throws IOException {
+
+        ensureOpen();
+        broker.delay();
+        abort(closeCode, closeMessage);
+    }
+
+    public void close(final int closeCode, final String closeMessage, final int timeout) throws IOException {
+        close(closeCode, closeMessage);
+    }
+
+    public Channel createChannel() throws IOException {
+
+        ensureOpen();
+        broker.delay();
+
+        synchronized (broker) {
+
+            int channelNumber = 1;
+            for (Integer used : channels.keySet()) {
+
+                if (used != channelNumber) {
+                    break;
+                }
+
+                channelNumber++;
+            }
+
+            return openChannel(channelNumber);
+        }
+    }
+
+    public Channel createChannel(final int channelNumber) throws IOException {
+
+        ensureOpen();
+        broker.delay();
+
+        synchronized (broker) {
+            return channels.containsKey(channelNumber) ? null : openChannel(channelNumber);
+        }
+    }
+
+    public InetAddress getAddress() {
+
+        try {
+            return InetAddress.getByName(host);
+        } catch (UnknownHostException uhe) {
+            return null;
+        }
+    }
+
+    public int getChannelMax() {
+        return 0;
+    }
+
+    public Map<String, Object> getClientProperties() {
+        return Collections.emptyMap();
+    }
+
+    public ShutdownSignalException getCloseReason() {
+        return closeReason;
+    }
+
+    public int getFrameMax() {
+        return 0;
+    }
+
+    public int getHeartbeat() {
+        return 0;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Map<String, Object> getServerProperties() {
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("product", SimulatedBroker.class.getSimpleName());
+
+        return properties;
+    }
+
+    public SimulatedBroker getSimulatedBroker() {
+        return broker;
+    }
+
+    public boolean isOpen() {
+        return closeReason == null;
+    }
+
+    public void notifyListeners() {
+
+        ShutdownSignalException signal = closeReason;
+        if (signal == null) {
+            return;
+        }
+
+        for (ShutdownListener listener : getShutdownListeners()) {
+            notifyListener(listener, signal);
+        }
+    }
+
+    public void removeShutdownListener(final ShutdownListener listener) {
+
+        synchronized (shutdownListeners) {
+            shutdownListeners.remove(listener);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedConnection(" + host + ":" + port + "#" + number + ")";
+    }
+
+    /**
+     * Runs a callback on the dispatch thread. Callbacks for a connection that has gone are dropped.
+     */
+    void dispatch(final Runnable callback) {
+
+        try {
+            dispatcher.execute(new Runnable() {
+
+                public void run() {
+
+                    try {
+                        callback.run();
+                    } catch (RuntimeException re) {
+                        LOG.warn("Simulated connection callback failed: connection=" + SimulatedConnection.this, re);
+                    }
+                }
+            });
+
+        } catch (RejectedExecutionException ree) {
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Dropping callback on closed connection: connection=" + this);
+            }
+        }
+    }
+
+    void ensureOpen() {
+
+        ShutdownSignalException signal = closeReason;
+        if (signal != null) {
+            throw new AlreadyClosedException("connection is already closed due to " + signal.getMessage(), this);
+        }
+    }
+
+    void removeChannel(final SimulatedChannel channel) {
+
+        synchronized (broker) {
+
+            if (channels.get(channel.getChannelNumber()) == channel) {
+                channels.remove(channel.getChannelNumber());
+            }
+        }
+    }
+
+    /**
+     * Shuts the connection down with its channels, then notifies shutdown listeners on the calling thread.
+     */
+    void shutdown(final ShutdownSignalException signal) {
+
+        synchronized (broker) {
+
+            if (closeReason != null) {
+                return;
+            }
+
+            synchronized (shutdownListeners) {
+                closeReason = signal;
+            }
+
+            for (SimulatedChannel channel : new ArrayList<SimulatedChannel>(channels.values())) {
+                channel.shutdown(signal);
+            }
+
+            channels.clear();
+            broker.connectionClosed(this);
+        }
+
+        // anything already queued for consumers still runs, then the thread goes away
+        dispatcher.shutdown();
+
+        notifyListeners();
+    }
+
+    private ShutdownSignalException applicationSignal(final int closeCode, final String closeMessage) {
+        return new ShutdownSignalException(true, true, new AMQImpl.Connection.Close(closeCode, closeMessage, 0, 0),
+                this);
+    }
+
+    private List<ShutdownListener> getShutdownListeners() {
+
+        synchronized (shutdownListeners) {
+            return new ArrayList<ShutdownListener>(shutdownListeners);
+        }
+    }
+
+    private void notifyListener(final ShutdownListener listener, final ShutdownSignalException signal) {
+
+        try {
+            listener.shutdownCompleted(signal);
+        } catch (RuntimeException re) {
+            LOG.warn("Shutdown listener failed: connection=" + this, re);
+        }
+    }
+
+    private SimulatedChannel openChannel(final int channelNumber) {
+
+        SimulatedChannel channel = new SimulatedChannel(this, channelNumber);
+        channels.put(channelNumber, channel);
+
+        return channel;
+    }
+}
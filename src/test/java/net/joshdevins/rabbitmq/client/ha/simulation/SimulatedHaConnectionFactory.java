@@ -0,0 +1,52 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.simulation;
+
+import java.io.IOException;
+
+import net.joshdevins.rabbitmq.client.ha.HaConnectionFactory;
+
+import org.apache.commons.lang.Validate;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+
+/**
+ * An {@link HaConnectionFactory} whose connections, reconnections and standby connections all go to a
+ * {@link SimulatedBroker} rather than over the network.
+ * 
+ * @author Josh Devins
+ */
+public class SimulatedHaConnectionFactory extends HaConnectionFactory {
+
+    private final SimulatedBroker broker;
+
+    public SimulatedHaConnectionFactory(final SimulatedBroker broker) {
+
+        Validate.notNull(broker, "broker is required");
+        this.broker = broker;
+    }
+
+    public SimulatedBroker getBroker() {
+        return broker;
+    }
+
+    @Override
+    protected Connection newTargetConnection(final Address[] addrs) throws IOException {
+        return broker.newConnection(addrs[0]);
+    }
+}
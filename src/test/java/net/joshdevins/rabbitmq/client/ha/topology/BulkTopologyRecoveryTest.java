@@ -0,0 +1,114 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.topology;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.joshdevins.rabbitmq.client.ha.simulation.SimulatedBroker;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+public class BulkTopologyRecoveryTest {
+
+    private SimulatedBroker broker;
+
+    private Connection connection;
+
+    private ExecutorService executorService;
+
+    private List<Declaration> declarations;
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Before
+    public void before() throws IOException {
+
+        broker = new SimulatedBroker();
+        connection = broker.newConnection(new Address("localhost"));
+        executorService = Executors.newCachedThreadPool();
+
+        declarations = new ArrayList<Declaration>();
+        declarations.add(Declaration.exchange("orders", "topic", false, false, false, null));
+        declarations.add(Declaration.queue("first", false, false, false, null));
+        declarations.add(Declaration.queueBinding("first", "orders", "#", null));
+        declarations.add(Declaration.queue("second", false, false, false, null));
+    }
+
+    @Test
+    public void testDeclarationsAreRecovered() throws IOException {
+
+        TopologyRecoveryResult result = new BulkTopologyRecovery(executorService, 2).recover(connection, declarations);
+
+        Assert.assertTrue(result.toString(), result.isSuccessful());
+        Assert.assertEquals(4, result.getNumDeclarations());
+        Assert.assertTrue(broker.hasQueue("first"));
+        Assert.assertTrue(broker.hasQueue("second"));
+
+        connection.createChannel().basicPublish("orders", "new", null, new byte[0]);
+        Assert.assertEquals(1, broker.getMessageCount("first"));
+    }
+
+    @Test
+    public void testRejectedDeclarationsAreReported() throws IOException {
+
+        // declared differently already, so the broker refuses the recorded declaration
+        Channel channel = connection.createChannel();
+        channel.queueDeclare("second", true, false, false, null);
+        channel.close();
+
+        TopologyRecoveryResult result = new BulkTopologyRecovery(executorService, 2).recover(connection, declarations);
+
+        Assert.assertFalse(result.isSuccessful());
+        Assert.assertEquals(1, result.getFailedDeclarations().size());
+        Assert.assertEquals("second", result.getFailedDeclarations().get(0).getDestination());
+        Assert.assertTrue(broker.hasQueue("first"));
+        Assert.assertTrue(connection.isOpen());
+    }
+
+    @Test
+    public void testUnansweredBarrierFailsRecovery() throws IOException {
+
+        // a broker that answers, but too late
+        broker.setFrameDelayMillis(500);
+
+        long start = System.currentTimeMillis();
+        try {
+            new BulkTopologyRecovery(executorService, 1, 100).recover(connection, declarations);
+            Assert.fail("Expected IOException");
+
+        } catch (IOException ioe) {
+            Assert.assertTrue(ioe.getMessage(), ioe.getMessage().contains("not answered within 100ms"));
+        }
+
+        // creating the channel and pipelining take their time, but the barrier is not waited for
+        Assert.assertTrue(System.currentTimeMillis() - start < 500 * (declarations.size() + 2));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.topology;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Channel;
+
+public class DeclarationCacheTest {
+
+    private static final Object REPLY = new Object();
+
+    private DeclarationCache cache;
+
+    @Before
+    public void before() {
+        cache = new DeclarationCache();
+    }
+
+    @Test
+    public void differentArgumentsMiss() {
+
+        cache.put(Declaration.queue("queue", true, false, false, null), REPLY, 0);
+
+        Assert.assertNull(cache.get(Declaration.queue("queue", false, false, false, null), 0));
+        Assert.assertNull(cache.get(
+                Declaration.queue("queue", true, false, false, Collections.<String, Object> singletonMap("x", 1)), 0));
+        Assert.assertSame(REPLY, cache.get(Declaration.queue("queue", true, false, false, null), 0));
+
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void epochChangeClears() {
+
+        Declaration declaration = Declaration.exchange("exchange", "topic", true, false, false, null);
+        cache.put(declaration, REPLY, 1);
+
+        Assert.assertSame(REPLY, cache.get(declaration, 1));
+        Assert.assertNull(cache.get(declaration, 2));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void autoDeleteIsNotCached() {
+
+        cache.put(Declaration.queue("queue", false, false, true, null), REPLY, 0);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidateQueueRemovesBindings() {
+
+        cache.put(Declaration.queue("queue", true, false, false, null), REPLY, 0);
+        cache.put(Declaration.queue("other", true, false, false, null), REPLY, 0);
+        cache.put(Declaration.queueBinding("queue", "amq.topic", "#", null), REPLY, 0);
+        cache.put(Declaration.queueBinding("other", "amq.topic", "#", null), REPLY, 0);
+
+        cache.invalidate(Declaration.Type.QUEUE, "queue");
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertSame(REPLY, cache.get(Declaration.queueBinding("other", "amq.topic", "#", null), 0));
+    }
+
+    @Test
+    public void bindingIsOnlyCachedWhileBothEndsAre() {
+
+        // auto-delete ends are never cached, so neither are their bindings
+        cache.put(Declaration.queue("auto", false, false, true, null), REPLY, 0);
+        cache.put(Declaration.queueBinding("auto", "amq.topic", "#", null), REPLY, 0);
+        cache.put(Declaration.exchange("auto", "topic", false, true, false, null), REPLY, 0);
+        cache.put(Declaration.queue("queue", true, false, false, null), REPLY, 0);
+        cache.put(Declaration.queueBinding("queue", "auto", "#", null), REPLY, 0);
+
+        // nor are bindings of ends that were never declared through the cache
+        cache.put(Declaration.queueBinding("undeclared", "amq.topic", "#", null), REPLY, 0);
+
+        Assert.assertEquals(1, cache.size());
+
+        cache.put(Declaration.queueBinding("queue", "amq.topic", "#", null), REPLY, 0);
+        Assert.assertSame(REPLY, cache.get(Declaration.queueBinding("queue", "amq.topic", "#", null), 0));
+    }
+
+    @Test
+    public void declarationReachingBrokerForgetsBindings() throws Exception {
+
+        Method queueDeclare = Channel.class.getMethod("queueDeclare", String.class, boolean.class, boolean.class,
+                boolean.class, Map.class);
+        Method queueBind = Channel.class.getMethod("queueBind", String.class, String.class, String.class);
+
+        cache.recordInvocation(queueDeclare, new Object[] { "queue", true, false, false, null }, REPLY, 0);
+        cache.recordInvocation(queueBind, new Object[] { "queue", "amq.topic", "#" }, REPLY, 0);
+        Assert.assertSame(REPLY, cache.lookup(queueBind, new Object[] { "queue", "amq.topic", "#" }, 0));
+
+        // a declare that misses may be recreating the queue, which the binding has to follow
+        Assert.assertNull(cache.lookup(queueDeclare, new Object[] { "queue", false, false, false, null }, 0));
+        Assert.assertNull(cache.lookup(queueBind, new Object[] { "queue", "amq.topic", "#" }, 0));
+
+        cache.recordInvocation(queueBind, new Object[] { "queue", "amq.topic", "#" }, REPLY, 0);
+        Assert.assertSame(REPLY, cache.lookup(queueBind, new Object[] { "queue", "amq.topic", "#" }, 0));
+
+        // as does one that is sent again
+        cache.recordInvocation(queueDeclare, new Object[] { "queue", true, false, false, null }, REPLY, 0);
+        Assert.assertNull(cache.lookup(queueBind, new Object[] { "queue", "amq.topic", "#" }, 0));
+    }
+}
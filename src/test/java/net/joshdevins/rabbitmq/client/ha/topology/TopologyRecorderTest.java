@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 Josh Devins
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.joshdevins.rabbitmq.client.ha.topology;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.impl.AMQImpl;
+
+public class TopologyRecorderTest {
+
+    private TopologyRecorder recorder;
+
+    @Before
+    public void before() {
+        recorder = new TopologyRecorder();
+    }
+
+    @Test
+    public void deleteExchangeRemovesBindings() throws Exception {
+
+        record("exchangeDeclare", new Class<?>[] { String.class, String.class }, "exchange", "topic");
+        record("queueDeclare", new Class<?>[] { String.class, boolean.class, boolean.class, boolean.class, Map.class },
+                "queue", true, false, false, null);
+        record("queueBind", new Class<?>[] { String.class, String.class, String.class }, "queue", "exchange", "#");
+
+        record("exchangeDelete", new Class<?>[] { String.class }, "exchange");
+
+        List<Declaration> declarations = recorder.getDeclarations();
+        Assert.assertEquals(1, declarations.size());
+        Assert.assertEquals(Declaration.Type.QUEUE, declarations.get(0).getType());
+    }
+
+    @Test
+    public void deleteQueueRemovesBindings() throws Exception {
+
+        record("queueDeclare", new Class<?>[] { String.class, boolean.class, boolean.class, boolean.class, Map.class },
+                "queue", true, false, false, null);
+        record("queueBind", new Class<?>[] { String.class, String.class, String.class }, "queue", "amq.topic", "#");
+        Assert.assertEquals(2, recorder.size());
+
+        record("queueDelete", new Class<?>[] { String.class }, "queue");
+        Assert.assertEquals(0, recorder.size());
+    }
+
+    @Test
+    public void redeclarationKeepsOrderAndReplacesArguments() throws Exception {
+
+        record("queueDeclare", new Class<?>[] { String.class, boolean.class, boolean.class, boolean.class, Map.class },
+                "first", true, false, false, null);
+        record("queueDeclare", new Class<?>[] { String.class, boolean.class, boolean.class, boolean.class, Map.class },
+                "second", true, false, false, null);
+        record("queueDeclare", new Class<?>[] { String.class, boolean.class, boolean.class, boolean.class, Map.class },
+                "first", false, false, false, new HashMap<String, Object>());
+
+        List<Declaration> declarations = recorder.getDeclarations();
+        Assert.assertEquals(2, declarations.size());
+        Assert.assertEquals(Declaration.queue("first", false, false, false, null), declarations.get(0));
+        Assert.assertEquals("second", declarations.get(1).getDestination());
+    }
+
+    @Test
+    public void serverNamedAndPassiveDeclarationsAreIgnored() throws Exception {
+
+        record("queueDeclare", new Class<?>[0]);
+        record("queueDeclare", new Class<?>[] { String.class, boolean.class, boolean.class, boolean.class, Map.class },
+                "", false, true, true, null);
+        record("queueDeclarePassive", new Class<?>[] { String.class }, "queue");
+        record("exchangeDeclarePassive", new Class<?>[] { String.class }, "exchange");
+
+        Assert.assertEquals(0, recorder.size());
+    }
+
+    @Test
+    public void serverNamedQueueBindingsAreIgnored() throws Exception {
+
+        recordReply(new AMQImpl.Queue.DeclareOk("amq.gen-1", 0, 0), "queueDeclare", new Class<?>[0]);
+        recordReply(new AMQImpl.Queue.DeclareOk("amq.gen-2", 0, 0), "queueDeclare", new Class<?>[] { String.class,
+                boolean.class, boolean.class, boolean.class, Map.class }, "", false, true, true, null);
+
+        record("queueBind", new Class<?>[] { String.class, String.class, String.class }, "amq.gen-1", "amq.topic", "#");
+        record("queueBind", new Class<?>[] { String.class, String.class, String.class }, "amq.gen-2", "amq.topic", "#");
+        record("queueBind", new Class<?>[] { String.class, String.class, String.class }, "queue", "amq.topic", "#");
+
+        List<Declaration> declarations = recorder.getDeclarations();
+        Assert.assertEquals(1, declarations.size());
+        Assert.assertEquals("queue", declarations.get(0).getDestination());
+    }
+
+    @Test
+    public void unbindRemovesBinding() throws Exception {
+
+        record("queueBind", new Class<?>[] { String.class, String.class, String.class }, "queue", "amq.topic", "a");
+        record("queueBind", new Class<?>[] { String.class, String.class, String.class }, "queue", "amq.topic", "b");
+        record("queueUnbind", new Class<?>[] { String.class, String.class, String.class }, "queue", "amq.topic", "a");
+
+        List<Declaration> declarations = recorder.getDeclarations();
+        Assert.assertEquals(1, declarations.size());
+        Assert.assertEquals(Declaration.queueBinding("queue", "amq.topic", "b", null), declarations.get(0));
+    }
+
+    private void record(final String methodName, final Class<?>[] parameterTypes, final Object... args)
+            throws Exception {
+        recordReply(null, methodName, parameterTypes, args);
+    }
+
+    private void recordReply(final Object reply, final String methodName, final Class<?>[] parameterTypes,
+            final Object... args) throws Exception {
+
+        Method method = Channel.class.getMethod(methodName, parameterTypes);
+        recorder.recordInvocation(method, args, reply);
+    }
+}